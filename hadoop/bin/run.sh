@@ -7,6 +7,8 @@
 #   HADOOP_LIB_DIR    Hadoop JARs directory
 #
 #   JAVA_OPTS         (Optional) Java runtime options
+#
+#   MAIN_CLASS        (Optional) Class to run, defaults to com.linkedin.whiteelephant.ProcessLogs
 
 home_dir=$(dirname $0)
 
@@ -56,4 +58,4 @@ done;
 
 export CLASSPATH
 
-java $JAVA_OPTS com.linkedin.whiteelephant.ProcessLogs $JOB_FILE
\ No newline at end of file
+java $JAVA_OPTS ${MAIN_CLASS:-com.linkedin.whiteelephant.ProcessLogs} $JOB_FILE
\ No newline at end of file
@@ -0,0 +1,6 @@
+#!/usr/bin/env bash
+
+# Uploads Hadoop logs from the JobTracker's log directory.  Takes the same environment
+# variables as run.sh.
+
+MAIN_CLASS=com.linkedin.whiteelephant.UploadLogs exec $(dirname $0)/run.sh "$@"
@@ -0,0 +1,738 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyInputFormat;
+import org.apache.avro.mapreduce.AvroKeyOutputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueInputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.analysis.AttemptStatsKey;
+import com.linkedin.whiteelephant.analysis.AttemptStatsValue;
+import com.linkedin.whiteelephant.analysis.ComputeUsagePerHour;
+import com.linkedin.whiteelephant.analysis.ServingUsageWriter;
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombineDocumentFileFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombinedAvroKeyValueInputFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.ConcurrencyController;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.parsing.JobConf;
+import com.linkedin.whiteelephant.parsing.LogData;
+import com.linkedin.whiteelephant.parsing.MergeParsedJobs;
+import com.linkedin.whiteelephant.parsing.ParseJobConfs;
+import com.linkedin.whiteelephant.parsing.ParseJobsFromLogs;
+import com.linkedin.whiteelephant.util.InputListing;
+import com.linkedin.whiteelephant.util.LogCheckpoint;
+
+/**
+ * Keeps the most recent days up to date by repeatedly ingesting newly uploaded history and conf files.
+ *
+ * <p>
+ * Every <code>continuous.poll.minutes</code> the last <code>continuous.num.days</code> days of logs are listed.
+ * History files are scanned from the offset recorded in the checkpoint, so files still being written are only
+ * read once in full.  When a file contains the final status of its job, the file and the job's conf are ingested:
+ * </p>
+ *
+ * <ol>
+ * <li>The history files of newly finished jobs are parsed, and their confs are parsed and merged into the day's parsed confs.</li>
+ * <li>The parsed jobs are merged into the day's previously parsed jobs by {@link MergeParsedJobs}.</li>
+ * <li>The usage of jobs which were added or replaced is computed and merged into the day's hourly usage.</li>
+ * </ol>
+ *
+ * <p>
+ * The new data for each day is committed as new versions of its parsed jobs, parsed confs and usage only once
+ * every job of the poll has succeeded, after which the files are marked ingested in the checkpoint.  A failed poll
+ * leaves the outputs untouched and the same files are tried again on the next poll.  Days older than the polled
+ * window are left to the batch run.
+ * </p>
+ *
+ * <p>
+ * The parsed jobs are committed before the usage computed from them, and each usage version records in its
+ * <code>_MERGED</code> marker the version of the parsed jobs it is up to date with.  If a poll fails between the two
+ * commits, the next poll merges its jobs into the version the usage was computed from rather than the latest one,
+ * so the usage of the jobs ingested by the failed poll is added exactly once.
+ * </p>
+ */
+public class ContinuousIngestion
+{
+  private static final Pattern jobPattern = Pattern.compile("job_\\d+_\\d+");
+  private static final TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  public static final String MARKER = "_MERGED";
+  private static final String JOBS_VERSION = "jobs.version";
+
+  private final Logger _log;
+  private final String _name;
+  private final Properties _props;
+  private final FileSystem _fs;
+  private final InputListing _listing;
+  private final LogCheckpoint _checkpoint;
+  private final int _jobConcurrency;
+  private final Map<String,Integer> _guaranteedSlots;
+  private final ConcurrencyController _concurrency;
+
+  private final String _logsRoot;
+  private final String _clusterNames;
+  private final String _jobsOutputPathRoot;
+  private final String _confsOutputPathRoot;
+  private final String _usageOutputPathRoot;
+  private final String _workPathRoot;
+  private final long _pollMillis;
+  private final int _numDays;
+
+  private final CountDownLatch _cancelled = new CountDownLatch(1);
+  private volatile StagedOutputJobExecutor _executor;
+
+  /**
+   * @param concurrency Controller adjusting how many jobs run at once, or null to always run jobConcurrency
+   */
+  public ContinuousIngestion(String name, Properties props, int jobConcurrency, Map<String,Integer> guaranteedSlots,
+                             ConcurrencyController concurrency) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+    _jobConcurrency = jobConcurrency;
+    _guaranteedSlots = guaranteedSlots;
+    _concurrency = concurrency;
+
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "continuous");
+
+    if (_props.get("cluster.names") == null) {
+      throw new IllegalArgumentException("cluster.names is not specified.");
+    }
+
+    if (_props.get("logs.root") == null) {
+      throw new IllegalArgumentException("logs.root is not specified.");
+    }
+
+    if (_props.get("jobs.output.path") == null) {
+      throw new IllegalArgumentException("jobs.output.path is not specified.");
+    }
+
+    if (_props.get("confs.output.path") == null) {
+      throw new IllegalArgumentException("confs.output.path is not specified.");
+    }
+
+    if (_props.get("usage.output.path") == null) {
+      throw new IllegalArgumentException("usage.output.path is not specified.");
+    }
+
+    if (_props.get("continuous.checkpoint.path") == null) {
+      throw new IllegalArgumentException("continuous.checkpoint.path is not specified.");
+    }
+
+    _clusterNames = (String)_props.get("cluster.names");
+    _logsRoot = (String)_props.get("logs.root");
+    _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
+    _confsOutputPathRoot = (String)_props.get("confs.output.path");
+    _usageOutputPathRoot = (String)_props.get("usage.output.path");
+    _workPathRoot = _props.getProperty("continuous.work.path", "/tmp" + _jobsOutputPathRoot + "-continuous");
+    _pollMillis = (long)(Double.parseDouble(_props.getProperty("continuous.poll.minutes", "5")) * 60 * 1000);
+    _numDays = Integer.parseInt(_props.getProperty("continuous.num.days", "2"));
+
+    _checkpoint = new LogCheckpoint(_fs, new Path((String)_props.get("continuous.checkpoint.path")));
+  }
+
+  /**
+   * Polls for new files until cancelled.
+   */
+  public void run() throws IOException, InterruptedException
+  {
+    System.out.println(String.format("Polling %s every %.1f minutes", _logsRoot, _pollMillis/60000.0));
+
+    while (_cancelled.getCount() > 0)
+    {
+      long startMillis = System.currentTimeMillis();
+
+      try
+      {
+        poll();
+      }
+      catch (IOException e)
+      {
+        _log.error("Poll failed, the same files will be ingested on the next poll", e);
+      }
+      catch (ExecutionException e)
+      {
+        _log.error("Poll failed, the same files will be ingested on the next poll", e);
+      }
+      catch (RuntimeException e)
+      {
+        _log.error("Poll failed, the same files will be ingested on the next poll", e);
+      }
+      finally
+      {
+        _checkpoint.save();
+      }
+
+      long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+      System.out.println(String.format("Poll took %.1f seconds", elapsedMillis/1000.0));
+
+      _cancelled.await(Math.max(0, _pollMillis - elapsedMillis), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void cancel()
+  {
+    _cancelled.countDown();
+
+    StagedOutputJobExecutor executor = _executor;
+    if (executor != null)
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  private void poll() throws IOException, InterruptedException, ExecutionException
+  {
+    _fs.delete(new Path(_workPathRoot), true);
+
+    SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
+    SimpleDateFormat dayFormat = new SimpleDateFormat("MMdd");
+
+    yearFormat.setTimeZone(timeZone);
+    dayFormat.setTimeZone(timeZone);
+
+    List<Callable<DayBatch>> scans = new ArrayList<Callable<DayBatch>>();
+
+    for (String clusterName : _clusterNames.split(","))
+    {
+      Calendar cal = Calendar.getInstance(timeZone);
+
+      for (int i=0; i<_numDays; i++, cal.add(Calendar.DAY_OF_MONTH, -1))
+      {
+        Date date = cal.getTime();
+        scans.add(createScan(clusterName, yearFormat.format(date), dayFormat.format(date)));
+      }
+    }
+
+    List<DayBatch> batches = new ArrayList<DayBatch>();
+    Set<String> listed = new HashSet<String>();
+
+    for (DayBatch batch : _listing.invokeAll(scans))
+    {
+      listed.addAll(batch.listed);
+
+      if (batch.historyPaths.size() > 0 || batch.confPaths.size() > 0)
+      {
+        System.out.println(String.format("%s => %d finished jobs, %d confs", batch.id, batch.historyPaths.size(), batch.confPaths.size()));
+        batches.add(batch);
+      }
+    }
+
+    _checkpoint.retain(listed);
+
+    if (batches.size() == 0)
+    {
+      System.out.println("No newly finished jobs");
+      return;
+    }
+
+    StagedOutputJobExecutor executor;
+
+    if (_concurrency != null)
+    {
+      executor = new StagedOutputJobExecutor(_concurrency.getConcurrency(), _concurrency.getMaxConcurrency(), _guaranteedSlots);
+      _concurrency.attach(executor);
+    }
+    else
+    {
+      executor = new StagedOutputJobExecutor(_jobConcurrency, _guaranteedSlots);
+    }
+
+    _executor = executor;
+
+    try
+    {
+      for (DayBatch batch : batches)
+      {
+        if (batch.historyPaths.size() > 0)
+        {
+          submitParseJobs(executor, batch);
+        }
+
+        if (batch.confPaths.size() > 0)
+        {
+          submitMergeConfs(executor, batch);
+        }
+      }
+
+      executor.waitForCompletion();
+
+      for (DayBatch batch : batches)
+      {
+        if (batch.historyPaths.size() > 0)
+        {
+          submitMergeJobs(executor, batch);
+        }
+      }
+
+      executor.waitForCompletion();
+
+      for (DayBatch batch : batches)
+      {
+        if (batch.historyPaths.size() > 0)
+        {
+          submitMergeUsage(executor, batch);
+        }
+      }
+
+      executor.waitForCompletion();
+    }
+    finally
+    {
+      executor.shutdownNow();
+      _executor = null;
+    }
+
+    for (DayBatch batch : batches)
+    {
+      commit(batch);
+    }
+
+    VersionedOutput.awaitCollection();
+  }
+
+  private Callable<DayBatch> createScan(final String clusterName, final String year, final String day)
+  {
+    return new Callable<DayBatch>() {
+      @Override
+      public DayBatch call() throws IOException
+      {
+        DayBatch batch = new DayBatch(clusterName, year, day);
+
+        Set<String> finishedJobIds = new HashSet<String>();
+
+        FileStatus[] historyFiles = _fs.globStatus(new Path(String.format("%s/%s/daily/*/%s/%s/*log", _logsRoot, clusterName, year, day)));
+
+        if (historyFiles != null)
+        {
+          for (FileStatus file : historyFiles)
+          {
+            String path = file.getPath().toString();
+            String jobId = getJobId(path);
+
+            batch.listed.add(path);
+
+            if (jobId != null && _checkpoint.scan(file))
+            {
+              finishedJobIds.add(jobId);
+
+              if (!_checkpoint.isIngested(path))
+              {
+                batch.historyPaths.add(path);
+                batch.jobIds.add(jobId);
+              }
+            }
+          }
+        }
+
+        FileStatus[] confFiles = _fs.globStatus(new Path(String.format("%s/%s/daily/*/%s/%s/*xml", _logsRoot, clusterName, year, day)));
+
+        if (confFiles != null)
+        {
+          for (FileStatus file : confFiles)
+          {
+            String path = file.getPath().toString();
+
+            batch.listed.add(path);
+
+            // a conf is uploaded along with the history file, so it is complete once the job has finished
+            if (finishedJobIds.contains(getJobId(path)) && !_checkpoint.isIngested(path))
+            {
+              batch.confPaths.add(path);
+            }
+          }
+        }
+
+        return batch;
+      }
+    };
+  }
+
+  private void submitParseJobs(StagedOutputJobExecutor executor, DayBatch batch)
+  {
+    String outputPath = batch.getWorkPath("delta-jobs");
+
+    StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-continuous-parse-jobs-" + batch.id,
+      batch.historyPaths,
+      "/tmp" + outputPath,
+      outputPath,
+      _log);
+
+    ParseJobsFromLogs.configureJob(job, _jobsOutputPathRoot, batch.clusterName);
+
+    job.setNumReduceTasks(1);
+
+    executor.submit(job, batch.clusterName);
+  }
+
+  private void submitMergeJobs(StagedOutputJobExecutor executor, DayBatch batch) throws IOException
+  {
+    List<String> inputPaths = new ArrayList<String>();
+
+    inputPaths.add(batch.getWorkPath("delta-jobs") + "/*/part-*.avro");
+
+    Path previousPath = resolveJobsForUsage(batch);
+    String previous = previousPath != null ? getAvroPattern(new Path(previousPath, "part-*.avro")) : null;
+    if (previous != null)
+    {
+      inputPaths.add(previous);
+    }
+
+    String outputPath = batch.getWorkPath("jobs");
+
+    StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-continuous-merge-jobs-" + batch.id,
+      inputPaths,
+      "/tmp" + outputPath,
+      outputPath,
+      _log);
+
+    MergeParsedJobs.configureJob(job, batch.jobIds);
+
+    job.setNumReduceTasks(1);
+
+    executor.submit(job, batch.clusterName);
+  }
+
+  private void submitMergeConfs(StagedOutputJobExecutor executor, DayBatch batch) throws IOException
+  {
+    String outputPath = batch.getWorkPath("confs");
+
+    StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-continuous-merge-confs-" + batch.id,
+      batch.confPaths,
+      "/tmp" + outputPath,
+      outputPath,
+      _log);
+
+    job.getConfiguration().set("logs.cluster.name", batch.clusterName);
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(NullWritable.class);
+
+    job.setOutputFormatClass(AvroKeyOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, JobConf.SCHEMA$);
+    AvroJob.setOutputKeySchema(job, JobConf.SCHEMA$);
+
+    for (String confPath : batch.confPaths)
+    {
+      MultipleInputs.addInputPath(job, new Path(confPath), CombineDocumentFileFormat.class, ParseJobConfs.TheMapper.class);
+    }
+
+    String previous = getLatestAvroPattern(batch.getOutputPath(_confsOutputPathRoot));
+    if (previous != null)
+    {
+      MultipleInputs.addInputPath(job, new Path(previous), AvroKeyInputFormat.class, Mapper.class);
+    }
+
+    job.setNumReduceTasks(0);
+
+    executor.submit(job, batch.clusterName);
+  }
+
+  private void submitMergeUsage(StagedOutputJobExecutor executor, DayBatch batch) throws IOException
+  {
+    Path mergedPath = VersionedOutput.resolveLatest(_fs, new Path(batch.getWorkPath("jobs")));
+
+    String added = getAvroPattern(new Path(mergedPath, MergeParsedJobs.ADDED + "-*.avro"));
+    String superseded = getAvroPattern(new Path(mergedPath, MergeParsedJobs.SUPERSEDED + "-*.avro"));
+
+    if (added == null && superseded == null)
+    {
+      System.out.println(String.format("%s => usage unchanged", batch.id));
+      return;
+    }
+
+    List<String> inputPaths = new ArrayList<String>();
+    inputPaths.add(mergedPath.toString());
+
+    String outputPath = batch.getWorkPath("usage");
+
+    StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-continuous-merge-usage-" + batch.id,
+      inputPaths,
+      "/tmp" + outputPath,
+      outputPath,
+      _log);
+
+    job.getConfiguration().set("cluster.name", batch.clusterName);
+    job.getConfiguration().setBoolean(ServingUsageWriter.ENABLED, Boolean.parseBoolean(_props.getProperty(ServingUsageWriter.ENABLED, "false")));
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+
+    AvroJob.setMapOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
+
+    AvroJob.setOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
+
+    if (added != null)
+    {
+      MultipleInputs.addInputPath(job, new Path(added), CombinedAvroKeyValueInputFormat.class, ComputeUsagePerHour.TheMapper.class);
+    }
+
+    if (superseded != null)
+    {
+      MultipleInputs.addInputPath(job, new Path(superseded), CombinedAvroKeyValueInputFormat.class, ComputeUsagePerHour.SupersededMapper.class);
+    }
+
+    String previous = getLatestAvroPattern(batch.getOutputPath(_usageOutputPathRoot));
+    if (previous != null)
+    {
+      MultipleInputs.addInputPath(job, new Path(previous), ComputeUsagePerHour.UsageInputFormat.class, Mapper.class);
+    }
+
+    job.setReducerClass(ComputeUsagePerHour.TheReducer.class);
+    job.setNumReduceTasks(1);
+
+    executor.submit(job, batch.clusterName);
+  }
+
+  /**
+   * Determines the parsed jobs newly parsed jobs are merged into: the version the latest usage is up to date with,
+   * when a failed poll committed jobs but not the usage computed from them, and otherwise the latest version.
+   *
+   * @return The path of the parsed jobs, or null if there are none
+   */
+  private Path resolveJobsForUsage(DayBatch batch) throws IOException
+  {
+    Path jobsPath = new Path(batch.getOutputPath(_jobsOutputPathRoot));
+    Path latestJobsPath = VersionedOutput.resolveLatest(_fs, jobsPath);
+    Path latestUsagePath = VersionedOutput.resolveLatest(_fs, new Path(batch.getOutputPath(_usageOutputPathRoot)));
+
+    if (latestJobsPath == null || latestUsagePath == null || !_fs.exists(new Path(latestUsagePath, MARKER)))
+    {
+      // usage from the batch run, which is computed from the latest jobs
+      return latestJobsPath;
+    }
+
+    Properties marker = new Properties();
+
+    InputStream in = _fs.open(new Path(latestUsagePath, MARKER));
+    try
+    {
+      marker.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    String version = marker.getProperty(JOBS_VERSION);
+
+    if (version == null || version.equals(latestJobsPath.getName()))
+    {
+      return latestJobsPath;
+    }
+
+    Path versionPath = new Path(jobsPath, version);
+
+    if (!_fs.exists(versionPath))
+    {
+      _log.warn(String.format("%s => usage was computed from jobs at %s, which no longer exists, merging into %s", batch.id, versionPath, latestJobsPath));
+      return latestJobsPath;
+    }
+
+    System.out.println(String.format("%s => usage is behind the latest jobs, merging into %s", batch.id, versionPath));
+
+    return versionPath;
+  }
+
+  /**
+   * Moves the merged data for a day into place.  The parsed jobs are committed before the usage computed from them,
+   * and the usage records which version of the jobs it is up to date with, so that the next poll can tell when a
+   * failure in between left the usage behind.
+   */
+  private void commit(DayBatch batch) throws IOException
+  {
+    if (batch.historyPaths.size() > 0)
+    {
+      Path jobsPath = VersionedOutput.resolveLatest(_fs, new Path(batch.getWorkPath("jobs")));
+
+      for (String namedOutput : new String[] { MergeParsedJobs.ADDED, MergeParsedJobs.SUPERSEDED })
+      {
+        FileStatus[] files = _fs.globStatus(new Path(jobsPath, namedOutput + "-*"));
+
+        if (files != null)
+        {
+          for (FileStatus file : files)
+          {
+            _fs.delete(file.getPath(), false);
+          }
+        }
+      }
+
+      Path jobsVersionPath = commit(jobsPath, batch.getOutputPath(_jobsOutputPathRoot));
+
+      Path usagePath = VersionedOutput.resolveLatest(_fs, new Path(batch.getWorkPath("usage")));
+
+      if (usagePath != null)
+      {
+        Properties marker = new Properties();
+        marker.setProperty(JOBS_VERSION, jobsVersionPath.getName());
+
+        OutputStream out = _fs.create(new Path(usagePath, MARKER), true);
+        try
+        {
+          marker.store(out, null);
+        }
+        finally
+        {
+          out.close();
+        }
+
+        commit(usagePath, batch.getOutputPath(_usageOutputPathRoot));
+      }
+    }
+
+    if (batch.confPaths.size() > 0)
+    {
+      commit(VersionedOutput.resolveLatest(_fs, new Path(batch.getWorkPath("confs"))), batch.getOutputPath(_confsOutputPathRoot));
+    }
+
+    List<String> ingested = new ArrayList<String>();
+    ingested.addAll(batch.historyPaths);
+    ingested.addAll(batch.confPaths);
+
+    _checkpoint.markIngested(ingested);
+  }
+
+  private Path commit(Path stagedPath, String outputPath) throws IOException
+  {
+    Path versionPath = VersionedOutput.commit(_fs, stagedPath, new Path(outputPath));
+
+    if (versionPath == null)
+    {
+      throw new IOException(String.format("Failed to commit %s to %s", stagedPath, outputPath));
+    }
+
+    return versionPath;
+  }
+
+  private String getLatestAvroPattern(String outputPath) throws IOException
+  {
+    Path latestPath = VersionedOutput.resolveLatest(_fs, new Path(outputPath));
+
+    if (latestPath == null)
+    {
+      return null;
+    }
+
+    return getAvroPattern(new Path(latestPath, "part-*.avro"));
+  }
+
+  /**
+   * Returns the pattern if it matches any files, since a job fails when one of its input patterns matches nothing.
+   */
+  private String getAvroPattern(Path pattern) throws IOException
+  {
+    FileStatus[] files = _fs.globStatus(pattern);
+
+    if (files == null || files.length == 0)
+    {
+      return null;
+    }
+
+    return pattern.toString();
+  }
+
+  private static String getJobId(String path)
+  {
+    Matcher jobMatcher = jobPattern.matcher(new Path(path).getName());
+    return jobMatcher.find() ? jobMatcher.group() : null;
+  }
+
+  private class DayBatch
+  {
+    final String clusterName;
+    final String year;
+    final String day;
+    final String id;
+
+    final List<String> listed = new ArrayList<String>();
+    final List<String> historyPaths = new ArrayList<String>();
+    final List<String> confPaths = new ArrayList<String>();
+    final List<String> jobIds = new ArrayList<String>();
+
+    DayBatch(String clusterName, String year, String day)
+    {
+      this.clusterName = clusterName;
+      this.year = year;
+      this.day = day;
+      this.id = String.format("%s-%s-%s", clusterName, year, day);
+    }
+
+    String getOutputPath(String outputPathRoot)
+    {
+      return String.format("%s/%s/%s/%s", outputPathRoot, clusterName, year, day);
+    }
+
+    String getWorkPath(String stage)
+    {
+      return String.format("%s/%s/%s", _workPathRoot, id, stage);
+    }
+  }
+}
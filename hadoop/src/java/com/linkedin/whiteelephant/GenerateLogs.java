@@ -0,0 +1,465 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+
+/**
+ * Writes synthetic job history files and job confs in the layout the log uploader produces, for testing and
+ * benchmarking the pipeline without logs from a real cluster.
+ *
+ * <p>
+ * Each of the <code>generator.num.days</code> days before today gets <code>generator.jobs.per.day</code> jobs, times the
+ * scale, submitted by <code>generator.users</code> users with a skewed distribution.  Task counts are log-uniform up to
+ * <code>generator.max.maps</code> and <code>generator.max.reduces</code>.  Attempts fail and are retried at
+ * <code>generator.failure.rate</code>, and are speculatively executed at <code>generator.speculation.rate</code>.
+ * A fraction <code>generator.truncated.rate</code> of history files end in the middle of a line, as when a job
+ * tracker dies while writing them.  The same seed always produces the same logs.
+ * </p>
+ */
+public class GenerateLogs
+{
+  private static final TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  private static final String JOB_TRACKER_START = "201301010000";
+
+  private final String _clusterName;
+  private final int _numDays;
+  private final int _jobsPerDay;
+  private final int _numUsers;
+  private final String[] _queues;
+  private final int _numHosts;
+  private final int _maxMaps;
+  private final int _maxReduces;
+  private final double _failureRate;
+  private final double _speculationRate;
+  private final double _truncatedRate;
+  private final int _confProperties;
+  private final long _seed;
+  private final int _concurrency;
+
+  public GenerateLogs(Properties props)
+  {
+    if (props.get("generator.cluster.name") == null) {
+      throw new IllegalArgumentException("generator.cluster.name is not specified.");
+    }
+
+    _clusterName = props.getProperty("generator.cluster.name");
+    _numDays = Integer.parseInt(props.getProperty("generator.num.days", "3"));
+    _jobsPerDay = Integer.parseInt(props.getProperty("generator.jobs.per.day", "100"));
+    _numUsers = Integer.parseInt(props.getProperty("generator.users", "20"));
+    _queues = props.getProperty("generator.queues", "default,etl,adhoc").split(",");
+    _numHosts = Integer.parseInt(props.getProperty("generator.hosts", "100"));
+    _maxMaps = Integer.parseInt(props.getProperty("generator.max.maps", "500"));
+    _maxReduces = Integer.parseInt(props.getProperty("generator.max.reduces", "50"));
+    _failureRate = Double.parseDouble(props.getProperty("generator.failure.rate", "0.02"));
+    _speculationRate = Double.parseDouble(props.getProperty("generator.speculation.rate", "0.05"));
+    _truncatedRate = Double.parseDouble(props.getProperty("generator.truncated.rate", "0.01"));
+    _confProperties = Integer.parseInt(props.getProperty("generator.conf.properties", "200"));
+    _seed = Long.parseLong(props.getProperty("generator.seed", "1"));
+    _concurrency = Integer.parseInt(props.getProperty("generator.concurrency", Integer.toString(Runtime.getRuntime().availableProcessors())));
+  }
+
+  public int getNumDays()
+  {
+    return _numDays;
+  }
+
+  public String getClusterName()
+  {
+    return _clusterName;
+  }
+
+  /**
+   * Writes the logs for each day under <code>&lt;logsRoot&gt;/&lt;cluster&gt;/daily/&lt;queue&gt;/&lt;yyyy&gt;/&lt;MMdd&gt;</code>.
+   *
+   * @param scale Multiplier for the number of jobs per day
+   * @return What was written
+   */
+  public Result generate(final FileSystem fs, final Path logsRoot, final int scale) throws IOException, InterruptedException
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(_concurrency);
+
+    try
+    {
+      List<Future<Result>> days = new ArrayList<Future<Result>>();
+
+      final int jobsPerDay = _jobsPerDay * scale;
+
+      for (int i=0; i<_numDays; i++)
+      {
+        final int dayIndex = i;
+        days.add(executor.submit(new Callable<Result>() {
+          @Override
+          public Result call() throws IOException
+          {
+            return generateDay(fs, logsRoot, dayIndex, jobsPerDay);
+          }
+        }));
+      }
+
+      Result total = new Result();
+      for (Future<Result> day : days)
+      {
+        total.add(day.get());
+      }
+
+      return total;
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException(e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  private Result generateDay(FileSystem fs, Path logsRoot, int dayIndex, int numJobs) throws IOException
+  {
+    Random random = new Random(_seed * 31 + dayIndex);
+
+    Calendar cal = Calendar.getInstance(timeZone);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    // starting from yesterday, the most recent day the pipeline processes
+    cal.add(Calendar.DAY_OF_MONTH, -(dayIndex + 1));
+
+    long dayStart = cal.getTimeInMillis();
+
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy/MMdd");
+    dayFormat.setTimeZone(timeZone);
+    String day = dayFormat.format(cal.getTime());
+
+    Result result = new Result();
+
+    for (int i=0; i<numJobs; i++)
+    {
+      String jobId = String.format("job_%s_%04d", JOB_TRACKER_START, dayIndex * numJobs + i + 1);
+      String user = String.format("user%03d", (int)(_numUsers * Math.pow(random.nextDouble(), 2)));
+      String queue = _queues[random.nextInt(_queues.length)];
+
+      Path dayPath = new Path(String.format("%s/%s/daily/%s/%s", logsRoot, _clusterName, queue, day));
+
+      String history = generateHistory(random, jobId, user, queue, dayStart + (long)(random.nextDouble() * 24 * 3600 * 1000));
+      String conf = generateConf(random, jobId, user, queue);
+
+      result.logBytes += write(fs, new Path(dayPath, jobId + ".log"), history);
+      result.confBytes += write(fs, new Path(dayPath, jobId + "_conf.xml"), conf);
+      result.numJobs++;
+    }
+
+    return result;
+  }
+
+  private static long write(FileSystem fs, Path path, String contents) throws IOException
+  {
+    byte[] bytes = contents.getBytes("UTF-8");
+
+    OutputStream stream = fs.create(path, true);
+    try
+    {
+      stream.write(bytes);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    return bytes.length;
+  }
+
+  private String generateHistory(Random random, String jobId, String user, String queue, long submitTime)
+  {
+    String jobNumber = jobId.substring("job_".length());
+    int numMaps = logUniform(random, _maxMaps);
+    int numReduces = random.nextDouble() < 0.3 ? 0 : logUniform(random, _maxReduces);
+
+    long launchTime = submitTime + 1000 + random.nextInt(30000);
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("Meta VERSION=\"1\" .\n");
+    sb.append(String.format("Job JOBID=\"%s\" JOBNAME=\"%s\" USER=\"%s\" SUBMIT_TIME=\"%d\" JOBCONF=\"hdfs://namenode/jobtracker/%s/job.xml\" VIEW_JOB=\" \" MODIFY_JOB=\" \" JOB_QUEUE=\"%s\" .\n",
+                            jobId, getJobName(random, user), user, submitTime, jobId, queue));
+    sb.append(String.format("Job JOBID=\"%s\" JOB_PRIORITY=\"NORMAL\" .\n", jobId));
+    sb.append(String.format("Job JOBID=\"%s\" LAUNCH_TIME=\"%d\" TOTAL_MAPS=\"%d\" TOTAL_REDUCES=\"%d\" JOB_STATUS=\"PREP\" .\n",
+                            jobId, launchTime, numMaps, numReduces));
+
+    int[] failed = new int[2];
+    long mapsFinished = generateTasks(sb, random, jobNumber, "m", numMaps, launchTime, 10, 600, failed);
+    long finishTime = numReduces > 0 ? generateTasks(sb, random, jobNumber, "r", numReduces, mapsFinished, 30, 1800, failed) : mapsFinished;
+
+    sb.append(String.format("Job JOBID=\"%s\" FINISH_TIME=\"%d\" JOB_STATUS=\"SUCCESS\" FINISHED_MAPS=\"%d\" FINISHED_REDUCES=\"%d\" FAILED_MAPS=\"%d\" FAILED_REDUCES=\"%d\" COUNTERS=\"%s\" .\n",
+                            jobId, finishTime, numMaps, numReduces, failed[0], failed[1], counters(random, true, 1000)));
+
+    if (random.nextDouble() < _truncatedRate)
+    {
+      // cut off part way through a line after the job has started
+      int start = sb.indexOf("\nTask ");
+      int cut = start + 1 + random.nextInt(sb.length() - start - 1);
+      sb.setLength(cut);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Writes the tasks of one type, started in waves as slots free up.
+   *
+   * @return When the last task finished
+   */
+  private long generateTasks(StringBuilder sb, Random random, String jobNumber, String type, int numTasks, long startTime,
+                             int minSeconds, int maxSeconds, int[] failed)
+  {
+    boolean isMap = type.equals("m");
+    String taskType = isMap ? "MAP" : "REDUCE";
+    String attemptPrefix = isMap ? "MapAttempt" : "ReduceAttempt";
+    int slots = Math.max(1, _numHosts * 2);
+
+    long lastFinish = startTime;
+
+    for (int i=0; i<numTasks; i++)
+    {
+      String taskId = String.format("task_%s_%s_%06d", jobNumber, type, i);
+      long taskStart = startTime + (i / slots) * minSeconds * 1000L + random.nextInt(5000);
+
+      sb.append(String.format("Task TASKID=\"%s\" TASK_TYPE=\"%s\" START_TIME=\"%d\" SPLITS=\"\" .\n", taskId, taskType, taskStart));
+
+      long attemptStart = taskStart;
+      int attempt = 0;
+
+      // failed attempts are retried on another host
+      while (random.nextDouble() < _failureRate && attempt < 3)
+      {
+        long failTime = attemptStart + minSeconds * 1000L + random.nextInt(maxSeconds * 1000);
+        appendAttemptStart(sb, random, attemptPrefix, taskType, taskId, attempt, attemptStart);
+        sb.append(String.format("%s TASK_TYPE=\"%s\" TASKID=\"%s\" TASK_ATTEMPT_ID=\"%s\" TASK_STATUS=\"FAILED\" FINISH_TIME=\"%d\" HOSTNAME=\"%s\" ERROR=\"java\\.lang\\.RuntimeException: synthetic failure\" .\n",
+                                attemptPrefix, taskType, taskId, attemptId(taskId, attempt), failTime, host(random)));
+        failed[isMap ? 0 : 1]++;
+        attempt++;
+        attemptStart = failTime + random.nextInt(10000);
+      }
+
+      long duration = minSeconds * 1000L + (long)(Math.pow(random.nextDouble(), 3) * (maxSeconds - minSeconds) * 1000L);
+      long finishTime = attemptStart + duration;
+
+      appendAttemptStart(sb, random, attemptPrefix, taskType, taskId, attempt, attemptStart);
+
+      if (random.nextDouble() < _speculationRate)
+      {
+        // a speculative attempt launched part way through; whichever attempt finishes first kills the other
+        long speculativeStart = attemptStart + duration / 2;
+        long speculativeFinish = speculativeStart + (long)(duration * (0.2 + random.nextDouble()));
+        int speculative = attempt + 1;
+
+        appendAttemptStart(sb, random, attemptPrefix, taskType, taskId, speculative, speculativeStart);
+
+        if (speculativeFinish < finishTime)
+        {
+          appendAttemptFinish(sb, random, attemptPrefix, taskType, taskId, speculative, speculativeStart, speculativeFinish, isMap);
+          appendAttemptKilled(sb, random, attemptPrefix, taskType, taskId, attempt, speculativeFinish);
+          finishTime = speculativeFinish;
+        }
+        else
+        {
+          appendAttemptFinish(sb, random, attemptPrefix, taskType, taskId, attempt, attemptStart, finishTime, isMap);
+          appendAttemptKilled(sb, random, attemptPrefix, taskType, taskId, speculative, finishTime);
+        }
+      }
+      else
+      {
+        appendAttemptFinish(sb, random, attemptPrefix, taskType, taskId, attempt, attemptStart, finishTime, isMap);
+      }
+
+      sb.append(String.format("Task TASKID=\"%s\" TASK_TYPE=\"%s\" TASK_STATUS=\"SUCCESS\" FINISH_TIME=\"%d\" COUNTERS=\"%s\" .\n",
+                              taskId, taskType, finishTime, counters(random, isMap, 1)));
+
+      lastFinish = Math.max(lastFinish, finishTime);
+    }
+
+    return lastFinish;
+  }
+
+  private void appendAttemptStart(StringBuilder sb, Random random, String attemptPrefix, String taskType, String taskId, int attempt, long startTime)
+  {
+    sb.append(String.format("%s TASK_TYPE=\"%s\" TASKID=\"%s\" TASK_ATTEMPT_ID=\"%s\" START_TIME=\"%d\" TRACKER_NAME=\"tracker_%s:localhost/127\\.0\\.0\\.1:50060\" HTTP_PORT=\"50060\" .\n",
+                            attemptPrefix, taskType, taskId, attemptId(taskId, attempt), startTime, host(random).replaceAll(".*/", "")));
+  }
+
+  private void appendAttemptFinish(StringBuilder sb, Random random, String attemptPrefix, String taskType, String taskId, int attempt,
+                                   long startTime, long finishTime, boolean isMap)
+  {
+    String phases = "";
+    if (!isMap)
+    {
+      long shuffleFinished = startTime + (finishTime - startTime) * (20 + random.nextInt(40)) / 100;
+      long sortFinished = shuffleFinished + (finishTime - shuffleFinished) / 20;
+      phases = String.format(" SHUFFLE_FINISHED=\"%d\" SORT_FINISHED=\"%d\"", shuffleFinished, sortFinished);
+    }
+
+    sb.append(String.format("%s TASK_TYPE=\"%s\" TASKID=\"%s\" TASK_ATTEMPT_ID=\"%s\" TASK_STATUS=\"SUCCESS\"%s FINISH_TIME=\"%d\" HOSTNAME=\"%s\" STATE_STRING=\"\" COUNTERS=\"%s\" .\n",
+                            attemptPrefix, taskType, taskId, attemptId(taskId, attempt), phases, finishTime, host(random), counters(random, isMap, 1)));
+  }
+
+  private void appendAttemptKilled(StringBuilder sb, Random random, String attemptPrefix, String taskType, String taskId, int attempt, long finishTime)
+  {
+    sb.append(String.format("%s TASK_TYPE=\"%s\" TASKID=\"%s\" TASK_ATTEMPT_ID=\"%s\" TASK_STATUS=\"KILLED\" FINISH_TIME=\"%d\" HOSTNAME=\"%s\" ERROR=\"\" .\n",
+                            attemptPrefix, taskType, taskId, attemptId(taskId, attempt), finishTime, host(random)));
+  }
+
+  private static String attemptId(String taskId, int attempt)
+  {
+    return String.format("attempt_%s_%d", taskId.substring("task_".length()), attempt);
+  }
+
+  private String host(Random random)
+  {
+    int host = random.nextInt(_numHosts);
+    return String.format("/rack%02d/host%04d\\.example\\.com", host / 20, host);
+  }
+
+  private static String counters(Random random, boolean isMap, int multiplier)
+  {
+    long records = (long)(1000 + random.nextInt(1000000)) * multiplier;
+    long bytes = records * (50 + random.nextInt(200));
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{(FileSystemCounters)(FileSystemCounters)");
+    sb.append(String.format("[(FILE_BYTES_READ)(FILE_BYTES_READ)(%d)]", isMap ? 0 : bytes));
+    sb.append(String.format("[(HDFS_BYTES_READ)(HDFS_BYTES_READ)(%d)]", isMap ? bytes : 0));
+    sb.append(String.format("[(FILE_BYTES_WRITTEN)(FILE_BYTES_WRITTEN)(%d)]", bytes / 2));
+    sb.append(String.format("[(HDFS_BYTES_WRITTEN)(HDFS_BYTES_WRITTEN)(%d)]", isMap ? 0 : bytes / 3));
+    sb.append("}{(org\\.apache\\.hadoop\\.mapred\\.Task$Counter)(Map-Reduce Framework)");
+    if (isMap)
+    {
+      sb.append(String.format("[(MAP_INPUT_RECORDS)(Map input records)(%d)]", records));
+      sb.append(String.format("[(MAP_OUTPUT_RECORDS)(Map output records)(%d)]", records));
+      sb.append(String.format("[(MAP_OUTPUT_BYTES)(Map output bytes)(%d)]", bytes));
+    }
+    else
+    {
+      sb.append(String.format("[(REDUCE_INPUT_RECORDS)(Reduce input records)(%d)]", records));
+      sb.append(String.format("[(REDUCE_OUTPUT_RECORDS)(Reduce output records)(%d)]", records / 2));
+      sb.append(String.format("[(REDUCE_SHUFFLE_BYTES)(Reduce shuffle bytes)(%d)]", bytes / 2));
+    }
+    sb.append(String.format("[(SPILLED_RECORDS)(Spilled Records)(%d)]", records));
+    sb.append(String.format("[(CPU_MILLISECONDS)(CPU time spent \\(ms\\))(%d)]", records / 100 * multiplier));
+    sb.append(String.format("[(PHYSICAL_MEMORY_BYTES)(Physical memory \\(bytes\\) snapshot)(%d)]", 200L * 1024 * 1024 + random.nextInt(800) * 1024L * 1024));
+    sb.append("}");
+
+    return sb.toString();
+  }
+
+  private static String getJobName(Random random, String user)
+  {
+    String[] names = { "word count", "PigLatin:daily_rollup\\.pig", "HIVE-SELECT count\\(*\\) FROM events", "sessionize", "index build" };
+    return String.format("%s-%s", user, names[random.nextInt(names.length)]);
+  }
+
+  private String generateConf(Random random, String jobId, String user, String queue)
+  {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><configuration>\n");
+    appendProperty(sb, "mapred.job.queue.name", queue);
+    appendProperty(sb, "user.name", user);
+    appendProperty(sb, "mapred.job.id", jobId);
+    appendProperty(sb, "io.sort.mb", Integer.toString(100 + 100 * random.nextInt(4)));
+    appendProperty(sb, "mapred.child.java.opts", String.format("-Xmx%dm", 512 * (1 + random.nextInt(4))));
+    appendProperty(sb, "mapred.compress.map.output", Boolean.toString(random.nextBoolean()));
+    appendProperty(sb, "mapred.reduce.slowstart.completed.maps", String.format("%.2f", 0.05 + random.nextInt(19) * 0.05));
+
+    // real confs carry hundreds of defaults
+    for (int i=0; i<_confProperties; i++)
+    {
+      appendProperty(sb, String.format("synthetic.property.%04d", i), Long.toHexString(random.nextLong()));
+    }
+
+    sb.append("</configuration>\n");
+
+    return sb.toString();
+  }
+
+  private static void appendProperty(StringBuilder sb, String name, String value)
+  {
+    sb.append(String.format("<property><name>%s</name><value>%s</value></property>\n", name, value));
+  }
+
+  private static int logUniform(Random random, int max)
+  {
+    return Math.max(1, (int)Math.exp(random.nextDouble() * Math.log(max)));
+  }
+
+  public static class Result
+  {
+    public long numJobs;
+    public long logBytes;
+    public long confBytes;
+
+    void add(Result other)
+    {
+      numJobs += other.numJobs;
+      logBytes += other.logBytes;
+      confBytes += other.confBytes;
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length != 1)
+    {
+      System.out.println("Usage: GenerateLogs <job-file>");
+      System.exit(1);
+    }
+
+    Properties props = ProcessLogs.loadJobFile(args[0]);
+
+    if (props.get("logs.root") == null) {
+      throw new IllegalArgumentException("logs.root is not specified.");
+    }
+
+    FileSystem fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(props));
+    int scale = Integer.parseInt(props.getProperty("generator.scale", "1"));
+
+    Result result = new GenerateLogs(props).generate(fs, new Path(props.getProperty("logs.root")), scale);
+
+    System.out.println(String.format("Generated %d jobs, %d MB of history files and %d MB of confs",
+                                     result.numJobs, result.logBytes/1024/1024, result.confBytes/1024/1024));
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.analysis.ComputeUsagePerHour;
+import com.linkedin.whiteelephant.mapreduce.lib.job.LocalJobEngine;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.parsing.ParseJobConfs;
+import com.linkedin.whiteelephant.parsing.ParseJobsFromLogs;
+
+/**
+ * Measures how the pipeline scales with log volume.
+ *
+ * <p>
+ * For each scale in <code>benchmark.scales</code> logs are generated with {@link GenerateLogs} under
+ * <code>benchmark.work.path</code>, then each stage of the pipeline processes them from scratch.  The wall time,
+ * input throughput and shuffle volume of every stage are reported.  Jobs run in-process with the
+ * {@link LocalJobEngine} unless <code>benchmark.local.engine</code> is false, in which case they run with Hadoop's
+ * LocalJobRunner one at a time, or on a cluster if the Hadoop configuration points at one.
+ * </p>
+ */
+public class PipelineBenchmark
+{
+  private static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapred.Task$Counter";
+
+  private final String _name;
+  private final Properties _props;
+  private final GenerateLogs _generator;
+  private final Path _workPath;
+  private final List<Integer> _scales = new ArrayList<Integer>();
+  private final boolean _localEngine;
+
+  public PipelineBenchmark(String name, Properties props)
+  {
+    _name = name;
+    _props = props;
+    _generator = new GenerateLogs(props);
+    _workPath = new Path(props.getProperty("benchmark.work.path", "/tmp/white-elephant-benchmark"));
+    _localEngine = Boolean.parseBoolean(props.getProperty("benchmark.local.engine", "true"));
+
+    for (String scale : props.getProperty("benchmark.scales", "1,10,100").split(","))
+    {
+      _scales.add(Integer.parseInt(scale.trim()));
+    }
+  }
+
+  public void run() throws IOException, InterruptedException, ExecutionException
+  {
+    List<StageResult> results = new ArrayList<StageResult>();
+
+    for (int scale : _scales)
+    {
+      Path root = new Path(_workPath, scale + "x");
+      Properties props = getStageProperties(root);
+      FileSystem fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(props));
+
+      fs.delete(root, true);
+
+      System.out.println(String.format("Generating logs at %dx scale under %s", scale, root));
+
+      long startMillis = System.currentTimeMillis();
+      GenerateLogs.Result generated = _generator.generate(fs, new Path(props.getProperty("logs.root")), scale);
+
+      StageResult generation = new StageResult("generate", scale);
+      generation.wallMillis = System.currentTimeMillis() - startMillis;
+      generation.inputBytes = generated.logBytes + generated.confBytes;
+      results.add(generation);
+
+      System.out.println(String.format("Generated %d jobs", generated.numJobs));
+
+      final ParseJobConfs parseJobConfs = new ParseJobConfs(_name, props);
+      results.add(runStage(props, new StageResult("parse-confs", scale), generated.confBytes, new Stage() {
+        @Override
+        public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+        {
+          parseJobConfs.execute(executor);
+        }
+      }));
+
+      final ParseJobsFromLogs parseJobs = new ParseJobsFromLogs(_name, props);
+      results.add(runStage(props, new StageResult("parse-jobs", scale), generated.logBytes, new Stage() {
+        @Override
+        public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+        {
+          parseJobs.execute(executor);
+        }
+      }));
+
+      final ComputeUsagePerHour usagePerHour = new ComputeUsagePerHour(_name, props);
+      long parsedBytes = fs.getContentSummary(new Path(props.getProperty("jobs.output.path"))).getLength();
+      results.add(runStage(props, new StageResult("usage-per-hour", scale), parsedBytes, new Stage() {
+        @Override
+        public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+        {
+          usagePerHour.execute(executor);
+        }
+      }));
+    }
+
+    System.out.println();
+    System.out.println(String.format("%-6s %-15s %10s %6s %10s %8s %12s %12s %10s",
+                                     "scale", "stage", "wall s", "jobs", "input MB", "MB/s", "records", "records/s", "shuffle MB"));
+
+    for (StageResult result : results)
+    {
+      double wallSeconds = Math.max(0.001, result.wallMillis / 1000.0);
+
+      System.out.println(String.format("%-6s %-15s %10.1f %6d %10.1f %8.2f %12d %12.0f %10.1f",
+                                       result.scale + "x", result.stage, wallSeconds, result.jobs,
+                                       result.inputBytes / 1024.0 / 1024.0, result.inputBytes / 1024.0 / 1024.0 / wallSeconds,
+                                       result.inputRecords, result.inputRecords / wallSeconds,
+                                       result.shuffleBytes / 1024.0 / 1024.0));
+    }
+  }
+
+  /**
+   * Configures the pipeline to process only the generated logs and write under the given root.
+   */
+  private Properties getStageProperties(Path root)
+  {
+    Properties props = new Properties();
+    props.putAll(_props);
+
+    props.setProperty("logs.root", new Path(root, "logs").toString());
+    props.setProperty("jobs.output.path", new Path(root, "parsed-logs").toString());
+    props.setProperty("confs.output.path", new Path(root, "parsed-confs").toString());
+    props.setProperty("usage.output.path", new Path(root, "usage-per-hour").toString());
+    props.setProperty("cluster.names", _generator.getClusterName());
+    props.setProperty("num.days", Integer.toString(_generator.getNumDays()));
+    props.setProperty("num.days.forced", Integer.toString(_generator.getNumDays()));
+    props.setProperty("incremental", "false");
+
+    // state kept between runs would make runs depend on each other
+    props.remove("listing.cache.path");
+    props.remove("sizing.stats.path");
+    props.remove("logs.compacted.path");
+
+    if (_localEngine)
+    {
+      props.setProperty(LocalJobEngine.ENABLED, "true");
+      props.setProperty("hadoop-conf.fs.default.name", "file:///");
+      props.setProperty("hadoop-conf.mapred.job.tracker", "local");
+    }
+    else if ("local".equals(props.getProperty("hadoop-conf.mapred.job.tracker")))
+    {
+      // the LocalJobRunner cannot run jobs concurrently
+      props.setProperty("job.concurrency", "1");
+    }
+
+    if (props.getProperty("job.concurrency") == null)
+    {
+      props.setProperty("job.concurrency", Integer.toString(Runtime.getRuntime().availableProcessors()));
+    }
+
+    return props;
+  }
+
+  private StageResult runStage(Properties props, final StageResult result, long inputBytes, Stage stage) throws InterruptedException, ExecutionException, IOException
+  {
+    System.out.println(String.format("Running %s at %dx scale", result.stage, result.scale));
+
+    StagedOutputJobExecutor executor = new StagedOutputJobExecutor(Integer.parseInt(props.getProperty("job.concurrency")));
+
+    executor.addCompletionListener(new StagedOutputJob.CompletionListener() {
+      @Override
+      public void jobCompleted(StagedOutputJob job, boolean success) throws Exception
+      {
+        Counters counters = job.getCounters();
+
+        synchronized (result)
+        {
+          result.jobs++;
+          result.inputRecords += counters.findCounter(TASK_COUNTER_GROUP, "MAP_INPUT_RECORDS").getValue();
+          result.shuffleBytes += counters.findCounter(TASK_COUNTER_GROUP, "REDUCE_SHUFFLE_BYTES").getValue();
+        }
+      }
+    });
+
+    long startMillis = System.currentTimeMillis();
+
+    stage.execute(executor);
+    executor.waitForCompletionThenShutdown();
+
+    result.wallMillis = System.currentTimeMillis() - startMillis;
+    result.inputBytes = inputBytes;
+
+    return result;
+  }
+
+  private interface Stage
+  {
+    void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException;
+  }
+
+  private static class StageResult
+  {
+    final String stage;
+    final int scale;
+    long wallMillis;
+    int jobs;
+    long inputBytes;
+    long inputRecords;
+    long shuffleBytes;
+
+    StageResult(String stage, int scale)
+    {
+      this.stage = stage;
+      this.scale = scale;
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length != 1)
+    {
+      System.out.println("Usage: PipelineBenchmark <job-file>");
+      System.exit(1);
+    }
+
+    // set log level for these classes to error to suppress spewing warnings about splits
+    Logger.getLogger("org.apache.hadoop.mapreduce.split.JobSplitWriter").setLevel(Level.ERROR);
+    Logger.getLogger("org.apache.hadoop.mapreduce.split.SplitMetaInfoReader").setLevel(Level.ERROR);
+
+    new PipelineBenchmark(args[0], ProcessLogs.loadJobFile(args[0])).run();
+  }
+}
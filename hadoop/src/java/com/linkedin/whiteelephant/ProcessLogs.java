@@ -20,14 +20,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import com.linkedin.whiteelephant.analysis.ComputeLatencyPerHour;
+import com.linkedin.whiteelephant.analysis.ComputeStragglers;
 import com.linkedin.whiteelephant.analysis.ComputeUsagePerHour;
+import com.linkedin.whiteelephant.mapreduce.lib.job.ConcurrencyController;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.metrics.PipelineMetrics;
+import com.linkedin.whiteelephant.parsing.CompactHistory;
+import com.linkedin.whiteelephant.parsing.CompactLogs;
+import com.linkedin.whiteelephant.parsing.IndexJobConfs;
 import com.linkedin.whiteelephant.parsing.ParseJobConfs;
 import com.linkedin.whiteelephant.parsing.ParseJobsFromLogs;
 
@@ -35,14 +46,22 @@ public class ProcessLogs implements Runnable
 {
   private final Logger _log;
   private final Properties _props;
-  private double _progress;  
   
   private final int _jobConcurrency;
   private final StagedOutputJobExecutor _executor;
+  private final ConcurrencyController _concurrency;
+  private final PipelineMetrics _metrics;
   
   private final ParseJobsFromLogs parseJobs;
   private final ComputeUsagePerHour usagePerHour;
+  private final ComputeLatencyPerHour latencyPerHour;
+  private final ComputeStragglers stragglers;
   private final ParseJobConfs parseJobConfs;
+  private final IndexJobConfs indexJobConfs;
+  private final CompactLogs compactLogs;
+  private final CompactHistory compactHistory;
+  
+  private final ContinuousIngestion continuousIngestion;
   
   public ProcessLogs(String name, Properties props) throws IOException {
     _log = Logger.getLogger(name);
@@ -57,25 +76,131 @@ public class ProcessLogs implements Runnable
     org.apache.log4j.Logger.getLogger("org.apache.hadoop.mapreduce.split.SplitMetaInfoReader").setLevel(Level.ERROR);
 
     _jobConcurrency = Integer.parseInt((String)_props.get("job.concurrency"));
-    _executor = new StagedOutputJobExecutor(_jobConcurrency);
+    _concurrency = Boolean.parseBoolean((String)_props.get("job.concurrency.adaptive")) ? new ConcurrencyController(name, props, _jobConcurrency) : null;
+    
+    if (_concurrency != null)
+    {
+      _executor = new StagedOutputJobExecutor(_concurrency.getConcurrency(), _concurrency.getMaxConcurrency(), getGuaranteedSlots(_props, _jobConcurrency));
+      _concurrency.attach(_executor);
+    }
+    else
+    {
+      _executor = new StagedOutputJobExecutor(_jobConcurrency, getGuaranteedSlots(_props, _jobConcurrency));
+    }
+    _metrics = new PipelineMetrics(name, props, _executor);
     
     parseJobs = new ParseJobsFromLogs(name, props);
     usagePerHour = new ComputeUsagePerHour(name, props);
+    latencyPerHour = _props.get("latency.output.path") != null ? new ComputeLatencyPerHour(name, props) : null;
+    stragglers = _props.get("stragglers.output.path") != null ? new ComputeStragglers(name, props) : null;
     parseJobConfs = new ParseJobConfs(name, props);
+    indexJobConfs = _props.get("confs.index.output.path") != null ? new IndexJobConfs(name, props) : null;
+    compactLogs = _props.get("logs.compacted.path") != null ? new CompactLogs(name, props) : null;
+    compactHistory = _props.get("retention.compaction.min.age.days") != null ? new CompactHistory(name, props) : null;
+    
+    if (Boolean.parseBoolean((String)_props.get("continuous")))
+    {
+      continuousIngestion = new ContinuousIngestion(name, props, _jobConcurrency, getGuaranteedSlots(_props, _jobConcurrency), _concurrency);
+    }
+    else
+    {
+      continuousIngestion = null;
+    }
+    
+    // stages in the order run executes them, which progress is measured against
+    List<String> stages = new ArrayList<String>();
+    if (compactLogs != null)
+    {
+      stages.add("compact-logs");
+    }
+    stages.add("parse-confs");
+    if (indexJobConfs != null)
+    {
+      stages.add("index-confs");
+    }
+    stages.add("parse-jobs");
+    stages.add("usage-per-hour");
+    if (latencyPerHour != null)
+    {
+      stages.add("latency-per-hour");
+    }
+    if (stragglers != null)
+    {
+      stages.add("stragglers");
+    }
+    if (compactHistory != null)
+    {
+      stages.add("compact-history");
+    }
+    _metrics.setStages(stages);
   }
   
   public void run()
   {
     _log.info(String.format("Starting %s", getClass().getSimpleName()));
 
+    if (_concurrency != null)
+    {
+      _concurrency.start();
+    }
+
     try
     {
+      if (continuousIngestion != null)
+      {
+        System.out.println("Ingesting new logs continuously");
+        
+        continuousIngestion.run();
+        return;
+      }
+      
+      _metrics.register();
+      
+      if (compactLogs != null)
+      {
+        System.out.println("Compacting logs");
+        
+        _metrics.startStage("compact-logs");
+        compactLogs.execute(_executor);
+      }
+      
       System.out.println("Parsing logs");
       
+      _metrics.startStage("parse-confs");
       parseJobConfs.execute(_executor);
+      
+      if (indexJobConfs != null)
+      {
+        _metrics.startStage("index-confs");
+        indexJobConfs.execute(_executor);
+      }
+      
+      _metrics.startStage("parse-jobs");
       parseJobs.execute(_executor);
+      _metrics.startStage("usage-per-hour");
       usagePerHour.execute(_executor);
       
+      if (latencyPerHour != null)
+      {
+        _metrics.startStage("latency-per-hour");
+        latencyPerHour.execute(_executor);
+      }
+      
+      if (stragglers != null)
+      {
+        _metrics.startStage("stragglers");
+        stragglers.execute(_executor);
+      }
+      
+      if (compactHistory != null)
+      {
+        // after the other stages, which may still read days of the months being compacted
+        System.out.println("Compacting history");
+        
+        _metrics.startStage("compact-history");
+        compactHistory.execute(_executor);
+      }
+      
       _executor.waitForCompletionThenShutdown();
       
       System.out.println("All tasks have completed!");
@@ -92,15 +217,76 @@ public class ProcessLogs implements Runnable
     {
       e.printStackTrace();
     }
+    finally
+    {
+      if (_concurrency != null)
+      {
+        _concurrency.stop();
+      }
+      
+      if (continuousIngestion == null)
+      {
+        // report the jobs that ran even if the run failed
+        _metrics.finish();
+      }
+    }
   } 
         
+  /**
+   * Determines how many of the concurrent job slots each cluster is guaranteed.  Clusters without an explicit
+   * job.concurrency.&lt;cluster-name&gt; setting evenly share the slots not explicitly assigned.
+   */
+  private static Map<String,Integer> getGuaranteedSlots(Properties props, int jobConcurrency)
+  {
+    Map<String,Integer> guaranteedSlots = new HashMap<String,Integer>();
+    
+    if (props.get("cluster.names") == null)
+    {
+      return guaranteedSlots;
+    }
+    
+    List<String> unassigned = new ArrayList<String>();
+    int remaining = jobConcurrency;
+    
+    for (String clusterName : ((String)props.get("cluster.names")).split(","))
+    {
+      String share = (String)props.get("job.concurrency." + clusterName);
+      if (share != null)
+      {
+        guaranteedSlots.put(clusterName, Integer.parseInt(share));
+        remaining -= Integer.parseInt(share);
+      }
+      else
+      {
+        unassigned.add(clusterName);
+      }
+    }
+    
+    for (String clusterName : unassigned)
+    {
+      guaranteedSlots.put(clusterName, Math.max(1, remaining / unassigned.size()));
+    }
+    
+    System.out.println("Guaranteed job slots per cluster: " + guaranteedSlots);
+    
+    return guaranteedSlots;
+  }
+  
+  /**
+   * Returns the fraction of the run completed, counting each stage equally.
+   */
   public double getProgress()
   {
-    return _progress;
+    return _metrics.getProgress();
   }
   
   public void cancel()
   {    
+    if (continuousIngestion != null)
+    {
+      continuousIngestion.cancel();
+    }
+    
     _executor.shutdownNow();
   }
   
@@ -125,6 +311,15 @@ public class ProcessLogs implements Runnable
     }
     
     String jobName = args[0];
+    
+    new ProcessLogs(jobName,loadJobFile(jobName)).run();
+  }
+  
+  /**
+   * Loads the configuration from the .properties files in the working directory, followed by the job file.
+   */
+  static Properties loadJobFile(String jobName) throws IOException
+  {
     File jobFile = new File(jobName);
     
     File[] propFiles = new File(".").listFiles(new FilenameFilter() {
@@ -154,6 +349,6 @@ public class ProcessLogs implements Runnable
       System.exit(1);
     }    
     
-    new ProcessLogs(jobName,props).run();
+    return props;
   }
 }
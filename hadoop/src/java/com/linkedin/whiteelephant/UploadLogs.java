@@ -0,0 +1,621 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.util.JobStatsProcessing;
+
+/**
+ * Uploads job history files and confs from a JobTracker's local log directory to <code>logs.root</code>.
+ *
+ * <p>
+ * This replaces <code>scripts/statsupload.pl</code> and keeps its rules: history files are uploaded once they have
+ * not been modified for <code>upload.min.age.hours</code>, and only if modified within the last <code>upload.days</code>
+ * days.  Each is stored with its conf under
+ * </p>
+ *
+ * <pre>
+ *   &lt;logs.root&gt;/&lt;upload.cluster.name&gt;/daily/&lt;queue&gt;/&lt;yyyy&gt;/&lt;MMdd&gt;/&lt;job-id&gt;.log
+ *   &lt;logs.root&gt;/&lt;upload.cluster.name&gt;/daily/&lt;queue&gt;/&lt;yyyy&gt;/&lt;MMdd&gt;/&lt;job-id&gt;_conf.xml
+ * </pre>
+ *
+ * <p>
+ * where the queue is read from the conf and the day is the local modification day of the history file.  Jobs
+ * without a conf are skipped.  The files already uploaded for all the days involved are listed with a single glob,
+ * and the missing files are uploaded on <code>upload.concurrency</code> threads through the FileSystem API.
+ * </p>
+ *
+ * <p>
+ * When <code>upload.compacted</code> is true the files are instead written straight into the containers read by
+ * the parsing jobs (see {@link com.linkedin.whiteelephant.parsing.CompactLogs}), one new container per day and file
+ * type per run, keyed by the path the file would have been uploaded to.
+ * </p>
+ */
+public class UploadLogs
+{
+  private static final Pattern queuePattern = Pattern.compile("<value>([^<]*)</value>");
+
+  private final Logger _log;
+  private final Configuration _conf;
+  private final FileSystem _fs;
+
+  private final File _historyDir;
+  private final String _logsRoot;
+  private final String _clusterName;
+  private final String _compactedRoot;
+  private final int _days;
+  private final long _minAgeMillis;
+  private final int _concurrency;
+  private final boolean _compacted;
+
+  public UploadLogs(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+
+    if (props.get("logs.root") == null) {
+      throw new IllegalArgumentException("logs.root is not specified.");
+    }
+
+    if (props.get("upload.cluster.name") == null) {
+      throw new IllegalArgumentException("upload.cluster.name is not specified.");
+    }
+
+    if (props.get("upload.history.dir") == null) {
+      throw new IllegalArgumentException("upload.history.dir is not specified.");
+    }
+
+    _conf = StagedOutputJob.createConfigurationFromProps(props);
+    _fs = FileSystem.get(_conf);
+
+    _historyDir = new File((String)props.get("upload.history.dir"));
+    _logsRoot = (String)props.get("logs.root");
+    _clusterName = (String)props.get("upload.cluster.name");
+    _compactedRoot = (String)props.get("logs.compacted.path");
+    _days = Integer.parseInt(props.getProperty("upload.days", "25"));
+    _minAgeMillis = (long)(Double.parseDouble(props.getProperty("upload.min.age.hours", "24")) * 3600 * 1000);
+    _concurrency = Integer.parseInt(props.getProperty("upload.concurrency", "10"));
+    _compacted = Boolean.parseBoolean(props.getProperty("upload.compacted", "false"));
+
+    if (_compacted && _compactedRoot == null) {
+      throw new IllegalArgumentException("logs.compacted.path must be specified when upload.compacted is true.");
+    }
+  }
+
+  public void run() throws IOException, InterruptedException, ExecutionException
+  {
+    long nowMillis = System.currentTimeMillis();
+
+    System.out.println("Searching " + _historyDir + " for logs");
+
+    List<LogFile> candidates = findLogFiles(nowMillis - _minAgeMillis, nowMillis - _days*24L*3600*1000);
+
+    System.out.println("Found " + candidates.size() + " history files with confs");
+
+    ExecutorService executor = Executors.newFixedThreadPool(_concurrency);
+
+    try
+    {
+      Set<String> rawDays = new HashSet<String>();
+      Set<String> existing = listExisting(executor, candidates, rawDays);
+
+      System.out.println("Found " + existing.size() + " existing files in HDFS");
+
+      List<LogFile> missing = new ArrayList<LogFile>();
+      int numExisting = 0;
+
+      for (LogFile file : candidates)
+      {
+        if (existing.contains(file.destination.toUri().getPath()))
+        {
+          numExisting++;
+        }
+        else
+        {
+          missing.add(file);
+        }
+      }
+
+      if (missing.size() == 0)
+      {
+        System.out.println("Found no new logs to upload");
+        return;
+      }
+
+      int numUploaded = 0;
+      int numFailed = 0;
+
+      List<Future<Integer>> uploads = _compacted ? writeContainers(executor, missing, rawDays, nowMillis) : uploadFiles(executor, missing);
+
+      for (Future<Integer> upload : uploads)
+      {
+        try
+        {
+          numUploaded += upload.get();
+        }
+        catch (ExecutionException e)
+        {
+          _log.error("Upload failed", e.getCause());
+          numFailed++;
+        }
+      }
+
+      System.out.println(String.format("Uploaded %d files, found %d existing, and %d uploads failed", numUploaded, numExisting, numFailed));
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Finds the history files old enough to upload and the confs which go with them.
+   */
+  private List<LogFile> findLogFiles(long olderThan, long newerThan) throws IOException
+  {
+    List<File> historyFiles = new ArrayList<File>();
+    findHistoryFiles(_historyDir, olderThan, newerThan, historyFiles);
+
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy/MMdd");
+
+    Map<File,File[]> dirListings = new HashMap<File,File[]>();
+    List<LogFile> logFiles = new ArrayList<LogFile>();
+
+    for (File historyFile : historyFiles)
+    {
+      String jobName = getJobName(historyFile.getName());
+
+      if (jobName == null)
+      {
+        continue;
+      }
+
+      File dir = historyFile.getParentFile();
+      if (!dirListings.containsKey(dir))
+      {
+        dirListings.put(dir, dir.listFiles());
+      }
+
+      // there should be only one conf matching the job name
+      File confFile = null;
+      for (File file : dirListings.get(dir))
+      {
+        if (file.getName().endsWith(jobName + "_conf.xml"))
+        {
+          confFile = file;
+          break;
+        }
+      }
+
+      if (confFile == null)
+      {
+        System.out.println("Failed to locate job conf xml file for " + jobName + ", skipping...");
+        continue;
+      }
+
+      String dayPath = String.format("%s/%s/daily/%s/%s", _logsRoot, _clusterName, findQueue(confFile), dayFormat.format(new Date(historyFile.lastModified())));
+
+      logFiles.add(new LogFile(historyFile, new Path(dayPath, jobName + ".log"), "log"));
+      logFiles.add(new LogFile(confFile, new Path(dayPath, jobName + "_conf.xml"), "xml"));
+    }
+
+    return logFiles;
+  }
+
+  private static void findHistoryFiles(File dir, long olderThan, long newerThan, List<File> historyFiles)
+  {
+    File[] files = dir.listFiles();
+
+    if (files == null)
+    {
+      return;
+    }
+
+    for (File file : files)
+    {
+      if (file.isDirectory())
+      {
+        findHistoryFiles(file, olderThan, newerThan, historyFiles);
+      }
+      else if (!file.getName().endsWith("xml") && !file.getName().startsWith(".") && !file.getName().endsWith(".crc")
+               && file.lastModified() < olderThan && file.lastModified() >= newerThan)
+      {
+        historyFiles.add(file);
+      }
+    }
+  }
+
+  /**
+   * Extracts the job name, such as job_201301230000_0001, from a history file name.  History file names are
+   * free form after the job name since they include the user's job name.
+   */
+  private static String getJobName(String fileName)
+  {
+    String[] parts = fileName.split("_");
+
+    for (int i=0; i < parts.length - 2; i++)
+    {
+      if (parts[i].equals("job"))
+      {
+        return String.format("%s_%s_%s", parts[i], parts[i+1], parts[i+2]);
+      }
+    }
+
+    return null;
+  }
+
+  private static String findQueue(File confFile) throws IOException
+  {
+    String queue = null;
+
+    BufferedReader reader = new BufferedReader(new FileReader(confFile));
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        if (line.contains("<property>") && line.contains("<name>") && line.contains(">mapred.job.queue.name<"))
+        {
+          Matcher m = queuePattern.matcher(line);
+          if (m.find())
+          {
+            queue = m.group(1);
+          }
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+
+    return (queue == null || queue.length() == 0) ? "unknown" : queue;
+  }
+
+  /**
+   * Lists the files already uploaded for every day the candidates belong to, with one glob for all of them.
+   * When uploading into containers the keys of the day's containers are read as well.
+   *
+   * @param rawDays Filled with the type and day, as log/yyyy/MMdd, of each day which has raw files uploaded
+   */
+  private Set<String> listExisting(ExecutorService executor, List<LogFile> candidates, Set<String> rawDays) throws IOException, InterruptedException, ExecutionException
+  {
+    Set<String> days = new HashSet<String>();
+    for (LogFile file : candidates)
+    {
+      days.add(file.getDay());
+    }
+
+    final Set<String> existing = Collections.synchronizedSet(new HashSet<String>());
+
+    if (days.size() == 0)
+    {
+      return existing;
+    }
+
+    StringBuilder dayPattern = new StringBuilder();
+    for (String day : days)
+    {
+      dayPattern.append(dayPattern.length() == 0 ? "{" : ",");
+      dayPattern.append(day);
+    }
+    dayPattern.append("}");
+
+    FileStatus[] uploaded = _fs.globStatus(new Path(String.format("%s/%s/daily/*/%s/*", _logsRoot, _clusterName, dayPattern)));
+
+    if (uploaded != null)
+    {
+      for (FileStatus file : uploaded)
+      {
+        existing.add(file.getPath().toUri().getPath());
+
+        Path dayPath = file.getPath().getParent();
+        rawDays.add(getSuffix(file.getPath().getName()) + "/" + dayPath.getParent().getName() + "/" + dayPath.getName());
+      }
+    }
+
+    if (_compacted)
+    {
+      List<Future<Void>> reads = new ArrayList<Future<Void>>();
+
+      for (final String day : days)
+      {
+        for (final String suffix : new String[] { "log", "xml" })
+        {
+          reads.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException
+            {
+              readContainerKeys(getContainerDayPath(suffix, day), existing);
+              return null;
+            }
+          }));
+        }
+      }
+
+      for (Future<Void> read : reads)
+      {
+        read.get();
+      }
+    }
+
+    return existing;
+  }
+
+  private void readContainerKeys(Path dayPath, Set<String> keys) throws IOException
+  {
+    Path versionPath = VersionedOutput.resolveLatest(_fs, dayPath);
+
+    if (versionPath == null)
+    {
+      return;
+    }
+
+    FileStatus[] containers = _fs.globStatus(new Path(versionPath, "part-*"));
+
+    if (containers == null)
+    {
+      return;
+    }
+
+    for (FileStatus container : containers)
+    {
+      SequenceFile.Reader reader = new SequenceFile.Reader(_fs, container.getPath(), _conf);
+      try
+      {
+        // values of a block compressed file are only decompressed when read
+        Text key = new Text();
+        while (reader.next(key))
+        {
+          keys.add(new Path(key.toString()).toUri().getPath());
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+  }
+
+  private List<Future<Integer>> uploadFiles(ExecutorService executor, List<LogFile> files)
+  {
+    List<Future<Integer>> uploads = new ArrayList<Future<Integer>>();
+
+    for (final LogFile file : files)
+    {
+      uploads.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException
+        {
+          System.out.println("Uploading " + file.local + " -> " + file.destination);
+          _fs.copyFromLocalFile(false, false, new Path(file.local.getAbsolutePath()), file.destination);
+          return 1;
+        }
+      }));
+    }
+
+    return uploads;
+  }
+
+  /**
+   * Writes the files of each day and type into a new container.  A container is written under a hidden name
+   * and renamed into the day's latest version, or committed as the first version of the day.  Days which have
+   * raw files uploaded but no container yet get raw files, since a container would hide the raw files from parsing.
+   */
+  private List<Future<Integer>> writeContainers(ExecutorService executor, List<LogFile> files, final Set<String> rawDays, final long nowMillis)
+  {
+    Map<Path,List<LogFile>> filesByContainer = new LinkedHashMap<Path,List<LogFile>>();
+
+    for (LogFile file : files)
+    {
+      Path dayPath = getContainerDayPath(file.suffix, file.getDay());
+
+      if (!filesByContainer.containsKey(dayPath))
+      {
+        filesByContainer.put(dayPath, new ArrayList<LogFile>());
+      }
+
+      filesByContainer.get(dayPath).add(file);
+    }
+
+    List<Future<Integer>> uploads = new ArrayList<Future<Integer>>();
+
+    for (final Map.Entry<Path,List<LogFile>> entry : filesByContainer.entrySet())
+    {
+      uploads.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException
+        {
+          Path dayPath = entry.getKey();
+          String containerName = String.format("part-u%016d", nowMillis);
+
+          Path versionPath = VersionedOutput.resolveLatest(_fs, dayPath);
+
+          if (versionPath == null && rawDays.contains(entry.getValue().get(0).suffix + "/" + entry.getValue().get(0).getDay()))
+          {
+            for (LogFile file : entry.getValue())
+            {
+              _fs.copyFromLocalFile(false, false, new Path(file.local.getAbsolutePath()), file.destination);
+            }
+
+            System.out.println(String.format("Uploaded %d raw files since %s has no container", entry.getValue().size(), dayPath));
+          }
+          else if (versionPath == null)
+          {
+            Path stagedPath = new Path(String.format("/tmp%s/_upload-%d", dayPath.toUri().getPath(), nowMillis));
+
+            writeContainer(new Path(stagedPath, containerName), entry.getValue());
+
+            if (VersionedOutput.commit(_fs, stagedPath, dayPath) == null)
+            {
+              throw new IOException("Failed to commit container to " + dayPath);
+            }
+
+            System.out.println(String.format("Wrote %d files to a container in %s", entry.getValue().size(), dayPath));
+          }
+          else
+          {
+            Path tempPath = new Path(versionPath, "_" + containerName);
+
+            writeContainer(tempPath, entry.getValue());
+
+            if (!_fs.rename(tempPath, new Path(versionPath, containerName)))
+            {
+              throw new IOException("Failed to move container into " + versionPath);
+            }
+
+            System.out.println(String.format("Wrote %d files to a container in %s", entry.getValue().size(), versionPath));
+          }
+
+          return entry.getValue().size();
+        }
+      }));
+    }
+
+    return uploads;
+  }
+
+  private void writeContainer(Path path, List<LogFile> files) throws IOException
+  {
+    SequenceFile.Writer writer = SequenceFile.createWriter(_fs, _conf, path, Text.class, BytesWritable.class, CompressionType.BLOCK);
+    try
+    {
+      for (LogFile file : files)
+      {
+        byte[] bytes = new byte[(int)file.local.length()];
+
+        FileInputStream input = new FileInputStream(file.local);
+        try
+        {
+          IOUtils.readFully(input, bytes, 0, bytes.length);
+        }
+        finally
+        {
+          input.close();
+        }
+
+        writer.append(new Text(_fs.makeQualified(file.destination).toString()), new BytesWritable(bytes));
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  private static String getSuffix(String fileName)
+  {
+    return fileName.endsWith("xml") ? "xml" : "log";
+  }
+
+  private Path getContainerDayPath(String suffix, String day)
+  {
+    String[] parts = day.split("/");
+    return new Path(JobStatsProcessing.getCompactedPath(_compactedRoot, suffix, _clusterName, parts[0], parts[1]));
+  }
+
+  private static class LogFile
+  {
+    final File local;
+    final Path destination;
+    final String suffix;
+
+    LogFile(File local, Path destination, String suffix)
+    {
+      this.local = local;
+      this.destination = destination;
+      this.suffix = suffix;
+    }
+
+    /**
+     * @return The day of the destination, as yyyy/MMdd
+     */
+    String getDay()
+    {
+      Path dayPath = destination.getParent();
+      return dayPath.getParent().getName() + "/" + dayPath.getName();
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length != 1)
+    {
+      System.out.println("Usage: UploadLogs <job-file>");
+      System.exit(1);
+    }
+
+    Properties props = ProcessLogs.loadJobFile(args[0]);
+
+    File lockFile = new File(props.getProperty("upload.lock.file", "/tmp/white-elephant-upload.lock"));
+
+    RandomAccessFile lockStream = new RandomAccessFile(lockFile, "rw");
+    try
+    {
+      FileLock lock = lockStream.getChannel().tryLock();
+
+      if (lock == null)
+      {
+        System.out.println("Already running (" + lockFile + " is locked)");
+        System.exit(1);
+      }
+
+      new UploadLogs(args[0], props).run();
+    }
+    finally
+    {
+      lockStream.close();
+    }
+  }
+}
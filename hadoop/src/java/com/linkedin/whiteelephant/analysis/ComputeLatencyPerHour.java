@@ -0,0 +1,380 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombinedAvroKeyValueInputFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.parsing.Attempt;
+import com.linkedin.whiteelephant.parsing.CompactHistory;
+import com.linkedin.whiteelephant.parsing.Job;
+import com.linkedin.whiteelephant.parsing.LogData;
+import com.linkedin.whiteelephant.parsing.Task;
+import com.linkedin.whiteelephant.util.InputListing;
+import com.linkedin.whiteelephant.util.StringPool;
+
+/**
+ * Computes distributions of scheduling latency per hour, user, cluster and queue from the parsed jobs.
+ *
+ * <p>
+ * For the jobs submitted in each hour the time waiting in the queue, from submit to launch, and the time from launch
+ * to the start of the first map attempt are kept as {@link DurationSketch}es.  So is the time each map task waited
+ * from the launch of its job to the start of its first attempt, in the hour that attempt started.  Reduce tasks are
+ * left out, since they are held back on purpose until enough maps finish.  Output is written under
+ * <code>latency.output.path</code> in the same layout as the usage per hour.
+ * </p>
+ */
+public class ComputeLatencyPerHour
+{
+  private static final String DEFAULT_QUEUE = "default";
+
+  private final Logger _log;
+  private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
+  private final Properties _props;
+  private final String _name;
+
+  private final static TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  private final String _jobsOutputPathRoot;
+  private final String _latencyOutputPathRoot;
+  private final boolean _incremental;
+  private final int _numDaysForced;
+
+  public ComputeLatencyPerHour(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "latency");
+    _sizer = new JobSizer(_fs, _props, "latency-per-hour");
+
+    if (_props.get("jobs.output.path") == null) {
+      throw new IllegalArgumentException("jobs.output.path is not specified.");
+    }
+
+    if (_props.get("latency.output.path") == null) {
+      throw new IllegalArgumentException("latency.output.path is not specified.");
+    }
+
+    if (_props.get("num.days.forced") == null) {
+      throw new IllegalArgumentException("num.days.forced is not specified");
+    }
+
+    _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
+    _latencyOutputPathRoot = (String)_props.get("latency.output.path");
+    _incremental = Boolean.parseBoolean((String)_props.get("incremental"));
+    _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
+  }
+
+  public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+  {
+    FileStatus[] clusterPaths = _fs.listStatus(new Path(_jobsOutputPathRoot));
+
+    for (FileStatus clusterPath : clusterPaths)
+    {
+      String clusterName = clusterPath.getPath().getName();
+
+      FileStatus[] yearPaths = _fs.listStatus(clusterPath.getPath());
+
+      for (FileStatus yearPath : yearPaths)
+      {
+        String year = yearPath.getPath().getName();
+
+        System.out.println("Searching under " + yearPath.getPath());
+        FileStatus[] dayPaths = _fs.listStatus(yearPath.getPath());
+
+        for (FileStatus dayPath : dayPaths)
+        {
+          String day = dayPath.getPath().getName();
+
+          Path latestPath = VersionedOutput.resolveLatest(_fs, dayPath.getPath());
+
+          if (latestPath == null)
+          {
+            continue;
+          }
+
+          if (CompactHistory.isCompacted(_fs, latestPath))
+          {
+            System.out.println(latestPath + " (compacted, skipping)");
+            continue;
+          }
+
+          String pattern = latestPath.toString() + "/part-*.avro";
+          String outputPathForDay = String.format("%s/%s/%s/%s",_latencyOutputPathRoot,clusterName,year,day);
+
+          InputListing.Summary inputFiles = _listing.getSummary(pattern, false, false);
+
+          if (inputFiles.numFiles == 0)
+          {
+            continue;
+          }
+
+          System.out.print(pattern + " => " + inputFiles.numFiles + " files");
+
+          if (isForced(year, day) || !_fs.exists(new Path(outputPathForDay)))
+          {
+            System.out.println(String.format(", %s MB",inputFiles.totalLength/1024/1024));
+
+            // the output is much smaller than for usage, one reducer per 4 GB until there is history to size from
+            int numReducers = (int)Math.ceil(((double)inputFiles.totalLength)/1024/1024/1024/4);
+
+            submitJob(executor, pattern, outputPathForDay, clusterName, year, day, inputFiles.totalLength, numReducers);
+          }
+          else
+          {
+            System.out.println(" (skipping)");
+          }
+        }
+      }
+    }
+
+    executor.waitForCompletion();
+
+    _sizer.save();
+  }
+
+  private boolean isForced(String year, String day)
+  {
+    Calendar cal = Calendar.getInstance(timeZone);
+
+    long nowMillis = cal.getTimeInMillis();
+
+    cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+
+    long thenMillis = cal.getTimeInMillis();
+
+    double elapsedDays = Math.max(0.0, ((double)(nowMillis - thenMillis))/(24*3600*1000));
+
+    return !_incremental || elapsedDays < _numDaysForced;
+  }
+
+  private void submitJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, long totalLength, int numReducers)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+
+    inputPaths.add(inputPattern);
+
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "latency-per-hour-" + clusterName + "-" + year + "-" + day,
+      inputPaths,
+      "/tmp" + output,
+      output,
+      _log);
+
+    final Configuration conf = job.getConfiguration();
+
+    conf.set("cluster.name", clusterName);
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setInputFormatClass(CombinedAvroKeyValueInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+
+    AvroJob.setMapOutputKeySchema(job, LatencyKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, LatencyValue.SCHEMA$);
+
+    AvroJob.setOutputKeySchema(job, LatencyKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, LatencyValue.SCHEMA$);
+
+    _sizer.size(job, clusterName, totalLength, numReducers);
+
+    job.setMapperClass(ComputeLatencyPerHour.TheMapper.class);
+
+    // sketches of many jobs merge into one per key, so merge them before the shuffle
+    job.setCombinerClass(ComputeLatencyPerHour.TheReducer.class);
+    job.setReducerClass(ComputeLatencyPerHour.TheReducer.class);
+
+    executor.submit(job, clusterName);
+  }
+
+  /**
+   * Computes the latencies of each parsed job.  Hours are GMT, so they are whole multiples of an hour since the epoch.
+   */
+  public static class TheMapper extends Mapper<AvroKey<String>, AvroValue<LogData>, AvroKey<LatencyKey>, AvroValue<LatencyValue>>
+  {
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private String clusterName;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+      clusterName = context.getConfiguration().get("cluster.name");
+    }
+
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<LogData> value, Context context) throws IOException, InterruptedException
+    {
+      LogData data = value.datum();
+
+      if (!(data.getEntry() instanceof Job))
+      {
+        return;
+      }
+
+      Job job = (Job)data.getEntry();
+
+      if (job.getUser() == null || job.getSubmitTime() == null || job.getLaunchTime() == null)
+      {
+        context.getCounter("Latency Analysis", "Missing user, submit or launch").increment(1);
+        return;
+      }
+
+      long submitTime = job.getSubmitTime();
+      long launchTime = job.getLaunchTime();
+
+      if (launchTime < submitTime)
+      {
+        context.getCounter("Latency Analysis", "Launched before submit").increment(1);
+        return;
+      }
+
+      // map tasks by the hour their first attempt started, and the start of the first map attempt of the job
+      Map<Long,DurationSketch> mapTaskWaits = new HashMap<Long,DurationSketch>();
+      Long firstMapStart = null;
+
+      for (Task task : job.getTasks())
+      {
+        if (task.getType() != com.linkedin.whiteelephant.parsing.TaskType.MAP)
+        {
+          continue;
+        }
+
+        Long taskStart = null;
+
+        for (Attempt attempt : task.getAttempts())
+        {
+          if (attempt.getStartTime() != null && attempt.getStartTime() > 0 && (taskStart == null || attempt.getStartTime() < taskStart))
+          {
+            taskStart = attempt.getStartTime();
+          }
+        }
+
+        if (taskStart == null)
+        {
+          continue;
+        }
+
+        if (firstMapStart == null || taskStart < firstMapStart)
+        {
+          firstMapStart = taskStart;
+        }
+
+        long hour = getHour(taskStart);
+        mapTaskWaits.put(hour, DurationSketches.merge(mapTaskWaits.get(hour), DurationSketches.create(Math.max(0, taskStart - launchTime))));
+      }
+
+      LatencyKey latencyKey = new LatencyKey();
+      latencyKey.setCluster(StringPool.CLUSTERS.utf8(clusterName));
+      latencyKey.setUser(job.getUser());
+      latencyKey.setQueue(job.getJobQueue() != null ? job.getJobQueue() : DEFAULT_QUEUE);
+
+      LatencyValue jobLatency = new LatencyValue();
+      jobLatency.setJobs(1);
+      jobLatency.setQueueWait(DurationSketches.create(launchTime - submitTime));
+
+      if (firstMapStart != null)
+      {
+        jobLatency.setFirstMapWait(DurationSketches.create(Math.max(0, firstMapStart - launchTime)));
+      }
+
+      // the job is counted in the hour it was submitted, which may also hold some of its map tasks
+      long submitHour = getHour(submitTime);
+      jobLatency.setMapTaskWait(mapTaskWaits.remove(submitHour));
+
+      latencyKey.setTime(submitHour);
+      context.write(new AvroKey<LatencyKey>(latencyKey), new AvroValue<LatencyValue>(jobLatency));
+
+      for (Map.Entry<Long,DurationSketch> entry : mapTaskWaits.entrySet())
+      {
+        LatencyValue taskLatency = new LatencyValue();
+        taskLatency.setJobs(0);
+        taskLatency.setMapTaskWait(entry.getValue());
+
+        latencyKey.setTime(entry.getKey());
+        context.write(new AvroKey<LatencyKey>(latencyKey), new AvroValue<LatencyValue>(taskLatency));
+      }
+    }
+
+    private static long getHour(long time)
+    {
+      return time - time % HOUR_MILLIS;
+    }
+  }
+
+  /**
+   * Merges the latencies of each key.  Also used as the combiner.
+   */
+  public static class TheReducer extends Reducer<AvroKey<LatencyKey>, AvroValue<LatencyValue>, AvroKey<LatencyKey>, AvroValue<LatencyValue>>
+  {
+    @Override
+    protected void reduce(AvroKey<LatencyKey> key, Iterable<AvroValue<LatencyValue>> values, Context context) throws IOException, InterruptedException
+    {
+      LatencyValue merged = new LatencyValue();
+      merged.setJobs(0);
+
+      for (AvroValue<LatencyValue> valueWrapper : values)
+      {
+        LatencyValue value = valueWrapper.datum();
+
+        merged.setJobs(merged.getJobs() + value.getJobs());
+        merged.setQueueWait(DurationSketches.merge(merged.getQueueWait(), value.getQueueWait()));
+        merged.setFirstMapWait(DurationSketches.merge(merged.getFirstMapWait(), value.getFirstMapWait()));
+        merged.setMapTaskWait(DurationSketches.merge(merged.getMapTaskWait(), value.getMapTaskWait()));
+      }
+
+      context.write(key, new AvroValue<LatencyValue>(merged));
+    }
+  }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombinedAvroKeyValueInputFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.parsing.Attempt;
+import com.linkedin.whiteelephant.parsing.CompactHistory;
+import com.linkedin.whiteelephant.parsing.Job;
+import com.linkedin.whiteelephant.parsing.LogData;
+import com.linkedin.whiteelephant.parsing.Task;
+import com.linkedin.whiteelephant.util.InputListing;
+import com.linkedin.whiteelephant.util.StringPool;
+
+/**
+ * Finds the stragglers and the speculative waste of each parsed job.
+ *
+ * <p>
+ * For the map and reduce phase of each job the median and longest task durations are computed, along with the task
+ * which finished last.  Of all tasks the one which finished last is the critical task, since the job could not finish
+ * before it.  Attempts which did not succeed are split into those which ran at the same time as a successful sibling,
+ * most often speculative attempts which lost, and the rest, such as failed attempts which were retried.  The slot
+ * minutes of each kind are summed.  Output is one record per job, written under <code>stragglers.output.path</code>
+ * in the same layout as the usage per hour.
+ * </p>
+ */
+public class ComputeStragglers
+{
+  private final Logger _log;
+  private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
+  private final Properties _props;
+  private final String _name;
+
+  private final static TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  private final String _jobsOutputPathRoot;
+  private final String _stragglersOutputPathRoot;
+  private final boolean _incremental;
+  private final int _numDaysForced;
+
+  public ComputeStragglers(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "stragglers");
+    _sizer = new JobSizer(_fs, _props, "stragglers");
+
+    if (_props.get("jobs.output.path") == null) {
+      throw new IllegalArgumentException("jobs.output.path is not specified.");
+    }
+
+    if (_props.get("stragglers.output.path") == null) {
+      throw new IllegalArgumentException("stragglers.output.path is not specified.");
+    }
+
+    if (_props.get("num.days.forced") == null) {
+      throw new IllegalArgumentException("num.days.forced is not specified");
+    }
+
+    _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
+    _stragglersOutputPathRoot = (String)_props.get("stragglers.output.path");
+    _incremental = Boolean.parseBoolean((String)_props.get("incremental"));
+    _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
+  }
+
+  public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+  {
+    FileStatus[] clusterPaths = _fs.listStatus(new Path(_jobsOutputPathRoot));
+
+    for (FileStatus clusterPath : clusterPaths)
+    {
+      String clusterName = clusterPath.getPath().getName();
+
+      FileStatus[] yearPaths = _fs.listStatus(clusterPath.getPath());
+
+      for (FileStatus yearPath : yearPaths)
+      {
+        String year = yearPath.getPath().getName();
+
+        System.out.println("Searching under " + yearPath.getPath());
+        FileStatus[] dayPaths = _fs.listStatus(yearPath.getPath());
+
+        for (FileStatus dayPath : dayPaths)
+        {
+          String day = dayPath.getPath().getName();
+
+          Path latestPath = VersionedOutput.resolveLatest(_fs, dayPath.getPath());
+
+          if (latestPath == null)
+          {
+            continue;
+          }
+
+          if (CompactHistory.isCompacted(_fs, latestPath))
+          {
+            System.out.println(latestPath + " (compacted, skipping)");
+            continue;
+          }
+
+          String pattern = latestPath.toString() + "/part-*.avro";
+          String outputPathForDay = String.format("%s/%s/%s/%s",_stragglersOutputPathRoot,clusterName,year,day);
+
+          InputListing.Summary inputFiles = _listing.getSummary(pattern, false, false);
+
+          if (inputFiles.numFiles == 0)
+          {
+            continue;
+          }
+
+          System.out.print(pattern + " => " + inputFiles.numFiles + " files");
+
+          if (isForced(year, day) || !_fs.exists(new Path(outputPathForDay)))
+          {
+            System.out.println(String.format(", %s MB",inputFiles.totalLength/1024/1024));
+
+            // one small record per job, one reducer per 4 GB until there is history to size from
+            int numReducers = (int)Math.ceil(((double)inputFiles.totalLength)/1024/1024/1024/4);
+
+            submitJob(executor, pattern, outputPathForDay, clusterName, year, day, inputFiles.totalLength, numReducers);
+          }
+          else
+          {
+            System.out.println(" (skipping)");
+          }
+        }
+      }
+    }
+
+    executor.waitForCompletion();
+
+    _sizer.save();
+  }
+
+  private boolean isForced(String year, String day)
+  {
+    Calendar cal = Calendar.getInstance(timeZone);
+
+    long nowMillis = cal.getTimeInMillis();
+
+    cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+
+    long thenMillis = cal.getTimeInMillis();
+
+    double elapsedDays = Math.max(0.0, ((double)(nowMillis - thenMillis))/(24*3600*1000));
+
+    return !_incremental || elapsedDays < _numDaysForced;
+  }
+
+  private void submitJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, long totalLength, int numReducers)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+
+    inputPaths.add(inputPattern);
+
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "stragglers-" + clusterName + "-" + year + "-" + day,
+      inputPaths,
+      "/tmp" + output,
+      output,
+      _log);
+
+    final Configuration conf = job.getConfiguration();
+
+    conf.set("cluster.name", clusterName);
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setInputFormatClass(CombinedAvroKeyValueInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+
+    AvroJob.setMapOutputKeySchema(job, JobStragglersKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, JobStragglersValue.SCHEMA$);
+
+    AvroJob.setOutputKeySchema(job, JobStragglersKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, JobStragglersValue.SCHEMA$);
+
+    _sizer.size(job, clusterName, totalLength, numReducers);
+
+    job.setMapperClass(ComputeStragglers.TheMapper.class);
+
+    job.setReducerClass(ComputeStragglers.TheReducer.class);
+
+    executor.submit(job, clusterName);
+  }
+
+  /**
+   * Computes the stragglers and speculative waste of each parsed job.
+   */
+  public static class TheMapper extends Mapper<AvroKey<String>, AvroValue<LogData>, AvroKey<JobStragglersKey>, AvroValue<JobStragglersValue>>
+  {
+    private String clusterName;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+      clusterName = context.getConfiguration().get("cluster.name");
+    }
+
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<LogData> value, Context context) throws IOException, InterruptedException
+    {
+      LogData data = value.datum();
+
+      if (!(data.getEntry() instanceof Job))
+      {
+        return;
+      }
+
+      Job job = (Job)data.getEntry();
+
+      if (job.getTasks() == null || job.getTasks().size() == 0)
+      {
+        context.getCounter("Straggler Analysis", "No tasks").increment(1);
+        return;
+      }
+
+      List<TaskTiming> mapTasks = new ArrayList<TaskTiming>();
+      List<TaskTiming> reduceTasks = new ArrayList<TaskTiming>();
+
+      JobStragglersValue stragglers = new JobStragglersValue();
+      stragglers.setUser(job.getUser());
+      stragglers.setJobName(job.getJobName());
+      stragglers.setQueue(job.getJobQueue());
+      stragglers.setLaunchTime(job.getLaunchTime());
+      stragglers.setFinishTime(job.getFinishTime());
+      stragglers.setSpeculativeAttempts(0);
+      stragglers.setSpeculativeMinutes(0.0);
+      stragglers.setRetriedAttempts(0);
+      stragglers.setRetriedMinutes(0.0);
+
+      for (Task task : job.getTasks())
+      {
+        Attempt success = null;
+        Long taskStart = null;
+
+        for (Attempt attempt : task.getAttempts())
+        {
+          if (attempt.getStartTime() == null || attempt.getFinishTime() == null)
+          {
+            continue;
+          }
+
+          if (taskStart == null || attempt.getStartTime() < taskStart)
+          {
+            taskStart = attempt.getStartTime();
+          }
+
+          if (success == null && attempt.getTaskStatus() == com.linkedin.whiteelephant.parsing.TaskStatus.SUCCESS)
+          {
+            success = attempt;
+          }
+        }
+
+        for (Attempt attempt : task.getAttempts())
+        {
+          if (attempt.getStartTime() == null || attempt.getFinishTime() == null
+              || attempt.getTaskStatus() == com.linkedin.whiteelephant.parsing.TaskStatus.SUCCESS)
+          {
+            continue;
+          }
+
+          double minutes = (attempt.getFinishTime() - attempt.getStartTime())/1000.0/60.0;
+
+          if (success != null && attempt.getStartTime() < success.getFinishTime() && attempt.getFinishTime() > success.getStartTime())
+          {
+            stragglers.setSpeculativeAttempts(stragglers.getSpeculativeAttempts() + 1);
+            stragglers.setSpeculativeMinutes(stragglers.getSpeculativeMinutes() + minutes);
+          }
+          else
+          {
+            stragglers.setRetriedAttempts(stragglers.getRetriedAttempts() + 1);
+            stragglers.setRetriedMinutes(stragglers.getRetriedMinutes() + minutes);
+          }
+        }
+
+        if (success == null)
+        {
+          continue;
+        }
+
+        TaskTiming timing = new TaskTiming(task.getTaskId().toString(), success.getFinishTime(), success.getFinishTime() - taskStart);
+
+        if (task.getType() == com.linkedin.whiteelephant.parsing.TaskType.MAP)
+        {
+          mapTasks.add(timing);
+        }
+        else
+        {
+          reduceTasks.add(timing);
+        }
+      }
+
+      TaskTiming critical = null;
+
+      for (TaskTiming timing : mapTasks)
+      {
+        if (critical == null || timing.finishTime > critical.finishTime)
+        {
+          critical = timing;
+        }
+      }
+
+      for (TaskTiming timing : reduceTasks)
+      {
+        if (critical == null || timing.finishTime > critical.finishTime)
+        {
+          critical = timing;
+        }
+      }
+
+      if (critical == null)
+      {
+        context.getCounter("Straggler Analysis", "No successful tasks").increment(1);
+      }
+      else
+      {
+        stragglers.setCriticalTaskId(critical.taskId);
+        stragglers.setCriticalTaskMinutes(critical.durationMillis/1000.0/60.0);
+      }
+
+      stragglers.setMap(getPhaseStragglers(mapTasks));
+      stragglers.setReduce(getPhaseStragglers(reduceTasks));
+
+      JobStragglersKey stragglersKey = new JobStragglersKey();
+      stragglersKey.setCluster(StringPool.CLUSTERS.utf8(clusterName));
+      stragglersKey.setJobId(job.getJobId());
+
+      context.write(new AvroKey<JobStragglersKey>(stragglersKey), new AvroValue<JobStragglersValue>(stragglers));
+    }
+
+    private static PhaseStragglers getPhaseStragglers(List<TaskTiming> tasks)
+    {
+      if (tasks.size() == 0)
+      {
+        return null;
+      }
+
+      Collections.sort(tasks, new Comparator<TaskTiming>() {
+        @Override
+        public int compare(TaskTiming o1, TaskTiming o2)
+        {
+          return o1.durationMillis < o2.durationMillis ? -1 : (o1.durationMillis > o2.durationMillis ? 1 : 0);
+        }
+      });
+
+      int middle = tasks.size()/2;
+      double medianMillis = tasks.size() % 2 == 1
+        ? tasks.get(middle).durationMillis
+        : (tasks.get(middle - 1).durationMillis + tasks.get(middle).durationMillis)/2.0;
+
+      TaskTiming slowest = tasks.get(tasks.size() - 1);
+      TaskTiming last = slowest;
+
+      for (TaskTiming timing : tasks)
+      {
+        if (timing.finishTime > last.finishTime)
+        {
+          last = timing;
+        }
+      }
+
+      PhaseStragglers phase = new PhaseStragglers();
+      phase.setTasks(tasks.size());
+      phase.setMedianMinutes(medianMillis/1000.0/60.0);
+      phase.setMaxMinutes(slowest.durationMillis/1000.0/60.0);
+      phase.setSkew(medianMillis > 0 ? slowest.durationMillis/medianMillis : 1.0);
+      phase.setSlowestTaskId(slowest.taskId);
+      phase.setLastTaskId(last.taskId);
+      phase.setLastFinishTime(last.finishTime);
+      return phase;
+    }
+  }
+
+  /**
+   * When and how long a successful task ran, from the start of its first attempt to the finish of the successful one.
+   */
+  private static class TaskTiming
+  {
+    final String taskId;
+    final long finishTime;
+    final long durationMillis;
+
+    TaskTiming(String taskId, long finishTime, long durationMillis)
+    {
+      this.taskId = taskId;
+      this.finishTime = finishTime;
+      this.durationMillis = durationMillis;
+    }
+  }
+
+  /**
+   * Writes one record per job.  A job is only parsed once per day, but should it appear twice the first record is kept.
+   */
+  public static class TheReducer extends Reducer<AvroKey<JobStragglersKey>, AvroValue<JobStragglersValue>, AvroKey<JobStragglersKey>, AvroValue<JobStragglersValue>>
+  {
+    @Override
+    protected void reduce(AvroKey<JobStragglersKey> key, Iterable<AvroValue<JobStragglersValue>> values, Context context) throws IOException, InterruptedException
+    {
+      boolean written = false;
+
+      for (AvroValue<JobStragglersValue> value : values)
+      {
+        if (written)
+        {
+          context.getCounter("Straggler Analysis", "Duplicate job").increment(1);
+          continue;
+        }
+
+        context.write(key, value);
+        written = true;
+      }
+    }
+  }
+}
@@ -29,36 +29,73 @@ import org.apache.avro.mapred.AvroKey;
 import org.apache.avro.mapred.AvroValue;
 import org.apache.avro.mapred.AvroWrapper;
 import org.apache.avro.mapreduce.AvroJob;
-import org.apache.avro.mapreduce.AvroKeyValueInputFormat;
 import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.log4j.Logger;
 
 import com.linkedin.whiteelephant.analysis.AttemptStatsKey;
 import com.linkedin.whiteelephant.analysis.AttemptStatsValue;
 import com.linkedin.whiteelephant.analysis.TaskStatus;
 import com.linkedin.whiteelephant.analysis.TaskType;
+import com.linkedin.whiteelephant.parsing.CompactHistory;
+import com.linkedin.whiteelephant.parsing.FlatAttemptUsage;
 import com.linkedin.whiteelephant.parsing.LogData;
+import com.linkedin.whiteelephant.parsing.ParseJobsFromLogs;
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombinedAvroKeyValueInputFormat;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.util.InputListing;
+import com.linkedin.whiteelephant.util.StringPool;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Aggregates the usage of parsed jobs per hour, user, cluster and attempt type, status and excess.
+ *
+ * <p>
+ * When <code>usage.minutes.output.path</code> is set the slot occupancy of each of these keys is also computed in
+ * buckets of <code>usage.minutes.bucket</code> minutes (default 5), which must divide an hour, and written there
+ * as one {@link SlotOccupancy} array per key and hour.  This is computed only for days with flattened attempts.
+ * </p>
+ *
+ * <p>
+ * When <code>usage.hosts.output.path</code> is set the usage of each task tracker host is also aggregated per hour
+ * and attempt type and written there, as {@link HostStatsKey} and {@link HostStatsValue}.  This too is computed only
+ * for days with flattened attempts, and attempts whose host was not parsed are skipped.
+ * </p>
+ */
 public class ComputeUsagePerHour
 {
   private static final String REDUCE_SHUFFLE_BYTES = "REDUCE_SHUFFLE_BYTES";
   private static final String CPU_MILLISECONDS = "CPU_MILLISECONDS";
   private static final String SPILLED_RECORDS = "SPILLED_RECORDS";
+  private static final String HDFS_BYTES_READ = "HDFS_BYTES_READ";
+  private static final String HDFS_BYTES_WRITTEN = "HDFS_BYTES_WRITTEN";
+  private static final String FILE_BYTES_WRITTEN = "FILE_BYTES_WRITTEN";
+  private static final String MAP_OUTPUT_BYTES = "MAP_OUTPUT_BYTES";
+  
+  // statuses and types are read as Utf8, this finds their names without converting each one to a string
+  private static final StringPool enumNames = new StringPool(16);
   
   private final Logger _log;
   private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
+  private final JobSizer _minutesSizer;
+  private final JobSizer _hostsSizer;
   private final Properties _props;
   private final String _name;
   
@@ -66,6 +103,9 @@ public class ComputeUsagePerHour
   
   private final String _jobsOutputPathRoot;
   private final String _usageOutputPathRoot;
+  private final String _minutesOutputPathRoot;
+  private final int _bucketMinutes;
+  private final String _hostsOutputPathRoot;
   private final boolean _incremental;
   private final int _numDaysForced;
   
@@ -75,6 +115,10 @@ public class ComputeUsagePerHour
     _name = name;
     _props = props;
     _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "usage");
+    _sizer = new JobSizer(_fs, _props, "usage-per-hour");
+    _minutesSizer = new JobSizer(_fs, _props, "usage-per-minute");
+    _hostsSizer = new JobSizer(_fs, _props, "usage-per-host");
     
     if (_props.get("jobs.output.path") == null) {
       throw new IllegalArgumentException("joined.output.path is not specified.");
@@ -92,6 +136,14 @@ public class ComputeUsagePerHour
     _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
     _incremental = Boolean.parseBoolean((String)_props.get("incremental"));
     _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
+    _minutesOutputPathRoot = _props.getProperty("usage.minutes.output.path");
+    _bucketMinutes = Integer.parseInt(_props.getProperty("usage.minutes.bucket", "5"));
+    _hostsOutputPathRoot = _props.getProperty("usage.hosts.output.path");
+    
+    if (_bucketMinutes <= 0 || 60 % _bucketMinutes != 0)
+    {
+      throw new IllegalArgumentException("usage.minutes.bucket must divide an hour: " + _bucketMinutes);
+    }
   }
   
   public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
@@ -110,60 +162,191 @@ public class ComputeUsagePerHour
         
         System.out.println("Searching under " + yearPath.getPath());
         FileStatus[] dayPaths = _fs.listStatus(yearPath.getPath());
+        
+        // list each day on the listing thread pool, then submit jobs in day order
+        List<Callable<DayInput>> listings = new ArrayList<Callable<DayInput>>();
         for (FileStatus dayPath : dayPaths)
         {
-          String day = dayPath.getPath().getName();
-          
-          String pattern = dayPath.getPath().toString() + "/*.avro";
-          
-          String outputPathForDay = String.format("%s/%s/%s/%s",_usageOutputPathRoot,clusterName,year,day);
-          
-          FileStatus[] inputFiles = _fs.globStatus(new Path(pattern));
+          listings.add(createDayListing(clusterName, year, dayPath.getPath()));
+        }
+        
+        for (DayInput input : _listing.invokeAll(listings))
+        {
+          if (input == null)
+          {
+            continue;
+          }
           
-          StringBuilder msg = new StringBuilder(pattern + " => " + inputFiles.length + " files");
+          System.out.println(input.msg);
           
-          if (inputFiles.length > 0)
+          if (input.process)
           {
-            Calendar cal = Calendar.getInstance(timeZone);
-            
-            long nowMillis = cal.getTimeInMillis();
-            
-            cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+            // one reducer per 1 GB, until there is history to size from
+            int numReducers = (int)Math.ceil(((double)input.totalLength)/1024/1024/1024);
             
-            long thenMillis = cal.getTimeInMillis();
+            submitJob(executor, input.pattern, input.flat, input.outputPath, clusterName, year, input.day, input.totalLength, numReducers);
+          }
+          
+          if (input.minutesOutputPath != null)
+          {
+            // each key holds an hour of buckets, so there is more output per byte of input than per hour
+            int numReducers = (int)Math.ceil(((double)input.totalLength)/1024/1024/256);
             
-            double elapsedDays = Math.max(0.0, ((double)(nowMillis - thenMillis))/(24*3600*1000));
+            submitMinutesJob(executor, input.pattern, input.minutesOutputPath, clusterName, year, input.day, input.totalLength, numReducers);
+          }
+          
+          if (input.hostsOutputPath != null)
+          {
+            // there are far fewer hosts than users times attempt types, statuses and excess
+            int numReducers = (int)Math.ceil(((double)input.totalLength)/1024/1024/1024/4);
             
-            if (!_incremental || !_fs.exists(new Path(outputPathForDay)) || elapsedDays < _numDaysForced)
-            {
-              long totalLength = 0;
-              for (FileStatus stat : inputFiles)
-              {         
-                totalLength += stat.getLen();
-              }
-              
-              msg.append(String.format(", %s MB",totalLength/1024/1024));            
-              System.out.println(msg);
-              
-              // one reducer per 1 GB
-              int numReducers = (int)Math.ceil(((double)totalLength)/1024/1024/1024);
-              
-              submitJob(executor, pattern, outputPathForDay, clusterName, year, day, numReducers);
-            }
-            else if (_incremental && _fs.exists(new Path(outputPathForDay)))
-            {
-              msg.append(" (skipping)");
-              System.out.println(msg);
-            }
+            submitHostsJob(executor, input.pattern, input.hostsOutputPath, clusterName, year, input.day, input.totalLength, numReducers);
           }
         }
+      }
+    }
+    
+    // jobs for all clusters and years run concurrently, sharing the executor's slots
+    executor.waitForCompletion();
+    
+    _sizer.save();
+    _minutesSizer.save();
+    _hostsSizer.save();
+  }
+  
+  private Callable<DayInput> createDayListing(final String clusterName, final String year, final Path dayPath)
+  {
+    return new Callable<DayInput>() {
+      @Override
+      public DayInput call() throws IOException
+      {
+        String day = dayPath.getName();
+        
+        Path latestPath = VersionedOutput.resolveLatest(_fs, dayPath);
+        
+        if (latestPath == null)
+        {
+          return null;
+        }
+        
+        String outputPathForDay = String.format("%s/%s/%s/%s",_usageOutputPathRoot,clusterName,year,day);
+        
+        if (CompactHistory.isCompacted(_fs, latestPath))
+        {
+          return new DayInput(day, null, false, outputPathForDay, null, null, 0, latestPath + " (compacted, skipping)", false);
+        }
+        
+        // the flattened attempts are much cheaper to read than the parsed jobs, when they were written
+        boolean flat = true;
+        String pattern = latestPath.toString() + "/" + ParseJobsFromLogs.ATTEMPTS + "-*.avro";
+        
+        InputListing.Summary inputFiles = _listing.getSummary(pattern, false, false);
+        
+        if (inputFiles.numFiles == 0)
+        {
+          flat = false;
+          pattern = latestPath.toString() + "/part-*.avro";
+          inputFiles = _listing.getSummary(pattern, false, false);
+        }
+        
+        if (inputFiles.numFiles == 0)
+        {
+          return null;
+        }
+        
+        StringBuilder msg = new StringBuilder(pattern + " => " + inputFiles.numFiles + " files");
+        
+        Calendar cal = Calendar.getInstance(timeZone);
+        
+        long nowMillis = cal.getTimeInMillis();
         
-        executor.waitForCompletion();
+        cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+        
+        long thenMillis = cal.getTimeInMillis();
+        
+        double elapsedDays = Math.max(0.0, ((double)(nowMillis - thenMillis))/(24*3600*1000));
+        
+        boolean forced = !_incremental || elapsedDays < _numDaysForced;
+        
+        String minutesOutputPathForDay = null;
+        String hostsOutputPathForDay = null;
+        
+        if (flat)
+        {
+          minutesOutputPathForDay = getOutputPathForDay(_minutesOutputPathRoot, clusterName, year, day, forced);
+          hostsOutputPathForDay = getOutputPathForDay(_hostsOutputPathRoot, clusterName, year, day, forced);
+        }
+        
+        if (minutesOutputPathForDay != null)
+        {
+          msg.append(", per minute");
+        }
+        
+        if (hostsOutputPathForDay != null)
+        {
+          msg.append(", per host");
+        }
+        
+        if (forced || !_fs.exists(new Path(outputPathForDay)))
+        {
+          msg.append(String.format(", %s MB",inputFiles.totalLength/1024/1024));
+          return new DayInput(day, pattern, flat, outputPathForDay, minutesOutputPathForDay, hostsOutputPathForDay, inputFiles.totalLength, msg.toString(), true);
+        }
+        
+        msg.append(" (skipping)");
+        return new DayInput(day, pattern, flat, outputPathForDay, minutesOutputPathForDay, hostsOutputPathForDay, inputFiles.totalLength, msg.toString(), false);
       }
+    };
+  }
+  
+  /**
+   * Returns the output path for a day under an optional output root, or null if the root is not set or the day
+   * already has output which need not be recomputed.
+   */
+  private String getOutputPathForDay(String root, String clusterName, String year, String day, boolean forced) throws IOException
+  {
+    if (root == null)
+    {
+      return null;
+    }
+    
+    String outputPathForDay = String.format("%s/%s/%s/%s",root,clusterName,year,day);
+    
+    if (!forced && _fs.exists(new Path(outputPathForDay)))
+    {
+      return null;
+    }
+    
+    return outputPathForDay;
+  }
+  
+  private static class DayInput
+  {
+    final String day;
+    final String pattern;
+    final boolean flat;
+    final String outputPath;
+    final String minutesOutputPath;
+    final String hostsOutputPath;
+    final long totalLength;
+    final String msg;
+    final boolean process;
+    
+    DayInput(String day, String pattern, boolean flat, String outputPath, String minutesOutputPath, String hostsOutputPath, long totalLength, String msg, boolean process)
+    {
+      this.day = day;
+      this.pattern = pattern;
+      this.flat = flat;
+      this.outputPath = outputPath;
+      this.minutesOutputPath = minutesOutputPath;
+      this.hostsOutputPath = hostsOutputPath;
+      this.totalLength = totalLength;
+      this.msg = msg;
+      this.process = process;
     }
   }
   
-  private void submitJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, int numReducers)
+  private void submitJob(StagedOutputJobExecutor executor, String inputPattern, boolean flat, String output, String clusterName, String year, String day, long totalLength, int numReducers)
   {
     List<String> inputPaths = new ArrayList<String>();
     
@@ -180,15 +363,28 @@ public class ComputeUsagePerHour
     final Configuration conf = job.getConfiguration();
     
     conf.set("cluster.name", clusterName);
+    conf.setBoolean(ServingUsageWriter.ENABLED, Boolean.parseBoolean(_props.getProperty(ServingUsageWriter.ENABLED, "false")));
                 
     job.setOutputKeyClass(BytesWritable.class);
     job.setOutputValueClass(BytesWritable.class);
     
-    job.setInputFormatClass(AvroKeyValueInputFormat.class);
+    // parsed logs for a day are many small reducer outputs, so pack them into a few splits
+    job.setInputFormatClass(CombinedAvroKeyValueInputFormat.class);
     job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
     
     AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
-    AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+    
+    if (flat)
+    {
+      // projects the attempts down to the fields needed
+      AvroJob.setInputValueSchema(job, FlatAttemptUsage.SCHEMA$);
+      job.setMapperClass(ComputeUsagePerHour.AttemptMapper.class);
+    }
+    else
+    {
+      AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+      job.setMapperClass(ComputeUsagePerHour.TheMapper.class);
+    }
     
     AvroJob.setMapOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
     AvroJob.setMapOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
@@ -196,15 +392,106 @@ public class ComputeUsagePerHour
     AvroJob.setOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
     AvroJob.setOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
     
-    job.setNumReduceTasks(numReducers);
+    _sizer.size(job, clusterName, totalLength, numReducers);
     
-    job.setMapperClass(ComputeUsagePerHour.TheMapper.class);
     job.setReducerClass(ComputeUsagePerHour.TheReducer.class);
     
-    executor.submit(job);
+    executor.submit(job, clusterName);
+  }
+  
+  private void submitMinutesJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, long totalLength, int numReducers)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+    
+    inputPaths.add(inputPattern);
+    
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "usage-per-minute-" + clusterName + "-" + year + "-" + day,
+      inputPaths,
+      "/tmp" + output,
+      output,
+      _log);
+    
+    final Configuration conf = job.getConfiguration();
+    
+    conf.set("cluster.name", clusterName);
+    conf.setInt("usage.minutes.bucket", _bucketMinutes);
+    
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+    
+    job.setInputFormatClass(CombinedAvroKeyValueInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+    
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, FlatAttemptUsage.SCHEMA$);
+    
+    AvroJob.setMapOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, SlotOccupancy.SCHEMA$);
+    
+    AvroJob.setOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, SlotOccupancy.SCHEMA$);
+    
+    _minutesSizer.size(job, clusterName, totalLength, numReducers);
+    
+    job.setMapperClass(ComputeUsagePerHour.MinutesMapper.class);
+    
+    // an attempt contributes a whole array to each hour it ran in, so sum them before the shuffle
+    job.setCombinerClass(ComputeUsagePerHour.MinutesReducer.class);
+    job.setReducerClass(ComputeUsagePerHour.MinutesReducer.class);
+    
+    executor.submit(job, clusterName);
   }
   
-  public static class TheMapper extends Mapper<AvroKey<String>, AvroValue<LogData>, AvroWrapper<AttemptStatsKey>, AvroWrapper<AttemptStatsValue>>
+  private void submitHostsJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, long totalLength, int numReducers)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+    
+    inputPaths.add(inputPattern);
+    
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "usage-per-host-" + clusterName + "-" + year + "-" + day,
+      inputPaths,
+      "/tmp" + output,
+      output,
+      _log);
+    
+    final Configuration conf = job.getConfiguration();
+    
+    conf.set("cluster.name", clusterName);
+    
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+    
+    job.setInputFormatClass(CombinedAvroKeyValueInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+    
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, FlatAttemptUsage.SCHEMA$);
+    
+    AvroJob.setMapOutputKeySchema(job, HostStatsKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, HostStatsValue.SCHEMA$);
+    
+    AvroJob.setOutputKeySchema(job, HostStatsKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, HostStatsValue.SCHEMA$);
+    
+    _hostsSizer.size(job, clusterName, totalLength, numReducers);
+    
+    job.setMapperClass(ComputeUsagePerHour.HostsMapper.class);
+    
+    // a busy host runs thousands of attempts an hour, so sum them before the shuffle
+    job.setCombinerClass(ComputeUsagePerHour.HostsReducer.class);
+    job.setReducerClass(ComputeUsagePerHour.HostsReducer.class);
+    
+    executor.submit(job, clusterName);
+  }
+  
+  /**
+   * Splits the elapsed time and counters of each attempt across the hours the attempt ran in.
+   */
+  public static abstract class UsageMapper<V> extends Mapper<AvroKey<String>, AvroValue<V>, AvroWrapper<AttemptStatsKey>, AvroWrapper<AttemptStatsValue>>
   { 
     private String clusterName;
     
@@ -217,65 +504,72 @@ public class ComputeUsagePerHour
       super.setup(context);
     }
     
-    @Override
-    protected void map(AvroKey<String> key, AvroValue<LogData> value, Context context) throws java.io.IOException, java.lang.InterruptedException
-    { 
-      LogData data = value.datum();
+    protected void writeUsage(String jobId, FlatAttemptUsage attempt, Context context) throws IOException, InterruptedException
+    {
+      AttemptStatsKey statsKey = createKey(clusterName, jobId, attempt, context);
       
-      if (data.getEntry() != null && data.getEntry() instanceof com.linkedin.whiteelephant.parsing.Job)
+      if (statsKey != null)
       {
-        com.linkedin.whiteelephant.parsing.Job job = (com.linkedin.whiteelephant.parsing.Job)data.getEntry();
-        for (com.linkedin.whiteelephant.parsing.Task task : job.getTasks())
-        {
-          for (com.linkedin.whiteelephant.parsing.Attempt attempt : task.getAttempts())
-          {
-            if (attempt.getTaskStatus() == null)
-            {
-              System.out.println("Status null for job " + attempt.getJobId() + " attempt " + attempt.getTaskAttemptId());            
-              context.getCounter("Job Analysis", "Status null").increment(1);            
-              continue;
-            }
-            else
-            {
-              context.getCounter("Job Analysis", "Status " + attempt.getTaskStatus()).increment(1);
-            }
-            
-            if (attempt.getStartTime() == null || attempt.getFinishTime() == null)
-            {
-              System.out.println("Missing either startTime or finishTime");
-              context.getCounter("Job Analysis", "Missing start or finish").increment(1);
-              continue;
-            }
-            
-            if (!(attempt.getStartTime() > 0 && attempt.getFinishTime() > 0))
-            {
-              System.out.println("Either startTime or finishTime is not positive");
-              context.getCounter("Job Analysis", "Not positive start or finish").increment(1);
-              continue;
-            }
+        writeStats(statsKey, attempt, context);
+      }
+    }
+    
+    /**
+     * Returns the key for an attempt without its time, or null if the attempt lacks a status or times.
+     */
+    static AttemptStatsKey createKey(String clusterName, String jobId, FlatAttemptUsage attempt, TaskInputOutputContext<?,?,?,?> context)
+    {
+      if (attempt.getTaskStatus() == null)
+      {
+        System.out.println("Status null for attempt of job " + jobId);            
+        context.getCounter("Job Analysis", "Status null").increment(1);            
+        return null;
+      }
+      else
+      {
+        context.getCounter("Job Analysis", "Status " + attempt.getTaskStatus()).increment(1);
+      }
+      
+      if (attempt.getStartTime() == null || attempt.getFinishTime() == null)
+      {
+        System.out.println("Missing either startTime or finishTime");
+        context.getCounter("Job Analysis", "Missing start or finish").increment(1);
+        return null;
+      }
+      
+      if (!(attempt.getStartTime() > 0 && attempt.getFinishTime() > 0))
+      {
+        System.out.println("Either startTime or finishTime is not positive");
+        context.getCounter("Job Analysis", "Not positive start or finish").increment(1);
+        return null;
+      }
+      
+      if (attempt.getFinishTime() < attempt.getStartTime())
+      {
+        throw new RuntimeException(String.format("finishTime %s is less than startTime %s", attempt.getFinishTime(), attempt.getStartTime()));
+      }
 
-            AttemptStatsKey statsKey = new AttemptStatsKey();
-            statsKey.setCluster(clusterName); 
-            statsKey.setExcess(((com.linkedin.whiteelephant.parsing.DerivedAttemptData)attempt.getDerived()).getExcess());
-            statsKey.setStatus(TaskStatus.valueOf(attempt.getTaskStatus().toString()));
-            statsKey.setType(TaskType.valueOf(attempt.getType().toString().toUpperCase()));
-            statsKey.setUser(job.getUser());
-            
-            writeStats(statsKey, attempt, context);
-          }
-        }
-      }        
+      AttemptStatsKey statsKey = new AttemptStatsKey();
+      statsKey.setCluster(StringPool.CLUSTERS.utf8(clusterName)); 
+      statsKey.setExcess(attempt.getExcess());
+      statsKey.setStatus(TaskStatus.valueOf(enumNames.intern(attempt.getTaskStatus())));
+      statsKey.setType(TaskType.valueOf(enumNames.intern(attempt.getType()).toUpperCase()));
+      statsKey.setUser(attempt.getUser());
+      statsKey.setUnit(com.linkedin.whiteelephant.analysis.TimeUnit.HOURS);
+      
+      return statsKey;
     }
     
-    private void writeStats(AttemptStatsKey key, com.linkedin.whiteelephant.parsing.Attempt attempt, Context context) throws IOException, InterruptedException
+    private void writeStats(AttemptStatsKey key, FlatAttemptUsage attempt, Context context) throws IOException, InterruptedException
     {      
       Long start = attempt.getStartTime();
       Long end = attempt.getFinishTime();
       
-      if (end < start)
-      {
-        throw new RuntimeException(String.format("finishTime %s is less than startTime %s", end, start));
-      }
+      // phases are only known for reduce attempts which reached the reduce phase
+      boolean hasPhases = key.getType() == TaskType.REDUCE
+        && attempt.getShuffleFinished() != null && attempt.getSortFinished() != null
+        && start <= attempt.getShuffleFinished() && attempt.getShuffleFinished() <= attempt.getSortFinished()
+        && attempt.getSortFinished() <= end;
       
       TimeUnit unit = TimeUnit.HOURS;
       Long currentTime = start;
@@ -304,20 +598,32 @@ public class ComputeUsagePerHour
                 
         value.setElapsedMinutes((nextMillis - currentTime)/1000.0/60.0);
         
-        if (attempt.getCounters().get(CPU_MILLISECONDS) != null)
+        if (hasPhases)
+        {
+          value.setShuffleMinutes(getOverlapMinutes(currentTime, nextMillis, start, attempt.getShuffleFinished()));
+          value.setSortMinutes(getOverlapMinutes(currentTime, nextMillis, attempt.getShuffleFinished(), attempt.getSortFinished()));
+          value.setReducePhaseMinutes(getOverlapMinutes(currentTime, nextMillis, attempt.getSortFinished(), end));
+        }
+        
+        if (attempt.getCpuMilliseconds() != null)
         {
-          value.setCpuMinutes(percentOfTotal * attempt.getCounters().get(CPU_MILLISECONDS)/1000.0/60.0);
+          value.setCpuMinutes(percentOfTotal * attempt.getCpuMilliseconds()/1000.0/60.0);
         }
         
-        if (attempt.getCounters().get(SPILLED_RECORDS) != null)
+        if (attempt.getSpilledRecords() != null)
         {
-          value.setSpilledRecords((long)(percentOfTotal * attempt.getCounters().get(SPILLED_RECORDS)));
+          value.setSpilledRecords((long)(percentOfTotal * attempt.getSpilledRecords()));
         }
         
-        if (attempt.getCounters().get(REDUCE_SHUFFLE_BYTES) != null)
+        if (attempt.getReduceShuffleBytes() != null)
         {
-          value.setReduceShuffleBytes(attempt.getCounters().get(REDUCE_SHUFFLE_BYTES));
+          value.setReduceShuffleBytes(attempt.getReduceShuffleBytes());
         }
+        
+        value.setHdfsBytesRead(prorate(percentOfTotal, attempt.getHdfsBytesRead()));
+        value.setHdfsBytesWritten(prorate(percentOfTotal, attempt.getHdfsBytesWritten()));
+        value.setFileBytesWritten(prorate(percentOfTotal, attempt.getFileBytesWritten()));
+        value.setMapOutputBytes(prorate(percentOfTotal, attempt.getMapOutputBytes()));
                 
         key.setTime(currentUnitStart.getTimeInMillis());
         
@@ -329,13 +635,29 @@ public class ComputeUsagePerHour
         if ((key.getTime() + unit.toMillis(1)) >= end && end >= key.getTime())
         {
           value.setFinished(1);
+          value.setDurations(DurationSketches.create(end - start));
         }
         
         currentTime = nextMillis;
         
-        context.write(new AvroKey<AttemptStatsKey>(key), new AvroValue<AttemptStatsValue>(value));
+        emit(key, value, context);
       }
     }
+    
+    private static Long prorate(double percentOfTotal, Long counter)
+    {
+      return counter == null ? null : (long)(percentOfTotal * counter);
+    }
+    
+    private static double getOverlapMinutes(long start, long end, long phaseStart, long phaseEnd)
+    {
+      return Math.max(0, Math.min(end, phaseEnd) - Math.max(start, phaseStart))/1000.0/60.0;
+    }
+    
+    protected void emit(AttemptStatsKey key, AttemptStatsValue value, Context context) throws IOException, InterruptedException
+    {
+      context.write(new AvroKey<AttemptStatsKey>(key), new AvroValue<AttemptStatsValue>(value));
+    }
         
     private static Calendar getCalendarForTime(TimeUnit unit, Long time)
     { 
@@ -376,9 +698,330 @@ public class ComputeUsagePerHour
     }
   }
   
+  /**
+   * Computes usage from the parsed jobs.
+   */
+  public static class TheMapper extends UsageMapper<LogData>
+  {
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<LogData> value, Context context) throws java.io.IOException, java.lang.InterruptedException
+    { 
+      LogData data = value.datum();
+      
+      if (data.getEntry() != null && data.getEntry() instanceof com.linkedin.whiteelephant.parsing.Job)
+      {
+        com.linkedin.whiteelephant.parsing.Job job = (com.linkedin.whiteelephant.parsing.Job)data.getEntry();
+        for (com.linkedin.whiteelephant.parsing.Task task : job.getTasks())
+        {
+          for (com.linkedin.whiteelephant.parsing.Attempt attempt : task.getAttempts())
+          {
+            FlatAttemptUsage usage = new FlatAttemptUsage();
+            usage.setUser(job.getUser());
+            usage.setType(attempt.getType().toString());
+            usage.setTaskStatus(attempt.getTaskStatus() != null ? attempt.getTaskStatus().toString() : null);
+            usage.setStartTime(attempt.getStartTime());
+            usage.setFinishTime(attempt.getFinishTime());
+            usage.setShuffleFinished(attempt.getShuffleFinished());
+            usage.setSortFinished(attempt.getSortFinished());
+            usage.setExcess(((com.linkedin.whiteelephant.parsing.DerivedAttemptData)attempt.getDerived()).getExcess());
+            // counter names are read from the file as Utf8, so they must be looked up as Utf8
+            usage.setCpuMilliseconds(StringPool.COUNTERS.get(attempt.getCounters(), CPU_MILLISECONDS));
+            usage.setSpilledRecords(StringPool.COUNTERS.get(attempt.getCounters(), SPILLED_RECORDS));
+            usage.setReduceShuffleBytes(StringPool.COUNTERS.get(attempt.getCounters(), REDUCE_SHUFFLE_BYTES));
+            usage.setHdfsBytesRead(StringPool.COUNTERS.get(attempt.getCounters(), HDFS_BYTES_READ));
+            usage.setHdfsBytesWritten(StringPool.COUNTERS.get(attempt.getCounters(), HDFS_BYTES_WRITTEN));
+            usage.setFileBytesWritten(StringPool.COUNTERS.get(attempt.getCounters(), FILE_BYTES_WRITTEN));
+            usage.setMapOutputBytes(StringPool.COUNTERS.get(attempt.getCounters(), MAP_OUTPUT_BYTES));
+            
+            writeUsage(job.getJobId().toString(), usage, context);
+          }
+        }
+      }        
+    }
+  }
+  
+  /**
+   * Computes usage from the flattened attempts written beside the parsed jobs, read with the
+   * {@link FlatAttemptUsage} projection.
+   */
+  public static class AttemptMapper extends UsageMapper<FlatAttemptUsage>
+  {
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<FlatAttemptUsage> value, Context context) throws java.io.IOException, java.lang.InterruptedException
+    {
+      writeUsage(key.datum(), value.datum(), context);
+    }
+  }
+  
+  /**
+   * Computes the slot occupancy of each key in buckets of <code>usage.minutes.bucket</code> minutes, as an array
+   * per hour of the key.  Hours are GMT, so they and the buckets are whole multiples of their length since the epoch.
+   */
+  public static class MinutesMapper extends Mapper<AvroKey<String>, AvroValue<FlatAttemptUsage>, AvroKey<AttemptStatsKey>, AvroValue<SlotOccupancy>>
+  {
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    
+    private String clusterName;
+    private int bucketMinutes;
+    
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+      clusterName = context.getConfiguration().get("cluster.name");
+      bucketMinutes = context.getConfiguration().getInt("usage.minutes.bucket", 5);
+    }
+    
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<FlatAttemptUsage> value, Context context) throws IOException, InterruptedException
+    {
+      FlatAttemptUsage attempt = value.datum();
+      
+      AttemptStatsKey statsKey = UsageMapper.createKey(clusterName, key.datum(), attempt, context);
+      
+      if (statsKey == null)
+      {
+        return;
+      }
+      
+      long start = attempt.getStartTime();
+      long end = attempt.getFinishTime();
+      long bucketMillis = TimeUnit.MINUTES.toMillis(bucketMinutes);
+      
+      for (long hour = start - start % HOUR_MILLIS; hour < end; hour += HOUR_MILLIS)
+      {
+        float[] slots = new float[60 / bucketMinutes];
+        
+        for (int i = 0; i < slots.length; i++)
+        {
+          long bucketStart = hour + i * bucketMillis;
+          long overlap = Math.min(end, bucketStart + bucketMillis) - Math.max(start, bucketStart);
+          
+          if (overlap > 0)
+          {
+            slots[i] = overlap / (float)bucketMillis;
+          }
+        }
+        
+        statsKey.setTime(hour);
+        
+        context.write(new AvroKey<AttemptStatsKey>(statsKey), new AvroValue<SlotOccupancy>(toOccupancy(bucketMinutes, slots)));
+      }
+    }
+  }
+  
+  /**
+   * Sums the slot occupancy of each key.  Also used as the combiner.
+   */
+  public static class MinutesReducer extends Reducer<AvroKey<AttemptStatsKey>, AvroValue<SlotOccupancy>, AvroKey<AttemptStatsKey>, AvroValue<SlotOccupancy>>
+  {
+    @Override
+    protected void reduce(AvroKey<AttemptStatsKey> key, Iterable<AvroValue<SlotOccupancy>> values, Context context) throws IOException, InterruptedException
+    {
+      float[] slots = null;
+      int bucketMinutes = 0;
+      
+      for (AvroValue<SlotOccupancy> value : values)
+      {
+        List<Float> valueSlots = value.datum().getSlots();
+        
+        if (slots == null)
+        {
+          bucketMinutes = value.datum().getBucketMinutes();
+          slots = new float[valueSlots.size()];
+        }
+        
+        for (int i = 0; i < slots.length; i++)
+        {
+          slots[i] += valueSlots.get(i);
+        }
+      }
+      
+      context.write(key, new AvroValue<SlotOccupancy>(toOccupancy(bucketMinutes, slots)));
+    }
+  }
+  
+  /**
+   * Splits the elapsed time of each attempt across the hours it ran in, keyed by the host it ran on.
+   */
+  public static class HostsMapper extends Mapper<AvroKey<String>, AvroValue<FlatAttemptUsage>, AvroKey<HostStatsKey>, AvroValue<HostStatsValue>>
+  {
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    
+    private String clusterName;
+    
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+      clusterName = context.getConfiguration().get("cluster.name");
+    }
+    
+    @Override
+    protected void map(AvroKey<String> key, AvroValue<FlatAttemptUsage> value, Context context) throws IOException, InterruptedException
+    {
+      FlatAttemptUsage attempt = value.datum();
+      
+      if (UsageMapper.createKey(clusterName, key.datum(), attempt, context) == null)
+      {
+        return;
+      }
+      
+      if (attempt.getHost() == null)
+      {
+        context.getCounter("Job Analysis", "Host null").increment(1);
+        return;
+      }
+      
+      long start = attempt.getStartTime();
+      long end = attempt.getFinishTime();
+      
+      HostStatsKey hostKey = new HostStatsKey();
+      hostKey.setCluster(StringPool.CLUSTERS.utf8(clusterName));
+      hostKey.setHost(attempt.getHost());
+      hostKey.setType(enumNames.intern(attempt.getType()).toUpperCase());
+      
+      boolean failed = "FAILED".equals(enumNames.intern(attempt.getTaskStatus()));
+      
+      for (long hour = start - start % HOUR_MILLIS; hour < end; hour += HOUR_MILLIS)
+      {
+        long overlap = Math.min(end, hour + HOUR_MILLIS) - Math.max(start, hour);
+        
+        HostStatsValue hostValue = new HostStatsValue();
+        hostValue.setElapsedMinutes(overlap/1000.0/60.0);
+        hostValue.setStarted(start >= hour ? 1 : 0);
+        hostValue.setFinished(end <= hour + HOUR_MILLIS ? 1 : 0);
+        hostValue.setFailed(end <= hour + HOUR_MILLIS && failed ? 1 : 0);
+        
+        if (attempt.getCpuMilliseconds() != null)
+        {
+          hostValue.setCpuMinutes(overlap/((double)(end - start)) * attempt.getCpuMilliseconds()/1000.0/60.0);
+        }
+        
+        hostKey.setTime(hour);
+        
+        context.write(new AvroKey<HostStatsKey>(hostKey), new AvroValue<HostStatsValue>(hostValue));
+      }
+    }
+  }
+  
+  /**
+   * Sums the usage of each host.  Also used as the combiner.
+   */
+  public static class HostsReducer extends Reducer<AvroKey<HostStatsKey>, AvroValue<HostStatsValue>, AvroKey<HostStatsKey>, AvroValue<HostStatsValue>>
+  {
+    @Override
+    protected void reduce(AvroKey<HostStatsKey> key, Iterable<AvroValue<HostStatsValue>> values, Context context) throws IOException, InterruptedException
+    {
+      HostStatsValue merged = new HostStatsValue();
+      merged.setStarted(0);
+      merged.setFinished(0);
+      merged.setFailed(0);
+      merged.setElapsedMinutes(0.0);
+      
+      for (AvroValue<HostStatsValue> valueWrapper : values)
+      {
+        HostStatsValue value = valueWrapper.datum();
+        
+        merged.setStarted(merged.getStarted() + value.getStarted());
+        merged.setFinished(merged.getFinished() + value.getFinished());
+        merged.setFailed(merged.getFailed() + value.getFailed());
+        merged.setElapsedMinutes(merged.getElapsedMinutes() + value.getElapsedMinutes());
+        
+        if (value.getCpuMinutes() != null)
+        {
+          merged.setCpuMinutes(merged.getCpuMinutes() == null ? value.getCpuMinutes() : merged.getCpuMinutes() + value.getCpuMinutes());
+        }
+      }
+      
+      context.write(key, new AvroValue<HostStatsValue>(merged));
+    }
+  }
+  
+  private static SlotOccupancy toOccupancy(int bucketMinutes, float[] slots)
+  {
+    List<Float> list = new ArrayList<Float>(slots.length);
+    for (float slot : slots)
+    {
+      list.add(slot);
+    }
+    
+    SlotOccupancy occupancy = new SlotOccupancy();
+    occupancy.setBucketMinutes(bucketMinutes);
+    occupancy.setSlots(list);
+    return occupancy;
+  }
+  
+  /**
+   * Emits the usage of jobs whose parsed data has been replaced, negated, so that reducing it together with
+   * the usage computed earlier subtracts their old contribution.
+   */
+  public static class SupersededMapper extends TheMapper
+  {
+    @Override
+    protected void emit(AttemptStatsKey key, AttemptStatsValue value, Context context) throws IOException, InterruptedException
+    {
+      value.setStarted(-value.getStarted());
+      value.setFinished(-value.getFinished());
+      value.setElapsedMinutes(-value.getElapsedMinutes());
+      
+      if (value.getCpuMinutes() != null)
+      {
+        value.setCpuMinutes(-value.getCpuMinutes());
+      }
+      
+      if (value.getSpilledRecords() != null)
+      {
+        value.setSpilledRecords(-value.getSpilledRecords());
+      }
+      
+      if (value.getReduceShuffleBytes() != null)
+      {
+        value.setReduceShuffleBytes(-value.getReduceShuffleBytes());
+      }
+      
+      value.setDurations(DurationSketches.negate(value.getDurations()));
+      value.setHdfsBytesRead(negate(value.getHdfsBytesRead()));
+      value.setHdfsBytesWritten(negate(value.getHdfsBytesWritten()));
+      value.setFileBytesWritten(negate(value.getFileBytesWritten()));
+      value.setMapOutputBytes(negate(value.getMapOutputBytes()));
+      
+      if (value.getShuffleMinutes() != null)
+      {
+        value.setShuffleMinutes(-value.getShuffleMinutes());
+        value.setSortMinutes(-value.getSortMinutes());
+        value.setReducePhaseMinutes(-value.getReducePhaseMinutes());
+      }
+      
+      super.emit(key, value, context);
+    }
+    
+    private static Long negate(Long value)
+    {
+      return value == null ? null : -value;
+    }
+  }
+  
+  /**
+   * Reads previously computed usage, so it can be merged with usage computed from newly parsed jobs.
+   */
+  public static class UsageInputFormat extends CombinedAvroKeyValueInputFormat<AttemptStatsKey, AttemptStatsValue>
+  {
+    @Override
+    protected Schema getKeySchema(Configuration conf)
+    {
+      return AttemptStatsKey.SCHEMA$;
+    }
+
+    @Override
+    protected Schema getValueSchema(Configuration conf)
+    {
+      return AttemptStatsValue.SCHEMA$;
+    }
+  }
+  
   public static class TheReducer extends Reducer<AvroKey<AttemptStatsKey>, AvroValue<AttemptStatsValue>, AvroWrapper<AttemptStatsKey>, AvroWrapper<AttemptStatsValue>> 
   {
     private String clusterName;
+    private ServingUsageWriter serving;
     
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -386,9 +1029,32 @@ public class ComputeUsagePerHour
       Configuration conf = context.getConfiguration();
       clusterName = conf.get("cluster.name");
       System.out.println("Got cluster " + clusterName);
+      
+      if (conf.getBoolean(ServingUsageWriter.ENABLED, false))
+      {
+        serving = new ServingUsageWriter();
+      }
+      
       super.setup(context);
     }
     
+    /**
+     * Writes the serving file into the task's work directory, so that it is committed with the Avro output.
+     */
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException
+    {
+      if (serving != null)
+      {
+        Path path = new Path(FileOutputFormat.getWorkOutputPath(context), FileOutputFormat.getUniqueFile(context, "part", ServingUsageWriter.EXTENSION));
+        FSDataOutputStream out = path.getFileSystem(context.getConfiguration()).create(path);
+        serving.write(out);
+        System.out.println(String.format("Wrote %d rows to %s", serving.getRowCount(), path));
+      }
+      
+      super.cleanup(context);
+    }
+    
     @Override
     protected void reduce(AvroKey<AttemptStatsKey> key, Iterable<AvroValue<AttemptStatsValue>> values, final Context context) throws IOException, InterruptedException 
     { 
@@ -440,9 +1106,46 @@ public class ComputeUsagePerHour
             merged.setReduceShuffleBytes(merged.getReduceShuffleBytes() + value.getReduceShuffleBytes());
           }
         }
+        
+        merged.setDurations(DurationSketches.merge(merged.getDurations(), value.getDurations()));
+        merged.setHdfsBytesRead(sum(merged.getHdfsBytesRead(), value.getHdfsBytesRead()));
+        merged.setHdfsBytesWritten(sum(merged.getHdfsBytesWritten(), value.getHdfsBytesWritten()));
+        merged.setFileBytesWritten(sum(merged.getFileBytesWritten(), value.getFileBytesWritten()));
+        merged.setMapOutputBytes(sum(merged.getMapOutputBytes(), value.getMapOutputBytes()));
+        
+        if (value.getShuffleMinutes() != null)
+        {
+          if (merged.getShuffleMinutes() == null)
+          {
+            merged.setShuffleMinutes(value.getShuffleMinutes());
+            merged.setSortMinutes(value.getSortMinutes());
+            merged.setReducePhaseMinutes(value.getReducePhaseMinutes());
+          }
+          else
+          {
+            merged.setShuffleMinutes(merged.getShuffleMinutes() + value.getShuffleMinutes());
+            merged.setSortMinutes(merged.getSortMinutes() + value.getSortMinutes());
+            merged.setReducePhaseMinutes(merged.getReducePhaseMinutes() + value.getReducePhaseMinutes());
+          }
+        }
       }
       
       context.write(key, new AvroWrapper<AttemptStatsValue>(merged));
+      
+      if (serving != null)
+      {
+        serving.append(key.datum(), merged);
+      }
+    }
+    
+    private static Long sum(Long a, Long b)
+    {
+      if (a == null)
+      {
+        return b;
+      }
+      
+      return b == null ? a : a + b;
     }
   }
 }
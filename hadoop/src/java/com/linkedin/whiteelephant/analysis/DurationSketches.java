@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds and merges {@link DurationSketch}es, histograms of attempt durations with logarithmically sized buckets.
+ *
+ * <p>
+ * Bucket 0 counts durations up to a second.  Bucket <i>i</i> counts durations in
+ * (<code>GAMMA</code><sup><i>i</i>-1</sup>, <code>GAMMA</code><sup><i>i</i></sup>] seconds, and durations beyond the
+ * last bucket are counted in it.  Taking 2&middot;<code>GAMMA</code><sup><i>i</i></sup>/(<code>GAMMA</code>+1) seconds
+ * as the value of bucket <i>i</i>, any quantile is within 2.5% of the true duration.  A sketch holds only its
+ * non-empty buckets, in order, so it has at most a few hundred.
+ * </p>
+ *
+ * <p>
+ * Unlike sampling sketches, merging sums the counts of each bucket, so merging is exact and can be undone by
+ * merging in a negated sketch, as done when usage of superseded jobs is subtracted.  The server decodes
+ * sketches with the same bucket scheme.
+ * </p>
+ */
+public class DurationSketches
+{
+  public static final double GAMMA = 1.05;
+  public static final int MAX_BUCKET = 400;
+
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+
+  public static int getBucket(long durationMillis)
+  {
+    if (durationMillis <= 1000)
+    {
+      return 0;
+    }
+
+    return Math.min(MAX_BUCKET, (int)Math.ceil(Math.log(durationMillis / 1000.0) / LOG_GAMMA));
+  }
+
+  /**
+   * Returns the duration, in minutes, a bucket stands for.
+   */
+  public static double getBucketMinutes(int bucket)
+  {
+    if (bucket == 0)
+    {
+      return 1.0 / 60.0;
+    }
+
+    return 2.0 * Math.pow(GAMMA, bucket) / (GAMMA + 1.0) / 60.0;
+  }
+
+  public static DurationSketch create(long durationMillis)
+  {
+    DurationSketch sketch = new DurationSketch();
+    sketch.setBuckets(new ArrayList<Integer>(1));
+    sketch.setCounts(new ArrayList<Long>(1));
+    sketch.getBuckets().add(getBucket(durationMillis));
+    sketch.getCounts().add(1L);
+    return sketch;
+  }
+
+  /**
+   * Returns the sum of two sketches, either of which may be null.  Returns null if the sum has no counts.
+   */
+  public static DurationSketch merge(DurationSketch a, DurationSketch b)
+  {
+    if (a == null)
+    {
+      return isEmpty(b) ? null : copy(b);
+    }
+
+    if (b == null)
+    {
+      return isEmpty(a) ? null : copy(a);
+    }
+
+    List<Integer> buckets = new ArrayList<Integer>(a.getBuckets().size() + b.getBuckets().size());
+    List<Long> counts = new ArrayList<Long>(a.getBuckets().size() + b.getBuckets().size());
+
+    int i = 0;
+    int j = 0;
+
+    while (i < a.getBuckets().size() || j < b.getBuckets().size())
+    {
+      int bucket;
+      long count;
+
+      if (j >= b.getBuckets().size() || (i < a.getBuckets().size() && a.getBuckets().get(i) < b.getBuckets().get(j)))
+      {
+        bucket = a.getBuckets().get(i);
+        count = a.getCounts().get(i++);
+      }
+      else if (i >= a.getBuckets().size() || b.getBuckets().get(j) < a.getBuckets().get(i))
+      {
+        bucket = b.getBuckets().get(j);
+        count = b.getCounts().get(j++);
+      }
+      else
+      {
+        bucket = a.getBuckets().get(i);
+        count = a.getCounts().get(i++) + b.getCounts().get(j++);
+      }
+
+      if (count != 0)
+      {
+        buckets.add(bucket);
+        counts.add(count);
+      }
+    }
+
+    if (buckets.size() == 0)
+    {
+      return null;
+    }
+
+    DurationSketch merged = new DurationSketch();
+    merged.setBuckets(buckets);
+    merged.setCounts(counts);
+    return merged;
+  }
+
+  public static DurationSketch negate(DurationSketch sketch)
+  {
+    if (sketch == null)
+    {
+      return null;
+    }
+
+    DurationSketch negated = copy(sketch);
+
+    for (int i = 0; i < negated.getCounts().size(); i++)
+    {
+      negated.getCounts().set(i, -negated.getCounts().get(i));
+    }
+
+    return negated;
+  }
+
+  private static boolean isEmpty(DurationSketch sketch)
+  {
+    return sketch == null || sketch.getBuckets().size() == 0;
+  }
+
+  private static DurationSketch copy(DurationSketch sketch)
+  {
+    DurationSketch copy = new DurationSketch();
+    copy.setBuckets(new ArrayList<Integer>(sketch.getBuckets()));
+    copy.setCounts(new ArrayList<Long>(sketch.getCounts()));
+    return copy;
+  }
+}
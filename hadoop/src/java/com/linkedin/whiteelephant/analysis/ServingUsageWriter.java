@@ -0,0 +1,653 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.analysis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * Writes hourly usage in a columnar file built for the server, beside the Avro files of the usage per hour.
+ *
+ * <p>
+ * Rows are sorted by cluster, user and time.  Each column is stored contiguously, big-endian, at an offset aligned
+ * to 8 bytes, so the server can memory map the file and read a column as an array rather than decode records.
+ * Cluster, user, unit, type and status are stored as int codes into dictionaries which are sorted, so codes compare
+ * as the strings do.  Columns which may be null are preceded by a bitmap with a bit set for each row having a value.
+ * The duration sketches are stored as three columns: the offset of the first bucket of each row, which has one
+ * more entry than there are rows, and the buckets and counts of all rows.
+ * </p>
+ *
+ * <p>
+ * The layout is:
+ * </p>
+ *
+ * <pre>
+ *   magic                "WEUSAGE" followed by the version, 1
+ *   columns              aligned to 8 bytes
+ *   footer
+ *     int                number of rows
+ *     long, long         earliest and latest time
+ *     int                number of columns, then for each: string name, byte type, byte nullable, long offset, long length
+ *     int                number of dictionaries, then for each: string column, int size, the strings in order
+ *     int                number of runs, then for each: int cluster, int user, int first row, int rows, long first time, long last time
+ *   long                 offset of the footer
+ *   magic
+ * </pre>
+ *
+ * <p>
+ * Strings are an int length followed by UTF-8 bytes.  A run is the rows of one user on one cluster, which are
+ * contiguous and sorted by time, so the rows of a user within a time range can be found by a binary search.
+ * </p>
+ *
+ * <p>
+ * Rows are held in memory until the file is written, in columns of primitives, which take about 150 bytes a row
+ * plus the sketches.
+ * </p>
+ */
+public class ServingUsageWriter
+{
+  /**
+   * Property enabling the serving files, written by the usage reducer as <code>part-r-*.usage</code>.
+   */
+  public static final String ENABLED = "usage.serving.enabled";
+
+  public static final String EXTENSION = ".usage";
+
+  public static final byte[] MAGIC = { 'W', 'E', 'U', 'S', 'A', 'G', 'E', 1 };
+
+  public static final byte INT8 = 1;
+  public static final byte INT32 = 2;
+  public static final byte INT64 = 3;
+  public static final byte FLOAT64 = 4;
+
+  private int _rows;
+
+  private final DictionaryColumn _cluster = new DictionaryColumn("cluster");
+  private final DictionaryColumn _user = new DictionaryColumn("user");
+  private final LongColumn _time = new LongColumn("time", false);
+  private final DictionaryColumn _unit = new DictionaryColumn("unit");
+  private final ByteColumn _excess = new ByteColumn("excess");
+  private final DictionaryColumn _type = new DictionaryColumn("type");
+  private final DictionaryColumn _status = new DictionaryColumn("status");
+  private final IntColumn _started = new IntColumn("started", false);
+  private final IntColumn _finished = new IntColumn("finished", false);
+  private final DoubleColumn _elapsedMinutes = new DoubleColumn("elapsedMinutes", false);
+  private final DoubleColumn _cpuMinutes = new DoubleColumn("cpuMinutes", true);
+  private final LongColumn _spilledRecords = new LongColumn("spilledRecords", true);
+  private final LongColumn _hdfsBytesRead = new LongColumn("hdfsBytesRead", true);
+  private final LongColumn _hdfsBytesWritten = new LongColumn("hdfsBytesWritten", true);
+  private final LongColumn _fileBytesWritten = new LongColumn("fileBytesWritten", true);
+  private final LongColumn _mapOutputBytes = new LongColumn("mapOutputBytes", true);
+  private final LongColumn _reduceShuffleBytes = new LongColumn("reduceShuffleBytes", true);
+  private final DoubleColumn _shuffleMinutes = new DoubleColumn("shuffleMinutes", true);
+  private final DoubleColumn _sortMinutes = new DoubleColumn("sortMinutes", true);
+  private final DoubleColumn _reducePhaseMinutes = new DoubleColumn("reducePhaseMinutes", true);
+
+  // sketches of each row, as the range [first, last) of the buckets and counts
+  private final IntColumn _durationsFirst = new IntColumn("durations.offsets", true);
+  private final IntColumn _durationsLast = new IntColumn("durations.last", true);
+  private final IntColumn _durationBuckets = new IntColumn("durations.buckets", false);
+  private final LongColumn _durationCounts = new LongColumn("durations.counts", false);
+
+  public void append(AttemptStatsKey key, AttemptStatsValue value)
+  {
+    _cluster.add(_rows, key.getCluster());
+    _user.add(_rows, key.getUser());
+    _time.add(_rows, key.getTime());
+    _unit.add(_rows, key.getUnit().name());
+    _excess.add(_rows, key.getExcess() ? (byte)1 : (byte)0);
+    _type.add(_rows, key.getType().name());
+    _status.add(_rows, key.getStatus().name());
+
+    _started.add(_rows, value.getStarted());
+    _finished.add(_rows, value.getFinished());
+    _elapsedMinutes.add(_rows, value.getElapsedMinutes());
+    _cpuMinutes.add(_rows, value.getCpuMinutes());
+    _spilledRecords.add(_rows, value.getSpilledRecords());
+    _hdfsBytesRead.add(_rows, value.getHdfsBytesRead());
+    _hdfsBytesWritten.add(_rows, value.getHdfsBytesWritten());
+    _fileBytesWritten.add(_rows, value.getFileBytesWritten());
+    _mapOutputBytes.add(_rows, value.getMapOutputBytes());
+    _reduceShuffleBytes.add(_rows, value.getReduceShuffleBytes());
+    _shuffleMinutes.add(_rows, value.getShuffleMinutes());
+    _sortMinutes.add(_rows, value.getSortMinutes());
+    _reducePhaseMinutes.add(_rows, value.getReducePhaseMinutes());
+
+    DurationSketch durations = value.getDurations();
+    if (durations != null)
+    {
+      _durationsFirst.add(_rows, _durationBuckets.size);
+      for (int i = 0; i < durations.getBuckets().size(); i++)
+      {
+        _durationBuckets.add(_durationBuckets.size, durations.getBuckets().get(i));
+        _durationCounts.add(_durationCounts.size, durations.getCounts().get(i));
+      }
+      _durationsLast.add(_rows, _durationBuckets.size);
+    }
+    else
+    {
+      _durationsFirst.add(_rows, null);
+      _durationsLast.add(_rows, null);
+    }
+
+    _rows++;
+  }
+
+  public int getRowCount()
+  {
+    return _rows;
+  }
+
+  /**
+   * Writes the rows appended so far, sorted, and closes the stream.  Can only be called once.
+   */
+  public void write(OutputStream stream) throws IOException
+  {
+    final int[] clusters = _cluster.sortDictionary();
+    final int[] users = _user.sortDictionary();
+    _unit.sortDictionary();
+    _type.sortDictionary();
+    _status.sortDictionary();
+
+    Integer[] boxed = new Integer[_rows];
+    for (int i = 0; i < _rows; i++)
+    {
+      boxed[i] = i;
+    }
+
+    Arrays.sort(boxed, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b)
+      {
+        int result = compareInts(clusters[a], clusters[b]);
+        if (result == 0)
+        {
+          result = compareInts(users[a], users[b]);
+        }
+        if (result == 0)
+        {
+          result = _time.values[a] < _time.values[b] ? -1 : (_time.values[a] == _time.values[b] ? 0 : 1);
+        }
+        return result;
+      }
+    });
+
+    int[] order = new int[_rows];
+    for (int i = 0; i < _rows; i++)
+    {
+      order[i] = boxed[i];
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1024*1024));
+
+    try
+    {
+      out.write(MAGIC);
+
+      List<ColumnEntry> entries = new ArrayList<ColumnEntry>();
+
+      for (Column column : new Column[] { _cluster, _user, _time, _unit, _excess, _type, _status, _started, _finished,
+                                          _elapsedMinutes, _cpuMinutes, _spilledRecords, _hdfsBytesRead, _hdfsBytesWritten,
+                                          _fileBytesWritten, _mapOutputBytes, _reduceShuffleBytes, _shuffleMinutes,
+                                          _sortMinutes, _reducePhaseMinutes })
+      {
+        entries.add(writeColumn(out, column, order));
+      }
+
+      entries.addAll(writeDurations(out, order));
+
+      long footerOffset = out.size();
+
+      out.writeInt(_rows);
+      writeTimeRange(out);
+
+      out.writeInt(entries.size());
+      for (ColumnEntry entry : entries)
+      {
+        writeString(out, entry.name);
+        out.writeByte(entry.type);
+        out.writeByte(entry.nullable ? 1 : 0);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.length);
+      }
+
+      DictionaryColumn[] dictionaries = { _cluster, _user, _unit, _type, _status };
+      out.writeInt(dictionaries.length);
+      for (DictionaryColumn dictionary : dictionaries)
+      {
+        writeString(out, dictionary.name);
+        out.writeInt(dictionary.strings.size());
+        for (String value : dictionary.strings)
+        {
+          writeString(out, value);
+        }
+      }
+
+      writeRuns(out, order);
+
+      out.writeLong(footerOffset);
+      out.write(MAGIC);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private void writeTimeRange(DataOutputStream out) throws IOException
+  {
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+
+    for (int i = 0; i < _rows; i++)
+    {
+      first = Math.min(first, _time.values[i]);
+      last = Math.max(last, _time.values[i]);
+    }
+
+    out.writeLong(_rows > 0 ? first : 0L);
+    out.writeLong(_rows > 0 ? last : 0L);
+  }
+
+  private void writeRuns(DataOutputStream out, int[] order) throws IOException
+  {
+    List<int[]> runs = new ArrayList<int[]>();
+
+    for (int i = 0; i < _rows; i++)
+    {
+      int row = order[i];
+
+      if (i == 0 || _cluster.values[row] != _cluster.values[order[i-1]] || _user.values[row] != _user.values[order[i-1]])
+      {
+        runs.add(new int[] { _cluster.values[row], _user.values[row], i, 0 });
+      }
+
+      runs.get(runs.size() - 1)[3]++;
+    }
+
+    out.writeInt(runs.size());
+    for (int[] run : runs)
+    {
+      out.writeInt(run[0]);
+      out.writeInt(run[1]);
+      out.writeInt(run[2]);
+      out.writeInt(run[3]);
+      out.writeLong(_time.values[order[run[2]]]);
+      out.writeLong(_time.values[order[run[2] + run[3] - 1]]);
+    }
+  }
+
+  private ColumnEntry writeColumn(DataOutputStream out, Column column, int[] order) throws IOException
+  {
+    pad(out);
+
+    ColumnEntry entry = new ColumnEntry(column.name, column.type, column.present != null, out.size());
+
+    if (column.present != null)
+    {
+      writeBitmap(out, column.present, order);
+    }
+
+    column.write(out, order);
+    entry.length = out.size() - entry.offset;
+
+    return entry;
+  }
+
+  /**
+   * Writes the sketches of the rows in order, so the buckets of each row follow those of the row before.
+   */
+  private List<ColumnEntry> writeDurations(DataOutputStream out, int[] order) throws IOException
+  {
+    List<ColumnEntry> entries = new ArrayList<ColumnEntry>();
+
+    pad(out);
+    ColumnEntry offsets = new ColumnEntry(_durationsFirst.name, INT32, true, out.size());
+    writeBitmap(out, _durationsFirst.present, order);
+
+    int offset = 0;
+    out.writeInt(offset);
+    for (int row : order)
+    {
+      if (_durationsFirst.present.get(row))
+      {
+        offset += _durationsLast.values[row] - _durationsFirst.values[row];
+      }
+      out.writeInt(offset);
+    }
+    offsets.length = out.size() - offsets.offset;
+    entries.add(offsets);
+
+    pad(out);
+    ColumnEntry buckets = new ColumnEntry(_durationBuckets.name, INT32, false, out.size());
+    for (int row : order)
+    {
+      if (_durationsFirst.present.get(row))
+      {
+        for (int i = _durationsFirst.values[row]; i < _durationsLast.values[row]; i++)
+        {
+          out.writeInt(_durationBuckets.values[i]);
+        }
+      }
+    }
+    buckets.length = out.size() - buckets.offset;
+    entries.add(buckets);
+
+    pad(out);
+    ColumnEntry counts = new ColumnEntry(_durationCounts.name, INT64, false, out.size());
+    for (int row : order)
+    {
+      if (_durationsFirst.present.get(row))
+      {
+        for (int i = _durationsFirst.values[row]; i < _durationsLast.values[row]; i++)
+        {
+          out.writeLong(_durationCounts.values[i]);
+        }
+      }
+    }
+    counts.length = out.size() - counts.offset;
+    entries.add(counts);
+
+    return entries;
+  }
+
+  private void writeBitmap(DataOutputStream out, BitSet present, int[] order) throws IOException
+  {
+    byte[] bitmap = new byte[(_rows + 7) / 8];
+
+    for (int i = 0; i < _rows; i++)
+    {
+      if (present.get(order[i]))
+      {
+        bitmap[i / 8] |= 1 << (i % 8);
+      }
+    }
+
+    out.write(bitmap);
+    pad(out);
+  }
+
+  private static void pad(DataOutputStream out) throws IOException
+  {
+    while (out.size() % 8 != 0)
+    {
+      out.writeByte(0);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException
+  {
+    byte[] bytes = Utf8.getBytesFor(value);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static int compareInts(int a, int b)
+  {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  private static class ColumnEntry
+  {
+    final String name;
+    final byte type;
+    final boolean nullable;
+    final long offset;
+    long length;
+
+    ColumnEntry(String name, byte type, boolean nullable, long offset)
+    {
+      this.name = name;
+      this.type = type;
+      this.nullable = nullable;
+      this.offset = offset;
+    }
+  }
+
+  private abstract static class Column
+  {
+    final String name;
+    final byte type;
+    final BitSet present;
+    int size;
+
+    Column(String name, byte type, boolean nullable)
+    {
+      this.name = name;
+      this.type = type;
+      this.present = nullable ? new BitSet() : null;
+    }
+
+    int capacity(int length)
+    {
+      return length == 0 ? 1024 : length * 2;
+    }
+
+    /**
+     * Writes the value of each row in the given order, with nulls written as 0.
+     */
+    abstract void write(DataOutputStream out, int[] order) throws IOException;
+  }
+
+  private static class ByteColumn extends Column
+  {
+    byte[] values = new byte[0];
+
+    ByteColumn(String name)
+    {
+      super(name, INT8, false);
+    }
+
+    void add(int row, byte value)
+    {
+      if (row >= values.length)
+      {
+        values = Arrays.copyOf(values, capacity(values.length));
+      }
+      values[row] = value;
+      size = row + 1;
+    }
+
+    @Override
+    void write(DataOutputStream out, int[] order) throws IOException
+    {
+      for (int row : order)
+      {
+        out.writeByte(values[row]);
+      }
+    }
+  }
+
+  private static class IntColumn extends Column
+  {
+    int[] values = new int[0];
+
+    IntColumn(String name, boolean nullable)
+    {
+      super(name, INT32, nullable);
+    }
+
+    void add(int row, Integer value)
+    {
+      if (row >= values.length)
+      {
+        values = Arrays.copyOf(values, capacity(values.length));
+      }
+      if (value != null)
+      {
+        values[row] = value;
+        if (present != null)
+        {
+          present.set(row);
+        }
+      }
+      size = row + 1;
+    }
+
+    @Override
+    void write(DataOutputStream out, int[] order) throws IOException
+    {
+      for (int row : order)
+      {
+        out.writeInt(values[row]);
+      }
+    }
+  }
+
+  private static class LongColumn extends Column
+  {
+    long[] values = new long[0];
+
+    LongColumn(String name, boolean nullable)
+    {
+      super(name, INT64, nullable);
+    }
+
+    void add(int row, Long value)
+    {
+      if (row >= values.length)
+      {
+        values = Arrays.copyOf(values, capacity(values.length));
+      }
+      if (value != null)
+      {
+        values[row] = value;
+        if (present != null)
+        {
+          present.set(row);
+        }
+      }
+      size = row + 1;
+    }
+
+    @Override
+    void write(DataOutputStream out, int[] order) throws IOException
+    {
+      for (int row : order)
+      {
+        out.writeLong(values[row]);
+      }
+    }
+  }
+
+  private static class DoubleColumn extends Column
+  {
+    double[] values = new double[0];
+
+    DoubleColumn(String name, boolean nullable)
+    {
+      super(name, FLOAT64, nullable);
+    }
+
+    void add(int row, Double value)
+    {
+      if (row >= values.length)
+      {
+        values = Arrays.copyOf(values, capacity(values.length));
+      }
+      if (value != null)
+      {
+        values[row] = value;
+        if (present != null)
+        {
+          present.set(row);
+        }
+      }
+      size = row + 1;
+    }
+
+    @Override
+    void write(DataOutputStream out, int[] order) throws IOException
+    {
+      for (int row : order)
+      {
+        out.writeDouble(values[row]);
+      }
+    }
+  }
+
+  /**
+   * Codes are assigned as strings are first seen, then renumbered once all are known so that they are in order.
+   */
+  private static class DictionaryColumn extends IntColumn
+  {
+    final Map<String,Integer> codes = new HashMap<String,Integer>();
+    final List<String> strings = new ArrayList<String>();
+
+    DictionaryColumn(String name)
+    {
+      super(name, false);
+    }
+
+    void add(int row, CharSequence value)
+    {
+      String string = value.toString();
+      Integer code = codes.get(string);
+
+      if (code == null)
+      {
+        code = strings.size();
+        codes.put(string, code);
+        strings.add(string);
+      }
+
+      add(row, code);
+    }
+
+    /**
+     * Sorts the strings and renumbers the codes of the rows to match, returning the codes.
+     */
+    int[] sortDictionary()
+    {
+      List<String> sorted = new ArrayList<String>(strings);
+      Collections.sort(sorted);
+
+      int[] renumbered = new int[strings.size()];
+      for (int code = 0; code < sorted.size(); code++)
+      {
+        renumbered[codes.get(sorted.get(code))] = code;
+      }
+
+      for (int row = 0; row < size; row++)
+      {
+        values[row] = renumbered[values[row]];
+      }
+
+      strings.clear();
+      strings.addAll(sorted);
+      codes.clear();
+      for (int code = 0; code < sorted.size(); code++)
+      {
+        codes.put(sorted.get(code), code);
+      }
+
+      return values;
+    }
+  }
+}
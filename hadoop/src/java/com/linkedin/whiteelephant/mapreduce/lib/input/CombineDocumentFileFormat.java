@@ -88,7 +88,11 @@ public class CombineDocumentFileFormat extends CombineFileInputFormat<Text, Byte
                 byte[] bytes = new byte[(int) inputSplit.getLength(idx)];
                 int offset = (int) inputSplit.getOffset(idx);
                 int length = (int) inputSplit.getLength(idx);
-                IOUtils.readFully(input, bytes, offset, length);
+                try {
+                    IOUtils.readFully(input, bytes, offset, length);
+                } finally {
+                    input.close();
+                }
                 
                 document = new BytesWritable();
                 document.set(bytes, offset, length);
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.mapreduce.lib.input;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyValueRecordReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads Avro key/value container files, packing many files or blocks of files into each split by size and
+ * locality, so that a directory of small files is read by a few map tasks.  Splits are at most
+ * <code>mapred.max.split.size</code> bytes.
+ *
+ * <p>
+ * The reader schemas are the job's input key and value schemas set with {@link AvroJob}.  Subclasses can instead
+ * fix the schemas, which is needed when inputs with different schemas are combined with MultipleInputs.
+ * </p>
+ */
+public class CombinedAvroKeyValueInputFormat<K,V> extends CombineFileInputFormat<AvroKey<K>, AvroValue<V>>
+{
+  protected Schema getKeySchema(Configuration conf)
+  {
+    return AvroJob.getInputKeySchema(conf);
+  }
+
+  protected Schema getValueSchema(Configuration conf)
+  {
+    return AvroJob.getInputValueSchema(conf);
+  }
+
+  @Override
+  public RecordReader<AvroKey<K>, AvroValue<V>> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException
+  {
+    Configuration conf = context.getConfiguration();
+    return new CombinedRecordReader<K,V>(getKeySchema(conf), getValueSchema(conf));
+  }
+
+  /**
+   * Reads each part of a combined split in turn with an {@link AvroKeyValueRecordReader}.
+   */
+  public static class CombinedRecordReader<K,V> extends RecordReader<AvroKey<K>, AvroValue<V>>
+  {
+    private final Schema keySchema;
+    private final Schema valueSchema;
+
+    private CombineFileSplit split;
+    private TaskAttemptContext context;
+    private int idx;
+    private long bytesRead;
+    private AvroKeyValueRecordReader<K,V> current;
+
+    public CombinedRecordReader(Schema keySchema, Schema valueSchema)
+    {
+      this.keySchema = keySchema;
+      this.valueSchema = valueSchema;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+    {
+      this.split = (CombineFileSplit)split;
+      this.context = context;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException
+    {
+      while (true)
+      {
+        if (current == null)
+        {
+          if (idx >= split.getNumPaths())
+          {
+            return false;
+          }
+
+          current = new AvroKeyValueRecordReader<K,V>(keySchema, valueSchema);
+          current.initialize(new FileSplit(split.getPath(idx), split.getOffset(idx), split.getLength(idx), split.getLocations()), context);
+        }
+
+        if (current.nextKeyValue())
+        {
+          return true;
+        }
+
+        current.close();
+        current = null;
+        bytesRead += split.getLength(idx);
+        idx++;
+      }
+    }
+
+    @Override
+    public AvroKey<K> getCurrentKey() throws IOException, InterruptedException
+    {
+      return current.getCurrentKey();
+    }
+
+    @Override
+    public AvroValue<V> getCurrentValue() throws IOException, InterruptedException
+    {
+      return current.getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException
+    {
+      if (split.getLength() == 0)
+      {
+        return 1.0f;
+      }
+
+      long bytes = bytesRead;
+      if (current != null)
+      {
+        bytes += (long)(current.getProgress() * split.getLength(idx));
+      }
+
+      return Math.min(1.0f, bytes / (float)split.getLength());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (current != null)
+      {
+        current.close();
+        current = null;
+      }
+    }
+  }
+}
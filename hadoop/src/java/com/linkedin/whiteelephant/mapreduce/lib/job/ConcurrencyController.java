@@ -0,0 +1,398 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.mapreduce.lib.job;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobStatus;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Adjusts how many jobs a {@link StagedOutputJobExecutor} runs at once to the load on the cluster.
+ *
+ * <p>
+ * Every <code>job.concurrency.adaptive.interval.seconds</code> the free map and reduce slots and the number of jobs
+ * waiting to be launched are sampled from a {@link StatusProvider}, by default the JobTracker through
+ * {@link JobClient#getClusterStatus()}.  When less than <code>job.concurrency.adaptive.low.free</code> of the map or
+ * reduce slots are free, or more than <code>job.concurrency.adaptive.max.waiting</code> jobs are waiting, the number of
+ * jobs in flight is halved so production jobs get the slots back quickly.  When more than
+ * <code>job.concurrency.adaptive.high.free</code> of both are free and few jobs are waiting, it is raised by
+ * <code>job.concurrency.adaptive.step</code>.  Otherwise it is left alone.  It always stays between
+ * <code>job.concurrency.min</code> and <code>job.concurrency.max</code>, starting from <code>job.concurrency</code>.
+ * Jobs already running are never stopped; a lower limit takes effect as they finish.
+ * </p>
+ *
+ * <p>
+ * Another provider can be configured with <code>job.concurrency.adaptive.provider</code>.  When none is configured and
+ * jobs run in-process, where the JobTracker reports a single slot, the {@link FixedStatusProvider} is used instead.
+ * If sampling fails the limit is left unchanged.
+ * </p>
+ */
+public class ConcurrencyController
+{
+  private final Logger _log;
+  private final StatusProvider _provider;
+  private final int _minConcurrency;
+  private final int _maxConcurrency;
+  private final long _intervalMillis;
+  private final double _lowFree;
+  private final double _highFree;
+  private final int _maxWaiting;
+  private final int _step;
+
+  // guarded by this
+  private int _concurrency;
+  private StagedOutputJobExecutor _executor;
+  private ScheduledExecutorService _scheduler;
+
+  public ConcurrencyController(String name, Properties props, int jobConcurrency)
+  {
+    this(name, props, jobConcurrency, createProvider(props));
+  }
+
+  /**
+   * @param jobConcurrency Number of jobs to run at once until the first sample
+   * @param provider Source of the cluster's load
+   */
+  public ConcurrencyController(String name, Properties props, int jobConcurrency, StatusProvider provider)
+  {
+    _log = Logger.getLogger(name);
+    _provider = provider;
+    _minConcurrency = Integer.parseInt(props.getProperty("job.concurrency.min", "1"));
+    _maxConcurrency = Integer.parseInt(props.getProperty("job.concurrency.max", Integer.toString(jobConcurrency)));
+    _intervalMillis = (long)(Double.parseDouble(props.getProperty("job.concurrency.adaptive.interval.seconds", "60")) * 1000);
+    _lowFree = Double.parseDouble(props.getProperty("job.concurrency.adaptive.low.free", "0.1"));
+    _highFree = Double.parseDouble(props.getProperty("job.concurrency.adaptive.high.free", "0.3"));
+    _maxWaiting = Integer.parseInt(props.getProperty("job.concurrency.adaptive.max.waiting", "10"));
+    _step = Integer.parseInt(props.getProperty("job.concurrency.adaptive.step", "2"));
+
+    if (_minConcurrency < 1 || _maxConcurrency < _minConcurrency)
+    {
+      throw new IllegalArgumentException(String.format("Invalid job concurrency bounds [%d,%d]", _minConcurrency, _maxConcurrency));
+    }
+
+    _concurrency = clamp(jobConcurrency);
+  }
+
+  /**
+   * @return The most jobs that will ever be allowed to run at once
+   */
+  public int getMaxConcurrency()
+  {
+    return _maxConcurrency;
+  }
+
+  /**
+   * @return The number of jobs currently allowed to run at once
+   */
+  public synchronized int getConcurrency()
+  {
+    return _concurrency;
+  }
+
+  /**
+   * Applies the limit to an executor, replacing any previously attached.  The executor must have been created with
+   * at least {@link #getMaxConcurrency()} threads.
+   */
+  public synchronized void attach(StagedOutputJobExecutor executor)
+  {
+    _executor = executor;
+    _executor.setConcurrencyLimit(_concurrency);
+  }
+
+  /**
+   * Starts sampling the cluster periodically in the background.
+   */
+  public synchronized void start()
+  {
+    if (_scheduler != null)
+    {
+      return;
+    }
+
+    _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "concurrency-controller");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    _scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run()
+      {
+        adjust();
+      }
+    }, _intervalMillis, _intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop()
+  {
+    if (_scheduler != null)
+    {
+      _scheduler.shutdownNow();
+      _scheduler = null;
+    }
+  }
+
+  /**
+   * Samples the cluster once and adjusts the limit.
+   *
+   * @return The new limit
+   */
+  public int adjust()
+  {
+    ClusterLoad load;
+
+    try
+    {
+      load = _provider.getClusterLoad();
+    }
+    catch (Exception e)
+    {
+      _log.warn("Failed to sample cluster load, leaving job concurrency unchanged", e);
+      return getConcurrency();
+    }
+
+    synchronized (this)
+    {
+      double mapFree = load.getMapFree();
+      double reduceFree = load.getReduceFree();
+
+      int concurrency = _concurrency;
+
+      if (mapFree < _lowFree || reduceFree < _lowFree || load.waitingJobs > _maxWaiting)
+      {
+        concurrency = clamp(concurrency / 2);
+      }
+      else if (mapFree > _highFree && reduceFree > _highFree && load.waitingJobs <= _maxWaiting / 2)
+      {
+        concurrency = clamp(concurrency + _step);
+      }
+
+      if (concurrency != _concurrency)
+      {
+        System.out.println(String.format("%s job concurrency from %d to %d: %.0f%% of map slots and %.0f%% of reduce slots free, %d jobs waiting",
+                                         concurrency > _concurrency ? "Raising" : "Lowering", _concurrency, concurrency,
+                                         100 * mapFree, 100 * reduceFree, load.waitingJobs));
+
+        _concurrency = concurrency;
+
+        if (_executor != null)
+        {
+          _executor.setConcurrencyLimit(concurrency);
+        }
+      }
+
+      return _concurrency;
+    }
+  }
+
+  private int clamp(int concurrency)
+  {
+    return Math.max(_minConcurrency, Math.min(_maxConcurrency, concurrency));
+  }
+
+  private static StatusProvider createProvider(Properties props)
+  {
+    Configuration conf = StagedOutputJob.createConfigurationFromProps(props);
+
+    // providers are configured beside the controller
+    for (String key : props.stringPropertyNames())
+    {
+      if (key.startsWith(FixedStatusProvider.PREFIX))
+      {
+        conf.set(key, props.getProperty(key));
+      }
+    }
+
+    String providerName = props.getProperty("job.concurrency.adaptive.provider");
+
+    if (providerName == null)
+    {
+      if (LocalJobEngine.isEnabled(conf) || "local".equals(new JobConf(conf).get("mapred.job.tracker")))
+      {
+        return ReflectionUtils.newInstance(FixedStatusProvider.class, conf);
+      }
+
+      return ReflectionUtils.newInstance(JobClientStatusProvider.class, conf);
+    }
+
+    try
+    {
+      return ReflectionUtils.newInstance(conf.getClassByName(providerName).asSubclass(StatusProvider.class), conf);
+    }
+    catch (ClassNotFoundException e)
+    {
+      throw new IllegalArgumentException("Status provider not found: " + providerName, e);
+    }
+  }
+
+  /**
+   * Source of the load on the cluster.  Implementations are created with {@link ReflectionUtils#newInstance}, so
+   * they need a no-argument constructor and receive the Hadoop configuration if they are Configurable.
+   */
+  public interface StatusProvider
+  {
+    ClusterLoad getClusterLoad() throws IOException;
+  }
+
+  public static class ClusterLoad
+  {
+    public final int mapSlots;
+    public final int occupiedMapSlots;
+    public final int reduceSlots;
+    public final int occupiedReduceSlots;
+    public final int waitingJobs;
+
+    public ClusterLoad(int mapSlots, int occupiedMapSlots, int reduceSlots, int occupiedReduceSlots, int waitingJobs)
+    {
+      this.mapSlots = mapSlots;
+      this.occupiedMapSlots = occupiedMapSlots;
+      this.reduceSlots = reduceSlots;
+      this.occupiedReduceSlots = occupiedReduceSlots;
+      this.waitingJobs = waitingJobs;
+    }
+
+    public double getMapFree()
+    {
+      return mapSlots > 0 ? Math.max(0, mapSlots - occupiedMapSlots) / (double)mapSlots : 0.0;
+    }
+
+    public double getReduceFree()
+    {
+      return reduceSlots > 0 ? Math.max(0, reduceSlots - occupiedReduceSlots) / (double)reduceSlots : 0.0;
+    }
+  }
+
+  /**
+   * Samples the JobTracker the pipeline submits jobs to.  Jobs still being prepared count as waiting.
+   */
+  public static class JobClientStatusProvider extends Configured implements StatusProvider
+  {
+    @Override
+    public ClusterLoad getClusterLoad() throws IOException
+    {
+      JobClient client = new JobClient(new JobConf(getConf()));
+
+      try
+      {
+        ClusterStatus status = client.getClusterStatus();
+
+        int waitingJobs = 0;
+        JobStatus[] incomplete = client.jobsToComplete();
+
+        if (incomplete != null)
+        {
+          for (JobStatus job : incomplete)
+          {
+            if (job.getRunState() == JobStatus.PREP)
+            {
+              waitingJobs++;
+            }
+          }
+        }
+
+        return new ClusterLoad(status.getMaxMapTasks(), status.getMapTasks(),
+                               status.getMaxReduceTasks(), status.getReduceTasks(),
+                               waitingJobs);
+      }
+      finally
+      {
+        client.close();
+      }
+    }
+  }
+
+  /**
+   * Reports a fixed load, for running in-process or trying settings without a busy cluster.  The fraction of map
+   * and reduce slots free and the number of jobs waiting are read from
+   * <code>job.concurrency.adaptive.fixed.map.free</code>, <code>job.concurrency.adaptive.fixed.reduce.free</code> and
+   * <code>job.concurrency.adaptive.fixed.waiting</code>, by default an idle cluster.  If
+   * <code>job.concurrency.adaptive.fixed.path</code> names a properties file, it is read again on every sample and the
+   * same settings in it take precedence, so the load can be changed while the pipeline runs.
+   */
+  public static class FixedStatusProvider extends Configured implements StatusProvider
+  {
+    public static final String PREFIX = "job.concurrency.adaptive.fixed.";
+
+    private static final int SLOTS = 1000;
+
+    @Override
+    public ClusterLoad getClusterLoad() throws IOException
+    {
+      Properties load = new Properties();
+      String path = getConf().get(PREFIX + "path");
+
+      if (path != null)
+      {
+        Path loadPath = new Path(path);
+        InputStream in = loadPath.getFileSystem(getConf()).open(loadPath);
+
+        try
+        {
+          load.load(in);
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+
+      double mapFree = getDouble(load, "map.free", 1.0);
+      double reduceFree = getDouble(load, "reduce.free", 1.0);
+      int waitingJobs = Integer.parseInt(get(load, "waiting", "0"));
+
+      return new ClusterLoad(SLOTS, (int)Math.round(SLOTS * (1 - mapFree)),
+                             SLOTS, (int)Math.round(SLOTS * (1 - reduceFree)),
+                             waitingJobs);
+    }
+
+    private String get(Properties load, String name, String defaultValue)
+    {
+      return load.getProperty(PREFIX + name, getConf().get(PREFIX + name, defaultValue));
+    }
+
+    private double getDouble(Properties load, String name, double defaultValue)
+    {
+      double value = Double.parseDouble(get(load, name, Double.toString(defaultValue)));
+
+      if (value < 0 || value > 1)
+      {
+        throw new IllegalArgumentException(String.format("%s%s must be between 0 and 1, got %s", PREFIX, name, value));
+      }
+
+      return value;
+    }
+  }
+}
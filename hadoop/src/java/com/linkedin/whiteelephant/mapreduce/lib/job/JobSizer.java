@@ -0,0 +1,367 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.mapreduce.lib.job;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+
+/**
+ * Chooses the number of reducers and the split size for the jobs of a stage based on statistics
+ * recorded from earlier jobs of the same stage and cluster.
+ *
+ * <p>
+ * The input bytes, slot time and task counts, shuffle bytes and output records of each successful job are
+ * summed over the run, and each run is folded into exponentially decayed totals when the statistics are saved,
+ * so recent runs count the most however many jobs each had.  From these the sizer
+ * estimates how many slot milliseconds a byte of input costs in the map and reduce phases and sizes new
+ * jobs so that tasks take roughly <code>sizing.target.task.minutes</code>.  Until a stage has history
+ * for a cluster the caller's default reducer count and the configured split size are used.
+ * </p>
+ *
+ * <p>
+ * Statistics are persisted under <code>sizing.stats.path</code> when it is set.
+ * </p>
+ */
+public class JobSizer
+{
+  /**
+   * Configuration keys set on each sized job to the stage and the size of its input, for metrics.
+   */
+  public static final String STAGE = "staged.job.stage";
+  public static final String INPUT_BYTES = "staged.job.input.bytes";
+
+  private static final double DECAY = 0.8;
+
+  private static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapred.Task$Counter";
+  private static final String JOB_COUNTER_GROUP = "org.apache.hadoop.mapred.JobInProgress$Counter";
+
+  private final FileSystem _fs;
+  private final String _stage;
+  private final Path _statsPath;
+  private final long _targetTaskMillis;
+  private final long _minSplitSize;
+  private final long _maxSplitSize;
+  private final int _maxReducers;
+
+  // decayed totals of previous runs, and the sums for the jobs of this run
+  private final Map<String,StageStats> _stats = new HashMap<String,StageStats>();
+  private final Map<String,StageStats> _runStats = new HashMap<String,StageStats>();
+  private boolean _dirty;
+
+  public JobSizer(FileSystem fs, Properties props, String stage) throws IOException
+  {
+    _fs = fs;
+    _stage = stage;
+
+    _targetTaskMillis = (long)(Double.parseDouble(props.getProperty("sizing.target.task.minutes", "10")) * 60 * 1000);
+    _minSplitSize = Long.parseLong(props.getProperty("sizing.min.split.size", Long.toString(16L*1024*1024)));
+    _maxSplitSize = Long.parseLong(props.getProperty("sizing.max.split.size", Long.toString(4L*1024*1024*1024)));
+    _maxReducers = Integer.parseInt(props.getProperty("sizing.max.reducers", "1000"));
+
+    if (props.get("sizing.stats.path") != null)
+    {
+      _statsPath = new Path(String.format("%s/%s.properties", props.get("sizing.stats.path"), stage));
+      load();
+    }
+    else
+    {
+      _statsPath = null;
+    }
+  }
+
+  /**
+   * Sets the number of reducers and the maximum split size for a job and records its statistics once it succeeds.
+   *
+   * @param job The job to size
+   * @param cluster Cluster the input data belongs to
+   * @param inputBytes Total size of the input
+   * @param defaultReducers Reducers to use when there is no history, or 0 for a map-only job
+   */
+  public void size(StagedOutputJob job, final String cluster, final long inputBytes, int defaultReducers)
+  {
+    StageStats stats = getStats(cluster);
+
+    int numReducers = defaultReducers;
+    Long splitSize = null;
+
+    StringBuilder msg = new StringBuilder(String.format("Sizing %s for %d MB of input: ", job.getJobName(), inputBytes/1024/1024));
+
+    if (stats != null && stats.inputBytes > 0 && stats.mapSlotMillis > 0)
+    {
+      double mapMillisPerByte = stats.mapSlotMillis / stats.inputBytes;
+      double reduceMillisPerByte = stats.reduceSlotMillis / stats.inputBytes;
+
+      msg.append(String.format("history of %.1f jobs, %.3f map ms/MB, %.3f reduce ms/MB, avg map task %.1f min, avg reduce task %.1f min, %.0f shuffle bytes/MB, %.0f output records/MB, ",
+                               stats.runs,
+                               mapMillisPerByte*1024*1024,
+                               reduceMillisPerByte*1024*1024,
+                               stats.mapTasks > 0 ? stats.mapSlotMillis/stats.mapTasks/60000 : 0.0,
+                               stats.reduceTasks > 0 ? stats.reduceSlotMillis/stats.reduceTasks/60000 : 0.0,
+                               stats.shuffleBytes/stats.inputBytes*1024*1024,
+                               stats.outputRecords/stats.inputBytes*1024*1024));
+
+      splitSize = Math.max(_minSplitSize, Math.min(_maxSplitSize, (long)(_targetTaskMillis / mapMillisPerByte)));
+
+      if (defaultReducers > 0 && stats.reduceSlotMillis > 0)
+      {
+        numReducers = (int)Math.ceil(inputBytes * reduceMillisPerByte / _targetTaskMillis);
+        numReducers = Math.max(1, Math.min(_maxReducers, numReducers));
+      }
+    }
+    else
+    {
+      msg.append("no history, ");
+    }
+
+    msg.append(String.format("target task %.1f min => %d reducers", _targetTaskMillis/60000.0, numReducers));
+
+    job.setNumReduceTasks(numReducers);
+
+    job.getConfiguration().set(STAGE, _stage);
+    job.getConfiguration().setLong(INPUT_BYTES, inputBytes);
+
+    if (splitSize != null)
+    {
+      msg.append(String.format(", %d MB splits", splitSize/1024/1024));
+      job.getConfiguration().setLong("mapred.max.split.size", splitSize);
+      job.getConfiguration().setLong("mapreduce.input.fileinputformat.split.maxsize", splitSize);
+    }
+
+    System.out.println(msg);
+
+    job.addCompletionListener(new StagedOutputJob.CompletionListener() {
+      @Override
+      public void jobCompleted(StagedOutputJob job, boolean success) throws Exception
+      {
+        if (success)
+        {
+          record(cluster, inputBytes, job.getCounters());
+        }
+      }
+    });
+  }
+
+  /**
+   * Ends the run, folding the jobs recorded during it into the history, and persists the statistics if any jobs
+   * have been recorded since they were last loaded or saved.
+   */
+  public synchronized void save() throws IOException
+  {
+    for (Map.Entry<String,StageStats> entry : _runStats.entrySet())
+    {
+      StageStats stats = _stats.get(entry.getKey());
+
+      if (stats == null)
+      {
+        stats = new StageStats();
+        _stats.put(entry.getKey(), stats);
+      }
+
+      stats.decayAndAdd(entry.getValue());
+    }
+
+    _runStats.clear();
+
+    if (_statsPath == null || !_dirty)
+    {
+      return;
+    }
+
+    Properties props = new Properties();
+
+    for (Map.Entry<String,StageStats> entry : _stats.entrySet())
+    {
+      entry.getValue().store(props, entry.getKey());
+    }
+
+    Path tempPath = _statsPath.suffix(".tmp");
+
+    OutputStream stream = _fs.create(tempPath, true);
+    try
+    {
+      props.store(stream, "job sizing statistics for " + _stage);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    _fs.delete(_statsPath, false);
+
+    if (!_fs.rename(tempPath, _statsPath))
+    {
+      throw new IOException("Failed to save sizing statistics to " + _statsPath);
+    }
+
+    _dirty = false;
+  }
+
+  private synchronized StageStats getStats(String cluster)
+  {
+    StageStats stats = _stats.get(cluster);
+    StageStats run = _runStats.get(cluster);
+
+    if (run == null)
+    {
+      return stats == null ? null : stats.copy();
+    }
+
+    // as the history will be once this run is saved
+    StageStats copy = stats == null ? new StageStats() : stats.copy();
+    copy.decayAndAdd(run);
+    return copy;
+  }
+
+  private synchronized void record(String cluster, long inputBytes, Counters counters)
+  {
+    StageStats sample = new StageStats();
+    sample.runs = 1;
+    sample.inputBytes = inputBytes;
+    sample.mapSlotMillis = counters.findCounter(JOB_COUNTER_GROUP, "SLOTS_MILLIS_MAPS").getValue();
+    sample.reduceSlotMillis = counters.findCounter(JOB_COUNTER_GROUP, "SLOTS_MILLIS_REDUCES").getValue();
+    sample.mapTasks = counters.findCounter(JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_MAPS").getValue();
+    sample.reduceTasks = counters.findCounter(JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_REDUCES").getValue();
+    sample.shuffleBytes = counters.findCounter(TASK_COUNTER_GROUP, "REDUCE_SHUFFLE_BYTES").getValue();
+    sample.outputRecords = counters.findCounter(TASK_COUNTER_GROUP, sample.reduceTasks > 0 ? "REDUCE_OUTPUT_RECORDS" : "MAP_OUTPUT_RECORDS").getValue();
+
+    // the local job runner does not report slot time, so there is nothing to learn from
+    if (inputBytes <= 0 || sample.mapSlotMillis <= 0)
+    {
+      return;
+    }
+
+    StageStats run = _runStats.get(cluster);
+
+    if (run == null)
+    {
+      run = new StageStats();
+      _runStats.put(cluster, run);
+    }
+
+    run.add(sample);
+    _dirty = true;
+  }
+
+  private synchronized void load() throws IOException
+  {
+    if (!_fs.exists(_statsPath))
+    {
+      System.out.println("No sizing statistics found at " + _statsPath);
+      return;
+    }
+
+    Properties props = new Properties();
+
+    InputStream stream = _fs.open(_statsPath);
+    try
+    {
+      props.load(stream);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    for (String key : props.stringPropertyNames())
+    {
+      if (key.endsWith(".runs"))
+      {
+        String cluster = key.substring(0, key.length() - ".runs".length());
+        _stats.put(cluster, StageStats.load(props, cluster));
+      }
+    }
+
+    System.out.println("Loaded sizing statistics for " + _stats.size() + " clusters from " + _statsPath);
+  }
+
+  private static class StageStats
+  {
+    double runs;
+    double inputBytes;
+    double mapSlotMillis;
+    double reduceSlotMillis;
+    double mapTasks;
+    double reduceTasks;
+    double shuffleBytes;
+    double outputRecords;
+
+    void decayAndAdd(StageStats sample)
+    {
+      runs = runs*DECAY + sample.runs;
+      inputBytes = inputBytes*DECAY + sample.inputBytes;
+      mapSlotMillis = mapSlotMillis*DECAY + sample.mapSlotMillis;
+      reduceSlotMillis = reduceSlotMillis*DECAY + sample.reduceSlotMillis;
+      mapTasks = mapTasks*DECAY + sample.mapTasks;
+      reduceTasks = reduceTasks*DECAY + sample.reduceTasks;
+      shuffleBytes = shuffleBytes*DECAY + sample.shuffleBytes;
+      outputRecords = outputRecords*DECAY + sample.outputRecords;
+    }
+
+    void add(StageStats sample)
+    {
+      runs += sample.runs;
+      inputBytes += sample.inputBytes;
+      mapSlotMillis += sample.mapSlotMillis;
+      reduceSlotMillis += sample.reduceSlotMillis;
+      mapTasks += sample.mapTasks;
+      reduceTasks += sample.reduceTasks;
+      shuffleBytes += sample.shuffleBytes;
+      outputRecords += sample.outputRecords;
+    }
+
+    StageStats copy()
+    {
+      StageStats copy = new StageStats();
+      copy.decayAndAdd(this);
+      return copy;
+    }
+
+    void store(Properties props, String prefix)
+    {
+      props.setProperty(prefix + ".runs", Double.toString(runs));
+      props.setProperty(prefix + ".inputBytes", Double.toString(inputBytes));
+      props.setProperty(prefix + ".mapSlotMillis", Double.toString(mapSlotMillis));
+      props.setProperty(prefix + ".reduceSlotMillis", Double.toString(reduceSlotMillis));
+      props.setProperty(prefix + ".mapTasks", Double.toString(mapTasks));
+      props.setProperty(prefix + ".reduceTasks", Double.toString(reduceTasks));
+      props.setProperty(prefix + ".shuffleBytes", Double.toString(shuffleBytes));
+      props.setProperty(prefix + ".outputRecords", Double.toString(outputRecords));
+    }
+
+    static StageStats load(Properties props, String prefix)
+    {
+      StageStats stats = new StageStats();
+      stats.runs = Double.parseDouble(props.getProperty(prefix + ".runs", "0"));
+      stats.inputBytes = Double.parseDouble(props.getProperty(prefix + ".inputBytes", "0"));
+      stats.mapSlotMillis = Double.parseDouble(props.getProperty(prefix + ".mapSlotMillis", "0"));
+      stats.reduceSlotMillis = Double.parseDouble(props.getProperty(prefix + ".reduceSlotMillis", "0"));
+      stats.mapTasks = Double.parseDouble(props.getProperty(prefix + ".mapTasks", "0"));
+      stats.reduceTasks = Double.parseDouble(props.getProperty(prefix + ".reduceTasks", "0"));
+      stats.shuffleBytes = Double.parseDouble(props.getProperty(prefix + ".shuffleBytes", "0"));
+      stats.outputRecords = Double.parseDouble(props.getProperty(prefix + ".outputRecords", "0"));
+      return stats;
+    }
+  }
+}
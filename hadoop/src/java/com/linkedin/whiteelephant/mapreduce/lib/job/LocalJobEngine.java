@@ -0,0 +1,1064 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.mapreduce.lib.job;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a MapReduce job within this process, using all cores of the machine.
+ *
+ * <p>
+ * The job's own input format, mapper, partitioner, comparators, combiner, reducer and output format are used, so a
+ * job produces the same output as it would on a cluster.  Map tasks and then reduce tasks run in parallel on a thread
+ * pool shared by all jobs in the process.  Map output is serialized, sorted in memory and merged by each reducer.
+ * Once the sorted map output held in memory exceeds <code>local.engine.sort.mb</code> further output is spilled to
+ * files under <code>local.engine.spill.dir</code>.
+ * </p>
+ *
+ * <p>
+ * Combined with a local file system (<code>hadoop-conf.fs.default.name=file:///</code>) this processes logs on a
+ * single machine without a Hadoop cluster.  Set <code>local.engine=true</code> to use it.
+ * </p>
+ */
+public class LocalJobEngine
+{
+  public static final String ENABLED = "local.engine";
+  public static final String THREADS = "local.engine.threads";
+  public static final String SORT_MB = "local.engine.sort.mb";
+  public static final String SPILL_DIR = "local.engine.spill.dir";
+
+  private static final String JOB_COUNTER_GROUP = "org.apache.hadoop.mapred.JobInProgress$Counter";
+  private static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapred.Task$Counter";
+
+  private static final Logger log = Logger.getLogger(LocalJobEngine.class);
+
+  private static final AtomicInteger jobIds = new AtomicInteger();
+  private static ExecutorService pool;
+
+  private final Job _job;
+  private final JobConf _conf;
+  private final JobID _jobId;
+  private final int _numReducers;
+  private final Counters _counters = new Counters();
+  private final List<Long> _mapTaskMillis = new ArrayList<Long>();
+  private final List<Long> _reduceTaskMillis = new ArrayList<Long>();
+
+  private final long _spillBytes;
+  private final long _sortBytes;
+  private final AtomicLong _memoryBytes = new AtomicLong();
+  private final File _spillDir;
+  private final AtomicInteger _spillIds = new AtomicInteger();
+
+  public static boolean isEnabled(Configuration conf)
+  {
+    return conf.getBoolean(ENABLED, false);
+  }
+
+  public LocalJobEngine(Job job)
+  {
+    _job = job;
+    _conf = (JobConf)job.getConfiguration();
+    _jobId = new JobID("local", jobIds.incrementAndGet());
+    _numReducers = job.getNumReduceTasks();
+
+    int threads = getThreads(_conf);
+
+    _sortBytes = _conf.getLong(SORT_MB, 256) * 1024 * 1024;
+    _spillBytes = Math.max(1024 * 1024, _sortBytes / threads);
+    _spillDir = new File(_conf.get(SPILL_DIR, System.getProperty("java.io.tmpdir")), "white-elephant-" + System.currentTimeMillis() + "-" + _jobId);
+  }
+
+  private static int getThreads(Configuration conf)
+  {
+    int threads = conf.getInt(THREADS, 0);
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  private static synchronized ExecutorService getPool(Configuration conf)
+  {
+    if (pool == null)
+    {
+      pool = Executors.newFixedThreadPool(getThreads(conf), new ThreadFactory() {
+        private final AtomicInteger threadIds = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "local-engine-" + threadIds.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    return pool;
+  }
+
+  /**
+   * @return Counters of the job, once it has run
+   */
+  public Counters getCounters()
+  {
+    return _counters;
+  }
+
+  /**
+   * @return How long each map or reduce task ran, once the job has run
+   */
+  public List<Long> getTaskMillis(boolean isMap)
+  {
+    synchronized (_counters)
+    {
+      return new ArrayList<Long>(isMap ? _mapTaskMillis : _reduceTaskMillis);
+    }
+  }
+
+  /**
+   * Runs the job and commits its output.
+   *
+   * @return true if the job succeeded
+   */
+  public boolean run() throws IOException, InterruptedException, ClassNotFoundException
+  {
+    JobContext jobContext = new JobContext(_conf, _jobId);
+
+    OutputFormat<?,?> outputFormat = ReflectionUtils.newInstance(_job.getOutputFormatClass(), _conf);
+    outputFormat.checkOutputSpecs(jobContext);
+
+    OutputCommitter committer = outputFormat.getOutputCommitter(new TaskAttemptContext(_conf, new TaskAttemptID(new TaskID(_jobId, true, 0), 0)));
+    committer.setupJob(jobContext);
+
+    InputFormat<?,?> inputFormat = ReflectionUtils.newInstance(_job.getInputFormatClass(), _conf);
+    List<InputSplit> splits = inputFormat.getSplits(jobContext);
+
+    log.info(String.format("Running %s locally with %d map tasks and %d reduce tasks", _job.getJobName(), splits.size(), _numReducers));
+
+    try
+    {
+      List<Callable<List<Run>>> mapTasks = new ArrayList<Callable<List<Run>>>();
+      for (int i=0; i<splits.size(); i++)
+      {
+        mapTasks.add(new MapTask(i, splits.get(i)));
+      }
+
+      List<Run> runs = new ArrayList<Run>();
+      for (List<Run> taskRuns : invokeAll(mapTasks))
+      {
+        runs.addAll(taskRuns);
+      }
+
+      _counters.findCounter(JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_MAPS").increment(splits.size());
+
+      if (_numReducers > 0)
+      {
+        List<Callable<Void>> reduceTasks = new ArrayList<Callable<Void>>();
+        for (int i=0; i<_numReducers; i++)
+        {
+          reduceTasks.add(new ReduceTask(i, runs));
+        }
+
+        invokeAll(reduceTasks);
+
+        _counters.findCounter(JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_REDUCES").increment(_numReducers);
+      }
+
+      committer.commitJob(jobContext);
+
+      return true;
+    }
+    catch (ExecutionException e)
+    {
+      log.error(String.format("Job %s failed", _job.getJobName()), e.getCause());
+      committer.abortJob(jobContext, JobStatus.State.FAILED);
+      return false;
+    }
+    catch (InterruptedException e)
+    {
+      committer.abortJob(jobContext, JobStatus.State.KILLED);
+      throw e;
+    }
+    finally
+    {
+      FileUtil.fullyDelete(_spillDir);
+    }
+  }
+
+  private <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException
+  {
+    ExecutorService pool = getPool(_conf);
+
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (Callable<T> task : tasks)
+    {
+      futures.add(pool.submit(task));
+    }
+
+    try
+    {
+      List<T> results = new ArrayList<T>();
+      for (Future<T> future : futures)
+      {
+        results.add(future.get());
+      }
+      return results;
+    }
+    finally
+    {
+      // stops the remaining tasks when one fails or the job is cancelled
+      for (Future<T> future : futures)
+      {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private abstract class Task
+  {
+    final TaskAttemptID attemptId;
+    final JobConf conf;
+    final TaskAttemptContext context;
+    final Counters counters = new Counters();
+    final StatusReporter reporter;
+
+    Task(boolean isMap, int partition)
+    {
+      attemptId = new TaskAttemptID(new TaskID(_jobId, isMap, partition), 0);
+
+      // tasks may change their configuration, so each gets its own
+      conf = new JobConf(_conf);
+      conf.set("mapred.job.id", _jobId.toString());
+      conf.set("mapred.tip.id", attemptId.getTaskID().toString());
+      conf.set("mapred.task.id", attemptId.toString());
+      conf.setBoolean("mapred.task.is.map", isMap);
+      conf.setInt("mapred.task.partition", partition);
+
+      context = new TaskAttemptContext(conf, attemptId);
+
+      reporter = new StatusReporter() {
+        @Override
+        public Counter getCounter(Enum<?> name)
+        {
+          return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name)
+        {
+          return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress()
+        {
+        }
+
+        @Override
+        public void setStatus(String status)
+        {
+        }
+      };
+    }
+
+    Counter getTaskCounter(String name)
+    {
+      return counters.findCounter(TASK_COUNTER_GROUP, name);
+    }
+
+    void finish(String slotMillisCounter, long startMillis)
+    {
+      long taskMillis = System.currentTimeMillis() - startMillis;
+
+      counters.findCounter(JOB_COUNTER_GROUP, slotMillisCounter).increment(taskMillis);
+
+      synchronized (_counters)
+      {
+        _counters.incrAllCounters(counters);
+        (attemptId.isMap() ? _mapTaskMillis : _reduceTaskMillis).add(taskMillis);
+      }
+    }
+  }
+
+  private class MapTask extends Task implements Callable<List<Run>>
+  {
+    private final InputSplit split;
+
+    MapTask(int partition, InputSplit split)
+    {
+      super(true, partition);
+      this.split = split;
+    }
+
+    @Override
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public List<Run> call() throws Exception
+    {
+      long startMillis = System.currentTimeMillis();
+
+      InputFormat inputFormat = ReflectionUtils.newInstance(_job.getInputFormatClass(), conf);
+      OutputFormat outputFormat = ReflectionUtils.newInstance(_job.getOutputFormatClass(), conf);
+      OutputCommitter committer = outputFormat.getOutputCommitter(context);
+      Mapper mapper = ReflectionUtils.newInstance(_job.getMapperClass(), conf);
+
+      RecordReader reader = new CountingRecordReader(inputFormat.createRecordReader(split, context), getTaskCounter("MAP_INPUT_RECORDS"));
+
+      RecordWriter writer;
+      MapOutputCollector collector = null;
+
+      committer.setupTask(context);
+
+      if (_numReducers == 0)
+      {
+        writer = new CountingRecordWriter(outputFormat.getRecordWriter(context), getTaskCounter("MAP_OUTPUT_RECORDS"));
+      }
+      else
+      {
+        collector = new MapOutputCollector(this);
+        writer = collector;
+      }
+
+      try
+      {
+        reader.initialize(split, context);
+
+        Mapper.Context mapperContext = mapper.new Context(conf, attemptId, reader, writer, committer, reporter, split);
+        mapper.run(mapperContext);
+
+        reader.close();
+        writer.close(context);
+
+        if (committer.needsTaskCommit(context))
+        {
+          committer.commitTask(context);
+        }
+      }
+      catch (Exception e)
+      {
+        committer.abortTask(context);
+        throw e;
+      }
+
+      finish("SLOTS_MILLIS_MAPS", startMillis);
+
+      return collector == null ? new ArrayList<Run>() : collector.runs;
+    }
+  }
+
+  private class ReduceTask extends Task implements Callable<Void>
+  {
+    private final int partition;
+    private final List<Run> runs;
+
+    ReduceTask(int partition, List<Run> runs)
+    {
+      super(false, partition);
+      this.partition = partition;
+      this.runs = runs;
+    }
+
+    @Override
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Void call() throws Exception
+    {
+      long startMillis = System.currentTimeMillis();
+
+      OutputFormat outputFormat = ReflectionUtils.newInstance(_job.getOutputFormatClass(), conf);
+      OutputCommitter committer = outputFormat.getOutputCommitter(context);
+      Reducer reducer = ReflectionUtils.newInstance(_job.getReducerClass(), conf);
+
+      committer.setupTask(context);
+
+      MergeIterator input = new MergeIterator(runs, partition, conf.getOutputKeyComparator());
+
+      try
+      {
+        RecordWriter writer = new CountingRecordWriter(outputFormat.getRecordWriter(context), getTaskCounter("REDUCE_OUTPUT_RECORDS"));
+
+        Reducer.Context reducerContext = reducer.new Context(conf, attemptId, input,
+                                                             getTaskCounter("REDUCE_INPUT_GROUPS"),
+                                                             getTaskCounter("REDUCE_INPUT_RECORDS"),
+                                                             writer, committer, reporter,
+                                                             conf.getOutputValueGroupingComparator(),
+                                                             conf.getMapOutputKeyClass(),
+                                                             conf.getMapOutputValueClass());
+        reducer.run(reducerContext);
+
+        writer.close(context);
+
+        if (committer.needsTaskCommit(context))
+        {
+          committer.commitTask(context);
+        }
+      }
+      catch (Exception e)
+      {
+        committer.abortTask(context);
+        throw e;
+      }
+      finally
+      {
+        input.close();
+      }
+
+      getTaskCounter("REDUCE_SHUFFLE_BYTES").increment(input.bytesRead);
+      finish("SLOTS_MILLIS_REDUCES", startMillis);
+
+      return null;
+    }
+  }
+
+  /**
+   * Serializes and partitions map output, then sorts it into runs, applying the combiner if there is one.
+   * Runs are kept in memory while there is room and are otherwise written to disk.
+   */
+  private class MapOutputCollector extends RecordWriter<Object,Object>
+  {
+    final List<Run> runs = new ArrayList<Run>();
+
+    private final Task task;
+    private final Partitioner<Object,Object> partitioner;
+    private final RawComparator<Object> comparator;
+    private final Class<? extends Reducer<?,?,?,?>> combinerClass;
+    private final Serializer<Object> keySerializer;
+    private final Serializer<Object> valueSerializer;
+    private final Counter outputRecords;
+    private final Counter outputBytes;
+
+    private final DataOutputBuffer data = new DataOutputBuffer();
+
+    // partition, key start, value start and end of each record
+    private int[] records = new int[4 * 1024];
+    private int numRecords;
+
+    @SuppressWarnings("unchecked")
+    MapOutputCollector(Task task) throws IOException, ClassNotFoundException
+    {
+      this.task = task;
+
+      partitioner = (Partitioner<Object,Object>)ReflectionUtils.newInstance(_job.getPartitionerClass(), task.conf);
+      comparator = (RawComparator<Object>)task.conf.getOutputKeyComparator();
+      combinerClass = _job.getCombinerClass();
+
+      SerializationFactory serializationFactory = new SerializationFactory(task.conf);
+      keySerializer = serializationFactory.getSerializer((Class<Object>)task.conf.getMapOutputKeyClass());
+      valueSerializer = serializationFactory.getSerializer((Class<Object>)task.conf.getMapOutputValueClass());
+      keySerializer.open(data);
+      valueSerializer.open(data);
+
+      outputRecords = task.getTaskCounter("MAP_OUTPUT_RECORDS");
+      outputBytes = task.getTaskCounter("MAP_OUTPUT_BYTES");
+    }
+
+    @Override
+    public void write(Object key, Object value) throws IOException, InterruptedException
+    {
+      int keyStart = data.getLength();
+      keySerializer.serialize(key);
+      int valueStart = data.getLength();
+      valueSerializer.serialize(value);
+      int end = data.getLength();
+
+      if (numRecords * 4 == records.length)
+      {
+        records = Arrays.copyOf(records, records.length * 2);
+      }
+
+      int i = numRecords++ * 4;
+      records[i] = partitioner.getPartition(key, value, _numReducers);
+      records[i+1] = keyStart;
+      records[i+2] = valueStart;
+      records[i+3] = end;
+
+      outputRecords.increment(1);
+      outputBytes.increment(end - keyStart);
+
+      if (data.getLength() >= _spillBytes)
+      {
+        sortAndRun(true);
+      }
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException, InterruptedException
+    {
+      sortAndRun(false);
+
+      keySerializer.close();
+      valueSerializer.close();
+    }
+
+    private void sortAndRun(boolean full) throws IOException, InterruptedException
+    {
+      if (numRecords == 0)
+      {
+        return;
+      }
+
+      final byte[] bytes = data.getData();
+
+      Integer[] order = new Integer[numRecords];
+      for (int i=0; i<numRecords; i++)
+      {
+        order[i] = i * 4;
+      }
+
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b)
+        {
+          if (records[a] != records[b])
+          {
+            return records[a] < records[b] ? -1 : 1;
+          }
+
+          return comparator.compare(bytes, records[a+1], records[a+2] - records[a+1], bytes, records[b+1], records[b+2] - records[b+1]);
+        }
+      });
+
+      RunWriter runWriter = new RunWriter(_numReducers);
+      int next = 0;
+
+      for (int partition=0; partition<_numReducers; partition++)
+      {
+        int start = next;
+        while (next < numRecords && records[order[next]] == partition)
+        {
+          next++;
+        }
+
+        if (combinerClass == null)
+        {
+          for (int j=start; j<next; j++)
+          {
+            int r = order[j];
+            runWriter.append(bytes, records[r+1], records[r+2] - records[r+1], records[r+2], records[r+3] - records[r+2]);
+          }
+        }
+        else
+        {
+          combine(new BufferIterator(bytes, records, order, start, next), runWriter);
+        }
+
+        runWriter.endPartition();
+      }
+
+      task.getTaskCounter("SPILLED_RECORDS").increment(runWriter.numRecords);
+
+      // keep the last run of a task in memory unless the job is holding too much already
+      if (!full && _memoryBytes.addAndGet(runWriter.size()) <= _sortBytes)
+      {
+        runs.add(runWriter.toMemoryRun());
+      }
+      else
+      {
+        if (!full)
+        {
+          _memoryBytes.addAndGet(-runWriter.size());
+        }
+
+        _spillDir.mkdirs();
+        runs.add(runWriter.toFileRun(new File(_spillDir, "spill-" + _spillIds.incrementAndGet())));
+      }
+
+      data.reset();
+      numRecords = 0;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void combine(RawKeyValueIterator input, final RunWriter runWriter) throws IOException, InterruptedException
+    {
+      Reducer combiner = ReflectionUtils.newInstance(combinerClass, task.conf);
+
+      final DataOutputBuffer combined = new DataOutputBuffer();
+      final Serializer<Object> combinedKeySerializer = new SerializationFactory(task.conf).getSerializer((Class<Object>)task.conf.getMapOutputKeyClass());
+      final Serializer<Object> combinedValueSerializer = new SerializationFactory(task.conf).getSerializer((Class<Object>)task.conf.getMapOutputValueClass());
+      combinedKeySerializer.open(combined);
+      combinedValueSerializer.open(combined);
+
+      final Counter combineOutputRecords = task.getTaskCounter("COMBINE_OUTPUT_RECORDS");
+
+      RecordWriter writer = new RecordWriter<Object,Object>() {
+        @Override
+        public void write(Object key, Object value) throws IOException
+        {
+          combined.reset();
+          combinedKeySerializer.serialize(key);
+          int keyLength = combined.getLength();
+          combinedValueSerializer.serialize(value);
+
+          runWriter.append(combined.getData(), 0, keyLength, keyLength, combined.getLength() - keyLength);
+          combineOutputRecords.increment(1);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context)
+        {
+        }
+      };
+
+      Reducer.Context combinerContext = combiner.new Context(task.conf, task.attemptId, input,
+                                                             task.getTaskCounter("COMBINE_INPUT_GROUPS"),
+                                                             task.getTaskCounter("COMBINE_INPUT_RECORDS"),
+                                                             writer, null, task.reporter,
+                                                             task.conf.getOutputValueGroupingComparator(),
+                                                             task.conf.getMapOutputKeyClass(),
+                                                             task.conf.getMapOutputValueClass());
+      combiner.run(combinerContext);
+    }
+  }
+
+  /**
+   * Iterates over sorted records of one partition still in the map output buffer.
+   */
+  private static class BufferIterator implements RawKeyValueIterator
+  {
+    private final byte[] bytes;
+    private final int[] records;
+    private final Integer[] order;
+    private final int end;
+    private int current;
+
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+
+    BufferIterator(byte[] bytes, int[] records, Integer[] order, int start, int end)
+    {
+      this.bytes = bytes;
+      this.records = records;
+      this.order = order;
+      this.end = end;
+      this.current = start - 1;
+    }
+
+    @Override
+    public boolean next()
+    {
+      return ++current < end;
+    }
+
+    @Override
+    public DataInputBuffer getKey()
+    {
+      int r = order[current];
+      key.reset(bytes, records[r+1], records[r+2] - records[r+1]);
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue()
+    {
+      int r = order[current];
+      value.reset(bytes, records[r+2], records[r+3] - records[r+2]);
+      return value;
+    }
+
+    @Override
+    public Progress getProgress()
+    {
+      return null;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+  /**
+   * Sorted map output of one task, divided into one segment per partition.
+   */
+  private static abstract class Run
+  {
+    final long[] offsets;
+
+    Run(long[] offsets)
+    {
+      this.offsets = offsets;
+    }
+
+    abstract InputStream open(int partition) throws IOException;
+  }
+
+  private static class MemoryRun extends Run
+  {
+    private final byte[] bytes;
+
+    MemoryRun(byte[] bytes, long[] offsets)
+    {
+      super(offsets);
+      this.bytes = bytes;
+    }
+
+    @Override
+    InputStream open(int partition)
+    {
+      return new ByteArrayInputStream(bytes, (int)offsets[partition], (int)(offsets[partition+1] - offsets[partition]));
+    }
+  }
+
+  private static class FileRun extends Run
+  {
+    private final File file;
+
+    FileRun(File file, long[] offsets)
+    {
+      super(offsets);
+      this.file = file;
+    }
+
+    @Override
+    InputStream open(int partition) throws IOException
+    {
+      FileInputStream stream = new FileInputStream(file);
+      stream.getChannel().position(offsets[partition]);
+      return new BufferedInputStream(stream, 64 * 1024);
+    }
+  }
+
+  /**
+   * Writes sorted records as a sequence of key length, value length, key and value.
+   */
+  private static class RunWriter
+  {
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+    private final long[] offsets;
+    private int partition;
+    long numRecords;
+
+    RunWriter(int numPartitions)
+    {
+      offsets = new long[numPartitions + 1];
+    }
+
+    void append(byte[] bytes, int keyStart, int keyLength, int valueStart, int valueLength) throws IOException
+    {
+      WritableUtils.writeVInt(buffer, keyLength);
+      WritableUtils.writeVInt(buffer, valueLength);
+      buffer.write(bytes, keyStart, keyLength);
+      buffer.write(bytes, valueStart, valueLength);
+      numRecords++;
+    }
+
+    void endPartition()
+    {
+      offsets[++partition] = buffer.getLength();
+    }
+
+    long size()
+    {
+      return buffer.getLength();
+    }
+
+    Run toMemoryRun()
+    {
+      return new MemoryRun(Arrays.copyOf(buffer.getData(), buffer.getLength()), offsets);
+    }
+
+    Run toFileRun(File file) throws IOException
+    {
+      DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      try
+      {
+        stream.write(buffer.getData(), 0, buffer.getLength());
+      }
+      finally
+      {
+        stream.close();
+      }
+
+      return new FileRun(file, offsets);
+    }
+  }
+
+  /**
+   * Reads the records of one partition of a run.
+   */
+  private static class Segment
+  {
+    final int index;
+    private final DataInputStream stream;
+    private long remaining;
+
+    byte[] key;
+    byte[] value;
+
+    Segment(int index, Run run, int partition) throws IOException
+    {
+      this.index = index;
+      this.remaining = run.offsets[partition+1] - run.offsets[partition];
+      this.stream = new DataInputStream(run.open(partition));
+    }
+
+    boolean next() throws IOException
+    {
+      if (remaining <= 0)
+      {
+        return false;
+      }
+
+      int keyLength = WritableUtils.readVInt(stream);
+      int valueLength = WritableUtils.readVInt(stream);
+
+      key = new byte[keyLength];
+      value = new byte[valueLength];
+      stream.readFully(key);
+      stream.readFully(value);
+
+      remaining -= WritableUtils.getVIntSize(keyLength) + WritableUtils.getVIntSize(valueLength) + keyLength + valueLength;
+
+      return true;
+    }
+
+    void close() throws IOException
+    {
+      stream.close();
+    }
+  }
+
+  /**
+   * Merges the segments of one partition from all runs in key order.
+   */
+  private static class MergeIterator implements RawKeyValueIterator
+  {
+    private final List<Run> runs;
+    private final int partition;
+    private final PriorityQueue<Segment> queue;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Progress progress = new Progress();
+    private Segment current;
+    private boolean started;
+
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+
+    long bytesRead;
+
+    @SuppressWarnings("unchecked")
+    MergeIterator(List<Run> runs, int partition, RawComparator<?> rawComparator)
+    {
+      this.runs = runs;
+      this.partition = partition;
+
+      final RawComparator<Object> comparator = (RawComparator<Object>)rawComparator;
+
+      queue = new PriorityQueue<Segment>(Math.max(1, runs.size()), new Comparator<Segment>() {
+        @Override
+        public int compare(Segment a, Segment b)
+        {
+          int c = comparator.compare(a.key, 0, a.key.length, b.key, 0, b.key.length);
+          return c != 0 ? c : a.index - b.index;
+        }
+      });
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+      if (!started)
+      {
+        started = true;
+
+        for (int i=0; i<runs.size(); i++)
+        {
+          Segment segment = new Segment(i, runs.get(i), partition);
+          segments.add(segment);
+
+          if (segment.next())
+          {
+            queue.add(segment);
+          }
+        }
+      }
+      else if (current != null && current.next())
+      {
+        queue.add(current);
+      }
+
+      current = queue.poll();
+
+      if (current == null)
+      {
+        return false;
+      }
+
+      bytesRead += current.key.length + current.value.length;
+
+      return true;
+    }
+
+    @Override
+    public DataInputBuffer getKey()
+    {
+      key.reset(current.key, 0, current.key.length);
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue()
+    {
+      value.reset(current.value, 0, current.value.length);
+      return value;
+    }
+
+    @Override
+    public Progress getProgress()
+    {
+      return progress;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      for (Segment segment : segments)
+      {
+        segment.close();
+      }
+    }
+  }
+
+  private static class CountingRecordReader<K,V> extends RecordReader<K,V>
+  {
+    private final RecordReader<K,V> reader;
+    private final Counter counter;
+
+    CountingRecordReader(RecordReader<K,V> reader, Counter counter)
+    {
+      this.reader = reader;
+      this.counter = counter;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException
+    {
+      reader.initialize(split, context);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException
+    {
+      if (reader.nextKeyValue())
+      {
+        counter.increment(1);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public K getCurrentKey() throws IOException, InterruptedException
+    {
+      return reader.getCurrentKey();
+    }
+
+    @Override
+    public V getCurrentValue() throws IOException, InterruptedException
+    {
+      return reader.getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException
+    {
+      return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      reader.close();
+    }
+  }
+
+  private static class CountingRecordWriter<K,V> extends RecordWriter<K,V>
+  {
+    private final RecordWriter<K,V> writer;
+    private final Counter counter;
+
+    CountingRecordWriter(RecordWriter<K,V> writer, Counter counter)
+    {
+      this.writer = writer;
+      this.counter = counter;
+    }
+
+    @Override
+    public void write(K key, V value) throws IOException, InterruptedException
+    {
+      writer.write(key, value);
+      counter.increment(1);
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException, InterruptedException
+    {
+      writer.close(context);
+    }
+  }
+}
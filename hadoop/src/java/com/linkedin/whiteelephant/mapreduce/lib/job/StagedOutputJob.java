@@ -17,6 +17,8 @@
 package com.linkedin.whiteelephant.mapreduce.lib.job;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Callable;
@@ -25,6 +27,10 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.TaskReport;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
@@ -38,14 +44,25 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
 {
     private final String stagingPrefix;
     private final Logger log;
+    private final List<CompletionListener> completionListeners = new ArrayList<CompletionListener>();
+    private final List<CommitListener> commitListeners = new ArrayList<CommitListener>();
+    private LocalJobEngine localEngine;
+    
+    // timing of the job, for metrics
+    private final long createMillis = System.currentTimeMillis();
+    private long startMillis;
+    private long finishMillis;
+    private long commitMillis;
+    private Path outputPath;
     
     private static String HADOOP_PREFIX = "hadoop-conf.";
 
     /**
      * Creates a job which using a temporary staging location for the output data.
-     * The data is only copied to the final output directory on successful completion
+     * The data is only moved to the final output directory on successful completion
      * of the job.  This prevents existing output data from being overwritten unless
-     * the job completes successfully.
+     * the job completes successfully.  See {@link VersionedOutput} for how the data
+     * is published.
      * 
      * @param props Job properties
      * @param jobName Name of the job
@@ -108,6 +125,9 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
             newKey = key.substring(HADOOP_PREFIX.length());
             config.set(newKey, value);
           }
+          else if (key.startsWith(LocalJobEngine.ENABLED)) {
+            config.set(key, value);
+          }
       }
       return config;
     }
@@ -158,6 +178,8 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
           System.out.println(String.format("Job %s with ID %s failed! Tracking URL: %s", getJobName(), jobId, this.getTrackingURL()));
         }
         
+        notifyCompletionListeners(success);
+        
         return success;
       }
       catch (Exception e)
@@ -167,17 +189,68 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
       }
     }
     
+    /**
+     * Registers a listener which is notified on the executor thread once the job has finished
+     * and its output has been committed.
+     */
+    public void addCompletionListener(CompletionListener listener)
+    {
+        completionListeners.add(listener);
+    }
+    
+    /**
+     * Registers a listener which is called once the job has succeeded, before its output is committed.
+     * The listener may add files to the staged output, and the commit fails if the listener throws.
+     */
+    public void addCommitListener(CommitListener listener)
+    {
+        commitListeners.add(listener);
+    }
+    
+    private void notifyCompletionListeners(boolean success)
+    {
+        for (CompletionListener listener : completionListeners)
+        {
+            try
+            {
+                listener.jobCompleted(this, success);
+            }
+            catch (Exception e)
+            {
+                // listeners only observe the job, so they must not fail it
+                log.error(String.format("Completion listener failed for job %s", getJobName()), e);
+            }
+        }
+    }
+    
     @Override
     public boolean waitForCompletion(boolean verbose) throws IOException, InterruptedException, ClassNotFoundException
     {
         final Path actualOutputPath = FileOutputFormat.getOutputPath(this);
         final Path stagedPath = new Path(String.format("%s/%s/staged", stagingPrefix, System.currentTimeMillis()));
 
+        outputPath = actualOutputPath;
+        startMillis = System.currentTimeMillis();
+
         FileOutputFormat.setOutputPath(
                 this,
                 stagedPath
         );
 
+        if (LocalJobEngine.isEnabled(getConfiguration()))
+        {
+            localEngine = new LocalJobEngine(this);
+
+            boolean success = localEngine.run();
+            finishMillis = System.currentTimeMillis();
+
+            if (success) {
+                return commit(stagedPath, actualOutputPath);
+            }
+
+            return false;
+        }
+
         final Thread hook = new Thread(new Runnable()
         {
             @Override
@@ -196,23 +269,133 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
 
         final boolean retVal = super.waitForCompletion(verbose);
         Runtime.getRuntime().removeShutdownHook(hook);
+        finishMillis = System.currentTimeMillis();
 
         if (retVal) {
-            FileSystem fs = actualOutputPath.getFileSystem(getConfiguration());
+            return commit(stagedPath, actualOutputPath);
+        }
 
-            fs.mkdirs(actualOutputPath);
+        log.warn("retVal was false for some reason...");
+        return retVal;
+    }
 
-            log.info(String.format("Deleting data at old path[%s]", actualOutputPath));
-            fs.delete(actualOutputPath, true);
+    private boolean commit(Path stagedPath, Path actualOutputPath) throws IOException
+    {
+        FileSystem fs = actualOutputPath.getFileSystem(getConfiguration());
 
-            log.info(String.format("Moving from staged path[%s] to final resting place[%s]", stagedPath, actualOutputPath));
-            return fs.rename(stagedPath, actualOutputPath);
+        for (CommitListener listener : commitListeners)
+        {
+            listener.beforeCommit(this, stagedPath);
         }
 
-        log.warn("retVal was false for some reason...");
-        return retVal;
+        // publish as a new version so the previous data stays readable until the rename completes
+        boolean committed = VersionedOutput.commit(fs, stagedPath, actualOutputPath) != null;
+        commitMillis = System.currentTimeMillis() - finishMillis;
+        return committed;
+    }
+
+    /**
+     * @return When the job was created, which is about when it was submitted to the executor
+     */
+    public long getCreateMillis()
+    {
+        return createMillis;
+    }
+
+    /**
+     * @return When the job started running, or 0 if it has not
+     */
+    public long getStartMillis()
+    {
+        return startMillis;
+    }
+
+    /**
+     * @return When the job finished running, not counting the commit of its output, or 0 if it has not
+     */
+    public long getFinishMillis()
+    {
+        return finishMillis;
+    }
+
+    /**
+     * @return How long committing the output took
+     */
+    public long getCommitMillis()
+    {
+        return commitMillis;
+    }
+
+    /**
+     * @return The final output location, once the job has started
+     */
+    public Path getFinalOutputPath()
+    {
+        return outputPath;
+    }
+
+    /**
+     * Returns how long each map or reduce task of the finished job ran, in no particular order.
+     */
+    public List<Long> getTaskMillis(boolean isMap) throws IOException
+    {
+        if (localEngine != null)
+        {
+            return localEngine.getTaskMillis(isMap);
+        }
+
+        if (getJobID() == null)
+        {
+            return Collections.emptyList();
+        }
+
+        JobClient client = new JobClient(new JobConf(getConfiguration()));
+
+        try
+        {
+            org.apache.hadoop.mapred.JobID jobId = org.apache.hadoop.mapred.JobID.downgrade(getJobID());
+            TaskReport[] reports = isMap ? client.getMapTaskReports(jobId) : client.getReduceTaskReports(jobId);
+
+            List<Long> taskMillis = new ArrayList<Long>(reports.length);
+
+            for (TaskReport report : reports)
+            {
+                if (report.getStartTime() > 0 && report.getFinishTime() >= report.getStartTime())
+                {
+                    taskMillis.add(report.getFinishTime() - report.getStartTime());
+                }
+            }
+
+            return taskMillis;
+        }
+        finally
+        {
+            client.close();
+        }
     }
     
+    @Override
+    public Counters getCounters() throws IOException
+    {
+        if (localEngine != null)
+        {
+            return localEngine.getCounters();
+        }
+
+        return super.getCounters();
+    }
+
+    @Override
+    public String getTrackingURL()
+    {
+        if (localEngine != null)
+        {
+            return "local";
+        }
+
+        return super.getTrackingURL();
+    }
+
     private static Class<?> getCallersClass()
     {
         StackTraceElement[] stack = Thread.currentThread().getStackTrace();
@@ -241,6 +424,16 @@ public class StagedOutputJob extends Job implements Callable<Boolean>
         return StagedOutputJob.class;
     }
     
+    public interface CompletionListener
+    {
+        void jobCompleted(StagedOutputJob job, boolean success) throws Exception;
+    }
+    
+    public interface CommitListener
+    {
+        void beforeCommit(StagedOutputJob job, Path stagedPath) throws IOException;
+    }
+    
     public static class HiddenFilePathFilter implements PathFilter
     {
         @Override
@@ -1,12 +1,12 @@
 /*
  * Copyright 2012 LinkedIn, Inc
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
  * the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
@@ -17,37 +17,178 @@
 package com.linkedin.whiteelephant.mapreduce.lib.job;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * Runs staged jobs with at most <code>jobConcurrency</code> of them in flight.
+ *
+ * <p>
+ * Jobs are submitted to a pool, typically named after the cluster whose logs they process.  Each pool
+ * may be guaranteed a number of the concurrent job slots.  When a slot frees up the next job is taken from
+ * the pool which is using the smallest fraction of its guarantee, so a pool with a long tail of jobs cannot
+ * starve the others, while slots a pool is not using are filled with jobs from pools which have work waiting.
+ * Pools without a guarantee only receive slots no guaranteed pool is waiting for.
+ * </p>
+ *
+ * <p>
+ * The limit on jobs in flight can be changed while jobs run, up to the number of threads the executor was created
+ * with, for example by a {@link ConcurrencyController}.  Lowering it never stops running jobs.
+ * </p>
+ */
 public class StagedOutputJobExecutor
 {
+  /**
+   * Configuration key set on each job to the pool it was submitted to.
+   */
+  public static final String POOL = "staged.job.pool";
+
+  private static final String DEFAULT_POOL = "default";
+
   private final ExecutorService executor;
+  private final int maxConcurrency;
+  private final Map<String,Integer> guaranteedSlots;
   private final List<Future<Boolean>> jobs = new ArrayList<Future<Boolean>>();
-  
+  private final List<StagedOutputJob.CompletionListener> completionListeners = new ArrayList<StagedOutputJob.CompletionListener>();
+
+  // dispatch state, guarded by this
+  private final Map<String,LinkedList<FutureTask<Boolean>>> pending = new LinkedHashMap<String,LinkedList<FutureTask<Boolean>>>();
+  private final Map<String,Integer> running = new HashMap<String,Integer>();
+  private int concurrencyLimit;
+  private int totalRunning;
+  private int numSubmitted;
+  private int numFinished;
+
   public StagedOutputJobExecutor(int jobConcurrency)
   {
-    executor = Executors.newFixedThreadPool(jobConcurrency);
+    this(jobConcurrency, new HashMap<String,Integer>());
+  }
+
+  /**
+   * @param jobConcurrency Maximum number of jobs in flight across all pools
+   * @param guaranteedSlots Number of job slots guaranteed to each pool
+   */
+  public StagedOutputJobExecutor(int jobConcurrency, Map<String,Integer> guaranteedSlots)
+  {
+    this(jobConcurrency, jobConcurrency, guaranteedSlots);
+  }
+
+  /**
+   * @param jobConcurrency Maximum number of jobs in flight across all pools, until changed
+   * @param maxConcurrency Largest limit which may be set later
+   * @param guaranteedSlots Number of job slots guaranteed to each pool
+   */
+  public StagedOutputJobExecutor(int jobConcurrency, int maxConcurrency, Map<String,Integer> guaranteedSlots)
+  {
+    this.maxConcurrency = Math.max(jobConcurrency, maxConcurrency);
+    this.concurrencyLimit = jobConcurrency;
+    this.guaranteedSlots = new HashMap<String,Integer>(guaranteedSlots);
+    executor = Executors.newFixedThreadPool(this.maxConcurrency);
+  }
+
+  /**
+   * Changes the number of jobs allowed in flight.  If lowered below the number running, no more jobs are started
+   * until enough of them finish.
+   */
+  public synchronized void setConcurrencyLimit(int limit)
+  {
+    concurrencyLimit = Math.max(1, Math.min(maxConcurrency, limit));
+
+    if (!executor.isShutdown())
+    {
+      dispatch();
+    }
+  }
+
+  /**
+   * @return Number of jobs allowed in flight
+   */
+  public synchronized int getConcurrencyLimit()
+  {
+    return concurrencyLimit;
+  }
+
+  /**
+   * Registers a listener with every job submitted from now on.
+   */
+  public synchronized void addCompletionListener(StagedOutputJob.CompletionListener listener)
+  {
+    completionListeners.add(listener);
   }
-  
+
   public void submit(StagedOutputJob job)
+  {
+    submit(job, DEFAULT_POOL);
+  }
+
+  public void submit(final StagedOutputJob job, final String pool)
   {
     System.out.println("Submitting " + job.getJobName());
-    jobs.add(executor.submit(job));
+
+    job.getConfiguration().set(POOL, pool);
+
+    synchronized (this)
+    {
+      for (StagedOutputJob.CompletionListener listener : completionListeners)
+      {
+        job.addCompletionListener(listener);
+      }
+    }
+
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception
+      {
+        try
+        {
+          return job.call();
+        }
+        finally
+        {
+          finished(pool);
+        }
+      }
+    });
+
+    synchronized (this)
+    {
+      jobs.add(task);
+      numSubmitted++;
+
+      if (!pending.containsKey(pool))
+      {
+        pending.put(pool, new LinkedList<FutureTask<Boolean>>());
+      }
+      pending.get(pool).add(task);
+
+      dispatch();
+    }
   }
-  
+
   public void waitForCompletion() throws InterruptedException, ExecutionException
   {
+    List<Future<Boolean>> submitted;
+    synchronized (this)
+    {
+      submitted = new ArrayList<Future<Boolean>>(jobs);
+    }
+
     while (!executor.isTerminated())
     {
       int numComplete = 0;
-      int jobCount = jobs.size();
-      for (Future<Boolean> job : jobs)
+      int jobCount = submitted.size();
+      for (Future<Boolean> job : submitted)
       {
         try
         {
@@ -61,62 +202,149 @@ public class StagedOutputJobExecutor
             else
             {
               System.out.println("One or more jobs failed!  Shutting down remaining jobs...");
-              executor.shutdownNow();
+              shutdownNow();
               throw new RuntimeException("Job failed!");
             }
           }
         }
         catch (TimeoutException e)
-        { 
+        {
         }
       }
-            
+
       if (numComplete == jobCount)
       {
         System.out.println("Current set of jobs have completed");
         break;
       }
     }
-    
-    jobs.clear();
+
+    synchronized (this)
+    {
+      jobs.removeAll(submitted);
+    }
   }
-  
+
   public void waitForCompletionThenShutdown() throws InterruptedException, ExecutionException
   {
-    executor.shutdown();
-    
     try
     {
-      while (!executor.isTerminated())
+      waitForCompletion();
+    }
+    finally
+    {
+      shutdownNow();
+    }
+
+    VersionedOutput.awaitCollection();
+  }
+
+  public void shutdownNow()
+  {
+    synchronized (this)
+    {
+      for (LinkedList<FutureTask<Boolean>> tasks : pending.values())
       {
-        for (Future<Boolean> job : jobs)
+        for (FutureTask<Boolean> task : tasks)
         {
-          try
-          {
-            Boolean success = job.get(30,TimeUnit.SECONDS);
-            if (success != null && !success)
-            {
-              System.out.println("One or more jobs failed!  Shutting down remaining jobs...");
-              executor.shutdownNow();
-              throw new RuntimeException("Job failed!");
-            }
-          }
-          catch (TimeoutException e)
-          { 
-          }
+          task.cancel(false);
         }
       }
+      pending.clear();
     }
-    finally
+
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return Number of jobs submitted since the executor was created
+   */
+  public synchronized int getNumSubmitted()
+  {
+    return numSubmitted;
+  }
+
+  /**
+   * @return Number of jobs which have finished running, successfully or not
+   */
+  public synchronized int getNumFinished()
+  {
+    return numFinished;
+  }
+
+  /**
+   * @return Number of jobs running now
+   */
+  public synchronized int getNumRunning()
+  {
+    return totalRunning;
+  }
+
+  private synchronized void finished(String pool)
+  {
+    running.put(pool, running.get(pool) - 1);
+    totalRunning--;
+    numFinished++;
+
+    if (!executor.isShutdown())
     {
-      executor.shutdownNow();
+      dispatch();
     }
-    
-    jobs.clear();
   }
-  
-  public void shutdownNow()
+
+  private synchronized void dispatch()
   {
-    executor.shutdownNow();
+    while (totalRunning < concurrencyLimit)
+    {
+      String pool = nextPool();
+
+      if (pool == null)
+      {
+        return;
+      }
+
+      FutureTask<Boolean> task = pending.get(pool).removeFirst();
+
+      Integer poolRunning = running.get(pool);
+      running.put(pool, poolRunning == null ? 1 : poolRunning + 1);
+      totalRunning++;
+
+      executor.execute(task);
+    }
+  }
+
+  /**
+   * Picks the pool with waiting jobs which is using the smallest fraction of its guaranteed slots.
+   */
+  private String nextPool()
+  {
+    String bestPool = null;
+    double bestUsage = Double.MAX_VALUE;
+
+    for (Map.Entry<String,LinkedList<FutureTask<Boolean>>> entry : pending.entrySet())
+    {
+      if (entry.getValue().isEmpty())
+      {
+        continue;
+      }
+
+      String pool = entry.getKey();
+
+      Integer poolRunning = running.get(pool);
+      Integer guaranteed = guaranteedSlots.get(pool);
+
+      int numRunning = poolRunning == null ? 0 : poolRunning;
+
+      // pools without a guarantee come after every guaranteed pool, least busy first
+      double usage = (guaranteed == null || guaranteed <= 0) ? maxConcurrency + numRunning : numRunning / (double)guaranteed;
+
+      if (usage < bestUsage)
+      {
+        bestUsage = usage;
+        bestPool = pool;
+      }
+    }
+
+    return bestPool;
   }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.mapreduce.lib.job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Commit protocol for job output which never leaves the output path empty.
+ *
+ * <p>
+ * Each commit moves the staged output into a new version directory under the output path,
+ * for example <code>&lt;output&gt;/v0001359676800000</code>.  Version names sort in commit order, so the
+ * rename of the staged directory is the atomic flip which makes a new version the latest one.  A version is
+ * named after the current time, or just after the latest version when that is ahead of the clock, so commits
+ * from hosts with skewed clocks still sort after what they supersede.
+ * Readers resolve the latest version with {@link #resolveLatest(FileSystem, Path)} and never observe
+ * a missing or partially written output.
+ * </p>
+ *
+ * <p>
+ * Output written before versioning was introduced (part files directly under the output path) is
+ * still readable and is treated as older than any version.  Superseded versions are deleted
+ * asynchronously so that committing does not wait on recursive deletes.
+ * </p>
+ */
+public class VersionedOutput
+{
+  private static final Logger log = Logger.getLogger(VersionedOutput.class);
+
+  private static final String VERSION_PREFIX = "v";
+  private static final Pattern versionPattern = Pattern.compile("^v\\d{16}$");
+
+  // names are zero padded, so they sort as the versions do
+  private static final Comparator<Path> versionOrder = new Comparator<Path>() {
+    @Override
+    public int compare(Path a, Path b)
+    {
+      return a.getName().compareTo(b.getName());
+    }
+  };
+
+  // Number of superseded versions kept around so readers which resolved them just before a commit can finish.
+  private static final int NUM_OLD_VERSIONS_RETAINED = 1;
+
+  private static final ExecutorService collector = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread thread = new Thread(r, "versioned-output-collector");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Moves the staged output into a new version under the output path.  This is a mkdirs and a rename,
+   * regardless of how much data was previously committed to the output path.
+   *
+   * @param fs File system
+   * @param stagedPath Where the job wrote its output
+   * @param outputPath The final output location for the data
+   * @return The path of the committed version, or null if the version already exists or the rename failed
+   * @throws IOException
+   */
+  public static Path commit(FileSystem fs, Path stagedPath, Path outputPath) throws IOException
+  {
+    fs.mkdirs(outputPath);
+
+    Path versionPath = new Path(outputPath, newVersionName(fs, outputPath));
+
+    // renaming onto an existing directory would move the staged output inside it
+    if (fs.exists(versionPath))
+    {
+      log.error(String.format("Version[%s] already exists, not committing staged path[%s]", versionPath, stagedPath));
+      return null;
+    }
+
+    log.info(String.format("Moving from staged path[%s] to version[%s]", stagedPath, versionPath));
+
+    if (!fs.rename(stagedPath, versionPath))
+    {
+      log.error(String.format("Failed to move staged path[%s] to version[%s]", stagedPath, versionPath));
+      return null;
+    }
+
+    collectOldVersions(fs, outputPath);
+
+    return versionPath;
+  }
+
+  /**
+   * Determines which path holds the current data for an output path.
+   *
+   * @param fs File system
+   * @param outputPath The output location
+   * @return The latest version, the output path itself if it holds unversioned data, or null if it does not exist
+   * @throws IOException
+   */
+  public static Path resolveLatest(FileSystem fs, Path outputPath) throws IOException
+  {
+    FileStatus[] children = fs.listStatus(outputPath);
+
+    if (children == null)
+    {
+      return null;
+    }
+
+    List<Path> versions = getVersions(children);
+
+    if (versions.size() == 0)
+    {
+      return outputPath;
+    }
+
+    return versions.get(versions.size() - 1);
+  }
+
+  public static boolean isVersion(Path path)
+  {
+    return versionPattern.matcher(path.getName()).matches();
+  }
+
+  /**
+   * Waits for any pending deletes of old versions to finish.
+   */
+  public static void awaitCollection() throws InterruptedException
+  {
+    final Object done = new Object();
+
+    synchronized (done)
+    {
+      collector.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          synchronized (done)
+          {
+            done.notifyAll();
+          }
+        }
+      });
+
+      done.wait(TimeUnit.MINUTES.toMillis(10));
+    }
+  }
+
+  private static String newVersionName(FileSystem fs, Path outputPath) throws IOException
+  {
+    long version = System.currentTimeMillis();
+
+    FileStatus[] children = fs.listStatus(outputPath);
+
+    if (children != null)
+    {
+      List<Path> versions = getVersions(children);
+
+      if (versions.size() > 0)
+      {
+        long latest = Long.parseLong(versions.get(versions.size() - 1).getName().substring(VERSION_PREFIX.length()));
+        version = Math.max(version, latest + 1);
+      }
+    }
+
+    return String.format("%s%016d", VERSION_PREFIX, version);
+  }
+
+  private static List<Path> getVersions(FileStatus[] children)
+  {
+    List<Path> versions = new ArrayList<Path>();
+
+    for (FileStatus child : children)
+    {
+      if (child.isDir() && isVersion(child.getPath()))
+      {
+        versions.add(child.getPath());
+      }
+    }
+
+    Collections.sort(versions, versionOrder);
+
+    return versions;
+  }
+
+  private static void collectOldVersions(final FileSystem fs, final Path outputPath)
+  {
+    collector.execute(new Runnable() {
+      @Override
+      public void run()
+      {
+        try
+        {
+          FileStatus[] children = fs.listStatus(outputPath);
+
+          if (children == null)
+          {
+            return;
+          }
+
+          List<Path> versions = getVersions(children);
+
+          List<Path> toDelete = new ArrayList<Path>();
+
+          // unversioned data written before versioning was introduced is superseded by any version
+          for (FileStatus child : children)
+          {
+            if (!isVersion(child.getPath()))
+            {
+              toDelete.add(child.getPath());
+            }
+          }
+
+          for (int i=0; i<versions.size() - 1 - NUM_OLD_VERSIONS_RETAINED; i++)
+          {
+            toDelete.add(versions.get(i));
+          }
+
+          for (Path path : toDelete)
+          {
+            log.info(String.format("Deleting old output at path[%s]", path));
+            fs.delete(path, true);
+          }
+        }
+        catch (IOException e)
+        {
+          log.error(String.format("Failed to delete old versions under %s", outputPath), e);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+
+/**
+ * Collects metrics of the jobs run by the pipeline.
+ *
+ * <p>
+ * Each job is recorded as it finishes, with the stage, cluster and day it processed, its input, shuffle and output
+ * from its counters, its wall and commit time, and percentiles of its task times.  The stage is the one the job was
+ * sized for by {@link JobSizer}, or else the stage of the pipeline running.  While the pipeline runs, its progress and
+ * the totals of each stage are registered as MBeans under the <code>com.linkedin.whiteelephant</code> domain.  When
+ * <code>metrics.report.path</code> is set, the job metrics of each run are written there once it finishes as an Avro
+ * file, <code>&lt;yyyy&gt;/&lt;MMdd&gt;/run-&lt;run-id&gt;.avro</code>, so runs can be compared over time.
+ * </p>
+ */
+public class PipelineMetrics implements PipelineMetricsMBean, StagedOutputJob.CompletionListener
+{
+  private static final String DOMAIN = "com.linkedin.whiteelephant";
+
+  private static final String TASK_COUNTER_GROUP = "org.apache.hadoop.mapred.Task$Counter";
+  private static final String JOB_COUNTER_GROUP = "org.apache.hadoop.mapred.JobInProgress$Counter";
+
+  // output of per day jobs is written to <root>/<cluster>/<yyyy>/<MMdd>
+  private static final Pattern DAY_PATTERN = Pattern.compile(".*/(\\d{4})/(\\d{4})/?$");
+
+  private final Logger _log;
+  private final String _name;
+  private final Properties _props;
+  private final StagedOutputJobExecutor _executor;
+  private final long _runId;
+  private final String _reportPath;
+
+  // guarded by this
+  private final List<String> _stages = new ArrayList<String>();
+  private final Map<String,StageMetrics> _stageMetrics = new LinkedHashMap<String,StageMetrics>();
+  private final List<JobMetrics> _jobs = new ArrayList<JobMetrics>();
+  private final List<ObjectName> _registered = new ArrayList<ObjectName>();
+  private String _currentStage;
+  private int _stageSubmittedBase;
+  private int _stageFinishedBase;
+  private int _jobsSucceeded;
+  private int _jobsFailed;
+  private boolean _finished;
+
+  public PipelineMetrics(String name, Properties props, StagedOutputJobExecutor executor)
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+    _executor = executor;
+    _runId = System.currentTimeMillis();
+    _reportPath = props.getProperty("metrics.report.path");
+
+    executor.addCompletionListener(this);
+  }
+
+  /**
+   * Sets the stages the run will go through, in order, which progress is measured against.
+   */
+  public synchronized void setStages(List<String> stages)
+  {
+    _stages.clear();
+    _stages.addAll(stages);
+  }
+
+  /**
+   * Marks the start of a stage.  Jobs finishing from now on which were not sized for a stage are recorded under it.
+   */
+  public synchronized void startStage(String stage)
+  {
+    System.out.println("Starting stage " + stage);
+
+    _currentStage = stage;
+    _stageSubmittedBase = _executor.getNumSubmitted();
+    _stageFinishedBase = _executor.getNumFinished();
+  }
+
+  /**
+   * Registers the MBeans of the pipeline.  Failing to do so does not stop the run.
+   */
+  public void register()
+  {
+    register(String.format("%s:type=Pipeline,name=%s", DOMAIN, ObjectName.quote(_name)), this);
+  }
+
+  /**
+   * Marks the run as finished, prints a summary of each stage, writes the report and unregisters the MBeans.
+   */
+  public void finish()
+  {
+    synchronized (this)
+    {
+      _finished = true;
+      _currentStage = null;
+    }
+
+    printSummary();
+
+    if (_reportPath != null)
+    {
+      try
+      {
+        writeReport();
+      }
+      catch (IOException e)
+      {
+        _log.error("Failed to write the run report", e);
+      }
+    }
+
+    unregister();
+  }
+
+  @Override
+  public void jobCompleted(StagedOutputJob job, boolean success) throws Exception
+  {
+    String stage = job.getConfiguration().get(JobSizer.STAGE);
+
+    if (stage == null)
+    {
+      synchronized (this)
+      {
+        stage = _currentStage != null ? _currentStage : "unknown";
+      }
+    }
+
+    Counters counters = null;
+
+    try
+    {
+      counters = job.getCounters();
+    }
+    catch (Exception e)
+    {
+      _log.warn(String.format("No counters for job %s", job.getJobName()), e);
+    }
+
+    List<Long> mapTaskMillis = Collections.emptyList();
+    List<Long> reduceTaskMillis = Collections.emptyList();
+
+    try
+    {
+      mapTaskMillis = job.getTaskMillis(true);
+      reduceTaskMillis = job.getTaskMillis(false);
+    }
+    catch (IOException e)
+    {
+      _log.warn(String.format("No task reports for job %s", job.getJobName()), e);
+    }
+
+    JobMetrics metrics = new JobMetrics();
+    metrics.setRunId(_runId);
+    metrics.setJobName(job.getJobName());
+    metrics.setStage(stage);
+    metrics.setCluster(job.getConfiguration().get(StagedOutputJobExecutor.POOL, "default"));
+    metrics.setDay(getDay(job.getFinalOutputPath()));
+    metrics.setSucceeded(success);
+    metrics.setSubmitTime(job.getCreateMillis());
+    metrics.setStartTime(job.getStartMillis());
+    metrics.setFinishTime(job.getFinishMillis());
+    metrics.setCommitMillis(job.getCommitMillis());
+
+    long inputBytes = job.getConfiguration().getLong(JobSizer.INPUT_BYTES, -1L);
+    metrics.setInputBytes(inputBytes >= 0 ? inputBytes : null);
+
+    long mapTasks = getCounter(counters, JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_MAPS");
+    long reduceTasks = getCounter(counters, JOB_COUNTER_GROUP, "TOTAL_LAUNCHED_REDUCES");
+
+    metrics.setInputRecords(getCounter(counters, TASK_COUNTER_GROUP, "MAP_INPUT_RECORDS"));
+    metrics.setOutputRecords(getCounter(counters, TASK_COUNTER_GROUP, reduceTasks > 0 ? "REDUCE_OUTPUT_RECORDS" : "MAP_OUTPUT_RECORDS"));
+    metrics.setShuffleBytes(getCounter(counters, TASK_COUNTER_GROUP, "REDUCE_SHUFFLE_BYTES"));
+    metrics.setMapSlotMillis(getCounter(counters, JOB_COUNTER_GROUP, "SLOTS_MILLIS_MAPS"));
+    metrics.setReduceSlotMillis(getCounter(counters, JOB_COUNTER_GROUP, "SLOTS_MILLIS_REDUCES"));
+
+    long runMillis = job.getFinishMillis() - job.getStartMillis();
+    metrics.setRecordsPerSecond(runMillis > 0 ? metrics.getInputRecords() / (runMillis / 1000.0) : 0.0);
+
+    metrics.setMapTaskMillis(StageMetrics.summarize(mapTaskMillis));
+    metrics.setReduceTaskMillis(reduceTasks > 0 ? StageMetrics.summarize(reduceTaskMillis) : null);
+
+    StageMetrics stageMetrics;
+
+    synchronized (this)
+    {
+      _jobs.add(metrics);
+
+      if (success)
+      {
+        _jobsSucceeded++;
+      }
+      else
+      {
+        _jobsFailed++;
+      }
+
+      stageMetrics = _stageMetrics.get(stage);
+
+      if (stageMetrics == null)
+      {
+        stageMetrics = new StageMetrics();
+        _stageMetrics.put(stage, stageMetrics);
+        register(String.format("%s:type=Stage,pipeline=%s,name=%s", DOMAIN, ObjectName.quote(_name), ObjectName.quote(stage)), stageMetrics);
+      }
+    }
+
+    stageMetrics.add(metrics, mapTaskMillis, reduceTaskMillis);
+  }
+
+  @Override
+  public String getName()
+  {
+    return _name;
+  }
+
+  @Override
+  public long getRunId()
+  {
+    return _runId;
+  }
+
+  @Override
+  public long getElapsedMillis()
+  {
+    return System.currentTimeMillis() - _runId;
+  }
+
+  @Override
+  public synchronized String getCurrentStage()
+  {
+    return _currentStage;
+  }
+
+  @Override
+  public synchronized double getProgress()
+  {
+    if (_finished)
+    {
+      return 1.0;
+    }
+
+    int stageIndex = _stages.indexOf(_currentStage);
+
+    if (stageIndex < 0)
+    {
+      return 0.0;
+    }
+
+    // jobs are submitted as a stage lists its input, so the fraction finished can go down as well as up
+    int submitted = _executor.getNumSubmitted() - _stageSubmittedBase;
+    int finished = _executor.getNumFinished() - _stageFinishedBase;
+    double stageProgress = submitted > 0 ? finished / (double)submitted : 0.0;
+
+    return (stageIndex + stageProgress) / _stages.size();
+  }
+
+  @Override
+  public int getJobsSubmitted()
+  {
+    return _executor.getNumSubmitted();
+  }
+
+  @Override
+  public int getJobsRunning()
+  {
+    return _executor.getNumRunning();
+  }
+
+  @Override
+  public int getJobConcurrency()
+  {
+    return _executor.getConcurrencyLimit();
+  }
+
+  @Override
+  public synchronized int getJobsSucceeded()
+  {
+    return _jobsSucceeded;
+  }
+
+  @Override
+  public synchronized int getJobsFailed()
+  {
+    return _jobsFailed;
+  }
+
+  private static long getCounter(Counters counters, String group, String name)
+  {
+    return counters == null ? 0L : counters.findCounter(group, name).getValue();
+  }
+
+  private static String getDay(Path outputPath)
+  {
+    if (outputPath == null)
+    {
+      return null;
+    }
+
+    Matcher matcher = DAY_PATTERN.matcher(outputPath.toUri().getPath());
+
+    return matcher.matches() ? matcher.group(1) + "/" + matcher.group(2) : null;
+  }
+
+  private synchronized void printSummary()
+  {
+    System.out.println(String.format("%-20s %5s %6s %10s %10s %12s %10s %10s %10s %10s",
+                                     "stage", "jobs", "failed", "wall s", "commit s", "records/s", "input MB", "shuffle MB", "map p90 s", "red p90 s"));
+
+    for (Map.Entry<String,StageMetrics> entry : _stageMetrics.entrySet())
+    {
+      StageMetrics stage = entry.getValue();
+
+      System.out.println(String.format("%-20s %5d %6d %10.1f %10.1f %12.0f %10.1f %10.1f %10.1f %10.1f",
+                                       entry.getKey(), stage.getJobsSucceeded() + stage.getJobsFailed(), stage.getJobsFailed(),
+                                       stage.getWallMillis() / 1000.0, stage.getCommitMillis() / 1000.0, stage.getRecordsPerSecond(),
+                                       stage.getInputBytes() / 1024.0 / 1024.0, stage.getShuffleBytes() / 1024.0 / 1024.0,
+                                       stage.getMapTaskMillis90th() / 1000.0, stage.getReduceTaskMillis90th() / 1000.0));
+    }
+  }
+
+  private void writeReport() throws IOException
+  {
+    List<JobMetrics> jobs;
+
+    synchronized (this)
+    {
+      jobs = new ArrayList<JobMetrics>(_jobs);
+    }
+
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy/MMdd");
+    dayFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    FileSystem fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    Path path = new Path(String.format("%s/%s/run-%d.avro", _reportPath, dayFormat.format(new Date(_runId)), _runId));
+
+    DataFileWriter<JobMetrics> writer = new DataFileWriter<JobMetrics>(new SpecificDatumWriter<JobMetrics>(JobMetrics.class));
+
+    try
+    {
+      writer.create(JobMetrics.SCHEMA$, fs.create(path, true));
+
+      for (JobMetrics job : jobs)
+      {
+        writer.append(job);
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+
+    System.out.println(String.format("Wrote metrics of %d jobs to %s", jobs.size(), path));
+  }
+
+  private synchronized void register(String name, Object mbean)
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(name);
+
+      if (server.isRegistered(objectName))
+      {
+        server.unregisterMBean(objectName);
+      }
+
+      server.registerMBean(mbean, objectName);
+      _registered.add(objectName);
+    }
+    catch (Exception e)
+    {
+      _log.warn(String.format("Failed to register MBean %s", name), e);
+    }
+  }
+
+  private synchronized void unregister()
+  {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    for (ObjectName objectName : _registered)
+    {
+      try
+      {
+        server.unregisterMBean(objectName);
+      }
+      catch (Exception e)
+      {
+        _log.warn(String.format("Failed to unregister MBean %s", objectName), e);
+      }
+    }
+
+    _registered.clear();
+  }
+}
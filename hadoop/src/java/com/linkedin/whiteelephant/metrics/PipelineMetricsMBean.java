@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.metrics;
+
+/**
+ * Progress of a run of the pipeline, exposed through JMX.
+ */
+public interface PipelineMetricsMBean
+{
+  String getName();
+
+  long getRunId();
+
+  long getElapsedMillis();
+
+  String getCurrentStage();
+
+  /**
+   * @return Fraction of the run completed, counting each stage equally
+   */
+  double getProgress();
+
+  int getJobsSubmitted();
+
+  int getJobsRunning();
+
+  /**
+   * @return Number of jobs allowed to run at once, which changes over the run if job concurrency is adaptive
+   */
+  int getJobConcurrency();
+
+  int getJobsSucceeded();
+
+  int getJobsFailed();
+}
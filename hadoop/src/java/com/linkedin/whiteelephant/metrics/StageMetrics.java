@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Totals over the finished jobs of one stage of the pipeline.
+ */
+public class StageMetrics implements StageMetricsMBean
+{
+  private int jobsSucceeded;
+  private int jobsFailed;
+  private long inputBytes;
+  private long inputRecords;
+  private long outputRecords;
+  private long shuffleBytes;
+  private long commitMillis;
+  private long firstStartMillis = Long.MAX_VALUE;
+  private long lastFinishMillis;
+
+  private final List<Long> mapTaskMillis = new ArrayList<Long>();
+  private final List<Long> reduceTaskMillis = new ArrayList<Long>();
+
+  synchronized void add(JobMetrics job, List<Long> jobMapTaskMillis, List<Long> jobReduceTaskMillis)
+  {
+    if (job.getSucceeded())
+    {
+      jobsSucceeded++;
+    }
+    else
+    {
+      jobsFailed++;
+    }
+
+    inputBytes += job.getInputBytes() != null ? job.getInputBytes() : 0L;
+    inputRecords += job.getInputRecords();
+    outputRecords += job.getOutputRecords();
+    shuffleBytes += job.getShuffleBytes();
+    commitMillis += job.getCommitMillis();
+
+    if (job.getStartTime() > 0)
+    {
+      firstStartMillis = Math.min(firstStartMillis, job.getStartTime());
+      lastFinishMillis = Math.max(lastFinishMillis, job.getFinishTime() + job.getCommitMillis());
+    }
+
+    mapTaskMillis.addAll(jobMapTaskMillis);
+    reduceTaskMillis.addAll(jobReduceTaskMillis);
+  }
+
+  /**
+   * Summarizes task times, or returns null if there are none.
+   */
+  static TaskMillis summarize(List<Long> taskMillis)
+  {
+    if (taskMillis.size() == 0)
+    {
+      return null;
+    }
+
+    List<Long> sorted = new ArrayList<Long>(taskMillis);
+    Collections.sort(sorted);
+
+    TaskMillis summary = new TaskMillis();
+    summary.setTasks(sorted.size());
+    summary.setMedian(getQuantile(sorted, 0.5));
+    summary.setP90(getQuantile(sorted, 0.9));
+    summary.setMax(sorted.get(sorted.size() - 1));
+    return summary;
+  }
+
+  private static long getQuantile(List<Long> sorted, double quantile)
+  {
+    // nearest rank
+    int rank = (int)Math.ceil(quantile * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+
+  @Override
+  public synchronized int getJobsSucceeded()
+  {
+    return jobsSucceeded;
+  }
+
+  @Override
+  public synchronized int getJobsFailed()
+  {
+    return jobsFailed;
+  }
+
+  @Override
+  public synchronized long getInputBytes()
+  {
+    return inputBytes;
+  }
+
+  @Override
+  public synchronized long getInputRecords()
+  {
+    return inputRecords;
+  }
+
+  @Override
+  public synchronized long getOutputRecords()
+  {
+    return outputRecords;
+  }
+
+  @Override
+  public synchronized long getShuffleBytes()
+  {
+    return shuffleBytes;
+  }
+
+  @Override
+  public synchronized long getWallMillis()
+  {
+    return lastFinishMillis > firstStartMillis ? lastFinishMillis - firstStartMillis : 0L;
+  }
+
+  @Override
+  public synchronized long getCommitMillis()
+  {
+    return commitMillis;
+  }
+
+  @Override
+  public synchronized double getRecordsPerSecond()
+  {
+    long wallMillis = getWallMillis();
+    return wallMillis > 0 ? inputRecords / (wallMillis / 1000.0) : 0.0;
+  }
+
+  @Override
+  public synchronized long getMapTaskMillisMedian()
+  {
+    TaskMillis summary = summarize(mapTaskMillis);
+    return summary == null ? 0L : summary.getMedian();
+  }
+
+  @Override
+  public synchronized long getMapTaskMillis90th()
+  {
+    TaskMillis summary = summarize(mapTaskMillis);
+    return summary == null ? 0L : summary.getP90();
+  }
+
+  @Override
+  public synchronized long getMapTaskMillisMax()
+  {
+    TaskMillis summary = summarize(mapTaskMillis);
+    return summary == null ? 0L : summary.getMax();
+  }
+
+  @Override
+  public synchronized long getReduceTaskMillisMedian()
+  {
+    TaskMillis summary = summarize(reduceTaskMillis);
+    return summary == null ? 0L : summary.getMedian();
+  }
+
+  @Override
+  public synchronized long getReduceTaskMillis90th()
+  {
+    TaskMillis summary = summarize(reduceTaskMillis);
+    return summary == null ? 0L : summary.getP90();
+  }
+
+  @Override
+  public synchronized long getReduceTaskMillisMax()
+  {
+    TaskMillis summary = summarize(reduceTaskMillis);
+    return summary == null ? 0L : summary.getMax();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.metrics;
+
+/**
+ * Totals over the jobs of a stage which have finished, exposed through JMX.  Task times are in milliseconds.
+ */
+public interface StageMetricsMBean
+{
+  int getJobsSucceeded();
+
+  int getJobsFailed();
+
+  long getInputBytes();
+
+  long getInputRecords();
+
+  long getOutputRecords();
+
+  long getShuffleBytes();
+
+  /**
+   * @return Time from the start of the first job of the stage to the finish of the last
+   */
+  long getWallMillis();
+
+  long getCommitMillis();
+
+  double getRecordsPerSecond();
+
+  long getMapTaskMillisMedian();
+
+  long getMapTaskMillis90th();
+
+  long getMapTaskMillisMax();
+
+  long getReduceTaskMillisMedian();
+
+  long getReduceTaskMillis90th();
+
+  long getReduceTaskMillisMax();
+}
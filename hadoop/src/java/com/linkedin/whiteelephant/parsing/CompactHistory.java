@@ -0,0 +1,779 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.parsing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapred.FsInput;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyInputFormat;
+import org.apache.avro.mapreduce.AvroKeyOutputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueInputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.analysis.AttemptStatsKey;
+import com.linkedin.whiteelephant.analysis.AttemptStatsValue;
+import com.linkedin.whiteelephant.analysis.ComputeUsagePerHour;
+import com.linkedin.whiteelephant.analysis.ServingUsageWriter;
+import com.linkedin.whiteelephant.analysis.TimeUnit;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+
+/**
+ * Merges each closed month of parsed jobs and usage into a few large files, sorted by record, and rolls old usage up
+ * from hours to days.
+ *
+ * <p>
+ * A month is compacted once its last day is at least <code>retention.compaction.min.age.days</code> old, which must be
+ * at least <code>num.days</code> so that no run parses its days again.  For each kind of file in the month's days,
+ * such as <code>part</code>, <code>attempts</code> and <code>summary</code> for the parsed jobs, the records of every
+ * day are merged by one job into files of about <code>retention.compaction.file.size</code> bytes.  Records are sorted
+ * on all their fields except those holding maps, so parsed jobs are in job ID order and usage in key order.
+ * </p>
+ *
+ * <p>
+ * The layout of <code>&lt;root&gt;/&lt;cluster&gt;/&lt;yyyy&gt;/&lt;MMdd&gt;</code> with versioned days is kept.  The
+ * merged files are committed as a new version of the first day of the month, and every other day gets a new version
+ * holding no data, so readers which list the latest version of each day find every record once.  Each of these versions
+ * holds a <code>_COMPACTED</code> marker, which for the first day records the days whose records it holds and the
+ * versions it merged.  Older versions of the emptied days are left to be collected like any superseded version, so
+ * readers should resolve the latest version of a day from its version directories rather than its data files.  Stages
+ * computing outputs per day skip compacted days, see {@link #isCompacted}, so a full run neither recomputes the first
+ * day from the whole month nor keeps the outputs of the other days beside it.  Days first written after their month was
+ * compacted are merged into it on the next run.  A day which was merged and is written again later cannot be told apart
+ * from its merged records, so the month is left as it is and an error logged until the day's new versions are removed.
+ * </p>
+ *
+ * <p>
+ * When <code>retention.downsample.age.days</code> is set, usage months older than that are merged with their hourly
+ * usage summed into one record per day, with the unit set to {@link TimeUnit#DAYS}.
+ * </p>
+ */
+public class CompactHistory
+{
+  public static final String MARKER = "_COMPACTED";
+
+  private static final TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  // data files are named <kind>-<m|r>-<partition>.avro
+  private static final Pattern dataFilePattern = Pattern.compile("^(.+)-[mr]-\\d+\\.avro$");
+
+  // day directories are named MMdd, so they sort as the days do
+  private static final Comparator<Path> dayOrder = new Comparator<Path>() {
+    @Override
+    public int compare(Path a, Path b)
+    {
+      return a.getName().compareTo(b.getName());
+    }
+  };
+
+  private final Logger _log;
+  private final Properties _props;
+  private final FileSystem _fs;
+  private final String _name;
+
+  private final String _jobsOutputPathRoot;
+  private final String _usageOutputPathRoot;
+  private final String _workPathRoot;
+  private final int _minAgeDays;
+  private final int _downsampleAgeDays;
+  private final long _fileSize;
+
+  public CompactHistory(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+
+    if (_props.get("jobs.output.path") == null) {
+      throw new IllegalArgumentException("jobs.output.path is not specified.");
+    }
+
+    if (_props.get("usage.output.path") == null) {
+      throw new IllegalArgumentException("usage.output.path is not specified.");
+    }
+
+    if (_props.get("num.days") == null) {
+      throw new IllegalArgumentException("num.days is not specified");
+    }
+
+    if (_props.get("retention.compaction.min.age.days") == null) {
+      throw new IllegalArgumentException("retention.compaction.min.age.days is not specified");
+    }
+
+    _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
+    _usageOutputPathRoot = (String)_props.get("usage.output.path");
+    _workPathRoot = _props.getProperty("retention.work.path", "/tmp" + _jobsOutputPathRoot + "-retention");
+    _minAgeDays = Integer.parseInt((String)_props.get("retention.compaction.min.age.days"));
+    _downsampleAgeDays = Integer.parseInt(_props.getProperty("retention.downsample.age.days", "0"));
+    _fileSize = Long.parseLong(_props.getProperty("retention.compaction.file.size", Long.toString(1024L*1024*1024)));
+
+    // a full run parses the last num.days days again, which would count the days of a compacted month twice
+    if (_minAgeDays < Integer.parseInt((String)_props.get("num.days")))
+    {
+      throw new IllegalArgumentException("retention.compaction.min.age.days must be at least num.days");
+    }
+  }
+
+  public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+  {
+    _fs.delete(new Path(_workPathRoot), true);
+
+    List<MonthInput> months = new ArrayList<MonthInput>();
+
+    for (String root : new String[] { _jobsOutputPathRoot, _usageOutputPathRoot })
+    {
+      FileStatus[] clusterPaths = _fs.listStatus(new Path(root));
+
+      if (clusterPaths == null)
+      {
+        continue;
+      }
+
+      for (FileStatus clusterPath : clusterPaths)
+      {
+        String clusterName = clusterPath.getPath().getName();
+
+        for (FileStatus yearPath : _fs.listStatus(clusterPath.getPath()))
+        {
+          String year = yearPath.getPath().getName();
+
+          System.out.println("Searching under " + yearPath.getPath());
+
+          // days of each month, in order
+          Map<String,List<Path>> dayPathsByMonth = new TreeMap<String,List<Path>>();
+
+          for (FileStatus dayPath : _fs.listStatus(yearPath.getPath()))
+          {
+            String month = dayPath.getPath().getName().substring(0, 2);
+
+            if (!dayPathsByMonth.containsKey(month))
+            {
+              dayPathsByMonth.put(month, new ArrayList<Path>());
+            }
+            dayPathsByMonth.get(month).add(dayPath.getPath());
+          }
+
+          for (Map.Entry<String,List<Path>> entry : dayPathsByMonth.entrySet())
+          {
+            Collections.sort(entry.getValue(), dayOrder);
+
+            MonthInput input = listMonth(root, clusterName, year, entry.getKey(), entry.getValue());
+
+            if (input != null)
+            {
+              months.add(input);
+
+              for (String kind : input.patterns.keySet())
+              {
+                submitJob(executor, input, kind);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    executor.waitForCompletion();
+
+    for (MonthInput input : months)
+    {
+      commit(input);
+    }
+  }
+
+  /**
+   * Whether a version was written by compaction.  Its day's records are merged into the first day of the month, and
+   * the outputs computed from the days before compaction are kept, so stages which process each day leave it alone.
+   *
+   * @param fs File system
+   * @param versionPath The latest version of a day of parsed jobs
+   */
+  public static boolean isCompacted(FileSystem fs, Path versionPath) throws IOException
+  {
+    return fs.exists(new Path(versionPath, MARKER));
+  }
+
+  /**
+   * Lists what needs merging for a month, or returns null if the month is too recent or already compacted.
+   */
+  private MonthInput listMonth(String root, String clusterName, String year, String month, List<Path> dayPaths) throws IOException
+  {
+    Calendar cal = Calendar.getInstance(timeZone);
+    long nowMillis = cal.getTimeInMillis();
+
+    cal.clear();
+    cal.set(Integer.parseInt(year), Integer.parseInt(month) - 1, 1);
+    cal.add(Calendar.MONTH, 1);
+
+    double elapsedDays = ((double)(nowMillis - cal.getTimeInMillis()))/(24*3600*1000);
+
+    if (elapsedDays < _minAgeDays)
+    {
+      return null;
+    }
+
+    boolean downsample = root.equals(_usageOutputPathRoot) && _downsampleAgeDays > 0 && elapsedDays >= _downsampleAgeDays;
+
+    Map<Path,Path> latestPaths = new LinkedHashMap<Path,Path>();
+    Map<Path,Properties> markers = new LinkedHashMap<Path,Properties>();
+
+    Path targetPath = dayPaths.get(0);
+
+    for (Path dayPath : dayPaths)
+    {
+      Path latestPath = VersionedOutput.resolveLatest(_fs, dayPath);
+
+      if (latestPath == null)
+      {
+        continue;
+      }
+
+      latestPaths.put(dayPath, latestPath);
+
+      Properties marker = readMarker(latestPath);
+
+      if (marker != null)
+      {
+        markers.put(dayPath, marker);
+
+        // the day holding an earlier merge of the month stays the target
+        if (marker.getProperty("versions") != null)
+        {
+          targetPath = dayPath;
+        }
+      }
+    }
+
+    Properties targetMarker = markers.get(targetPath);
+
+    if (targetMarker != null && targetMarker.getProperty("versions") == null)
+    {
+      targetMarker = null;
+    }
+
+    boolean compacted = markers.size() == latestPaths.size() && targetMarker != null;
+
+    if (compacted && (!downsample || Boolean.parseBoolean(targetMarker.getProperty("downsampled"))))
+    {
+      return null;
+    }
+
+    // versions merged into the target which may not have been replaced yet, if a previous run failed part way
+    Set<String> merged = new HashSet<String>();
+
+    // every day whose records are in the target, including those merged by earlier runs
+    Set<String> mergedDays = new TreeSet<String>();
+
+    if (targetMarker != null)
+    {
+      merged.addAll(Arrays.asList(targetMarker.getProperty("versions").split(",")));
+      if (targetMarker.getProperty("days") != null)
+      {
+        mergedDays.addAll(Arrays.asList(targetMarker.getProperty("days").split(",")));
+      }
+      else
+      {
+        // written before the days were recorded, when each merge listed every day
+        for (String version : merged)
+        {
+          mergedDays.add(version.substring(0, version.indexOf('/')));
+        }
+      }
+    }
+
+    // The merged files cannot be split back into days, so a day written again after being merged would be counted
+    // twice, and if the target was written again the other days' records are no longer in its latest version.
+    for (Map.Entry<Path,Path> entry : latestPaths.entrySet())
+    {
+      Path dayPath = entry.getKey();
+      Properties marker = markers.get(dayPath);
+      String version = dayPath.getName() + "/" + entry.getValue().getName();
+
+      // the day written again, which for an emptied day without a target holding the merge is the target
+      Path rewrittenPath = null;
+
+      if (targetMarker == null && marker != null && marker.getProperty("compactedInto") != null)
+      {
+        rewrittenPath = new Path(dayPath.getParent(), marker.getProperty("compactedInto"));
+      }
+      else if (targetMarker != null && marker == null && mergedDays.contains(dayPath.getName()) && !merged.contains(version))
+      {
+        rewrittenPath = dayPath;
+      }
+
+      if (rewrittenPath != null)
+      {
+        _log.error(String.format("%s was written again after %s/%s/%s/%s was compacted, leaving the month as it is",
+                                 rewrittenPath, root, clusterName, year, month));
+        return null;
+      }
+    }
+
+    MonthInput input = new MonthInput(root, clusterName, year, month, targetPath, downsample);
+    input.days.addAll(mergedDays);
+
+    for (Map.Entry<Path,Path> entry : latestPaths.entrySet())
+    {
+      Path dayPath = entry.getKey();
+      Path latestPath = entry.getValue();
+
+      input.dayPaths.add(dayPath);
+
+      String version = dayPath.getName() + "/" + latestPath.getName();
+
+      if (!dayPath.equals(targetPath) && markers.containsKey(dayPath))
+      {
+        continue;
+      }
+
+      if (!dayPath.equals(targetPath) && merged.contains(version))
+      {
+        input.versions.add(version);
+        input.days.add(dayPath.getName());
+        continue;
+      }
+
+      FileStatus[] files = _fs.listStatus(latestPath);
+
+      if (files == null)
+      {
+        continue;
+      }
+
+      for (FileStatus file : files)
+      {
+        Matcher matcher = dataFilePattern.matcher(file.getPath().getName());
+
+        if (file.isDir() || !matcher.matches())
+        {
+          continue;
+        }
+
+        String kind = matcher.group(1);
+        String pattern = String.format("%s/%s-*.avro", latestPath, kind);
+
+        if (!input.patterns.containsKey(kind))
+        {
+          input.patterns.put(kind, new ArrayList<String>());
+          input.lengths.put(kind, 0L);
+          input.schemas.put(kind, readSchema(file.getPath()));
+        }
+
+        if (!input.patterns.get(kind).contains(pattern))
+        {
+          input.patterns.get(kind).add(pattern);
+        }
+
+        input.lengths.put(kind, input.lengths.get(kind) + file.getLen());
+      }
+
+      input.versions.add(version);
+      input.days.add(dayPath.getName());
+    }
+
+    if (input.patterns.size() == 0)
+    {
+      return null;
+    }
+
+    System.out.println(String.format("%s/%s/%s/%s => %d days, %d kinds of files%s", root, clusterName, year, month,
+                                     input.dayPaths.size(), input.patterns.size(), downsample ? ", rolling up to days" : ""));
+
+    return input;
+  }
+
+  private void submitJob(StagedOutputJobExecutor executor, MonthInput input, String kind)
+  {
+    String output = input.getWorkPath(kind);
+    long totalLength = input.lengths.get(kind);
+    Schema schema = input.schemas.get(kind);
+
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "compact-history-" + input.id + "-" + kind,
+      input.patterns.get(kind),
+      "/tmp" + output,
+      output,
+      _log);
+
+    final Configuration conf = job.getConfiguration();
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    if (input.downsample && isUsage(schema))
+    {
+      job.setInputFormatClass(AvroKeyValueInputFormat.class);
+      job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+      AvroJob.setInputKeySchema(job, AttemptStatsKey.SCHEMA$);
+      AvroJob.setInputValueSchema(job, AttemptStatsValue.SCHEMA$);
+
+      AvroJob.setMapOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+      AvroJob.setMapOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
+
+      AvroJob.setOutputKeySchema(job, AttemptStatsKey.SCHEMA$);
+      AvroJob.setOutputValueSchema(job, AttemptStatsValue.SCHEMA$);
+
+      job.setMapperClass(CompactHistory.DownsampleMapper.class);
+      job.setReducerClass(ComputeUsagePerHour.TheReducer.class);
+
+      conf.setBoolean(ServingUsageWriter.ENABLED, Boolean.parseBoolean(_props.getProperty(ServingUsageWriter.ENABLED, "false")));
+    }
+    else
+    {
+      job.setInputFormatClass(AvroKeyInputFormat.class);
+      job.setOutputFormatClass(AvroKeyOutputFormat.class);
+
+      AvroJob.setInputKeySchema(job, schema);
+      AvroJob.setMapOutputKeySchema(job, getSortSchema(schema));
+      job.setMapOutputValueClass(NullWritable.class);
+      AvroJob.setOutputKeySchema(job, schema);
+
+      // the shuffle sorts the records, and every copy of a record is written
+      job.setMapperClass(Mapper.class);
+      job.setPartitionerClass(CompactHistory.RecordPartitioner.class);
+      job.setReducerClass(Reducer.class);
+    }
+
+    FileOutputFormat.setCompressOutput(job, true);
+    conf.set(AvroJob.CONF_OUTPUT_CODEC, DataFileConstants.DEFLATE_CODEC);
+
+    job.setNumReduceTasks(Math.max(1, (int)Math.ceil(((double)totalLength)/_fileSize)));
+
+    executor.submit(job, input.clusterName);
+  }
+
+  /**
+   * Commits the merged files as a new version of the target day, then replaces every other day of the month with an
+   * empty version.  Should this fail part way, the marker of the target lets the next run finish the month without
+   * merging any day twice.
+   */
+  private void commit(MonthInput input) throws IOException
+  {
+    Path stagedPath = new Path(input.getWorkPath("commit"));
+    _fs.mkdirs(stagedPath);
+
+    for (String kind : input.patterns.keySet())
+    {
+      Path mergedPath = VersionedOutput.resolveLatest(_fs, new Path(input.getWorkPath(kind)));
+
+      // includes the serving files written beside rolled up usage
+      for (FileStatus file : _fs.globStatus(new Path(mergedPath, "part-*")))
+      {
+        String name = kind + file.getPath().getName().substring("part".length());
+
+        if (!_fs.rename(file.getPath(), new Path(stagedPath, name)))
+        {
+          throw new IOException(String.format("Failed to move %s to %s", file.getPath(), stagedPath));
+        }
+      }
+    }
+
+    Properties marker = new Properties();
+    marker.setProperty("versions", join(input.versions));
+    marker.setProperty("days", join(input.days));
+    marker.setProperty("downsampled", Boolean.toString(input.downsample));
+    writeMarker(stagedPath, marker);
+
+    if (VersionedOutput.commit(_fs, stagedPath, input.targetPath) == null)
+    {
+      throw new IOException(String.format("Failed to commit %s to %s", stagedPath, input.targetPath));
+    }
+
+    for (Path dayPath : input.dayPaths)
+    {
+      if (dayPath.equals(input.targetPath))
+      {
+        continue;
+      }
+
+      Path emptyPath = new Path(input.getWorkPath(dayPath.getName()));
+      _fs.mkdirs(emptyPath);
+
+      Properties dayMarker = new Properties();
+      dayMarker.setProperty("compactedInto", input.targetPath.getName());
+      writeMarker(emptyPath, dayMarker);
+
+      if (VersionedOutput.commit(_fs, emptyPath, dayPath) == null)
+      {
+        throw new IOException(String.format("Failed to commit %s to %s", emptyPath, dayPath));
+      }
+    }
+
+    System.out.println(String.format("Compacted %s/%s/%s/%s into %s", input.root, input.clusterName, input.year, input.month, input.targetPath));
+  }
+
+  private Properties readMarker(Path versionPath) throws IOException
+  {
+    Path markerPath = new Path(versionPath, MARKER);
+
+    if (!_fs.exists(markerPath))
+    {
+      return null;
+    }
+
+    Properties marker = new Properties();
+    InputStream in = _fs.open(markerPath);
+
+    try
+    {
+      marker.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return marker;
+  }
+
+  private void writeMarker(Path versionPath, Properties marker) throws IOException
+  {
+    OutputStream out = _fs.create(new Path(versionPath, MARKER), true);
+
+    try
+    {
+      marker.store(out, null);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private Schema readSchema(Path path) throws IOException
+  {
+    DataFileReader<Object> reader = new DataFileReader<Object>(new FsInput(path, _fs.getConf()), new GenericDatumReader<Object>());
+
+    try
+    {
+      return reader.getSchema();
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  private static boolean isUsage(Schema schema)
+  {
+    return schema.getType() == Schema.Type.RECORD
+        && schema.getField("key") != null
+        && schema.getField("key").schema().getFullName().equals(AttemptStatsKey.SCHEMA$.getFullName());
+  }
+
+  /**
+   * Returns a copy of a record schema whose fields holding maps are ignored when sorting, since Avro cannot
+   * compare maps.
+   */
+  static Schema getSortSchema(Schema schema)
+  {
+    if (schema.getType() != Schema.Type.RECORD)
+    {
+      return schema;
+    }
+
+    List<Schema.Field> fields = new ArrayList<Schema.Field>();
+
+    for (Schema.Field field : schema.getFields())
+    {
+      Schema.Field.Order order = containsMap(field.schema(), new HashSet<String>()) ? Schema.Field.Order.IGNORE : field.order();
+      fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultValue(), order));
+    }
+
+    Schema sortSchema = Schema.createRecord(schema.getName(), schema.getDoc(), schema.getNamespace(), schema.isError());
+    sortSchema.setFields(fields);
+    return sortSchema;
+  }
+
+  private static boolean containsMap(Schema schema, Set<String> visited)
+  {
+    switch (schema.getType())
+    {
+      case MAP:
+        return true;
+      case ARRAY:
+        return containsMap(schema.getElementType(), visited);
+      case UNION:
+        for (Schema type : schema.getTypes())
+        {
+          if (containsMap(type, visited))
+          {
+            return true;
+          }
+        }
+        return false;
+      case RECORD:
+        if (!visited.add(schema.getFullName()))
+        {
+          return false;
+        }
+        for (Schema.Field field : schema.getFields())
+        {
+          if (containsMap(field.schema(), visited))
+          {
+            return true;
+          }
+        }
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  private static String join(Collection<String> values)
+  {
+    StringBuilder sb = new StringBuilder();
+
+    for (String value : values)
+    {
+      if (sb.length() > 0)
+      {
+        sb.append(",");
+      }
+      sb.append(value);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Partitions records by the hash of the fields they are sorted on.  The records read may mix generic and specific
+   * data, which only {@link SpecificData} can hash.
+   */
+  public static class RecordPartitioner extends Partitioner<AvroKey<Object>, NullWritable> implements Configurable
+  {
+    private Configuration conf;
+    private Schema schema;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      this.conf = conf;
+      this.schema = AvroJob.getMapOutputKeySchema(conf);
+    }
+
+    @Override
+    public Configuration getConf()
+    {
+      return conf;
+    }
+
+    @Override
+    public int getPartition(AvroKey<Object> key, NullWritable value, int numPartitions)
+    {
+      return (SpecificData.get().hashCode(key.datum(), schema) & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  /**
+   * Moves hourly usage to the start of its day, in GMT like the day directories, so the reducer sums each day.
+   */
+  public static class DownsampleMapper extends Mapper<AvroKey<AttemptStatsKey>, AvroValue<AttemptStatsValue>, AvroKey<AttemptStatsKey>, AvroValue<AttemptStatsValue>>
+  {
+    private static final long DAY_MILLIS = 24L*3600*1000;
+
+    @Override
+    protected void map(AvroKey<AttemptStatsKey> key, AvroValue<AttemptStatsValue> value, Context context) throws IOException, InterruptedException
+    {
+      AttemptStatsKey statsKey = key.datum();
+
+      statsKey.setTime(statsKey.getTime() - statsKey.getTime() % DAY_MILLIS);
+      statsKey.setUnit(TimeUnit.DAYS);
+
+      context.write(key, value);
+    }
+  }
+
+  private class MonthInput
+  {
+    final String root;
+    final String clusterName;
+    final String year;
+    final String month;
+    final String id;
+    final Path targetPath;
+    final boolean downsample;
+
+    final List<Path> dayPaths = new ArrayList<Path>();
+    final List<String> versions = new ArrayList<String>();
+    final Set<String> days = new TreeSet<String>();
+    final Map<String,List<String>> patterns = new TreeMap<String,List<String>>();
+    final Map<String,Long> lengths = new TreeMap<String,Long>();
+    final Map<String,Schema> schemas = new TreeMap<String,Schema>();
+
+    MonthInput(String root, String clusterName, String year, String month, Path targetPath, boolean downsample)
+    {
+      this.root = root;
+      this.clusterName = clusterName;
+      this.year = year;
+      this.month = month;
+      this.targetPath = targetPath;
+      this.downsample = downsample;
+      this.id = String.format("%s-%s-%s-%s", new Path(root).getName(), clusterName, year, month);
+    }
+
+    String getWorkPath(String stage)
+    {
+      return String.format("%s/%s/%s", _workPathRoot, id, stage);
+    }
+  }
+}
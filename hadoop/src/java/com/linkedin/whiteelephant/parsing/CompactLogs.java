@@ -0,0 +1,433 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.parsing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.input.CombineDocumentFileFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.util.InputListing;
+import com.linkedin.whiteelephant.util.JobStatsProcessing;
+
+/**
+ * Packs each day's raw history files and job confs into a few block compressed SequenceFile containers,
+ * keyed by the original path of each file.
+ *
+ * <p>
+ * Only days at least <code>compaction.min.age.days</code> old are compacted, since files for recent days may still be
+ * uploaded.  Each map task writes one container of roughly <code>compaction.container.size</code> bytes of raw input.
+ * Once a day has been compacted {@link ParseJobsFromLogs} and {@link ParseJobConfs} read its containers instead of
+ * the raw files.  When <code>compaction.delete.raw</code> is true the raw files are deleted after their containers have
+ * been committed.
+ * </p>
+ *
+ * <p>
+ * Each version of a day's containers lists the raw files it holds in a <code>_FILES</code> file.  Raw files which
+ * arrive for a day after it was compacted are packed, along with the day's existing containers, into a new version.
+ * Versions written before the list was kept have it built once from the keys of their containers.
+ * </p>
+ */
+public class CompactLogs
+{
+  private static final String[] SUFFIXES = new String[] { "log", "xml" };
+
+  private static final String FILES = "_FILES";
+
+  private static final TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  private final Logger _log;
+  private final Properties _props;
+  private final FileSystem _fs;
+  private final InputListing _listing;
+  private final String _name;
+
+  private final String _logsRoot;
+  private final String _compactedRoot;
+  private final String _clusterNames;
+  private final int _numDays;
+  private final int _minAgeDays;
+  private final long _containerSize;
+  private final boolean _deleteRaw;
+
+  public CompactLogs(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "compaction");
+
+    if (_props.get("cluster.names") == null) {
+      throw new IllegalArgumentException("cluster.names is not specified.");
+    }
+
+    if (_props.get("logs.root") == null) {
+      throw new IllegalArgumentException("logs.root is not specified.");
+    }
+
+    if (_props.get("logs.compacted.path") == null) {
+      throw new IllegalArgumentException("logs.compacted.path is not specified.");
+    }
+
+    if (_props.get("num.days") == null) {
+      throw new IllegalArgumentException("num.days is not specified");
+    }
+
+    _logsRoot = (String)_props.get("logs.root");
+    _compactedRoot = (String)_props.get("logs.compacted.path");
+    _clusterNames = (String)_props.get("cluster.names");
+    _numDays = Integer.parseInt((String)_props.get("num.days"));
+    _minAgeDays = Integer.parseInt(_props.getProperty("compaction.min.age.days", "30"));
+    _containerSize = Long.parseLong(_props.getProperty("compaction.container.size", Long.toString(1024L*1024*1024)));
+    _deleteRaw = Boolean.parseBoolean(_props.getProperty("compaction.delete.raw", "false"));
+  }
+
+  public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+  {
+    SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
+    SimpleDateFormat dayFormat = new SimpleDateFormat("MMdd");
+
+    yearFormat.setTimeZone(timeZone);
+    dayFormat.setTimeZone(timeZone);
+
+    for (String clusterName : _clusterNames.split(","))
+    {
+      System.out.println("Compacting logs for cluster " + clusterName);
+
+      List<Callable<DayInput>> listings = new ArrayList<Callable<DayInput>>();
+
+      Calendar cal = Calendar.getInstance(timeZone);
+      cal.add(Calendar.DAY_OF_MONTH, -_minAgeDays);
+
+      for (int i=_minAgeDays; i<_numDays; i++, cal.add(Calendar.DAY_OF_MONTH, -1))
+      {
+        Date date = cal.getTime();
+
+        for (String suffix : SUFFIXES)
+        {
+          listings.add(createDayListing(clusterName, yearFormat.format(date), dayFormat.format(date), suffix));
+        }
+      }
+
+      for (DayInput input : _listing.invokeAll(listings))
+      {
+        if (input != null)
+        {
+          if (input.previousPath == null)
+          {
+            System.out.println(String.format("%s => %d files, %d MB", input.pattern, input.files.length, input.totalLength/1024/1024));
+          }
+          else
+          {
+            System.out.println(String.format("%s => %d new files, %d MB, recompacting %s", input.pattern, input.files.length, input.totalLength/1024/1024, input.previousPath));
+          }
+          submitJob(executor, clusterName, input);
+        }
+      }
+    }
+
+    executor.waitForCompletion();
+  }
+
+  private Callable<DayInput> createDayListing(final String clusterName, final String year, final String day, final String suffix)
+  {
+    return new Callable<DayInput>() {
+      @Override
+      public DayInput call() throws IOException
+      {
+        String outputPath = JobStatsProcessing.getCompactedPath(_compactedRoot, suffix, clusterName, year, day);
+        String pattern = String.format("%s/%s/daily/*/%s/%s/*%s", _logsRoot, clusterName, year, day, suffix);
+        String id = String.format("%s-%s-%s-%s", suffix, clusterName, year, day);
+
+        Path versionPath = VersionedOutput.resolveLatest(_fs, new Path(outputPath));
+
+        FileStatus[] files = _fs.globStatus(new Path(pattern));
+
+        if (files == null || files.length == 0)
+        {
+          return null;
+        }
+
+        FileStatus[] containers = versionPath != null ? _fs.globStatus(new Path(versionPath, "part-*")) : null;
+
+        if (containers == null || containers.length == 0)
+        {
+          return new DayInput(id, pattern, outputPath, files, null, new HashSet<String>());
+        }
+
+        Set<String> compacted = readCompactedFiles(versionPath);
+
+        // raw files which arrived after the day was compacted
+        List<FileStatus> newFiles = new ArrayList<FileStatus>();
+
+        for (FileStatus file : files)
+        {
+          if (!compacted.contains(file.getPath().toUri().getPath()))
+          {
+            newFiles.add(file);
+          }
+        }
+
+        if (newFiles.size() == 0)
+        {
+          return null;
+        }
+
+        return new DayInput(id, pattern, outputPath, newFiles.toArray(new FileStatus[newFiles.size()]), versionPath, compacted);
+      }
+    };
+  }
+
+  /**
+   * Reads the paths of the raw files held by a version of a day's containers, from its list if it has one and
+   * otherwise from the keys of its containers, in which case the list is written for the next run.
+   */
+  private Set<String> readCompactedFiles(Path versionPath) throws IOException
+  {
+    Set<String> compacted = new HashSet<String>();
+
+    Path filesPath = new Path(versionPath, FILES);
+
+    if (_fs.exists(filesPath))
+    {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(_fs.open(filesPath), "UTF-8"));
+      try
+      {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+          compacted.add(line);
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+
+      return compacted;
+    }
+
+    FileStatus[] containers = _fs.globStatus(new Path(versionPath, "part-*"));
+
+    if (containers != null)
+    {
+      for (FileStatus container : containers)
+      {
+        SequenceFile.Reader reader = new SequenceFile.Reader(_fs, container.getPath(), _fs.getConf());
+        try
+        {
+          // values of a block compressed file are only decompressed when read
+          Text key = new Text();
+          while (reader.next(key))
+          {
+            compacted.add(new Path(key.toString()).toUri().getPath());
+          }
+        }
+        finally
+        {
+          reader.close();
+        }
+      }
+    }
+
+    Path tempPath = new Path(versionPath, FILES + ".tmp");
+    writeCompactedFiles(tempPath, compacted);
+
+    if (!_fs.rename(tempPath, filesPath))
+    {
+      _log.warn("Failed to save the list of compacted files to " + filesPath);
+    }
+
+    return compacted;
+  }
+
+  private void writeCompactedFiles(Path path, Set<String> compacted) throws IOException
+  {
+    OutputStream stream = _fs.create(path, true);
+
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+    try
+    {
+      for (String file : compacted)
+      {
+        writer.println(file);
+      }
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  private void submitJob(StagedOutputJobExecutor executor, String clusterName, final DayInput input)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+
+    if (input.previousPath == null)
+    {
+      inputPaths.add(input.pattern);
+    }
+    else
+    {
+      inputPaths.add(new Path(input.previousPath, "part-*").toString());
+
+      for (FileStatus file : input.files)
+      {
+        inputPaths.add(file.getPath().toString());
+      }
+    }
+
+    StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-compact-" + input.id,
+      inputPaths,
+      "/tmp" + input.outputPath,
+      input.outputPath,
+      _log);
+
+    if (input.previousPath == null)
+    {
+      job.setInputFormatClass(CombineDocumentFileFormat.class);
+      job.setMapperClass(Mapper.class);
+    }
+    else
+    {
+      // the existing containers are copied into the new version along with the new files
+      MultipleInputs.addInputPath(job, new Path(input.previousPath, "part-*"), SequenceFileInputFormat.class, Mapper.class);
+
+      for (FileStatus file : input.files)
+      {
+        MultipleInputs.addInputPath(job, file.getPath(), CombineDocumentFileFormat.class, Mapper.class);
+      }
+
+      // so that each existing container is copied whole rather than split into blocks
+      job.getConfiguration().setLong("mapred.min.split.size", _containerSize);
+    }
+
+    job.setNumReduceTasks(0);
+
+    // each map task packs one split of files into one container
+    job.getConfiguration().setLong("mapred.max.split.size", _containerSize);
+
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    SequenceFileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+
+    job.addCommitListener(new StagedOutputJob.CommitListener() {
+      @Override
+      public void beforeCommit(StagedOutputJob job, Path stagedPath) throws IOException
+      {
+        Set<String> compacted = new HashSet<String>(input.compacted);
+
+        for (FileStatus file : input.files)
+        {
+          compacted.add(file.getPath().toUri().getPath());
+        }
+
+        writeCompactedFiles(new Path(stagedPath, FILES), compacted);
+      }
+    });
+
+    if (_deleteRaw)
+    {
+      job.addCompletionListener(new StagedOutputJob.CompletionListener() {
+        @Override
+        public void jobCompleted(StagedOutputJob job, boolean success) throws Exception
+        {
+          if (success)
+          {
+            // only files listed before the job was submitted, which are all in the committed containers
+            for (FileStatus file : input.files)
+            {
+              _fs.delete(file.getPath(), false);
+            }
+
+            System.out.println(String.format("Deleted %d raw files matching %s", input.files.length, input.pattern));
+          }
+        }
+      });
+    }
+
+    executor.submit(job, clusterName);
+  }
+
+  private static class DayInput
+  {
+    final String id;
+    final String pattern;
+    final String outputPath;
+    // the raw files to compact
+    final FileStatus[] files;
+    final long totalLength;
+
+    // the latest version of the day's containers and the raw files it holds, when the day was compacted before
+    final Path previousPath;
+    final Set<String> compacted;
+
+    DayInput(String id, String pattern, String outputPath, FileStatus[] files, Path previousPath, Set<String> compacted)
+    {
+      this.id = id;
+      this.pattern = pattern;
+      this.outputPath = outputPath;
+      this.files = files;
+      this.previousPath = previousPath;
+      this.compacted = compacted;
+
+      long totalLength = 0;
+      for (FileStatus file : files)
+      {
+        totalLength += file.getLen();
+      }
+      this.totalLength = totalLength;
+    }
+  }
+}
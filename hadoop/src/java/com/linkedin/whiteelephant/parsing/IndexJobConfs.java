@@ -0,0 +1,356 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.parsing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyInputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.log4j.Logger;
+
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+import com.linkedin.whiteelephant.util.InputListing;
+
+/**
+ * Builds an inverted index of the parsed job confs of each day, from property and value to the IDs of the jobs which
+ * ran with it.
+ *
+ * <p>
+ * The index is written under <code>confs.index.output.path</code> in the same layout as the parsed confs.  Entries
+ * are sorted by property, then by value.  Values which parse as numbers also carry the number, which sorts before the
+ * value, so the numeric values of a property sort by magnitude and any range of them can be read in one pass.  Each
+ * property is written to a single part file, <code>part-r-</code><i>n</i> with <i>n</i> given by
+ * {@link PropertyPartitioner}, so a lookup needs to open only that file.  Values longer than
+ * <code>confs.index.max.value.length</code> characters, such as class paths, are not indexed.
+ * </p>
+ */
+public class IndexJobConfs
+{
+  public static final int DEFAULT_MAX_VALUE_LENGTH = 256;
+
+  private static final Pattern NUMBER_PATTERN = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+
+  private final Logger _log;
+  private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
+  private final Properties _props;
+  private final String _name;
+
+  private final static TimeZone timeZone = TimeZone.getTimeZone("GMT");
+
+  private final String _confsOutputPathRoot;
+  private final String _indexOutputPathRoot;
+  private final boolean _incremental;
+  private final int _numDaysForced;
+  private final int _maxValueLength;
+
+  public IndexJobConfs(String name, Properties props) throws IOException
+  {
+    _log = Logger.getLogger(name);
+    _name = name;
+    _props = props;
+    _fs = FileSystem.get(StagedOutputJob.createConfigurationFromProps(_props));
+    _listing = new InputListing(_fs, _props, "confs-index");
+    _sizer = new JobSizer(_fs, _props, "index-confs");
+
+    if (_props.get("confs.output.path") == null) {
+      throw new IllegalArgumentException("confs.output.path is not specified.");
+    }
+
+    if (_props.get("confs.index.output.path") == null) {
+      throw new IllegalArgumentException("confs.index.output.path is not specified.");
+    }
+
+    if (_props.get("num.days.forced") == null) {
+      throw new IllegalArgumentException("num.days.forced is not specified");
+    }
+
+    _confsOutputPathRoot = (String)_props.get("confs.output.path");
+    _indexOutputPathRoot = (String)_props.get("confs.index.output.path");
+    _incremental = Boolean.parseBoolean((String)_props.get("incremental"));
+    _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
+    _maxValueLength = Integer.parseInt(_props.getProperty("confs.index.max.value.length", Integer.toString(DEFAULT_MAX_VALUE_LENGTH)));
+  }
+
+  public void execute(StagedOutputJobExecutor executor) throws IOException, InterruptedException, ExecutionException
+  {
+    FileStatus[] clusterPaths = _fs.listStatus(new Path(_confsOutputPathRoot));
+
+    for (FileStatus clusterPath : clusterPaths)
+    {
+      String clusterName = clusterPath.getPath().getName();
+
+      FileStatus[] yearPaths = _fs.listStatus(clusterPath.getPath());
+
+      for (FileStatus yearPath : yearPaths)
+      {
+        String year = yearPath.getPath().getName();
+
+        System.out.println("Searching under " + yearPath.getPath());
+        FileStatus[] dayPaths = _fs.listStatus(yearPath.getPath());
+
+        for (FileStatus dayPath : dayPaths)
+        {
+          String day = dayPath.getPath().getName();
+
+          Path latestPath = VersionedOutput.resolveLatest(_fs, dayPath.getPath());
+
+          if (latestPath == null)
+          {
+            continue;
+          }
+
+          String pattern = latestPath.toString() + "/part-*.avro";
+          String outputPathForDay = String.format("%s/%s/%s/%s",_indexOutputPathRoot,clusterName,year,day);
+
+          InputListing.Summary inputFiles = _listing.getSummary(pattern, false, false);
+
+          if (inputFiles.numFiles == 0)
+          {
+            continue;
+          }
+
+          System.out.print(pattern + " => " + inputFiles.numFiles + " files");
+
+          if (isForced(year, day) || !_fs.exists(new Path(outputPathForDay)))
+          {
+            System.out.println(String.format(", %s MB",inputFiles.totalLength/1024/1024));
+
+            // the index is about as large as the confs, one reducer per GB until there is history to size from
+            int numReducers = (int)Math.ceil(((double)inputFiles.totalLength)/1024/1024/1024);
+
+            submitJob(executor, pattern, outputPathForDay, clusterName, year, day, inputFiles.totalLength, numReducers);
+          }
+          else
+          {
+            System.out.println(" (skipping)");
+          }
+        }
+      }
+    }
+
+    executor.waitForCompletion();
+
+    _sizer.save();
+  }
+
+  private boolean isForced(String year, String day)
+  {
+    Calendar cal = Calendar.getInstance(timeZone);
+
+    long nowMillis = cal.getTimeInMillis();
+
+    cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+
+    long thenMillis = cal.getTimeInMillis();
+
+    double elapsedDays = Math.max(0.0, ((double)(nowMillis - thenMillis))/(24*3600*1000));
+
+    return !_incremental || elapsedDays < _numDaysForced;
+  }
+
+  private void submitJob(StagedOutputJobExecutor executor, String inputPattern, String output, String clusterName, String year, String day, long totalLength, int numReducers)
+  {
+    List<String> inputPaths = new ArrayList<String>();
+
+    inputPaths.add(inputPattern);
+
+    final StagedOutputJob job = StagedOutputJob.createStagedJob(
+      _props,
+      _name + "-" + "index-confs-" + clusterName + "-" + year + "-" + day,
+      inputPaths,
+      "/tmp" + output,
+      output,
+      _log);
+
+    final Configuration conf = job.getConfiguration();
+
+    Calendar cal = Calendar.getInstance(timeZone);
+    cal.clear();
+    cal.set(Integer.parseInt(year), Integer.parseInt(day.substring(0, 2)) - 1, Integer.parseInt(day.substring(2, 4)));
+
+    conf.set("cluster.name", clusterName);
+    conf.setLong("index.day.time", cal.getTimeInMillis());
+    conf.setInt("confs.index.max.value.length", _maxValueLength);
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setInputFormatClass(AvroKeyInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, JobConf.SCHEMA$);
+
+    AvroJob.setMapOutputKeySchema(job, ConfIndexKey.SCHEMA$);
+    AvroJob.setMapOutputValueSchema(job, ConfIndexValue.SCHEMA$);
+
+    AvroJob.setOutputKeySchema(job, ConfIndexKey.SCHEMA$);
+    AvroJob.setOutputValueSchema(job, ConfIndexValue.SCHEMA$);
+
+    // lists of job IDs compress well
+    FileOutputFormat.setCompressOutput(job, true);
+    conf.set(AvroJob.CONF_OUTPUT_CODEC, DataFileConstants.DEFLATE_CODEC);
+
+    _sizer.size(job, clusterName, totalLength, numReducers);
+
+    job.setMapperClass(IndexJobConfs.TheMapper.class);
+    job.setPartitionerClass(IndexJobConfs.PropertyPartitioner.class);
+
+    // common values such as defaults are shared by most jobs, so merge their lists before the shuffle
+    job.setCombinerClass(IndexJobConfs.TheReducer.class);
+    job.setReducerClass(IndexJobConfs.TheReducer.class);
+
+    executor.submit(job, clusterName);
+  }
+
+  /**
+   * Returns the value as a number if it is written as a decimal number, otherwise null.
+   */
+  private static Double parseNumber(String value)
+  {
+    if (!NUMBER_PATTERN.matcher(value).matches())
+    {
+      return null;
+    }
+
+    double number = Double.parseDouble(value);
+
+    return Double.isInfinite(number) ? null : number;
+  }
+
+  /**
+   * Emits an entry for each property of each job.
+   */
+  public static class TheMapper extends Mapper<AvroKey<JobConf>, NullWritable, AvroKey<ConfIndexKey>, AvroValue<ConfIndexValue>>
+  {
+    private String clusterName;
+    private long dayTime;
+    private int maxValueLength;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException
+    {
+      clusterName = context.getConfiguration().get("cluster.name");
+      dayTime = context.getConfiguration().getLong("index.day.time", 0L);
+      maxValueLength = context.getConfiguration().getInt("confs.index.max.value.length", DEFAULT_MAX_VALUE_LENGTH);
+    }
+
+    @Override
+    protected void map(AvroKey<JobConf> key, NullWritable ignore, Context context) throws IOException, InterruptedException
+    {
+      JobConf jobConf = key.datum();
+
+      if (jobConf.getConfiguration() == null)
+      {
+        context.getCounter("Conf Indexing", "Missing configuration").increment(1);
+        return;
+      }
+
+      List<CharSequence> jobIds = new ArrayList<CharSequence>(1);
+      jobIds.add(jobConf.getJobId().toString());
+
+      ConfIndexValue indexValue = new ConfIndexValue();
+      indexValue.setJobIds(jobIds);
+
+      for (Map.Entry<CharSequence,CharSequence> property : jobConf.getConfiguration().entrySet())
+      {
+        String value = property.getValue().toString();
+
+        if (value.length() > maxValueLength)
+        {
+          context.getCounter("Conf Indexing", "Value too long").increment(1);
+          continue;
+        }
+
+        ConfIndexKey indexKey = new ConfIndexKey();
+        indexKey.setProperty(property.getKey().toString());
+        indexKey.setNumber(parseNumber(value));
+        indexKey.setValue(value);
+        indexKey.setCluster(clusterName);
+        indexKey.setTime(dayTime);
+
+        context.write(new AvroKey<ConfIndexKey>(indexKey), new AvroValue<ConfIndexValue>(indexValue));
+      }
+    }
+  }
+
+  /**
+   * Sends all entries of a property to the same reducer, so each property is in a single part file.  The part file
+   * holding a property is the non-negative hash code of the property string, as computed by Java, modulo the number
+   * of part files.
+   */
+  public static class PropertyPartitioner extends Partitioner<AvroKey<ConfIndexKey>, AvroValue<ConfIndexValue>>
+  {
+    @Override
+    public int getPartition(AvroKey<ConfIndexKey> key, AvroValue<ConfIndexValue> value, int numPartitions)
+    {
+      return (key.datum().getProperty().toString().hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  /**
+   * Merges the job IDs of each entry into one sorted list.  Also used as the combiner.
+   */
+  public static class TheReducer extends Reducer<AvroKey<ConfIndexKey>, AvroValue<ConfIndexValue>, AvroKey<ConfIndexKey>, AvroValue<ConfIndexValue>>
+  {
+    @Override
+    protected void reduce(AvroKey<ConfIndexKey> key, Iterable<AvroValue<ConfIndexValue>> values, Context context) throws IOException, InterruptedException
+    {
+      TreeSet<String> jobIds = new TreeSet<String>();
+
+      for (AvroValue<ConfIndexValue> value : values)
+      {
+        for (CharSequence jobId : value.datum().getJobIds())
+        {
+          jobIds.add(jobId.toString());
+        }
+      }
+
+      ConfIndexValue merged = new ConfIndexValue();
+      merged.setJobIds(new ArrayList<CharSequence>(jobIds));
+
+      context.write(key, new AvroValue<ConfIndexValue>(merged));
+    }
+  }
+}
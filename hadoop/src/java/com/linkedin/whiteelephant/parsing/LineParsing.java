@@ -16,7 +16,11 @@
 
 package com.linkedin.whiteelephant.parsing;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +31,7 @@ import com.linkedin.whiteelephant.parsing.JobStatus;
 import com.linkedin.whiteelephant.parsing.Task;
 import com.linkedin.whiteelephant.parsing.TaskStatus;
 import com.linkedin.whiteelephant.parsing.TaskType;
+import com.linkedin.whiteelephant.util.StringPool;
 
 public class LineParsing
 {
@@ -38,7 +43,9 @@ public class LineParsing
     START_TIME,
     FINISH_TIME,
     SHUFFLE_FINISHED,
-    SORT_FINISHED
+    SORT_FINISHED,
+    HOSTNAME,
+    TRACKER_NAME
   }
   
   private static String quotedTextPattern = "\"([^\"]+)\"";
@@ -50,10 +57,28 @@ public class LineParsing
   private static Pattern taskLinePattern = Pattern.compile(String.format("Task TASKID=%s TASK_TYPE=\"(MAP|REDUCE)\".+",quotedTextPattern));
   private static Pattern attemptLinePattern = Pattern.compile("^(Map|Reduce)Attempt TASK_TYPE=\"(MAP|REDUCE)\".+");
   
+  // Parameter names are looked up in the line without copying them, and values are only copied for the
+  // parameters which are kept.  Others, like the counters, can be much longer than the rest of the line.
+  private static final StringPool parameterNames = new StringPool(128);
+  private static final Set<String> jobParameters = new HashSet<String>(Arrays.asList(
+    "USER", "JOBNAME", "JOB_QUEUE", "JOB_STATUS", "SUBMIT_TIME", "LAUNCH_TIME", "FINISH_TIME",
+    "TOTAL_MAPS", "TOTAL_REDUCES", "FINISHED_MAPS", "FINISHED_REDUCES", "FAILED_MAPS", "FAILED_REDUCES"));
+  private static final Set<String> taskParameters = new HashSet<String>(Arrays.asList(
+    "TASKID", "TASK_STATUS", "START_TIME", "FINISH_TIME"));
+  private static final Map<String,AttemptParameter> attemptParameters = new HashMap<String,AttemptParameter>();
+  
+  static
+  {
+    for (AttemptParameter param : AttemptParameter.values())
+    {
+      attemptParameters.put(param.name(), param);
+    }
+  }
+  
   public static Job tryParseJob(String line)
   {
     // these mess with our pattern matching
-    line = line.replace("\\\"", "");
+    line = removeEscapedQuotes(line);
     
     Job job = null;
     
@@ -67,9 +92,11 @@ public class LineParsing
       Matcher paramMatcher = parameterPattern.matcher(line);
       while (paramMatcher.find())
       {
-        String name = paramMatcher.group(1);
-        String value = paramMatcher.group(2);                
-        maybeSetJobParam(job, name, value);
+        String name = parameterNames.intern(line, paramMatcher.start(1), paramMatcher.end(1));
+        if (jobParameters.contains(name))
+        {
+          maybeSetJobParam(job, name, paramMatcher.group(2));
+        }
       }
     }
     else if (line.indexOf("USER=") >= 0)
@@ -86,9 +113,11 @@ public class LineParsing
         Matcher paramMatcher = parameterPattern.matcher(line);
         while (paramMatcher.find())
         {
-          String name = paramMatcher.group(1);
-          String value = paramMatcher.group(2);                
-          maybeSetJobParam(job, name, value);
+          String name = parameterNames.intern(line, paramMatcher.start(1), paramMatcher.end(1));
+          if (jobParameters.contains(name))
+          {
+            maybeSetJobParam(job, name, paramMatcher.group(2));
+          }
         }
       }
     }
@@ -96,11 +125,27 @@ public class LineParsing
     return job;
   }
   
+  /**
+   * Whether a line is the last one written to a job history file, which records the final status of the job.
+   */
+  public static boolean isJobFinishLine(String line)
+  {
+    line = removeEscapedQuotes(line);
+
+    return jobLinePattern.matcher(line).matches() && line.contains(" FINISH_TIME=") && line.contains(" JOB_STATUS=");
+  }
+
+  private static String removeEscapedQuotes(String line)
+  {
+    // replacing compiles a pattern, so first check there is anything to replace
+    return line.indexOf("\\\"") >= 0 ? line.replace("\\\"", "") : line;
+  }
+
   private static void maybeSetJobParam(Job job, String name, String value)
   {
     if (name.equals("USER"))
     {
-      job.setUser(value);
+      job.setUser(StringPool.USERS.intern(value));
     }
     else if (name.equals("JOBNAME"))
     {
@@ -108,7 +153,7 @@ public class LineParsing
     }
     else if (name.equals("JOB_QUEUE"))
     {
-      job.setJobQueue(value);
+      job.setJobQueue(StringPool.QUEUES.intern(value));
     }
     else if (name.equals("JOB_STATUS"))
     {
@@ -158,7 +203,7 @@ public class LineParsing
   public static Attempt tryParseAttempt(String line)
   {
     // these mess with our pattern matching
-    line = line.replace("\\\"", "");
+    line = removeEscapedQuotes(line);
     
     Attempt attempt = null;
     
@@ -178,16 +223,18 @@ public class LineParsing
       
       while (matcher.find())
       {
-        String name = matcher.group(1);
-        String value = matcher.group(2);
-        maybeSetAttemptParam(attempt,name,value);
+        AttemptParameter param = attemptParameters.get(parameterNames.intern(line, matcher.start(1), matcher.end(1)));
+        if (param != null)
+        {
+          maybeSetAttemptParam(attempt,param,matcher.group(2));
+        }
       }
       
       matcher = counterPattern.matcher(line);
       
       while (matcher.find())
       {
-        String name = matcher.group(1);
+        String name = StringPool.COUNTERS.intern(line, matcher.start(1), matcher.end(1));
         String value = matcher.group(2);
         setAttemptCounter(attempt,name,Long.parseLong(value));        
       }
@@ -198,7 +245,7 @@ public class LineParsing
         
         if (taskMatcher.matches())
         {
-          String jobId = String.format("job_%s",taskMatcher.group(1));
+          String jobId = "job_" + taskMatcher.group(1);
           attempt.setJobId(jobId);
         }
         else
@@ -218,12 +265,10 @@ public class LineParsing
     return attempt;
   }
   
-  private static void maybeSetAttemptParam(Attempt attempt, String name, String value)
+  private static void maybeSetAttemptParam(Attempt attempt, AttemptParameter param, String value)
   {    
     try
     {
-      AttemptParameter param = AttemptParameter.valueOf(name);
-      
       if (param.equals(AttemptParameter.TASKID))
       {
         attempt.setTaskId(value);
@@ -252,10 +297,22 @@ public class LineParsing
       {
         attempt.setSortFinished(Long.parseLong(value));
       }
+      else if (param.equals(AttemptParameter.HOSTNAME))
+      {
+        // the host is given with its rack, as in /rack/host
+        attempt.setHost(StringPool.HOSTS.intern(value, value.lastIndexOf('/') + 1, value.length()));
+      }
+      else if (param.equals(AttemptParameter.TRACKER_NAME) && attempt.getHost() == null)
+      {
+        // the start line only names the tracker, as in tracker_host:localhost/127.0.0.1:50060
+        int start = value.startsWith("tracker_") ? "tracker_".length() : 0;
+        int end = value.indexOf(':', start) >= 0 ? value.indexOf(':', start) : value.length();
+        attempt.setHost(StringPool.HOSTS.intern(value, start, end));
+      }
     }
     catch (IllegalArgumentException e)
     {
-      // ignore these, it means the enum isn't one we care about
+      // ignore these, it means the status isn't one we know or the time isn't a number
     }
   }
   
@@ -267,7 +324,7 @@ public class LineParsing
   public static Task tryParseTask(String line)
   {
     // these mess with our pattern matching
-    line = line.replace("\\\"", "");
+    line = removeEscapedQuotes(line);
     
     Task task = null;
     
@@ -283,9 +340,11 @@ public class LineParsing
       
       while (matcher.find())
       {
-        String name = matcher.group(1);
-        String value = matcher.group(2);
-        maybeSetTaskParam(task,name,value);
+        String name = parameterNames.intern(line, matcher.start(1), matcher.end(1));
+        if (taskParameters.contains(name))
+        {
+          maybeSetTaskParam(task,name,matcher.group(2));
+        }
       }
       
       if (task.getTaskId() != null)
@@ -294,7 +353,7 @@ public class LineParsing
         
         if (taskMatcher.matches())
         {
-          String jobId = String.format("job_%s",taskMatcher.group(1));
+          String jobId = "job_" + taskMatcher.group(1);
           task.setJobId(jobId);
         }
         else
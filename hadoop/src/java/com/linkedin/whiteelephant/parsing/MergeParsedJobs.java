@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.parsing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapred.AvroWrapper;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyValueInputFormat;
+import org.apache.avro.mapreduce.AvroKeyValueOutputFormat;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import com.linkedin.whiteelephant.mapreduce.MyAvroMultipleOutputs;
+import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
+
+/**
+ * Merges newly parsed jobs into the jobs previously parsed for the same day.
+ *
+ * <p>
+ * Jobs listed in <code>merge.delta.jobs</code> were parsed from complete history files.  When the previous
+ * data has no record for such a job, or only a record parsed from part of its history, the new record replaces
+ * it.  Each replacement is also written to the <code>added</code> named output, and the record it replaced to the
+ * <code>superseded</code> named output, so that usage computed from the previous data can be updated without
+ * recomputing it.
+ * </p>
+ *
+ * <p>
+ * A {@link JobSummary} of each merged job and a {@link FlatAttempt} for each of its attempts are written to the
+ * {@link ParseJobsFromLogs#SUMMARY} and {@link ParseJobsFromLogs#ATTEMPTS} named outputs, as when the jobs are
+ * first parsed.
+ * </p>
+ */
+public class MergeParsedJobs
+{
+  public static final String ADDED = "added";
+  public static final String SUPERSEDED = "superseded";
+
+  /**
+   * Sets up a job which merges parsed jobs.  The input paths are the previous data and the newly parsed jobs.
+   */
+  public static void configureJob(StagedOutputJob job, Iterable<String> deltaJobIds)
+  {
+    StringBuilder jobIds = new StringBuilder();
+    for (String jobId : deltaJobIds)
+    {
+      if (jobIds.length() > 0)
+      {
+        jobIds.append(",");
+      }
+      jobIds.append(jobId);
+    }
+
+    job.getConfiguration().set("merge.delta.jobs", jobIds.toString());
+
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setInputFormatClass(AvroKeyValueInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setInputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setInputValueSchema(job, LogData.SCHEMA$);
+
+    AvroJob.setMapOutputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setMapOutputValueSchema(job, LogData.SCHEMA$);
+
+    AvroJob.setOutputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setOutputValueSchema(job, LogData.SCHEMA$);
+
+    job.setMapperClass(Mapper.class);
+    job.setReducerClass(MergeParsedJobs.TheReducer.class);
+
+    MyAvroMultipleOutputs.addNamedOutput(job, ADDED, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), LogData.SCHEMA$);
+    MyAvroMultipleOutputs.addNamedOutput(job, SUPERSEDED, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), LogData.SCHEMA$);
+    MyAvroMultipleOutputs.addNamedOutput(job, ParseJobsFromLogs.SUMMARY, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), JobSummary.SCHEMA$);
+    MyAvroMultipleOutputs.addNamedOutput(job, ParseJobsFromLogs.ATTEMPTS, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), FlatAttempt.SCHEMA$);
+  }
+
+  public static class TheReducer extends Reducer<AvroKey<String>, AvroValue<LogData>, AvroWrapper<String>, AvroWrapper<LogData>>
+  {
+    private Set<String> deltaJobIds;
+    private MyAvroMultipleOutputs amos;
+
+    @Override
+    protected void setup(Context context)
+    {
+      deltaJobIds = new HashSet<String>(Arrays.asList(context.getConfiguration().getStrings("merge.delta.jobs", new String[0])));
+      amos = new MyAvroMultipleOutputs(context);
+    }
+
+    @Override
+    protected void reduce(AvroKey<String> key, Iterable<AvroValue<LogData>> values, final Context context) throws IOException, InterruptedException
+    {
+      String jobId = key.datum();
+
+      List<LogData> entries = new ArrayList<LogData>();
+      for (AvroValue<LogData> value : values)
+      {
+        entries.add(LogData.newBuilder(value.datum()).build());
+      }
+
+      LogData latest = entries.get(0);
+      for (LogData entry : entries)
+      {
+        if (compareProgress(entry, latest) > 0)
+        {
+          latest = entry;
+        }
+      }
+
+      context.write(new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(latest));
+
+      if (latest.getEntry() instanceof Job)
+      {
+        amos.write(ParseJobsFromLogs.SUMMARY, new AvroWrapper<String>(jobId), new AvroWrapper<JobSummary>(ParseJobsFromLogs.TheReducer.summarize((Job)latest.getEntry())));
+
+        for (FlatAttempt attempt : ParseJobsFromLogs.TheReducer.flatten((Job)latest.getEntry()))
+        {
+          amos.write(ParseJobsFromLogs.ATTEMPTS, new AvroWrapper<String>(jobId), new AvroWrapper<FlatAttempt>(attempt));
+        }
+      }
+
+      if (!deltaJobIds.contains(jobId))
+      {
+        return;
+      }
+
+      if (entries.size() == 1)
+      {
+        // not previously seen
+        amos.write(ADDED, new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(latest));
+        return;
+      }
+
+      // the history file was previously parsed while still being written
+      for (LogData entry : entries)
+      {
+        if (entry != latest && compareProgress(entry, latest) < 0)
+        {
+          amos.write(ADDED, new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(latest));
+          amos.write(SUPERSEDED, new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(entry));
+          return;
+        }
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException
+    {
+      amos.close();
+    }
+
+    /**
+     * Orders records of the same job by how much of its history file they were parsed from: by the number of
+     * finished attempts, then by whether the job's final status was read.  The line recording the final status adds
+     * no attempts, so a record parsed before it has as many as one parsed after.
+     */
+    private static int compareProgress(LogData a, LogData b)
+    {
+      int numFinishedA = getNumFinishedAttempts(a);
+      int numFinishedB = getNumFinishedAttempts(b);
+
+      if (numFinishedA != numFinishedB)
+      {
+        return numFinishedA < numFinishedB ? -1 : 1;
+      }
+
+      boolean finishedA = isFinished(a);
+      boolean finishedB = isFinished(b);
+
+      return finishedA == finishedB ? 0 : (finishedA ? 1 : -1);
+    }
+
+    private static boolean isFinished(LogData data)
+    {
+      if (!(data.getEntry() instanceof Job))
+      {
+        return false;
+      }
+
+      Job job = (Job)data.getEntry();
+
+      return job.getJobStatus() != null || job.getFinishTime() != null;
+    }
+
+    private static int getNumFinishedAttempts(LogData data)
+    {
+      if (!(data.getEntry() instanceof Job) || ((Job)data.getEntry()).getTasks() == null)
+      {
+        return 0;
+      }
+
+      int numFinished = 0;
+
+      for (Task task : ((Job)data.getEntry()).getTasks())
+      {
+        if (task.getAttempts() == null)
+        {
+          continue;
+        }
+
+        for (Attempt attempt : task.getAttempts())
+        {
+          if (attempt.getFinishTime() != null)
+          {
+            numFinished++;
+          }
+        }
+      }
+
+      return numFinished;
+    }
+  }
+}
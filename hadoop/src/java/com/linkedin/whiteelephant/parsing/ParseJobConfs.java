@@ -42,6 +42,7 @@ import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -49,8 +50,10 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import com.linkedin.whiteelephant.mapreduce.lib.input.CombineDocumentFileFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
+import com.linkedin.whiteelephant.util.InputListing;
 import com.linkedin.whiteelephant.util.JobStatsProcessing;
 
 public class ParseJobConfs
@@ -58,10 +61,13 @@ public class ParseJobConfs
   private final Logger _log;
   private final Properties _props;
   private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
   private final String _name;
   
   private final String _confsOutputPathRoot;
   private final String _logsRoot;
+  private final String _compactedRoot;
   private final String _clusterNames;
   private final int _numDays;
   private final int _numDaysForced;
@@ -78,6 +84,8 @@ public class ParseJobConfs
     System.out.println("fs.default.name: " + conf.get("fs.default.name"));
     
     _fs = FileSystem.get(conf);
+    _listing = new InputListing(_fs, _props, "confs");
+    _sizer = new JobSizer(_fs, _props, "parse-confs");
     
     if (_props.get("cluster.names") == null) {
       throw new IllegalArgumentException("cluster.names is not specified.");
@@ -105,6 +113,7 @@ public class ParseJobConfs
 
     _confsOutputPathRoot = (String)_props.get("confs.output.path");
     _logsRoot = (String)_props.get("logs.root");
+    _compactedRoot = (String)_props.get("logs.compacted.path");
     _clusterNames = (String)_props.get("cluster.names");
     _numDays = Integer.parseInt((String)_props.get("num.days"));
     _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
@@ -117,7 +126,7 @@ public class ParseJobConfs
     {
       System.out.println("Processing cluster " + clusterName);
             
-      List<JobStatsProcessing.ProcessingTask> processingTasks = JobStatsProcessing.getTasks(_fs, _logsRoot, clusterName, _confsOutputPathRoot, "xml", _incremental, _numDays, _numDaysForced);
+      List<JobStatsProcessing.ProcessingTask> processingTasks = JobStatsProcessing.getTasks(_listing, _logsRoot, _compactedRoot, clusterName, _confsOutputPathRoot, "xml", _incremental, _numDays, _numDaysForced);
       
       for (JobStatsProcessing.ProcessingTask task : processingTasks)
       {      
@@ -140,20 +149,24 @@ public class ParseJobConfs
         job.setOutputKeyClass(BytesWritable.class);
         job.setOutputValueClass(NullWritable.class);
   
-        job.setInputFormatClass(CombineDocumentFileFormat.class);
+        // compacted containers hold the same path and document pairs as the raw files are read as
+        job.setInputFormatClass(task.compacted ? SequenceFileInputFormat.class : CombineDocumentFileFormat.class);
         job.setOutputFormatClass(AvroKeyOutputFormat.class);
   
         AvroJob.setOutputKeySchema(job, JobConf.SCHEMA$);
         
-        job.setNumReduceTasks(0);
+        _sizer.size(job, clusterName, task.totalLength, 0);
    
         job.setMapperClass(ParseJobConfs.TheMapper.class);
         
-        executor.submit(job);
+        executor.submit(job, clusterName);
       }
-      
-      executor.waitForCompletion();
     }
+    
+    // jobs for all clusters run concurrently, sharing the executor's slots
+    executor.waitForCompletion();
+    
+    _sizer.save();
   }
   
   public static class TheMapper extends Mapper<Text, BytesWritable, AvroWrapper<JobConf>, NullWritable> 
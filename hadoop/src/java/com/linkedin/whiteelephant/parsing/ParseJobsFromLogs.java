@@ -16,8 +16,8 @@
 
 package com.linkedin.whiteelephant.parsing;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,7 +26,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.avro.Schema;
@@ -45,7 +44,10 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.util.LineReader;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
@@ -58,22 +60,49 @@ import com.linkedin.whiteelephant.parsing.LogData;
 import com.linkedin.whiteelephant.parsing.Task;
 import com.linkedin.whiteelephant.mapreduce.MyAvroMultipleOutputs;
 import com.linkedin.whiteelephant.mapreduce.lib.input.CombinedTextInputFormat;
+import com.linkedin.whiteelephant.mapreduce.lib.job.JobSizer;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJob;
 import com.linkedin.whiteelephant.mapreduce.lib.job.StagedOutputJobExecutor;
 import com.linkedin.whiteelephant.parsing.LineParsing;
+import com.linkedin.whiteelephant.util.InputListing;
 import com.linkedin.whiteelephant.util.JobStatsProcessing;
+import com.linkedin.whiteelephant.util.StringPool;
 
 public class ParseJobsFromLogs
 {  
   private static final String CPU_MILLISECONDS = "CPU_MILLISECONDS";
+  private static final String SPILLED_RECORDS = "SPILLED_RECORDS";
+  private static final String REDUCE_SHUFFLE_BYTES = "REDUCE_SHUFFLE_BYTES";
+  private static final String HDFS_BYTES_READ = "HDFS_BYTES_READ";
+  private static final String HDFS_BYTES_WRITTEN = "HDFS_BYTES_WRITTEN";
+  private static final String FILE_BYTES_READ = "FILE_BYTES_READ";
+  private static final String FILE_BYTES_WRITTEN = "FILE_BYTES_WRITTEN";
+  private static final String MAP_INPUT_RECORDS = "MAP_INPUT_RECORDS";
+  private static final String MAP_OUTPUT_RECORDS = "MAP_OUTPUT_RECORDS";
+  private static final String MAP_OUTPUT_BYTES = "MAP_OUTPUT_BYTES";
+  private static final String REDUCE_INPUT_RECORDS = "REDUCE_INPUT_RECORDS";
+  private static final String REDUCE_OUTPUT_RECORDS = "REDUCE_OUTPUT_RECORDS";
+  
+  /**
+   * Named output holding a {@link JobSummary} per job, written beside the parsed jobs as <code>summary-r-*.avro</code>.
+   */
+  public static final String SUMMARY = "summary";
+  
+  /**
+   * Named output holding a {@link FlatAttempt} per attempt, written beside the parsed jobs as <code>attempts-r-*.avro</code>.
+   */
+  public static final String ATTEMPTS = "attempts";
   
   private final Logger _log;
   private final Properties _props;
   private final FileSystem _fs;
+  private final InputListing _listing;
+  private final JobSizer _sizer;
   private final String _name;
   
   private final String _jobsOutputPathRoot;
   private final String _logsRoot;
+  private final String _compactedRoot;
   private final String _clusterNames;
   private final int _numDays;
   private final int _numDaysForced;
@@ -90,6 +119,8 @@ public class ParseJobsFromLogs
     System.out.println("fs.default.name: " + conf.get("fs.default.name"));
     
     _fs = FileSystem.get(conf);
+    _listing = new InputListing(_fs, _props, "logs");
+    _sizer = new JobSizer(_fs, _props, "parse-jobs");
     
     if (_props.get("cluster.names") == null) {
       throw new IllegalArgumentException("cluster.names is not specified.");
@@ -117,6 +148,7 @@ public class ParseJobsFromLogs
 
     _jobsOutputPathRoot = (String)_props.get("jobs.output.path");
     _logsRoot = (String)_props.get("logs.root");
+    _compactedRoot = (String)_props.get("logs.compacted.path");
     _clusterNames = (String)_props.get("cluster.names");
     _numDays = Integer.parseInt((String)_props.get("num.days"));
     _numDaysForced = Integer.parseInt((String)_props.get("num.days.forced"));
@@ -129,7 +161,7 @@ public class ParseJobsFromLogs
     {
       System.out.println("Processing cluster " + clusterName);
             
-      List<JobStatsProcessing.ProcessingTask> processingTasks = JobStatsProcessing.getTasks(_fs, _logsRoot, clusterName, _jobsOutputPathRoot, "log", _incremental, _numDays, _numDaysForced);
+      List<JobStatsProcessing.ProcessingTask> processingTasks = JobStatsProcessing.getTasks(_listing, _logsRoot, _compactedRoot, clusterName, _jobsOutputPathRoot, "log", _incremental, _numDays, _numDaysForced);
       
       for (JobStatsProcessing.ProcessingTask task : processingTasks)
       {      
@@ -146,36 +178,54 @@ public class ParseJobsFromLogs
            outputPath,
            _log);
         
-        job.getConfiguration().set("jobs.output.path", _jobsOutputPathRoot);
-        job.getConfiguration().set("logs.cluster.name", clusterName);
+        configureJob(job, _jobsOutputPathRoot, clusterName);
+        
+        if (task.compacted)
+        {
+          job.setInputFormatClass(SequenceFileInputFormat.class);
+          job.setMapperClass(ParseJobsFromLogs.ContainerMapper.class);
+        }
                 
-        // 1 reducer per 12 GB of input data
+        // 1 reducer per 12 GB of input data, until there is history to size from
         long numReduceTasks = (int)Math.ceil(((double)task.totalLength) / 1024 / 1024 / 1024 / 12);
-                
-        job.setOutputKeyClass(BytesWritable.class);
-        job.setOutputValueClass(BytesWritable.class);
-  
-        job.setInputFormatClass(CombinedTextInputFormat.class);
-        job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
-  
-        AvroJob.setOutputKeySchema(job, Schema.create(Type.STRING));
-        AvroJob.setOutputValueSchema(job, LogData.SCHEMA$);
         
-        job.setNumReduceTasks((int)numReduceTasks);
-   
-        job.setMapperClass(ParseJobsFromLogs.TheMapper.class);
-        job.setReducerClass(ParseJobsFromLogs.TheReducer.class);
-         
-        AvroJob.setMapOutputKeySchema(job, Schema.create(Type.STRING));
-        AvroJob.setMapOutputValueSchema(job, LogData.SCHEMA$);
+        _sizer.size(job, clusterName, task.totalLength, (int)numReduceTasks);
         
-        MyAvroMultipleOutputs.addNamedOutput(job, "logs", AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), LogData.SCHEMA$);
-        
-        executor.submit(job);
+        executor.submit(job, clusterName);
       }
-      
-      executor.waitForCompletion();
     }
+    
+    // jobs for all clusters run concurrently, sharing the executor's slots
+    executor.waitForCompletion();
+    
+    _sizer.save();
+  }
+  
+  /**
+   * Sets up a job which parses raw history files into one record per job.  The caller sets the number of reducers.
+   */
+  public static void configureJob(StagedOutputJob job, String jobsOutputPathRoot, String clusterName)
+  {
+    job.getConfiguration().set("jobs.output.path", jobsOutputPathRoot);
+    job.getConfiguration().set("logs.cluster.name", clusterName);
+    
+    job.setOutputKeyClass(BytesWritable.class);
+    job.setOutputValueClass(BytesWritable.class);
+
+    job.setInputFormatClass(CombinedTextInputFormat.class);
+    job.setOutputFormatClass(AvroKeyValueOutputFormat.class);
+
+    AvroJob.setOutputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setOutputValueSchema(job, LogData.SCHEMA$);
+ 
+    job.setMapperClass(ParseJobsFromLogs.TheMapper.class);
+    job.setReducerClass(ParseJobsFromLogs.TheReducer.class);
+     
+    AvroJob.setMapOutputKeySchema(job, Schema.create(Type.STRING));
+    AvroJob.setMapOutputValueSchema(job, LogData.SCHEMA$);
+    
+    MyAvroMultipleOutputs.addNamedOutput(job, SUMMARY, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), JobSummary.SCHEMA$);
+    MyAvroMultipleOutputs.addNamedOutput(job, ATTEMPTS, AvroKeyValueOutputFormat.class, Schema.create(Type.STRING), FlatAttempt.SCHEMA$);
   }
   
   public static class TheMapper extends Mapper<LongWritable, Text, AvroWrapper<String>, AvroWrapper<LogData>> 
@@ -200,8 +250,11 @@ public class ParseJobsFromLogs
         inputSplits.add(path.toString());
       }
       
-      String line = value.toString(); 
-      
+      parseLine(value.toString(), _clusterName, inputSplits, context);
+    }
+    
+    static void parseLine(String line, String clusterName, List<CharSequence> inputSplits, TaskInputOutputContext<?, ?, AvroWrapper<String>, AvroWrapper<LogData>> context) throws IOException, InterruptedException
+    {
       Job job = null;
       Attempt attempt = null;
       Task task = null;
@@ -221,7 +274,7 @@ public class ParseJobsFromLogs
       LogData data = new LogData();
       String jobId = null;
       
-      data.setCluster(_clusterName);
+      data.setCluster(StringPool.CLUSTERS.utf8(clusterName));
       
       try
       {
@@ -277,7 +330,7 @@ public class ParseJobsFromLogs
       }
     }
     
-    private CharSequence findInputSplitForJob(String jobId, List<CharSequence> inputSplits)
+    private static CharSequence findInputSplitForJob(String jobId, List<CharSequence> inputSplits)
     {
       if (jobId != null)
       {
@@ -294,15 +347,58 @@ public class ParseJobsFromLogs
     }
   }
   
+  /**
+   * Parses history files which {@link CompactLogs} has packed into containers, keyed by their original path.
+   */
+  public static class ContainerMapper extends Mapper<Text, BytesWritable, AvroWrapper<String>, AvroWrapper<LogData>>
+  {
+    String _clusterName;
+    
+    @Override
+    protected void setup(Context context)
+    {
+      _clusterName = context.getConfiguration().get("logs.cluster.name");
+    }
+    
+    @Override
+    protected void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException
+    {
+      List<CharSequence> inputPaths = Collections.<CharSequence>singletonList(key.toString());
+      
+      LineReader reader = new LineReader(new ByteArrayInputStream(value.getBytes(), 0, value.getLength()));
+      Text line = new Text();
+      
+      try
+      {
+        while (reader.readLine(line) > 0)
+        {
+          TheMapper.parseLine(line.toString(), _clusterName, inputPaths, context);
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+  }
+  
   public static class TheReducer extends Reducer<AvroKey<String>, AvroValue<LogData>, AvroWrapper<String>, AvroWrapper<LogData>> 
   {    
     private String jobOutputPath;
+    private MyAvroMultipleOutputs amos;
     
     @Override
     protected void setup(Context context)
     {
       jobOutputPath = context.getConfiguration().get("jobs.output.path");
       System.out.println("Job output path: " + jobOutputPath);
+      amos = new MyAvroMultipleOutputs(context);
+    }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException
+    {
+      amos.close();
     }
     
     @Override
@@ -345,14 +441,13 @@ public class ParseJobsFromLogs
       
       try
       {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MMdd");     
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        
-//        Date submitTime = new Date(job.getSubmitTime());
-//        String baseOutputPath = String.format("%s/%s/part",cluster,dateFormat.format(submitTime));                        
-//        amos.write("logs", new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(data), baseOutputPath);
-        
         context.write(new AvroWrapper<String>(jobId), new AvroWrapper<LogData>(data));
+        amos.write(SUMMARY, new AvroWrapper<String>(jobId), new AvroWrapper<JobSummary>(summarize(job)));
+        
+        for (FlatAttempt attempt : flatten(job))
+        {
+          amos.write(ATTEMPTS, new AvroWrapper<String>(jobId), new AvroWrapper<FlatAttempt>(attempt));
+        }
       }
       catch (Exception e)
       {
@@ -377,6 +472,163 @@ public class ParseJobsFromLogs
       }
     }
     
+    /**
+     * Summarizes a parsed job so that reports over many jobs need not read every attempt.  Minutes are summed over all
+     * attempts of the job, and excess minutes over the attempts marked excess.
+     */
+    public static JobSummary summarize(Job job)
+    {
+      JobSummary summary = new JobSummary();
+      
+      summary.setJobId(job.getJobId());
+      summary.setUser(job.getUser());
+      summary.setJobName(job.getJobName());
+      summary.setJobQueue(job.getJobQueue());
+      summary.setJobStatus(job.getJobStatus() != null ? job.getJobStatus().toString() : null);
+      summary.setSubmitTime(job.getSubmitTime());
+      summary.setLaunchTime(job.getLaunchTime());
+      summary.setFinishTime(job.getFinishTime());
+      
+      double mapMinutes = 0.0;
+      double reduceMinutes = 0.0;
+      double cpuMinutes = 0.0;
+      double excessMinutes = 0.0;
+      int failedAttempts = 0;
+      int killedAttempts = 0;
+      long spilledRecords = 0;
+      
+      if (job.getTasks() != null)
+      {
+        for (Task task : job.getTasks())
+        {
+          if (task.getAttempts() == null)
+          {
+            continue;
+          }
+          
+          for (Attempt attempt : task.getAttempts())
+          {
+            DerivedAttemptData derived = attempt.getDerived();
+            
+            if (derived.getMinutes() != null)
+            {
+              if (attempt.getType() == TaskType.MAP)
+              {
+                mapMinutes += derived.getMinutes();
+              }
+              else
+              {
+                reduceMinutes += derived.getMinutes();
+              }
+              
+              if (Boolean.TRUE.equals(derived.getExcess()))
+              {
+                excessMinutes += derived.getMinutes();
+              }
+            }
+            
+            if (derived.getCpuMinutes() != null)
+            {
+              cpuMinutes += derived.getCpuMinutes();
+            }
+            
+            if (attempt.getTaskStatus() == TaskStatus.FAILED)
+            {
+              failedAttempts++;
+            }
+            else if (attempt.getTaskStatus() == TaskStatus.KILLED)
+            {
+              killedAttempts++;
+            }
+            
+            // keys are Utf8 when the job was read back from a file, as by MergeParsedJobs
+            Long spilled = StringPool.COUNTERS.get(attempt.getCounters(), SPILLED_RECORDS);
+            if (spilled != null)
+            {
+              spilledRecords += spilled;
+            }
+          }
+        }
+      }
+      
+      summary.setMapMinutes(mapMinutes);
+      summary.setReduceMinutes(reduceMinutes);
+      summary.setCpuMinutes(cpuMinutes);
+      summary.setExcessMinutes(excessMinutes);
+      summary.setFailedAttempts(failedAttempts);
+      summary.setKilledAttempts(killedAttempts);
+      summary.setSpilledRecords(spilledRecords);
+      
+      return summary;
+    }
+    
+    /**
+     * Flattens a parsed job into one record per attempt, with the job's fields repeated in each.
+     */
+    public static List<FlatAttempt> flatten(Job job)
+    {
+      List<FlatAttempt> flattened = new ArrayList<FlatAttempt>();
+      
+      if (job.getTasks() == null)
+      {
+        return flattened;
+      }
+      
+      for (Task task : job.getTasks())
+      {
+        if (task.getAttempts() == null)
+        {
+          continue;
+        }
+        
+        for (Attempt attempt : task.getAttempts())
+        {
+          FlatAttempt flat = new FlatAttempt();
+          
+          flat.setJobId(job.getJobId());
+          flat.setUser(job.getUser());
+          flat.setJobName(job.getJobName());
+          flat.setJobQueue(job.getJobQueue());
+          flat.setJobSubmitTime(job.getSubmitTime());
+          flat.setJobLaunchTime(job.getLaunchTime());
+          
+          flat.setTaskId(attempt.getTaskId());
+          flat.setTaskAttemptId(attempt.getTaskAttemptId());
+          flat.setType(attempt.getType().toString());
+          flat.setTaskStatus(attempt.getTaskStatus() != null ? attempt.getTaskStatus().toString() : null);
+          
+          flat.setStartTime(attempt.getStartTime());
+          flat.setFinishTime(attempt.getFinishTime());
+          flat.setShuffleFinished(attempt.getShuffleFinished());
+          flat.setSortFinished(attempt.getSortFinished());
+          
+          flat.setExcess(attempt.getDerived().getExcess());
+          flat.setMinutes(attempt.getDerived().getMinutes());
+          
+          // keys are Utf8 when the job was read back from a file, as by MergeParsedJobs
+          Map<CharSequence,Long> counters = attempt.getCounters();
+          flat.setCpuMilliseconds(StringPool.COUNTERS.get(counters, CPU_MILLISECONDS));
+          flat.setSpilledRecords(StringPool.COUNTERS.get(counters, SPILLED_RECORDS));
+          flat.setReduceShuffleBytes(StringPool.COUNTERS.get(counters, REDUCE_SHUFFLE_BYTES));
+          flat.setHdfsBytesRead(StringPool.COUNTERS.get(counters, HDFS_BYTES_READ));
+          flat.setHdfsBytesWritten(StringPool.COUNTERS.get(counters, HDFS_BYTES_WRITTEN));
+          flat.setFileBytesRead(StringPool.COUNTERS.get(counters, FILE_BYTES_READ));
+          flat.setFileBytesWritten(StringPool.COUNTERS.get(counters, FILE_BYTES_WRITTEN));
+          flat.setMapInputRecords(StringPool.COUNTERS.get(counters, MAP_INPUT_RECORDS));
+          flat.setMapOutputRecords(StringPool.COUNTERS.get(counters, MAP_OUTPUT_RECORDS));
+          flat.setReduceInputRecords(StringPool.COUNTERS.get(counters, REDUCE_INPUT_RECORDS));
+          flat.setReduceOutputRecords(StringPool.COUNTERS.get(counters, REDUCE_OUTPUT_RECORDS));
+          flat.setMapOutputBytes(StringPool.COUNTERS.get(counters, MAP_OUTPUT_BYTES));
+          
+          flat.setHost(attempt.getHost());
+          
+          flattened.add(flat);
+        }
+      }
+      
+      return flattened;
+    }
+    
     public static void mergeJobEntries(Job parsedJob, List<Job> jobEntries/*, final Context context*/)
     {      
       for (Job jobLine : jobEntries)
@@ -539,18 +791,14 @@ public class ParseJobsFromLogs
       Map<String,Attempt> taskAttemptIdToAttempt = new HashMap<String,Attempt>();      
       for (Attempt attempt : attemptEntries)
       {        
-        Attempt mergedAttempt;
-        if (!taskAttemptIdToAttempt.containsKey(attempt.getTaskAttemptId().toString()))
+        String taskAttemptId = attempt.getTaskAttemptId().toString();
+        Attempt mergedAttempt = taskAttemptIdToAttempt.get(taskAttemptId);
+        if (mergedAttempt == null)
         {
           mergedAttempt = new Attempt();
-          mergedAttempt.setCounters(new HashMap<CharSequence,Long>());
           mergedAttempt.setDerived(new DerivedAttemptData());
-          taskAttemptIdToAttempt.put(attempt.getTaskAttemptId().toString(),mergedAttempt);
+          taskAttemptIdToAttempt.put(taskAttemptId,mergedAttempt);
         }
-        else
-        {
-          mergedAttempt = taskAttemptIdToAttempt.get(attempt.getTaskAttemptId().toString());
-        }              
         
         if (attempt.getType() != null)
         {
@@ -613,12 +861,26 @@ public class ParseJobsFromLogs
           mergedAttempt.setTaskStatus(attempt.getTaskStatus());
         }
         
+        if (attempt.getHost() != null)
+        {
+          mergedAttempt.setHost(attempt.getHost());
+        }
+        
         if (attempt.getCounters() != null && attempt.getCounters().size() > 0)
         {
           mergedAttempt.setCounters(attempt.getCounters());
         }
       }
       
+      // only the finish line has counters, so attempts which did not finish share an empty map
+      for (Attempt attempt : taskAttemptIdToAttempt.values())
+      {
+        if (attempt.getCounters() == null)
+        {
+          attempt.setCounters(Collections.<CharSequence,Long>emptyMap());
+        }
+      }
+      
       // filter out bad data
       Collection<Attempt> filteredAttempts = Collections2.filter(taskAttemptIdToAttempt.values(), new Predicate<Attempt>() {
         @Override
@@ -710,7 +972,7 @@ public class ParseJobsFromLogs
           
           // For simplicity we'll say that all attempts which are not successful are excess.
           // In reality there could be some overlapping successful attempts, but we'll ignore this
-          // because it should be rare.
+          // because it should be rare.  ComputeStragglers tells speculative attempts apart from retries.
           
           for (Attempt attempt : task.getAttempts())
           { 
@@ -730,7 +992,7 @@ public class ParseJobsFromLogs
               attempt.getDerived().setCpuMinutes(attempt.getCounters().get(CPU_MILLISECONDS)/1000.0/60.0);
             }
             
-            if (attempt.getTaskStatus().equals("SUCCESS"))
+            if (attempt.getTaskStatus() == TaskStatus.SUCCESS)
             {
               ((DerivedAttemptData)attempt.getDerived()).setExcess(false);
               foundSuccess = true;
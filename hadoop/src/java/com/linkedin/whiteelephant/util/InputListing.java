@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Lists input paths on a bounded thread pool and remembers the result for inputs which are no longer changing.
+ *
+ * <p>
+ * The listing cache is persisted to <code>listing.cache.path</code> when that property is set, so that an incremental
+ * run does not have to glob days which were already complete on a previous run.  Delete the cache file to force
+ * everything to be listed again.
+ * </p>
+ *
+ * <p>
+ * Patterns matching no files are never cached, since the logs for a day can arrive after the day is considered
+ * complete and the day must then be picked up by a later run.
+ * </p>
+ */
+public class InputListing
+{
+  private static final int DEFAULT_CONCURRENCY = 10;
+
+  private final FileSystem _fs;
+  private final ExecutorService _executor;
+  private final Path _cachePath;
+  private final Map<String,Summary> _cache = new ConcurrentHashMap<String,Summary>();
+  private volatile boolean _dirty;
+
+  public InputListing(FileSystem fs, Properties props, String name) throws IOException
+  {
+    _fs = fs;
+
+    int concurrency = DEFAULT_CONCURRENCY;
+    if (props.get("listing.concurrency") != null)
+    {
+      concurrency = Integer.parseInt((String)props.get("listing.concurrency"));
+    }
+
+    _executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "input-listing");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    if (props.get("listing.cache.path") != null)
+    {
+      _cachePath = new Path(String.format("%s/%s.properties", props.get("listing.cache.path"), name));
+      load();
+    }
+    else
+    {
+      _cachePath = null;
+    }
+  }
+
+  public FileSystem getFileSystem()
+  {
+    return _fs;
+  }
+
+  /**
+   * Counts the files matching a pattern and their total size.
+   *
+   * @param pattern Glob pattern
+   * @param complete Whether the matching files are no longer changing, so the result may be reused by later runs
+   *                 if any files matched
+   * @param useCache Whether a previously cached result may be returned
+   * @return The summary
+   * @throws IOException
+   */
+  public Summary getSummary(String pattern, boolean complete, boolean useCache) throws IOException
+  {
+    Summary summary = _cache.get(pattern);
+
+    if (summary != null && useCache)
+    {
+      return summary;
+    }
+
+    FileStatus[] stats = _fs.globStatus(new Path(pattern));
+
+    long totalLength = 0;
+    int numFiles = 0;
+
+    if (stats != null)
+    {
+      for (FileStatus stat : stats)
+      {
+        totalLength += stat.getLen();
+        numFiles++;
+      }
+    }
+
+    summary = new Summary(numFiles, totalLength);
+
+    if (complete && numFiles > 0)
+    {
+      _cache.put(pattern, summary);
+      _dirty = true;
+    }
+
+    return summary;
+  }
+
+  /**
+   * Runs the tasks on the listing thread pool and returns their results in the same order as the tasks.
+   */
+  public <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException, InterruptedException
+  {
+    List<T> results = new ArrayList<T>(tasks.size());
+
+    for (Future<T> future : _executor.invokeAll(tasks))
+    {
+      try
+      {
+        results.add(future.get());
+      }
+      catch (ExecutionException e)
+      {
+        if (e.getCause() instanceof IOException)
+        {
+          throw (IOException)e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Persists the cached listing if anything has changed since it was last loaded or saved.
+   */
+  public synchronized void save() throws IOException
+  {
+    if (_cachePath == null || !_dirty)
+    {
+      return;
+    }
+
+    Properties props = new Properties();
+
+    for (Map.Entry<String,Summary> entry : _cache.entrySet())
+    {
+      props.setProperty(entry.getKey(), String.format("%d,%d", entry.getValue().numFiles, entry.getValue().totalLength));
+    }
+
+    Path tempPath = _cachePath.suffix(".tmp");
+
+    OutputStream stream = _fs.create(tempPath, true);
+    try
+    {
+      props.store(stream, "input listing cache");
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    _fs.delete(_cachePath, false);
+
+    if (!_fs.rename(tempPath, _cachePath))
+    {
+      throw new IOException("Failed to save listing cache to " + _cachePath);
+    }
+
+    _dirty = false;
+  }
+
+  private void load() throws IOException
+  {
+    if (!_fs.exists(_cachePath))
+    {
+      System.out.println("No listing cache found at " + _cachePath);
+      return;
+    }
+
+    Properties props = new Properties();
+
+    InputStream stream = _fs.open(_cachePath);
+    try
+    {
+      props.load(stream);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    for (String pattern : props.stringPropertyNames())
+    {
+      String[] parts = props.getProperty(pattern).split(",");
+      int numFiles = Integer.parseInt(parts[0]);
+
+      // empty listings saved by earlier versions would hide logs which arrived since
+      if (numFiles == 0)
+      {
+        _dirty = true;
+        continue;
+      }
+
+      _cache.put(pattern, new Summary(numFiles, Long.parseLong(parts[1])));
+    }
+
+    System.out.println("Loaded " + _cache.size() + " cached listings from " + _cachePath);
+  }
+
+  public static class Summary
+  {
+    public final int numFiles;
+    public final long totalLength;
+
+    public Summary(int numFiles, long totalLength)
+    {
+      this.numFiles = numFiles;
+      this.totalLength = totalLength;
+    }
+  }
+}
@@ -23,18 +23,25 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+import com.linkedin.whiteelephant.mapreduce.lib.job.VersionedOutput;
+
 
 public class JobStatsProcessing
 {
   // The logs are uploaded to directories named according to approximately the GMT time of the job submission.
   private static TimeZone timeZone = TimeZone.getTimeZone("GMT");
   
-  public static List<ProcessingTask> getTasks(FileSystem fs, String logsRoot, String clusterName, String outputPathRoot, String suffix, boolean incremental, int numDays, int numDaysForced) throws IOException
+  /**
+   * Finds the days of logs which need to be processed.  Days which have been compacted are read from
+   * their containers rather than from the raw files.
+   *
+   * @param compactedRoot Where compacted logs are stored, or null if logs are not compacted
+   */
+  public static List<ProcessingTask> getTasks(final InputListing listing, String logsRoot, String compactedRoot, String clusterName, String outputPathRoot, String suffix, final boolean incremental, int numDays, int numDaysForced) throws IOException, InterruptedException
   {    
     Calendar cal = Calendar.getInstance(timeZone);
     
@@ -46,55 +53,113 @@ public class JobStatsProcessing
     dayFormat.setTimeZone(timeZone);
     idFormat.setTimeZone(timeZone);
     
-    List<ProcessingTask> processingTasks = new ArrayList<ProcessingTask>();
-    
     numDays = Math.max(numDays, numDaysForced);
     
     // Start processing previous day of data since current day isn't yet finished.  Unless we are aggregating hourly data there is no point.
     cal.add(Calendar.DAY_OF_MONTH, -1);
     
-    int numPaths = 0;
-    long totalLength = 0;
+    // Each day is listed independently on the listing thread pool, since against a busy NameNode
+    // the round trips dominate planning time.
+    List<Callable<DayListing>> listings = new ArrayList<Callable<DayListing>>();
+    
     for (int i=0; i<numDays; i++, cal.add(Calendar.DAY_OF_MONTH, -1))
     { 
       Date date = cal.getTime();
       
-      String pathFormat = String.format("%s/%s/daily/*/%s/%s/*%s",logsRoot,clusterName,yearFormat.format(date),dayFormat.format(date), suffix);
-      FileStatus[] stats = fs.globStatus(new Path(pathFormat));
+      final String rawPathFormat = String.format("%s/%s/daily/*/%s/%s/*%s",logsRoot,clusterName,yearFormat.format(date),dayFormat.format(date), suffix);
+      final String compactedPathForDay = getCompactedPath(compactedRoot, suffix, clusterName, yearFormat.format(date), dayFormat.format(date));
+      final String outputPathForDay = String.format("%s/%s/%s/%s",outputPathRoot,clusterName,yearFormat.format(date),dayFormat.format(date));
+      final String id = clusterName + "-" + idFormat.format(date);
+      final boolean forced = i<numDaysForced;
       
-      StringBuilder msg = new StringBuilder(pathFormat + " => " + stats.length + " files");
-            
-      String outputPathForDay = String.format("%s/%s/%s/%s",outputPathRoot,clusterName,yearFormat.format(date),dayFormat.format(date));
-             
-      if (stats.length > 0)
-      {
-        if (!incremental || !fs.exists(new Path(outputPathForDay)) || i<numDaysForced)
+      listings.add(new Callable<DayListing>() {
+        @Override
+        public DayListing call() throws IOException
         {
-          for (FileStatus stat : stats)
-          {         
-            totalLength += stat.getLen();
-            numPaths++;
+          // days before the forced window are complete, so their listing can be reused on later runs
+          boolean complete = !forced;
+          
+          if (incremental && complete && listing.getFileSystem().exists(new Path(outputPathForDay)))
+          {
+            return new DayListing(rawPathFormat + " (skipping)", null);
+          }
+          
+          String pathFormat = rawPathFormat;
+          boolean compacted = false;
+          
+          if (compactedPathForDay != null)
+          {
+            Path containerPath = VersionedOutput.resolveLatest(listing.getFileSystem(), new Path(compactedPathForDay));
+            
+            if (containerPath != null)
+            {
+              pathFormat = containerPath.toString() + "/part-*";
+              compacted = true;
+            }
           }
           
-          String id = clusterName + "-" + idFormat.format(date);
+          InputListing.Summary summary = listing.getSummary(pathFormat, complete, incremental);
           
-          System.out.println(msg);
+          String msg = pathFormat + " => " + summary.numFiles + " files";
           
-          processingTasks.add(new ProcessingTask(id,pathFormat,outputPathForDay, totalLength));
-        }
-        else if (incremental && fs.exists(new Path(outputPathForDay)))
-        {
-          msg.append(" (skipping)");
-          System.out.println(msg);
+          if (summary.numFiles == 0)
+          {
+            return new DayListing(msg, null);
+          }
+          
+          return new DayListing(msg, new ProcessingTask(id,pathFormat,outputPathForDay,summary.totalLength,summary.numFiles,compacted));
         }
-      }      
+      });
+    }
+    
+    List<ProcessingTask> processingTasks = new ArrayList<ProcessingTask>();
+    
+    int numPaths = 0;
+    long totalLength = 0;
+    
+    for (DayListing dayListing : listing.invokeAll(listings))
+    {
+      System.out.println(dayListing.msg);
+      
+      if (dayListing.task != null)
+      {
+        numPaths += dayListing.task.numFiles;
+        totalLength += dayListing.task.totalLength;
+        processingTasks.add(dayListing.task);
+      }
     }
     
+    listing.save();
+    
     System.out.println("Found " + numPaths + " paths to process, totalling " + totalLength + " bytes (" + (totalLength/(1024*1024*1024)) + " gigabytes)");
     
     return processingTasks;
   }
   
+  /**
+   * @return Where the compacted files with the given suffix are stored for a day, or null if logs are not compacted
+   */
+  public static String getCompactedPath(String compactedRoot, String suffix, String clusterName, String year, String day)
+  {
+    if (compactedRoot == null)
+    {
+      return null;
+    }
+    
+    return String.format("%s/%s/%s/%s/%s", compactedRoot, suffix, clusterName, year, day);
+  }
+  
+  private static class DayListing
+  {
+    final String msg;
+    final ProcessingTask task;
+    
+    DayListing(String msg, ProcessingTask task)
+    {
+      this.msg = msg;
+      this.task = task;
+    }
+  }
   
   public static class ProcessingTask
   {
@@ -102,13 +167,19 @@ public class JobStatsProcessing
     public final String inputPathFormat;
     public final String outputPath;
     public final long totalLength;
+    public final int numFiles;
+    
+    // whether the input is a set of containers produced by compaction, rather than the raw files
+    public final boolean compacted;
     
-    public ProcessingTask(String id, String inputPathFormat, String outputPath, long totalLength)
+    public ProcessingTask(String id, String inputPathFormat, String outputPath, long totalLength, int numFiles, boolean compacted)
     {
       this.id = id;
       this.inputPathFormat = inputPathFormat;
       this.outputPath = outputPath;
       this.totalLength = totalLength;
+      this.numFiles = numFiles;
+      this.compacted = compacted;
     }
   }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.linkedin.whiteelephant.parsing.LineParsing;
+
+/**
+ * Tracks how far each job history file has been read while it is still being uploaded.
+ *
+ * <p>
+ * Each scan of a file reads only the bytes appended since the previous scan, up to the last complete line,
+ * looking for the line which records the final status of the job.  Once that line has been seen the file is
+ * finished and is not read again.  Files are marked ingested once their data has been committed, and entries
+ * for files which are no longer listed are dropped.
+ * </p>
+ *
+ * <p>
+ * The checkpoint is persisted so that a restarted process neither reads files from the beginning again
+ * nor ingests the same job twice.
+ * </p>
+ */
+public class LogCheckpoint
+{
+  private static final String FINISHED = "finished";
+  private static final String INGESTED = "ingested";
+
+  private static final int BUFFER_SIZE = 64*1024;
+
+  private final FileSystem _fs;
+  private final Path _path;
+
+  // path => byte offset scanned so far, FINISHED or INGESTED
+  private final Map<String,String> _state = new HashMap<String,String>();
+
+  public LogCheckpoint(FileSystem fs, Path path) throws IOException
+  {
+    _fs = fs;
+    _path = path;
+    load();
+  }
+
+  /**
+   * Reads whatever has been appended to a history file since it was last scanned.
+   *
+   * @param file The history file
+   * @return Whether the job the file belongs to has finished
+   * @throws IOException
+   */
+  public boolean scan(FileStatus file) throws IOException
+  {
+    String path = file.getPath().toString();
+
+    long offset;
+
+    synchronized (this)
+    {
+      String state = _state.get(path);
+
+      if (FINISHED.equals(state) || INGESTED.equals(state))
+      {
+        return true;
+      }
+
+      offset = state == null ? 0 : Long.parseLong(state);
+    }
+
+    if (file.getLen() <= offset)
+    {
+      return false;
+    }
+
+    boolean finished = false;
+    long position = offset;
+    long lineStart = offset;
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    byte[] buffer = new byte[BUFFER_SIZE];
+
+    FSDataInputStream stream = _fs.open(file.getPath());
+    try
+    {
+      stream.seek(offset);
+
+      int read;
+      while (!finished && position < file.getLen() && (read = stream.read(buffer, 0, (int)Math.min(buffer.length, file.getLen() - position))) > 0)
+      {
+        int start = 0;
+
+        for (int i=0; i<read; i++)
+        {
+          if (buffer[i] == '\n')
+          {
+            line.write(buffer, start, i - start);
+            start = i + 1;
+            lineStart = position + start;
+
+            if (LineParsing.isJobFinishLine(line.toString("UTF-8")))
+            {
+              finished = true;
+              break;
+            }
+
+            line.reset();
+          }
+        }
+
+        line.write(buffer, start, read - start);
+        position += read;
+      }
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    synchronized (this)
+    {
+      // a partial line at the end is read again on the next scan, once the rest of it has been written
+      _state.put(path, finished ? FINISHED : Long.toString(lineStart));
+    }
+
+    return finished;
+  }
+
+  public synchronized boolean isIngested(String path)
+  {
+    return INGESTED.equals(_state.get(path));
+  }
+
+  public synchronized void markIngested(Collection<String> paths)
+  {
+    for (String path : paths)
+    {
+      _state.put(path, INGESTED);
+    }
+  }
+
+  /**
+   * Forgets every file not in the given collection, so the checkpoint only covers days which are still polled.
+   */
+  public synchronized void retain(Collection<String> paths)
+  {
+    Set<String> retained = new HashSet<String>(paths);
+    _state.keySet().retainAll(retained);
+  }
+
+  public synchronized void save() throws IOException
+  {
+    Properties props = new Properties();
+    props.putAll(_state);
+
+    Path tempPath = _path.suffix(".tmp");
+
+    OutputStream stream = _fs.create(tempPath, true);
+    try
+    {
+      props.store(stream, "history file checkpoint");
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    _fs.delete(_path, false);
+
+    if (!_fs.rename(tempPath, _path))
+    {
+      throw new IOException("Failed to save checkpoint to " + _path);
+    }
+  }
+
+  private void load() throws IOException
+  {
+    if (!_fs.exists(_path))
+    {
+      System.out.println("No checkpoint found at " + _path);
+      return;
+    }
+
+    Properties props = new Properties();
+
+    InputStream stream = _fs.open(_path);
+    try
+    {
+      props.load(stream);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    for (String path : props.stringPropertyNames())
+    {
+      _state.put(path, props.getProperty(path));
+    }
+
+    System.out.println("Loaded checkpoint for " + _state.size() + " files from " + _path);
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant.util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.avro.util.Utf8;
+
+/**
+ * A bounded dictionary of the strings which recur across records, such as counter names, users, clusters and queues.
+ *
+ * <p>
+ * Each string is held once, both as a {@link String} and as a {@link Utf8}, and can be looked up by its characters
+ * in a region of a line or by the bytes of a {@link Utf8} read from a file, without allocating when it is found.
+ * The pool is direct mapped: a string which hashes to the slot of another replaces it, so the pool never grows
+ * beyond its capacity and a string seen once costs no more than it did before.  Lookups are lock-free.  Threads
+ * missing at the same time may each create the string, which only costs memory.
+ * </p>
+ *
+ * <p>
+ * The pooled {@link Utf8}s are shared, so they may be set on records which are written but must never be set on a
+ * record that an Avro reader reuses, since the reader would overwrite them.
+ * </p>
+ */
+public class StringPool
+{
+  public static final StringPool COUNTERS = new StringPool(256);
+  public static final StringPool USERS = new StringPool(4096);
+  public static final StringPool CLUSTERS = new StringPool(16);
+  public static final StringPool QUEUES = new StringPool(256);
+  public static final StringPool HOSTS = new StringPool(4096);
+
+  private final Entry[] _entries;
+
+  /**
+   * @param capacity Number of strings the pool holds, rounded up to a power of two
+   */
+  public StringPool(int capacity)
+  {
+    int size = 1;
+    while (size < capacity)
+    {
+      size <<= 1;
+    }
+    _entries = new Entry[size];
+  }
+
+  /**
+   * Returns the pooled string with the same characters as the value, or null if the value is null.
+   */
+  public String intern(CharSequence value)
+  {
+    Entry entry = lookup(value);
+    return entry != null ? entry.string : null;
+  }
+
+  /**
+   * Returns the pooled string with the same characters as the region [start, end) of the value.
+   */
+  public String intern(CharSequence value, int start, int end)
+  {
+    return lookup(value, start, end).string;
+  }
+
+  /**
+   * Returns the pooled {@link Utf8} with the same characters as the value, or null if the value is null.
+   */
+  public Utf8 utf8(CharSequence value)
+  {
+    Entry entry = lookup(value);
+    return entry != null ? entry.utf8 : null;
+  }
+
+  /**
+   * Gets the value for a key from a map whose keys are either {@link String}s or {@link Utf8}s, as when
+   * the map was produced by the parser or read back from a file.  The two never equal each other.
+   */
+  public <V> V get(Map<CharSequence,V> map, CharSequence key)
+  {
+    Entry entry = lookup(key);
+    V value = map.get(entry.string);
+    return value != null ? value : map.get(entry.utf8);
+  }
+
+  private Entry lookup(CharSequence value)
+  {
+    if (value == null)
+    {
+      return null;
+    }
+
+    if (value instanceof Utf8)
+    {
+      return lookup((Utf8)value);
+    }
+
+    return lookup(value, 0, value.length());
+  }
+
+  private Entry lookup(CharSequence value, int start, int end)
+  {
+    int hash;
+    if (value instanceof String && start == 0 && end == value.length())
+    {
+      // cached by the string
+      hash = value.hashCode();
+    }
+    else
+    {
+      hash = 0;
+      for (int i = start; i < end; i++)
+      {
+        hash = 31*hash + value.charAt(i);
+      }
+    }
+
+    int slot = slot(hash);
+    Entry entry = _entries[slot];
+
+    if (entry != null && entry.string.length() == end - start && regionEquals(entry.string, value, start))
+    {
+      return entry;
+    }
+
+    entry = new Entry(value.subSequence(start, end).toString());
+    _entries[slot] = entry;
+    return entry;
+  }
+
+  private Entry lookup(Utf8 value)
+  {
+    // Utf8 has no cached string once a reader has reused it, so compare its bytes rather than its characters.
+    // For ASCII this hashes the same as the characters do.
+    byte[] bytes = value.getBytes();
+    int length = value.getByteLength();
+
+    int hash = 0;
+    for (int i = 0; i < length; i++)
+    {
+      hash = 31*hash + bytes[i];
+    }
+
+    int slot = slot(hash);
+    Entry entry = _entries[slot];
+
+    if (entry != null && entry.bytes.length == length && regionEquals(entry.bytes, bytes))
+    {
+      return entry;
+    }
+
+    entry = new Entry(value.toString());
+    _entries[slot] = entry;
+    return entry;
+  }
+
+  private int slot(int hash)
+  {
+    // mix the high bits into the low ones, as HashMap does
+    hash ^= (hash >>> 16);
+    return hash & (_entries.length - 1);
+  }
+
+  private static boolean regionEquals(String string, CharSequence value, int start)
+  {
+    for (int i = 0; i < string.length(); i++)
+    {
+      if (string.charAt(i) != value.charAt(start + i))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean regionEquals(byte[] pooled, byte[] bytes)
+  {
+    for (int i = 0; i < pooled.length; i++)
+    {
+      if (pooled[i] != bytes[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class Entry
+  {
+    final String string;
+    final byte[] bytes;
+    final Utf8 utf8;
+
+    Entry(String string)
+    {
+      this.string = string;
+      this.bytes = Utf8.getBytesFor(string);
+      // the Utf8 gets its own copy of the bytes, so that a caller misusing it cannot corrupt the pool
+      this.utf8 = new Utf8(Arrays.copyOf(bytes, bytes.length));
+    }
+  }
+}
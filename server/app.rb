@@ -107,6 +107,104 @@ helpers do
   end
 end
 
+# Quantiles of attempt durations, in minutes, over a time range.  The optional type filters attempts as for
+# /api/usage, for example minutesMap for map attempts only.
+get "/api/quantiles" do
+  content_type :json
+
+  date_start = params[:start] || (halt 500)
+  date_end = params[:end] || (halt 500)
+  users = params[:user] || (halt 500)
+  cluster = params[:cluster] || (halt 500)
+  type = params[:type] && params[:type].to_sym
+
+  time = {
+    :start => date_start.to_i,
+    :end => date_end.to_i
+  }
+
+  UsageData.fetch_duration_quantiles(cluster,users.split(",").uniq,time,type).merge(:cluster => cluster).to_json
+end
+
+# Average slots occupied on each host of a cluster per time unit, with the attempts failed on it.  The optional
+# type is MAP or REDUCE.
+get "/api/hosts" do
+  content_type :json
+
+  date_start = params[:start] || (halt 500)
+  date_end = params[:end] || (halt 500)
+  unit = params[:unit] || (halt 500)
+  zone = params[:zone] || (halt 500)
+  cluster = params[:cluster] || (halt 500)
+  type = params[:type]
+
+  halt 500 if type && !%w|MAP REDUCE|.include?(type)
+
+  time = {
+    :start => date_start.to_i,
+    :end => date_end.to_i,
+    :unit => unit,
+    :zone => zone
+  }
+
+  UsageData.fetch_host_occupancy(cluster,time,type).merge(:cluster => cluster).to_json
+end
+
+# Quantiles of a scheduling latency, in minutes, per time unit.  The metric is one of queueWait, firstMapWait or
+# mapTaskWait.  Users are optional, all users are included when none are given.
+get "/api/latency" do
+  content_type :json
+
+  date_start = params[:start] || (halt 500)
+  date_end = params[:end] || (halt 500)
+  unit = params[:unit] || (halt 500)
+  zone = params[:zone] || (halt 500)
+  cluster = params[:cluster] || (halt 500)
+  metric = (params[:metric] && params[:metric].to_sym) || (halt 500)
+  users = (params[:user] || "").split(",").uniq
+
+  halt 500 unless UsageData.latencies_to_query.include?(metric)
+
+  time = {
+    :start => date_start.to_i,
+    :end => date_end.to_i,
+    :unit => unit,
+    :zone => zone
+  }
+
+  UsageData.fetch_latency(cluster,users,time,metric).merge(:cluster => cluster, :metric => metric).to_json
+end
+
+get "/api/confs" do
+  content_type :json
+
+  date_start = params[:start] || (halt 500)
+  date_end = params[:end] || (halt 500)
+  cluster = params[:cluster] || (halt 500)
+  property = params[:property] || (halt 500)
+
+  condition = {}
+  condition[:value] = params[:value] if params[:value]
+
+  [:min, :max].each do |bound|
+    next unless params[bound]
+    begin
+      condition[bound] = Float(params[bound])
+    rescue ArgumentError
+      halt 500
+    end
+  end
+
+  halt 500 if condition.empty?
+
+  time = {
+    :start => date_start.to_i,
+    :end => date_end.to_i
+  }
+
+  UsageData.fetch_conf_jobs(cluster,time,property,condition).merge(:cluster => cluster).to_json
+end
+
 get "/api/table" do
 
   headers "Content-Disposition" => "attachment;filename=table.csv",
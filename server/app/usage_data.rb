@@ -137,8 +137,114 @@ class UsageData
       return_val
     end
 
+    # Quantiles of attempt durations over the time range, per user and over all the users, computed by merging
+    # the duration sketches of each hour.
+    def fetch_duration_quantiles(cluster,users,time,type)
+      puts "Fetching duration quantiles"
+
+      where = {}
+      where_for_type(where,type) if type
+
+      cache_query_duration_quantiles(cluster,users,time[:start],time[:end],where)
+    end
+
+    # Average number of slots occupied on each host per time unit: the slot minutes of its attempts divided by the
+    # minutes in the unit.  The last unit ends at the latest data rather than its end, since it is usually partial.
+    # The type is optional and one of MAP or REDUCE.
+    def fetch_host_occupancy(cluster,time,type)
+      puts "Fetching host occupancy"
+
+      where = {
+        :cluster => {:equals => cluster}
+      }
+
+      where[:type] = {:equals => type} if type
+
+      time_unit = time[:unit]
+      time_zone = time[:zone]
+
+      cube = cache_query_by_time([:host,:time],where,[:elapsedMinutes,:failed],time_unit,time_zone,"HostUsage")
+
+      return_val = get_time_range(cluster,time,time_zone)
+
+      times = return_val[:times]
+
+      _,max_time = get_time_range_for_cluster(cluster)
+      last_end = [time[:end],max_time + 3600*1000].min
+
+      unit_minutes = times.each_with_index.map do |t,i|
+        unit_end = i+1 < times.size ? times[i+1] : last_end
+        [(unit_end - t)/60000.0,1.0].max
+      end
+
+      hosts = cube.cube.keys.sort
+
+      return_val[:hosts] = hosts.map do |host|
+        host_cube = cube.slice(host)
+
+        occupancy = times.each_with_index.map do |t,i|
+          values = host_cube && host_cube.cube[t]
+          ((values && values[:elapsedMinutes]) || 0.0)/unit_minutes[i]
+        end
+
+        failed = times.map do |t|
+          values = host_cube && host_cube.cube[t]
+          (values && values[:failed]) || 0
+        end
+
+        { :host => host, :occupancy => occupancy, :failed => failed }
+      end
+
+      return_val
+    end
+
+    # Quantiles of a scheduling latency, in minutes, per time unit over the given users, or all users when none
+    # are given.
+    def fetch_latency(cluster,users,time,metric)
+      puts "Fetching latency"
+
+      raise "Unrecognized latency: #{metric}" unless latencies_to_query.include?(metric)
+
+      time_unit = time[:unit]
+      time_zone = time[:zone]
+
+      per_time = cache_query_latency(cluster,users,metric,time_unit,time_zone)
+
+      return_val = get_time_range(cluster,time,time_zone)
+
+      empty = { :count => 0 }
+      quantiles_to_query.each { |q| empty["p#{(q*100).round}".to_sym] = nil }
+
+      return_val[:quantiles] = return_val[:times].map { |t| per_time[t] || empty }
+
+      return_val
+    end
+
+    # The jobs which ran with a conf property set to the given value, or to a number within the given range, per
+    # day.  Either end of the range may be left out.
+    def fetch_conf_jobs(cluster,time,property,condition)
+      puts "Fetching jobs by conf"
+
+      entries = cache_query_conf_jobs(cluster,time[:start],time[:end],property,condition)
+
+      {
+        :property => property,
+        :entries => entries,
+        :num_jobs => entries.map { |entry| entry[:jobs] }.flatten.uniq.size
+      }
+    end
+
+    def latencies_to_query
+      [:queueWait, :firstMapWait, :mapTaskWait]
+    end
+
+    def quantiles_to_query
+      [0.5, 0.95, 0.99]
+    end
+
     def measures_to_query
-      [:elapsedMinutes, :cpuMinutes, :started, :finished, :reduceShuffleBytes]
+      [:elapsedMinutes, :cpuMinutes, :started, :finished, :reduceShuffleBytes, :shuffleMinutes, :sortMinutes, :reducePhaseMinutes,
+       :spilledRecords, :hdfsBytesRead, :hdfsBytesWritten, :fileBytesWritten, :mapOutputBytes]
     end
 
     def where_for_type(where, type)
@@ -185,9 +291,12 @@ class UsageData
       when :reduceStarted, :reduceFinished
         where[:type] = {:equals => :REDUCE}
 
-      when :reduceShuffleBytes
+      when :reduceShuffleBytes, :minutesShuffle, :minutesSort, :minutesReducePhase
         where[:type] = {:equals => :REDUCE}
 
+      when :mapOutputBytes
+        where[:type] = {:equals => :MAP}
+
       end
     end
 
@@ -235,9 +344,12 @@ class UsageData
       when :reduceStarted, :reduceFinished
         query[:type] = :REDUCE
 
-      when :reduceShuffleBytes
+      when :reduceShuffleBytes, :minutesShuffle, :minutesSort, :minutesReducePhase
         query[:type] = :REDUCE
 
+      when :mapOutputBytes
+        query[:type] = :MAP
+
       end
     end
 
@@ -250,8 +362,17 @@ class UsageData
       when :cpuTotal
         :cpuMinutes
 
-      when :reduceShuffleBytes
-        :reduceShuffleBytes
+      when :reduceShuffleBytes, :spilledRecords, :hdfsBytesRead, :hdfsBytesWritten, :fileBytesWritten, :mapOutputBytes
+        type
+
+      when :minutesShuffle
+        :shuffleMinutes
+
+      when :minutesSort
+        :sortMinutes
+
+      when :minutesReducePhase
+        :reducePhaseMinutes
 
       when :successStarted, :failedStarted, :killedStarted, :totalStarted, :mapStarted, :reduceStarted
         :started
@@ -267,9 +388,9 @@ class UsageData
 
     def measure_default_value(measure)
       case measure
-      when :elapsedMinutes, :cpuMinutes
+      when :elapsedMinutes, :cpuMinutes, :shuffleMinutes, :sortMinutes, :reducePhaseMinutes
         0.0
-      when :started, :finished, :reduceShuffleBytes
+      when :started, :finished, :reduceShuffleBytes, :spilledRecords, :hdfsBytesRead, :hdfsBytesWritten, :fileBytesWritten, :mapOutputBytes
         0
       else
         raise "Unrecognized type: #{measure}"
@@ -522,8 +643,167 @@ class UsageData
     users.keys.sort
   end
 
-  def query_by_time(what,where,measures,time_unit,time_zone)
-    puts "Querying:"
+  def query_duration_quantiles(cluster,users,start_time,end_time,where)
+    db_conn = UsageDatabase.connection
+
+    puts "Fetching duration quantiles for #{cluster}"
+    start = Time.now
+
+    where_string = where.map do |dimension,condition|
+      "#{dimension}='#{condition[:equals]}'"
+    end.map { |c| " AND #{c}" }.join
+
+    prepared_statement = db_conn.prepareStatement(%|
+      SELECT userName, durations
+      FROM Usage
+      WHERE cluster=? AND timeMs >= ? AND timeMs <= ? AND durations IS NOT NULL#{where_string}|)
+    prepared_statement.set_string(1,cluster)
+    prepared_statement.set_long(2,start_time)
+    prepared_statement.set_long(3,end_time)
+
+    users_set = Set.new(users)
+    per_user = {}
+    total = DurationQuantiles.new
+
+    result = prepared_statement.execute_query
+    while result.next do
+      user = result.get_string(1)
+      next unless users_set.include?(user)
+      durations = result.get_string(2)
+      (per_user[user] ||= DurationQuantiles.new).add(durations)
+      total.add(durations)
+    end
+
+    prepared_statement.close
+
+    puts "Finished fetching duration quantiles (#{Time.now - start})"
+
+    summarize = lambda do |quantiles|
+      summary = { :count => quantiles.count }
+      UsageData.quantiles_to_query.each do |q|
+        summary["p#{(q*100).round}".to_sym] = quantiles.get_quantile_minutes(q)
+      end
+      summary
+    end
+
+    {
+      :users => users.map { |user| summarize.call(per_user[user] || DurationQuantiles.new).merge(:user => user) },
+      :aggregated => summarize.call(total)
+    }
+  end
+
+  def query_latency(cluster,users,metric,time_unit,time_zone)
+    db_conn = UsageDatabase.connection
+
+    puts "Fetching #{metric} latency for #{cluster}"
+    start = Time.now
+
+    prepared_statement = db_conn.prepareStatement(%|
+      SELECT #{time_expression(time_unit,time_zone)}, userName, #{metric}
+      FROM Latency
+      WHERE cluster=? AND #{metric} IS NOT NULL|)
+    prepared_statement.set_string(1,cluster)
+
+    users_set = Set.new(users)
+    per_time = {}
+
+    result = prepared_statement.execute_query
+    while result.next do
+      next unless users_set.empty? || users_set.include?(result.get_string(2))
+      (per_time[result.get_timestamp(1).time] ||= DurationQuantiles.new).add(result.get_string(3))
+    end
+
+    prepared_statement.close
+
+    puts "Finished fetching latency (#{Time.now - start})"
+
+    per_time.each do |t,quantiles|
+      summary = { :count => quantiles.count }
+      UsageData.quantiles_to_query.each do |q|
+        summary["p#{(q*100).round}".to_sym] = quantiles.get_quantile_minutes(q)
+      end
+      per_time[t] = summary
+    end
+
+    per_time
+  end
+
+  def query_conf_jobs(cluster,start_time,end_time,property,condition)
+    db_conn = UsageDatabase.connection
+
+    puts "Fetching jobs with #{property} #{condition.inspect} for #{cluster}"
+    start = Time.now
+
+    conditions = []
+    params = []
+
+    if condition.key?(:value)
+      conditions << "confValue=?"
+      params << [:set_string,condition[:value]]
+    end
+
+    if condition.key?(:min)
+      conditions << "numberValue >= ?"
+      params << [:set_double,condition[:min]]
+    end
+
+    if condition.key?(:max)
+      conditions << "numberValue <= ?"
+      params << [:set_double,condition[:max]]
+    end
+
+    # each entry holds the jobs of the day starting at its time
+    prepared_statement = db_conn.prepareStatement(%|
+      SELECT timeMs, confValue, jobIds
+      FROM ConfIndex
+      WHERE cluster=? AND property=? AND timeMs > ? AND timeMs <= ?#{conditions.map { |c| " AND #{c}" }.join}
+      ORDER BY timeMs, numberValue, confValue|)
+    prepared_statement.set_string(1,cluster)
+    prepared_statement.set_string(2,property)
+    prepared_statement.set_long(3,start_time - 24*3600*1000)
+    prepared_statement.set_long(4,end_time)
+    params.each_with_index do |(setter,value),i|
+      prepared_statement.send(setter,5+i,value)
+    end
+
+    entries = []
+
+    result = prepared_statement.execute_query
+    while result.next do
+      entries << {
+        :time => result.get_long(1),
+        :value => result.get_string(2),
+        :jobs => result.get_string(3).split(",")
+      }
+    end
+
+    prepared_statement.close
+
+    puts "Finished fetching jobs by conf (#{Time.now - start})"
+
+    entries
+  end
+
+  # the time rounded to the given unit in the given zone
+  def time_expression(time_unit,time_zone,time="time")
+    case time_unit
+    when "HOURS"
+      time # already rounded to hours by Hadoop jobs
+    when "DAYS"
+      "roundTimestampToDay(#{time},'#{time_zone}')"
+    when "WEEKS"
+      "roundTimestampToWeek(#{time},'#{time_zone}')"
+    when "MONTHS"
+      "roundTimestampToMonth(#{time},'#{time_zone}')"
+    when "QUARTERS"
+      "roundTimestampToQuarter(#{time},'#{time_zone}')"
+    else
+      raise "Unrecognized unit: #{time_unit}"
+    end
+  end
+
+  def query_by_time(what,where,measures,time_unit,time_zone,table="Usage")
+    puts "Querying #{table}:"
     puts "* what: #{what}"
     puts "* where: #{where}"
     puts "* measures: #{measures}"
@@ -540,22 +820,22 @@ class UsageData
 
     measures_string = measures.map { |m| "SUM(#{m})"}.join(",")
 
+    conditions = []
+    time = "time"
+
+    # Usage rolled up to days by retention has no hourly breakdown, so hourly charts leave it out.  Longer units
+    # count each day from noon GMT, which puts it in the local day it overlaps most.
+    if table == "Usage"
+      if time_unit == "HOURS"
+        conditions << "unit='HOURS'"
+      else
+        time = "CASE WHEN unit='DAYS' THEN TIMESTAMPADD(SQL_TSI_HOUR,12,time) ELSE time END"
+      end
+    end
+
     what_string = what.map do |w| 
       if w == :time
-        case time_unit
-        when "HOURS"
-          "time" # already rounded to hours by Hadoop jobs
-        when "DAYS"
-          "roundTimestampToDay(time,'#{time_zone}')"
-        when "WEEKS"
-          "roundTimestampToWeek(time,'#{time_zone}')"
-        when "MONTHS"
-          "roundTimestampToMonth(time,'#{time_zone}')"
-        when "QUARTERS"
-          "roundTimestampToQuarter(time,'#{time_zone}')"
-        else
-          raise "Unrecognized unit: #{unit}"
-        end        
+        time_expression(time_unit,time_zone,time)
       else
         w.to_s 
       end
@@ -579,11 +859,11 @@ class UsageData
       else
         raise "Unknown operator: #{operator}"
       end
-    end.join(" AND ")
+    end.concat(conditions).join(" AND ")
 
     query_string = %|
       SELECT #{what_string},#{measures_string}
-      FROM Usage
+      FROM #{table}
       WHERE #{where_string}
       GROUP BY #{what_string};|
 
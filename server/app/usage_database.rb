@@ -15,6 +15,7 @@
 # It appears that Java has problems loading these unless we include them first.
 java_import org.hsqldb.jdbc.JDBCDriver
 java_import com.linkedin.whiteelephant.TimeZoneConversion
+java_import com.linkedin.whiteelephant.DurationQuantiles
 
 class UsageDatabase
   
@@ -42,6 +43,27 @@ class UsageDatabase
         |)
       statement.close
 
+      puts "Clearing HostUsage table"
+      statement = connection.create_statement
+      statement.execute_update(%|
+        DELETE FROM HostUsage
+        |)
+      statement.close
+
+      puts "Clearing Latency table"
+      statement = connection.create_statement
+      statement.execute_update(%|
+        DELETE FROM Latency
+        |)
+      statement.close
+
+      puts "Clearing ConfIndex table"
+      statement = connection.create_statement
+      statement.execute_update(%|
+        DELETE FROM ConfIndex
+        |)
+      statement.close
+
       puts "Clearing LoadedFiles table"
       statement = connection.create_statement
       statement.execute_update(%|
@@ -83,7 +105,17 @@ class UsageDatabase
             cpuMinutes DOUBLE NULL,
             reduceShuffleBytes BIGINT NULL,
             fileNameId INTEGER NOT NULL,
-            timeMs BIGINT NOT NULL
+            timeMs BIGINT NOT NULL,
+            durations VARCHAR(8000) NULL,
+            shuffleMinutes DOUBLE NULL,
+            sortMinutes DOUBLE NULL,
+            reducePhaseMinutes DOUBLE NULL,
+            spilledRecords BIGINT NULL,
+            hdfsBytesRead BIGINT NULL,
+            hdfsBytesWritten BIGINT NULL,
+            fileBytesWritten BIGINT NULL,
+            mapOutputBytes BIGINT NULL,
+            unit varchar(10) NULL
           ) 
           |)
         statement.close
@@ -167,6 +199,127 @@ class UsageDatabase
           |)
         statement.close
       end
+
+      add_missing_columns
+
+      # usage per task tracker host, loaded from the files of the per host usage job
+      create_missing_table("HostUsage", %|
+          host varchar(255) NOT NULL,
+          time TIMESTAMP NOT NULL,
+          cluster varchar(12) NOT NULL,
+          type varchar(10) NOT NULL,
+          started INTEGER NOT NULL,
+          finished INTEGER NOT NULL,
+          failed INTEGER NOT NULL,
+          elapsedMinutes DOUBLE NOT NULL,
+          cpuMinutes DOUBLE NULL,
+          fileNameId INTEGER NOT NULL,
+          timeMs BIGINT NOT NULL
+        |, "host,timeMs,cluster,type,fileNameId")
+
+      # scheduling latency sketches, stored as bucket:count pairs like the durations in Usage
+      create_missing_table("Latency", %|
+          userName varchar(12) NOT NULL,
+          queue varchar(64) NOT NULL,
+          time TIMESTAMP NOT NULL,
+          cluster varchar(12) NOT NULL,
+          jobs INTEGER NOT NULL,
+          queueWait VARCHAR(8000) NULL,
+          firstMapWait VARCHAR(8000) NULL,
+          mapTaskWait VARCHAR(8000) NULL,
+          fileNameId INTEGER NOT NULL,
+          timeMs BIGINT NOT NULL
+        |, "userName,queue,timeMs,cluster,fileNameId")
+
+      # inverted index of job confs per day, with the job IDs joined by commas.  The unique key starts with
+      # property and cluster, so its index also serves lookups.
+      create_missing_table("ConfIndex", %|
+          property varchar(255) NOT NULL,
+          numberValue DOUBLE NULL,
+          confValue varchar(8000) NOT NULL,
+          time TIMESTAMP NOT NULL,
+          cluster varchar(12) NOT NULL,
+          jobIds LONGVARCHAR NOT NULL,
+          fileNameId INTEGER NOT NULL,
+          timeMs BIGINT NOT NULL
+        |, "property,cluster,timeMs,confValue,fileNameId")
+    end
+
+    # Creates a table of data loaded from files unless it exists.  Tables added after Usage are created this way
+    # since databases on disk created by earlier versions lack them.  As for Usage, rows are deleted along with the
+    # record of the file they were loaded from.
+    def create_missing_table(table,columns,key)
+      statement = connection.create_statement
+      result = statement.execute_query(%|SELECT TABLE_NAME FROM INFORMATION_SCHEMA.SYSTEM_TABLES where TABLE_TYPE='TABLE' AND TABLE_NAME='#{table.upcase}'|)
+      has_table = result.next
+      statement.close
+
+      return if has_table
+
+      puts "Creating #{table} table"
+
+      statement = connection.create_statement
+      statement.execute_update(%|
+        CREATE TABLE #{table}
+        (#{columns})
+        |)
+      statement.close
+
+      statement = connection.create_statement
+      statement.execute_update(%|
+        ALTER TABLE #{table}
+        ADD FOREIGN KEY (fileNameId) REFERENCES LoadedFiles(id)
+        ON DELETE CASCADE
+        |)
+      statement.close
+
+      statement = connection.create_statement
+      statement.execute_update(%|
+        ALTER TABLE #{table}
+        ADD CONSTRAINT uc_#{table}_key UNIQUE (#{key})
+        |)
+      statement.close
+    end
+
+    # Databases on disk created by earlier versions lack the columns added since.  Columns are appended in
+    # this order, the same as in the CREATE TABLE above, so inserts can list values by position.
+    def add_missing_columns
+      [
+        ["durations", "VARCHAR(8000)"],
+        ["shuffleMinutes", "DOUBLE"],
+        ["sortMinutes", "DOUBLE"],
+        ["reducePhaseMinutes", "DOUBLE"],
+        ["spilledRecords", "BIGINT"],
+        ["hdfsBytesRead", "BIGINT"],
+        ["hdfsBytesWritten", "BIGINT"],
+        ["fileBytesWritten", "BIGINT"],
+        ["mapOutputBytes", "BIGINT"],
+        ["unit", "VARCHAR(10)"]
+      ].each do |column,type|
+        statement = connection.create_statement
+        result = statement.execute_query(%|SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME='USAGE' AND COLUMN_NAME='#{column.upcase}'|)
+        has_column = result.next
+        statement.close
+
+        unless has_column
+          puts "Adding #{column} column"
+          statement = connection.create_statement
+          statement.execute_update(%|
+            ALTER TABLE Usage ADD COLUMN #{column} #{type} NULL
+            |)
+          statement.close
+
+          # usage rolled up to days by retention was loaded as if it were hourly, so load every usage file again
+          if column == "unit"
+            puts "Reloading usage to record its units"
+            statement = connection.create_statement
+            statement.execute_update(%|
+              DELETE FROM LoadedFiles WHERE id IN (SELECT DISTINCT fileNameId FROM Usage)
+              |)
+            statement.close
+          end
+        end
+      end
     end
   end
 end
@@ -61,7 +61,7 @@ class UsageFileLoadTask
       raise "Did not find file id"
     end
 
-    prep_statement = connection.prepareStatement("INSERT INTO Usage VALUES (" + 13.times.map{"?"}.join(",") + ")")
+    prep_statement = connection.prepareStatement("INSERT INTO Usage VALUES (" + 23.times.map{"?"}.join(",") + ")")
 
     prep_statement2 = connection.prepareStatement("SELECT * FROM Usage WHERE userName=? AND time=? AND cluster=? AND excess=? AND type=? AND status=?")
 
@@ -75,61 +75,113 @@ class UsageFileLoadTask
     key_fields = %w|user time unit cluster excess type status|.map { |k| [k,k.to_sym] }
     value_fields = %w|started finished elapsedMinutes cpuMinutes reduceShuffleBytes|.map { |k| [k,k.to_sym] }
 
+    # fields added to the usage data later, which are nil when loading older files, with their column index and type
+    optional_value_fields = [
+      ["shuffleMinutes", 15, Java::java.sql.Types::DOUBLE],
+      ["sortMinutes", 16, Java::java.sql.Types::DOUBLE],
+      ["reducePhaseMinutes", 17, Java::java.sql.Types::DOUBLE],
+      ["spilledRecords", 18, Java::java.sql.Types::BIGINT],
+      ["hdfsBytesRead", 19, Java::java.sql.Types::BIGINT],
+      ["hdfsBytesWritten", 20, Java::java.sql.Types::BIGINT],
+      ["fileBytesWritten", 21, Java::java.sql.Types::BIGINT],
+      ["mapOutputBytes", 22, Java::java.sql.Types::BIGINT]
+    ]
+
     record = nil
     
-    if File.file? @local_file_name
-      loader = Java::org.apache.avro.file.DataFileReader.new(Java::java.io.File.new(@local_file_name),Java::org.apache.avro.generic.GenericDatumReader.new)        
-      while loader.has_next do 
-        record = loader.next(record)
-
-        key_record = record.get("key")
-        value_record = record.get("value")
-
-        key_fields.each do |key_field|
-          value = convert_avro_value(key_record.get(key_field[0]))
-          case key_field[1]
-          when :user
-            prep_statement.set_string(1,value)
-          when :time
-            prep_statement.set_timestamp(2,Java::java.sql.Timestamp.new(value))
-            prep_statement.set_long(13,value)
-          when :cluster
-            prep_statement.set_string(3,value)
-          when :excess
-            prep_statement.set_boolean(4,value)
-          when :type
-            prep_statement.set_string(5,value)
-          when :status
-            prep_statement.set_string(6,value)
-          end 
-        end
-
-        value_fields.each do |value_field|
-          value = convert_avro_value(value_record.get(value_field[0]))
-          case value_field[1]
-          when :started
-            prep_statement.set_int(7,value)
-          when :finished
-            prep_statement.set_int(8,value)
-          when :elapsedMinutes
-            prep_statement.set_double(9,value)
-          when :cpuMinutes
-            prep_statement.set_double(10,value)
-          when :reduceShuffleBytes
-            prep_statement.set_long(11,value)
-          end 
-        end
-
-        prep_statement.set_int(12,file_id)
+    if File.file?(@local_file_name) && @file_name.end_with?(".usage")
+      # serving files are columnar and are inserted from Java without decoding records
+      reader = Java::com.linkedin.whiteelephant.ServingUsageReader.open(@local_file_name)
+      records_read = reader.insert_usage(prep_statement,file_id,max_batch_size)
 
-        prep_statement.add_batch
-
-        batch_size += 1
-        records_read += 1
+      if @delete
+        File.delete(@local_file_name)
+      end
+    elsif File.file? @local_file_name
+      loader = Java::org.apache.avro.file.DataFileReader.new(Java::java.io.File.new(@local_file_name),Java::org.apache.avro.generic.GenericDatumReader.new)        
 
-        if batch_size >= max_batch_size
-          prep_statement.execute_batch
-          batch_size = 0
+      # files of the per host usage, latency and conf index jobs are loaded into their own tables
+      key_schema_name = loader.get_schema.get_field("key").schema.get_name
+      if key_schema_name == "HostStatsKey"
+        load_host_usage(connection,loader,file_id)
+      elsif key_schema_name == "LatencyKey"
+        load_latency(connection,loader,file_id)
+      elsif key_schema_name == "ConfIndexKey"
+        load_conf_index(connection,loader,file_id)
+      else
+        while loader.has_next do 
+          record = loader.next(record)
+
+          key_record = record.get("key")
+          value_record = record.get("value")
+
+          key_fields.each do |key_field|
+            value = convert_avro_value(key_record.get(key_field[0]))
+            case key_field[1]
+            when :user
+              prep_statement.set_string(1,value)
+            when :time
+              prep_statement.set_timestamp(2,Java::java.sql.Timestamp.new(value))
+              prep_statement.set_long(13,value)
+            when :unit
+              prep_statement.set_string(23,value)
+            when :cluster
+              prep_statement.set_string(3,value)
+            when :excess
+              prep_statement.set_boolean(4,value)
+            when :type
+              prep_statement.set_string(5,value)
+            when :status
+              prep_statement.set_string(6,value)
+            end 
+          end
+
+          value_fields.each do |value_field|
+            value = convert_avro_value(value_record.get(value_field[0]))
+            case value_field[1]
+            when :started
+              prep_statement.set_int(7,value)
+            when :finished
+              prep_statement.set_int(8,value)
+            when :elapsedMinutes
+              prep_statement.set_double(9,value)
+            when :cpuMinutes
+              prep_statement.set_double(10,value)
+            when :reduceShuffleBytes
+              prep_statement.set_long(11,value)
+            end 
+          end
+
+          optional_value_fields.each do |name,index,sql_type|
+            value = convert_avro_value(value_record.get(name))
+            if value.nil?
+              prep_statement.set_null(index,sql_type)
+            elsif sql_type == Java::java.sql.Types::DOUBLE
+              prep_statement.set_double(index,value)
+            else
+              prep_statement.set_long(index,value)
+            end
+          end
+
+          prep_statement.set_int(12,file_id)
+
+          # durations are a sketch record, stored as bucket:count pairs, and are absent from older files
+          durations = value_record.get("durations")
+          if durations
+            prep_statement.set_string(14,convert_sketch(durations))
+          else
+            prep_statement.set_null(14,Java::java.sql.Types::VARCHAR)
+          end
+
+          prep_statement.add_batch
+
+          batch_size += 1
+          records_read += 1
+
+          if batch_size >= max_batch_size
+            prep_statement.execute_batch
+            batch_size = 0
+          end
         end
       end
 
@@ -162,6 +214,165 @@ class UsageFileLoadTask
     raise ex
   end
 
+  def load_host_usage(connection,loader,file_id)
+    prep_statement = connection.prepareStatement("INSERT INTO HostUsage VALUES (" + 11.times.map{"?"}.join(",") + ")")
+
+    max_batch_size = 1000
+    batch_size = 0
+
+    record = nil
+
+    while loader.has_next do
+      record = loader.next(record)
+
+      key_record = record.get("key")
+      value_record = record.get("value")
+
+      time = convert_avro_value(key_record.get("time"))
+
+      prep_statement.set_string(1,convert_avro_value(key_record.get("host")))
+      prep_statement.set_timestamp(2,Java::java.sql.Timestamp.new(time))
+      prep_statement.set_string(3,convert_avro_value(key_record.get("cluster")))
+      prep_statement.set_string(4,convert_avro_value(key_record.get("type")))
+      prep_statement.set_int(5,convert_avro_value(value_record.get("started")))
+      prep_statement.set_int(6,convert_avro_value(value_record.get("finished")))
+      prep_statement.set_int(7,convert_avro_value(value_record.get("failed")))
+      prep_statement.set_double(8,convert_avro_value(value_record.get("elapsedMinutes")))
+
+      cpu_minutes = convert_avro_value(value_record.get("cpuMinutes"))
+      if cpu_minutes.nil?
+        prep_statement.set_null(9,Java::java.sql.Types::DOUBLE)
+      else
+        prep_statement.set_double(9,cpu_minutes)
+      end
+
+      prep_statement.set_int(10,file_id)
+      prep_statement.set_long(11,time)
+
+      prep_statement.add_batch
+
+      batch_size += 1
+
+      if batch_size >= max_batch_size
+        prep_statement.execute_batch
+        batch_size = 0
+      end
+    end
+
+    if batch_size > 0
+      prep_statement.execute_batch
+    end
+
+    prep_statement.close
+  end
+
+  def load_latency(connection,loader,file_id)
+    prep_statement = connection.prepareStatement("INSERT INTO Latency VALUES (" + 10.times.map{"?"}.join(",") + ")")
+
+    max_batch_size = 1000
+    batch_size = 0
+
+    record = nil
+
+    while loader.has_next do
+      record = loader.next(record)
+
+      key_record = record.get("key")
+      value_record = record.get("value")
+
+      time = convert_avro_value(key_record.get("time"))
+
+      prep_statement.set_string(1,convert_avro_value(key_record.get("user")))
+      prep_statement.set_string(2,convert_avro_value(key_record.get("queue")))
+      prep_statement.set_timestamp(3,Java::java.sql.Timestamp.new(time))
+      prep_statement.set_string(4,convert_avro_value(key_record.get("cluster")))
+      prep_statement.set_int(5,convert_avro_value(value_record.get("jobs")))
+
+      %w|queueWait firstMapWait mapTaskWait|.each_with_index do |name,i|
+        sketch = value_record.get(name)
+        if sketch
+          prep_statement.set_string(6+i,convert_sketch(sketch))
+        else
+          prep_statement.set_null(6+i,Java::java.sql.Types::VARCHAR)
+        end
+      end
+
+      prep_statement.set_int(9,file_id)
+      prep_statement.set_long(10,time)
+
+      prep_statement.add_batch
+
+      batch_size += 1
+
+      if batch_size >= max_batch_size
+        prep_statement.execute_batch
+        batch_size = 0
+      end
+    end
+
+    if batch_size > 0
+      prep_statement.execute_batch
+    end
+
+    prep_statement.close
+  end
+
+  def load_conf_index(connection,loader,file_id)
+    prep_statement = connection.prepareStatement("INSERT INTO ConfIndex VALUES (" + 8.times.map{"?"}.join(",") + ")")
+
+    max_batch_size = 1000
+    batch_size = 0
+
+    record = nil
+
+    while loader.has_next do
+      record = loader.next(record)
+
+      key_record = record.get("key")
+      value_record = record.get("value")
+
+      time = convert_avro_value(key_record.get("time"))
+
+      prep_statement.set_string(1,convert_avro_value(key_record.get("property")))
+
+      number = convert_avro_value(key_record.get("number"))
+      if number.nil?
+        prep_statement.set_null(2,Java::java.sql.Types::DOUBLE)
+      else
+        prep_statement.set_double(2,number)
+      end
+
+      prep_statement.set_string(3,convert_avro_value(key_record.get("value")))
+      prep_statement.set_timestamp(4,Java::java.sql.Timestamp.new(time))
+      prep_statement.set_string(5,convert_avro_value(key_record.get("cluster")))
+      prep_statement.set_string(6,value_record.get("jobIds").to_a.map { |job_id| job_id.to_s }.join(","))
+      prep_statement.set_int(7,file_id)
+      prep_statement.set_long(8,time)
+
+      prep_statement.add_batch
+
+      batch_size += 1
+
+      if batch_size >= max_batch_size
+        prep_statement.execute_batch
+        batch_size = 0
+      end
+    end
+
+    if batch_size > 0
+      prep_statement.execute_batch
+    end
+
+    prep_statement.close
+  end
+
+  # sketches are stored as bucket:count pairs
+  def convert_sketch(sketch)
+    buckets = sketch.get("buckets").to_a
+    counts = sketch.get("counts").to_a
+    buckets.zip(counts).map { |b,c| "#{b}:#{c}" }.join(",")
+  end
+
   def convert_avro_value(value)
     case value
 
@@ -98,12 +98,18 @@ class UsageHadoopLoader < UsageLoader
   end
 
   def list_files
-    file_pattern = @config["file_pattern"]
-    raise "file pattern not found" unless file_pattern && file_pattern.size > 0
-    @fs.globStatus(Path.new(file_pattern)).map do |file|
-      modified_time = Time.at(file.modification_time/1000)
-      [file.get_path.to_s,modified_time]
-    end
+    file_patterns.map do |file_pattern|
+      (@fs.globStatus(Path.new(file_pattern)) || []).map do |file|
+        modified_time = Time.at(file.modification_time/1000)
+        [file.get_path.to_s,modified_time]
+      end
+    end.flatten(1)
+  end
+
+  def list_versions(dir)
+    (@fs.listStatus(Path.new(dir)) || []).select do |status|
+      status.dir? && status.get_path.get_name =~ /^v\d{16}$/
+    end.map { |status| status.get_path.get_name }
   end
 
   def get_local_file(file_name)
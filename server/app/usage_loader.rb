@@ -60,6 +60,16 @@ class UsageLoader < Java::java.lang.Thread
   def after_load
   end
 
+  # Patterns of the files to load.  Usage per host, latency and the conf index are written under their own roots,
+  # so they have their own optional patterns.
+  def file_patterns
+    file_pattern = @config["file_pattern"]
+
+    raise "file pattern not found" unless file_pattern && file_pattern.size > 0
+
+    [file_pattern, @config["host_file_pattern"], @config["latency_file_pattern"], @config["conf_index_file_pattern"]].compact
+  end
+
   def get_file_status(file,modified_time)
     prepared_statement = UsageFileLoadTask.conn.get.prepareStatement("SELECT modified FROM LoadedFiles WHERE fileName=?")
     prepared_statement.set_string(1,file)
@@ -162,10 +172,41 @@ class UsageLoader < Java::java.lang.Thread
     end
   end
 
+  # The Hadoop jobs commit each day of output as a new version directory (e.g. 0131/v0001359676800000/part-r-00000.avro)
+  # and delete superseded versions some time later.  Only load the latest version for each day so data is not
+  # double counted while an old version still exists.  The latest version is found by listing the day directory,
+  # since it may hold no data files, as for days whose month was compacted into its first day.  Files written before
+  # versioning sit directly in the day directory and are only used when the day has no versions.  When the latest
+  # version has serving files (part-r-*.usage) they hold the same usage as its Avro files, so only the serving files
+  # are loaded.
+  def latest_versions(files)
+    by_dir = {}
+
+    files.each do |file_name,modified_time|
+      version = nil
+      dir = File.dirname(file_name)
+      if File.basename(dir) =~ /^v\d{16}$/
+        version = File.basename(dir)
+        dir = File.dirname(dir)
+      end
+      (by_dir[dir] ||= []) << [file_name,modified_time,version]
+    end
+
+    by_dir.map do |dir,dir_files|
+      latest = dir_files.map { |f| f[2] }.compact.max
+      latest = (list_versions(dir) << latest).max if latest
+      latest_files = dir_files.select { |f| f[2] == latest }
+      if latest_files.any? { |f| f[0].end_with?(".usage") }
+        latest_files = latest_files.select { |f| f[0].end_with?(".usage") }
+      end
+      latest_files.map { |f| [f[0],f[1]] }
+    end.flatten(1)
+  end
+
   def load_avro_files    
     start = Time.now
 
-    files = list_files
+    files = latest_versions(list_files)
 
     check_for_deleted_files(files)
 
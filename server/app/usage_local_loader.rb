@@ -22,16 +22,18 @@ class UsageLocalLoader < UsageLoader
   end
 
   def list_files
-    file_pattern = @config["file_pattern"]
-
-    raise "file pattern not found" unless file_pattern && file_pattern.size > 0
-
-    puts "Listing local files in #{file_pattern}"
+    file_patterns.map do |file_pattern|
+      puts "Listing local files in #{file_pattern}"
+
+      Dir[file_pattern].map do |file_name|
+        modified_time = File.new(file_name).mtime
+        [file_name,modified_time]
+      end
+    end.flatten(1).uniq
+  end
 
-    Dir[file_pattern].map do |file_name|
-      modified_time = File.new(file_name).mtime
-      [file_name,modified_time]
-    end
+  def list_versions(dir)
+    Dir.entries(dir).select { |name| name =~ /^v\d{16}$/ && File.directory?(File.join(dir,name)) }
   end
 
   def get_local_file(file_name)
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges attempt duration sketches loaded from usage data and computes quantiles from them.
+ *
+ * <p>
+ * Sketches are stored as <code>bucket:count</code> pairs separated by commas.  The buckets are those of
+ * DurationSketches in the Hadoop jobs: bucket 0 counts durations up to a second and bucket <i>i</i> durations up
+ * to GAMMA<sup><i>i</i></sup> seconds.
+ * </p>
+ */
+public class DurationQuantiles
+{
+  private static final double GAMMA = 1.05;
+
+  private final TreeMap<Integer,Long> counts = new TreeMap<Integer,Long>();
+  private long total;
+
+  public void add(String sketch)
+  {
+    if (sketch == null || sketch.length() == 0)
+    {
+      return;
+    }
+
+    for (String pair : sketch.split(","))
+    {
+      int separator = pair.indexOf(':');
+      Integer bucket = Integer.valueOf(pair.substring(0, separator));
+      long count = Long.parseLong(pair.substring(separator + 1));
+
+      Long current = counts.get(bucket);
+      counts.put(bucket, current == null ? count : current + count);
+      total += count;
+    }
+  }
+
+  public long getCount()
+  {
+    return total;
+  }
+
+  /**
+   * Returns the duration in minutes at the given quantile, between 0 and 1, or null if nothing was added.
+   */
+  public Double getQuantileMinutes(double quantile)
+  {
+    if (total <= 0)
+    {
+      return null;
+    }
+
+    long rank = (long)Math.ceil(quantile * total);
+    long seen = 0;
+    Integer last = null;
+
+    for (Map.Entry<Integer,Long> entry : counts.entrySet())
+    {
+      if (entry.getValue() <= 0)
+      {
+        continue;
+      }
+
+      last = entry.getKey();
+      seen += entry.getValue();
+
+      if (seen >= rank)
+      {
+        break;
+      }
+    }
+
+    return last == null ? null : getBucketMinutes(last);
+  }
+
+  private static double getBucketMinutes(int bucket)
+  {
+    if (bucket == 0)
+    {
+      return 1.0 / 60.0;
+    }
+
+    return 2.0 * Math.pow(GAMMA, bucket) / (GAMMA + 1.0) / 60.0;
+  }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2012 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.linkedin.whiteelephant;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the columnar usage files written by ServingUsageWriter in the Hadoop jobs, as <code>part-r-*.usage</code>
+ * beside the Avro files of the usage per hour.  See ServingUsageWriter for the layout.
+ *
+ * <p>
+ * The file is memory mapped and each column is read in place.  Rows are sorted by cluster, user and time, and the
+ * footer indexes the rows of each user, so the rows of a user in a time range are found without reading the others.
+ * </p>
+ */
+public class ServingUsageReader
+{
+  private static final byte[] MAGIC = { 'W', 'E', 'U', 'S', 'A', 'G', 'E', 1 };
+
+  private static final byte INT8 = 1;
+  private static final byte INT32 = 2;
+  private static final byte INT64 = 3;
+  private static final byte FLOAT64 = 4;
+
+  private final ByteBuffer buffer;
+  private final int rowCount;
+  private final long firstTime;
+  private final long lastTime;
+  private final Map<String,Column> columns = new HashMap<String,Column>();
+  private final Map<String,String[]> dictionaries = new HashMap<String,String[]>();
+
+  // cluster code, user code, first row, number of rows, in order
+  private final int[][] runs;
+
+  public static ServingUsageReader open(String fileName) throws IOException
+  {
+    RandomAccessFile file = new RandomAccessFile(fileName, "r");
+
+    try
+    {
+      // the mapping remains valid once the file is closed
+      MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      return new ServingUsageReader(buffer);
+    }
+    finally
+    {
+      file.close();
+    }
+  }
+
+  public ServingUsageReader(ByteBuffer buffer) throws IOException
+  {
+    this.buffer = buffer;
+
+    if (buffer.limit() < 2 * MAGIC.length + 8 || !hasMagic(0) || !hasMagic(buffer.limit() - MAGIC.length))
+    {
+      throw new IOException("Not a serving usage file");
+    }
+
+    ByteBuffer footer = buffer.duplicate();
+    footer.position((int)buffer.getLong(buffer.limit() - MAGIC.length - 8));
+
+    rowCount = footer.getInt();
+    firstTime = footer.getLong();
+    lastTime = footer.getLong();
+
+    int numColumns = footer.getInt();
+    for (int i = 0; i < numColumns; i++)
+    {
+      String name = readString(footer);
+      byte type = footer.get();
+      boolean nullable = footer.get() != 0;
+      long offset = footer.getLong();
+      long length = footer.getLong();
+      columns.put(name, new Column(type, nullable, (int)offset, (int)length));
+    }
+
+    int numDictionaries = footer.getInt();
+    for (int i = 0; i < numDictionaries; i++)
+    {
+      String name = readString(footer);
+      String[] strings = new String[footer.getInt()];
+      for (int j = 0; j < strings.length; j++)
+      {
+        strings[j] = readString(footer);
+      }
+      dictionaries.put(name, strings);
+    }
+
+    runs = new int[footer.getInt()][];
+    for (int i = 0; i < runs.length; i++)
+    {
+      runs[i] = new int[] { footer.getInt(), footer.getInt(), footer.getInt(), footer.getInt() };
+      // the time range of the run, which is also found from the time column
+      footer.getLong();
+      footer.getLong();
+    }
+  }
+
+  public int getRowCount()
+  {
+    return rowCount;
+  }
+
+  public long getFirstTime()
+  {
+    return firstTime;
+  }
+
+  public long getLastTime()
+  {
+    return lastTime;
+  }
+
+  public boolean isNull(String column, int row)
+  {
+    return getColumn(column).isNull(row);
+  }
+
+  public String getString(String column, int row)
+  {
+    return dictionaries.get(column)[getColumn(column).getInt(row)];
+  }
+
+  public int getInt(String column, int row)
+  {
+    return getColumn(column).getInt(row);
+  }
+
+  public long getLong(String column, int row)
+  {
+    return getColumn(column).getLong(row);
+  }
+
+  public double getDouble(String column, int row)
+  {
+    return getColumn(column).getDouble(row);
+  }
+
+  /**
+   * Returns the sketch of durations for a row as <code>bucket:count</code> pairs separated by commas, the form
+   * stored in the database, or null if the row has none.
+   */
+  public String getDurations(int row)
+  {
+    Column offsets = getColumn("durations.offsets");
+
+    if (offsets.isNull(row))
+    {
+      return null;
+    }
+
+    IntBuffer buckets = getColumn("durations.buckets").ints;
+    LongBuffer counts = getColumn("durations.counts").longs;
+
+    StringBuilder sketch = new StringBuilder();
+    for (int i = offsets.getInt(row); i < offsets.getInt(row + 1); i++)
+    {
+      if (sketch.length() > 0)
+      {
+        sketch.append(',');
+      }
+      sketch.append(buckets.get(i)).append(':').append(counts.get(i));
+    }
+    return sketch.toString();
+  }
+
+  /**
+   * Finds the rows of a user on a cluster with times in [start, end).
+   *
+   * @return The first row and the row after the last, which are equal if there are none
+   */
+  public int[] findRows(String cluster, String user, long start, long end)
+  {
+    int clusterCode = find(dictionaries.get("cluster"), cluster);
+    int userCode = find(dictionaries.get("user"), user);
+
+    if (clusterCode < 0 || userCode < 0)
+    {
+      return new int[] { 0, 0 };
+    }
+
+    // runs are sorted by cluster and user, and their codes compare as the strings do
+    int low = 0;
+    int high = runs.length - 1;
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      int[] run = runs[middle];
+      int result = run[0] != clusterCode ? (run[0] < clusterCode ? -1 : 1) : (run[1] < userCode ? -1 : (run[1] == userCode ? 0 : 1));
+
+      if (result < 0)
+      {
+        low = middle + 1;
+      }
+      else if (result > 0)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        Column time = getColumn("time");
+        int first = lowerBound(time, run[2], run[2] + run[3], start);
+        int last = lowerBound(time, first, run[2] + run[3], end);
+        return new int[] { first, last };
+      }
+    }
+
+    return new int[] { 0, 0 };
+  }
+
+  /**
+   * Inserts every row into the Usage table, binding the columns in the order the table is created by
+   * UsageDatabase, and executing the statement in batches.
+   *
+   * @return The number of rows inserted
+   */
+  public int insertUsage(PreparedStatement statement, int fileId, int batchSize) throws SQLException
+  {
+    String[] users = dictionaries.get("user");
+    String[] clusters = dictionaries.get("cluster");
+    String[] units = dictionaries.get("unit");
+    String[] types = dictionaries.get("type");
+    String[] statuses = dictionaries.get("status");
+
+    Column user = getColumn("user");
+    Column time = getColumn("time");
+    Column cluster = getColumn("cluster");
+    Column unit = getColumn("unit");
+    Column excess = getColumn("excess");
+    Column type = getColumn("type");
+    Column status = getColumn("status");
+    Column started = getColumn("started");
+    Column finished = getColumn("finished");
+    Column elapsedMinutes = getColumn("elapsedMinutes");
+    Column cpuMinutes = getColumn("cpuMinutes");
+    Column reduceShuffleBytes = getColumn("reduceShuffleBytes");
+
+    Column[] doubles = { getColumn("shuffleMinutes"), getColumn("sortMinutes"), getColumn("reducePhaseMinutes") };
+    Column[] longs = { getColumn("spilledRecords"), getColumn("hdfsBytesRead"), getColumn("hdfsBytesWritten"),
+                       getColumn("fileBytesWritten"), getColumn("mapOutputBytes") };
+
+    int batched = 0;
+
+    for (int row = 0; row < rowCount; row++)
+    {
+      long timeMs = time.getLong(row);
+
+      statement.setString(1, users[user.getInt(row)]);
+      statement.setTimestamp(2, new Timestamp(timeMs));
+      statement.setString(3, clusters[cluster.getInt(row)]);
+      statement.setBoolean(4, excess.getByte(row) != 0);
+      statement.setString(5, types[type.getInt(row)]);
+      statement.setString(6, statuses[status.getInt(row)]);
+      statement.setInt(7, started.getInt(row));
+      statement.setInt(8, finished.getInt(row));
+      statement.setDouble(9, elapsedMinutes.getDouble(row));
+
+      if (cpuMinutes.isNull(row))
+      {
+        statement.setNull(10, Types.DOUBLE);
+      }
+      else
+      {
+        statement.setDouble(10, cpuMinutes.getDouble(row));
+      }
+
+      if (reduceShuffleBytes.isNull(row))
+      {
+        statement.setNull(11, Types.BIGINT);
+      }
+      else
+      {
+        statement.setLong(11, reduceShuffleBytes.getLong(row));
+      }
+
+      statement.setInt(12, fileId);
+      statement.setLong(13, timeMs);
+
+      String durations = getDurations(row);
+      if (durations == null)
+      {
+        statement.setNull(14, Types.VARCHAR);
+      }
+      else
+      {
+        statement.setString(14, durations);
+      }
+
+      for (int i = 0; i < doubles.length; i++)
+      {
+        if (doubles[i].isNull(row))
+        {
+          statement.setNull(15 + i, Types.DOUBLE);
+        }
+        else
+        {
+          statement.setDouble(15 + i, doubles[i].getDouble(row));
+        }
+      }
+
+      for (int i = 0; i < longs.length; i++)
+      {
+        if (longs[i].isNull(row))
+        {
+          statement.setNull(18 + i, Types.BIGINT);
+        }
+        else
+        {
+          statement.setLong(18 + i, longs[i].getLong(row));
+        }
+      }
+
+      statement.setString(23, units[unit.getInt(row)]);
+
+      statement.addBatch();
+
+      if (++batched >= batchSize)
+      {
+        statement.executeBatch();
+        batched = 0;
+      }
+    }
+
+    if (batched > 0)
+    {
+      statement.executeBatch();
+    }
+
+    return rowCount;
+  }
+
+  private Column getColumn(String name)
+  {
+    Column column = columns.get(name);
+
+    if (column == null)
+    {
+      throw new IllegalArgumentException("No column " + name);
+    }
+
+    return column;
+  }
+
+  private boolean hasMagic(int position)
+  {
+    for (int i = 0; i < MAGIC.length; i++)
+    {
+      if (buffer.get(position + i) != MAGIC[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String readString(ByteBuffer footer) throws UnsupportedEncodingException
+  {
+    byte[] bytes = new byte[footer.getInt()];
+    footer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static int find(String[] sorted, String value)
+  {
+    int low = 0;
+    int high = sorted.length - 1;
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      int result = sorted[middle].compareTo(value);
+
+      if (result < 0)
+      {
+        low = middle + 1;
+      }
+      else if (result > 0)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the first row in [first, last) with a time of at least the given one, or last if there is none.
+   */
+  private static int lowerBound(Column time, int first, int last, long value)
+  {
+    while (first < last)
+    {
+      int middle = (first + last) >>> 1;
+
+      if (time.getLong(middle) < value)
+      {
+        first = middle + 1;
+      }
+      else
+      {
+        last = middle;
+      }
+    }
+    return first;
+  }
+
+  private class Column
+  {
+    private final ByteBuffer bitmap;
+    private final ByteBuffer bytes;
+    private final IntBuffer ints;
+    private final LongBuffer longs;
+    private final DoubleBuffer doubles;
+
+    Column(byte type, boolean nullable, int offset, int length)
+    {
+      // values follow the bitmap, which is padded to 8 bytes
+      int valuesOffset = offset + (nullable ? ((rowCount + 7) / 8 + 7) / 8 * 8 : 0);
+
+      bitmap = nullable ? slice(offset, valuesOffset) : null;
+
+      ByteBuffer values = slice(valuesOffset, offset + length);
+      bytes = type == INT8 ? values : null;
+      ints = type == INT32 ? values.asIntBuffer() : null;
+      longs = type == INT64 ? values.asLongBuffer() : null;
+      doubles = type == FLOAT64 ? values.asDoubleBuffer() : null;
+    }
+
+    boolean isNull(int row)
+    {
+      return bitmap != null && (bitmap.get(row / 8) & (1 << (row % 8))) == 0;
+    }
+
+    byte getByte(int row)
+    {
+      return bytes.get(row);
+    }
+
+    int getInt(int row)
+    {
+      return ints.get(row);
+    }
+
+    long getLong(int row)
+    {
+      return longs.get(row);
+    }
+
+    double getDouble(int row)
+    {
+      return doubles.get(row);
+    }
+
+    private ByteBuffer slice(int start, int end)
+    {
+      ByteBuffer slice = buffer.duplicate();
+      slice.position(start);
+      slice.limit(end);
+      return slice.slice();
+    }
+  }
+}
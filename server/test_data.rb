@@ -35,17 +35,22 @@ FileUtils.mkdir_p(USAGE_DIR)
 java_import com.linkedin.whiteelephant.analysis.AttemptStats
 java_import com.linkedin.whiteelephant.analysis.AttemptStatsKey
 java_import com.linkedin.whiteelephant.analysis.AttemptStatsValue
+java_import com.linkedin.whiteelephant.analysis.DurationSketches
+java_import com.linkedin.whiteelephant.analysis.HostStatsKey
+java_import com.linkedin.whiteelephant.analysis.HostStatsValue
+java_import com.linkedin.whiteelephant.analysis.LatencyKey
+java_import com.linkedin.whiteelephant.analysis.LatencyValue
 java_import com.linkedin.whiteelephant.analysis.TaskStatus
 java_import com.linkedin.whiteelephant.analysis.TimeUnit
 java_import com.linkedin.whiteelephant.analysis.TaskType
+java_import com.linkedin.whiteelephant.parsing.ConfIndexKey
+java_import com.linkedin.whiteelephant.parsing.ConfIndexValue
 java_import org.apache.avro.Schema
 java_import org.apache.avro.file.DataFileWriter
 java_import org.apache.avro.generic.GenericDatumWriter
 java_import org.apache.avro.generic.GenericData
 
-def create_schema()
-  key_schema = AttemptStatsKey.new.schema
-  value_schema = AttemptStatsValue.new.schema
+def create_schema(key_schema=AttemptStatsKey.new.schema,value_schema=AttemptStatsValue.new.schema)
   key_field = Schema::Field.new("key",key_schema,"the key",nil)
   value_field = Schema::Field.new("value",value_schema,"the value",nil)
   schema = Schema.createRecord("KeyValuePair","a key/value pair", "com.linkedin.whiteelephant",false)
@@ -184,6 +189,27 @@ clusters.each do |cluster|
             value.set_cpu_minutes cpu_minutes
             value.set_spilled_records positive_gaussian(1000,100).to_i
             value.set_reduce_shuffle_bytes reduce_shuffle_bytes
+            value.set_hdfs_bytes_read (tasks * positive_gaussian(64.0,8.0) * 1024 * 1024).to_i
+            value.set_hdfs_bytes_written (tasks * positive_gaussian(16.0,4.0) * 1024 * 1024).to_i
+            value.set_file_bytes_written (tasks * positive_gaussian(32.0,8.0) * 1024 * 1024).to_i
+            value.set_map_output_bytes (tasks * positive_gaussian(32.0,8.0) * 1024 * 1024).to_i if type == TaskType::MAP
+
+            if type == TaskType::REDUCE
+              shuffle_division = [positive_gaussian(0.4,0.1),0.9].min
+              value.set_shuffle_minutes elapsed_minutes * shuffle_division
+              value.set_sort_minutes elapsed_minutes * (1.0 - shuffle_division) * 0.1
+              value.set_reduce_phase_minutes elapsed_minutes * (1.0 - shuffle_division) * 0.9
+            end
+
+            # spread the durations of the tasks around their mean
+            if tasks > 0
+              sketch = nil
+              tasks.times do
+                duration_ms = (positive_gaussian(elapsed_minutes/tasks,elapsed_minutes/tasks/2)*60*1000).to_i
+                sketch = DurationSketches.merge(sketch,DurationSketches.create(duration_ms))
+              end
+              value.set_durations sketch
+            end
 
             record.put("key",key)
             record.put("value",value)
@@ -207,3 +233,149 @@ end
 if writer
   writer.close
 end
+
+# usage per host, written under its own directory as the Hadoop jobs do
+FileUtils.mkdir_p(File.join(USAGE_DIR,"hosts"))
+
+host_schema = create_schema(HostStatsKey.new.schema,HostStatsValue.new.schema)
+hosts = (1..20).map { |i| "host%02d" % i }
+slots = { "MAP" => 8, "REDUCE" => 4 }
+
+clusters.each do |cluster|
+  writer = create_writer("hosts/test-hosts-#{cluster}.avro",host_schema)
+
+  hosts.each_with_index do |host,i|
+    # a few hosts are much busier or idler than the rest
+    busyness = case i
+    when 0 then 0.95
+    when 1 then 0.1
+    else positive_gaussian(0.6,0.1)
+    end
+
+    times.each do |time|
+      slots.each do |type,num_slots|
+        elapsed_minutes = [positive_gaussian(busyness,0.15),1.0].min * num_slots * 60
+        tasks = (elapsed_minutes/[positive_gaussian(20.0,5.0),1.0].max).to_i
+
+        key = HostStatsKey.new
+        key.set_cluster cluster
+        key.set_host host
+        key.set_time time
+        key.set_type type
+
+        value = HostStatsValue.new
+        value.set_started tasks
+        value.set_finished tasks
+        value.set_failed (rand < 0.05 ? 1 : 0)
+        value.set_elapsed_minutes elapsed_minutes
+        value.set_cpu_minutes elapsed_minutes * positive_gaussian(0.8,0.1)
+
+        record = GenericData::Record.new(host_schema)
+        record.put("key",key)
+        record.put("value",value)
+
+        writer.append(record)
+      end
+    end
+  end
+
+  writer.close
+end
+
+# scheduling latency, also written under its own directory
+FileUtils.mkdir_p(File.join(USAGE_DIR,"latency"))
+
+latency_schema = create_schema(LatencyKey.new.schema,LatencyValue.new.schema)
+queues = %w|default adhoc etl|
+
+def latency_sketch(count,mean_seconds)
+  sketch = nil
+  count.times do
+    sketch = DurationSketches.merge(sketch,DurationSketches.create((positive_gaussian(mean_seconds,mean_seconds/2)*1000).to_i))
+  end
+  sketch
+end
+
+clusters.each do |cluster|
+  writer = create_writer("latency/test-latency-#{cluster}.avro",latency_schema)
+
+  users.each_with_index do |user,i|
+    queue = queues[i % queues.size]
+
+    times.each do |time|
+      jobs = positive_gaussian(2.0,2.0).to_i
+
+      # queues are busiest in the middle of the day
+      hour = Time.at(time/1000).getutc.hour
+      wait_seconds = (hour >= 9 && hour < 18) ? 300.0 : 30.0
+
+      key = LatencyKey.new
+      key.set_cluster cluster
+      key.set_user user
+      key.set_queue queue
+      key.set_time time
+
+      value = LatencyValue.new
+      value.set_jobs jobs
+      value.set_queue_wait latency_sketch(jobs,wait_seconds)
+      value.set_first_map_wait latency_sketch(jobs,wait_seconds/10)
+      value.set_map_task_wait latency_sketch(jobs*10,wait_seconds/2)
+
+      record = GenericData::Record.new(latency_schema)
+      record.put("key",key)
+      record.put("value",value)
+
+      writer.append(record)
+    end
+  end
+
+  writer.close
+end
+
+# index of job confs, one file per cluster and day as the Hadoop jobs write it
+FileUtils.mkdir_p(File.join(USAGE_DIR,"confs"))
+
+conf_index_schema = create_schema(ConfIndexKey.new.schema,ConfIndexValue.new.schema)
+days = times.select { |time| time % (24*3600*1000) == 0 }
+jobs_per_day = 50
+
+conf_values = {
+  "io.sort.mb" => %w|100 200 512 1024 2048|,
+  "mapred.job.queue.name" => queues,
+  "mapred.reduce.tasks" => %w|1 10 100 500 1000|
+}
+
+clusters.each do |cluster|
+  days.each_with_index do |day,d|
+    writer = create_writer("confs/test-confs-#{cluster}-#{day}.avro",conf_index_schema)
+
+    job_ids = (1..jobs_per_day).map { |j| "job_201301230000_%04d" % (d*jobs_per_day + j) }
+
+    conf_values.keys.sort.each do |property|
+      values = conf_values[property]
+
+      by_value = job_ids.group_by { |job_id| values[(positive_gaussian(0.0,values.size/2.0).to_i) % values.size] }
+
+      # entries are sorted by number, then value
+      by_value.keys.sort_by { |value| [value.to_f,value] }.each do |value|
+        key = ConfIndexKey.new
+        key.set_property property
+        key.set_number (value =~ /^\d+$/ ? value.to_f : nil)
+        key.set_value value
+        key.set_cluster cluster
+        key.set_time day
+
+        index_value = ConfIndexValue.new
+        index_value.set_job_ids by_value[value].sort
+
+        record = GenericData::Record.new(conf_index_schema)
+        record.put("key",key)
+        record.put("value",index_value)
+
+        writer.append(record)
+      end
+    end
+
+    writer.close
+  end
+end